@@ -84,11 +84,13 @@ public class Configuration implements IdentityConfig {
     private static final String PARAMETER_IMAP_ENABLED = "imapEnabled";
     private static final String PARAMETER_SSL_KEYSTORE_PASSWORD = "sslKeystorePassword";
     private static final String PARAMETER_MAX_CONCURRENT_IDENTITIES_CHECK_MAIL = "maxConcurIdCheckMail";
+    private static final String PARAMETER_MAX_CONCURRENT_EMAIL_PACKET_FETCHES = "maxConcurEmailPacketFetches";
     private static final String PARAMETER_AUTO_MAIL_CHECK = "autoMailCheckEnabled";
     private static final String PARAMETER_DELIVERY_CHECK = "deliveryCheckEnabled";
     private static final String PARAMETER_MAIL_CHECK_INTERVAL = "mailCheckInterval";
     private static final String PARAMETER_OUTBOX_CHECK_INTERVAL = "outboxCheckInterval";
     private static final String PARAMETER_DELIVERY_CHECK_INTERVAL = "deliveryCheckInterval";
+    private static final String PARAMETER_DELIVERY_CHECK_PARALLELISM = "deliveryCheckParallelism";
     private static final String PARAMETER_RELAY_SEND_PAUSE = "RelaySendPause";
     private static final String PARAMETER_HIDE_LOCALE = "hideLocale";
     private static final String PARAMETER_INCLUDE_SENT_TIME = "includeSentTime";
@@ -96,6 +98,7 @@ public class Configuration implements IdentityConfig {
     private static final String PARAMETER_RELAY_REDUNDANCY = "relayRedundancy";
     private static final String PARAMETER_RELAY_MIN_DELAY = "relayMinDelay";
     private static final String PARAMETER_RELAY_MAX_DELAY = "relayMaxDelay";
+    private static final String PARAMETER_NUM_SEND_QUEUE_THREADS = "numSendQueueThreads";
     private static final String PARAMETER_NUM_STORE_HOPS = "numSendHops";
     private static final String PARAMETER_GATEWAY_DESTINATION = "gatewayDestination";
     private static final String PARAMETER_GATEWAY_ENABLED = "gatewayEnabled";
@@ -118,11 +121,13 @@ public class Configuration implements IdentityConfig {
     private static final String DEFAULT_IMAP_ADDRESS = "localhost";
     private static final boolean DEFAULT_IMAP_ENABLED = false;
     private static final int DEFAULT_MAX_CONCURRENT_IDENTITIES_CHECK_MAIL = 10;
+    private static final int DEFAULT_MAX_CONCURRENT_EMAIL_PACKET_FETCHES = 50;   // for all identities combined, see EmailPacketFetchExecutor.java
     private static final boolean DEFAULT_AUTO_MAIL_CHECK = true;
     private static final int DEFAULT_MAIL_CHECK_INTERVAL = 30;   // in minutes
     private static final int DEFAULT_OUTBOX_CHECK_INTERVAL = 10;   // in minutes
     private static final boolean DEFAULT_DELIVERY_CHECK = true;
     private static final int DEFAULT_DELIVERY_CHECK_INTERVAL = 60;   // in minutes
+    private static final int DEFAULT_DELIVERY_CHECK_PARALLELISM = 5;   // number of concurrent DHT lookups, see DeliveryChecker.java
     private static final int DEFAULT_RELAY_SEND_PAUSE = 10;   // in minutes, see RelayPacketSender.java
     private static final boolean DEFAULT_HIDE_LOCALE = true;
     private static final boolean DEFAULT_INCLUDE_SENT_TIME = true;
@@ -130,6 +135,7 @@ public class Configuration implements IdentityConfig {
     private static final int DEFAULT_RELAY_REDUNDANCY = 5;   // lower than the DHT redundancy because only the highest-uptime peers are used for relaying
     private static final int DEFAULT_RELAY_MIN_DELAY = 5;   // in minutes
     private static final int DEFAULT_RELAY_MAX_DELAY = 40;   // in minutes
+    private static final int DEFAULT_NUM_SEND_QUEUE_THREADS = 2;   // see I2PSendQueue.java
     private static final int DEFAULT_NUM_STORE_HOPS = 2;
     private static final String DEFAULT_GATEWAY_DESTINATION = "";
     private static final boolean DEFAULT_GATEWAY_ENABLED = true;
@@ -442,6 +448,16 @@ public class Configuration implements IdentityConfig {
         return getIntParameter(PARAMETER_MAX_CONCURRENT_IDENTITIES_CHECK_MAIL, DEFAULT_MAX_CONCURRENT_IDENTITIES_CHECK_MAIL);
     }
 
+    /**
+     * Returns the maximum number of email packets to retrieve at a time, across all
+     * email identities.
+     * @return A positive number
+     * @see i2p.bote.network.EmailPacketFetchExecutor
+     */
+    public int getMaxConcurEmailPacketFetches() {
+        return Math.max(1, getIntParameter(PARAMETER_MAX_CONCURRENT_EMAIL_PACKET_FETCHES, DEFAULT_MAX_CONCURRENT_EMAIL_PACKET_FETCHES));
+    }
+
     public void setAutoMailCheckEnabled(boolean enabled) {
         properties.setProperty(PARAMETER_AUTO_MAIL_CHECK, String.valueOf(enabled));
     }
@@ -496,6 +512,15 @@ public class Configuration implements IdentityConfig {
         return getIntParameter(PARAMETER_DELIVERY_CHECK_INTERVAL, DEFAULT_DELIVERY_CHECK_INTERVAL);
     }
 
+    /**
+     * Returns the maximum number of DHT lookups the delivery checker runs at the same time.
+     * @return A positive number
+     * @see i2p.bote.service.DeliveryChecker
+     */
+    public int getDeliveryCheckParallelism() {
+        return Math.max(1, getIntParameter(PARAMETER_DELIVERY_CHECK_PARALLELISM, DEFAULT_DELIVERY_CHECK_PARALLELISM));
+    }
+
     public void setRelaySendPause(int minutes) {
         properties.setProperty(PARAMETER_RELAY_SEND_PAUSE, String.valueOf(minutes));
     }
@@ -568,6 +593,14 @@ public class Configuration implements IdentityConfig {
         return getIntParameter(PARAMETER_RELAY_MAX_DELAY, DEFAULT_RELAY_MAX_DELAY);
     }
 
+    /**
+     * Returns the number of threads that send packets from the send queue.
+     * @return A positive number
+     */
+    public int getNumSendQueueThreads() {
+        return Math.max(1, getIntParameter(PARAMETER_NUM_SEND_QUEUE_THREADS, DEFAULT_NUM_SEND_QUEUE_THREADS));
+    }
+
     public void setNumStoreHops(int numHops) {
         properties.setProperty(PARAMETER_NUM_STORE_HOPS, String.valueOf(numHops));
     }
@@ -63,6 +63,7 @@ import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -72,11 +73,13 @@ import javax.mail.MessagingException;
 import i2p.bote.addressbook.AddressBook;
 import i2p.bote.crypto.wordlist.WordListAnchor;
 import i2p.bote.debug.DebugSupport;
+import i2p.bote.debug.EncryptedFileCheck;
 import i2p.bote.email.Email;
 import i2p.bote.email.EmailIdentity;
 import i2p.bote.email.Identities;
 import i2p.bote.email.NoIdentityForSenderException;
 import i2p.bote.fileencryption.DerivedKey;
+import i2p.bote.fileencryption.DerivedKeyCache;
 import i2p.bote.fileencryption.FileEncryptionUtil;
 import i2p.bote.fileencryption.PasswordCache;
 import i2p.bote.fileencryption.PasswordCacheListener;
@@ -187,7 +190,7 @@ public class I2PBote implements NetworkStatusSource, EmailFolderManager, MailSen
         migrator.migrateNonPasswordedDataIfNeeded();
         
         passwordCache = new PasswordCache(configuration);
-        // purge identities and addresses from memory when the password is cleared
+        // purge identities, addresses, and folder indices from memory when the password is cleared
         passwordCache.addPasswordCacheListener(new PasswordCacheListener() {
             @Override
             public void passwordProvided() {
@@ -198,6 +201,8 @@ public class I2PBote implements NetworkStatusSource, EmailFolderManager, MailSen
             public void passwordCleared() {
                 identities.clearPasswordProtectedData();
                 addressBook.clearPasswordProtectedData();
+                for (EmailFolder folder: getEmailFolders())
+                    folder.clearPasswordProtectedData();
             }
         });
         identities = new Identities(configuration.getIdentitiesFile(), passwordCache);
@@ -325,7 +330,7 @@ public class I2PBote implements NetworkStatusSource, EmailFolderManager, MailSen
         i2pSession.addMuxedSessionListener(dispatcher, I2PSession.PROTO_DATAGRAM, I2PSession.PORT_ANY);
         
         backgroundThreads.add(passwordCache);
-        I2PSendQueue sendQueue = new I2PSendQueue(i2pSession, dispatcher);
+        I2PSendQueue sendQueue = new I2PSendQueue(i2pSession, dispatcher, configuration.getNumSendQueueThreads());
         backgroundThreads.add(sendQueue);
         RelayPacketSender relayPacketSender = new RelayPacketSender(sendQueue, relayPacketFolder, configuration);   // reads packets stored in the relayPacketFolder and sends them
         backgroundThreads.add(relayPacketSender);
@@ -644,6 +649,26 @@ public class I2PBote implements NetworkStatusSource, EmailFolderManager, MailSen
         return trashFolder;
     }
 
+    /**
+     * @see EmailChecker#getNumQueuedEmailPacketFetches()
+     */
+    public int getNumQueuedEmailPacketFetches() {
+        if (emailChecker == null)
+            return 0;
+        else
+            return emailChecker.getNumQueuedEmailPacketFetches();
+    }
+    
+    /**
+     * @see EmailChecker#getNumActiveEmailPacketFetches()
+     */
+    public int getNumActiveEmailPacketFetches() {
+        if (emailChecker == null)
+            return 0;
+        else
+            return emailChecker.getNumActiveEmailPacketFetches();
+    }
+
     public int getNumIncompleteEmails() {
         return incompleteEmailFolder.getNumIncompleteEmails();
     }
@@ -734,15 +759,22 @@ public class I2PBote implements NetworkStatusSource, EmailFolderManager, MailSen
         synchronized(passwordCache) {
             passwordCache.setPassword(newPassword);
             DerivedKey newKey = passwordCache.getKey();
+            // almost all files share one salt, so this avoids deriving the old key for every file
+            DerivedKeyCache oldKeys = new DerivedKeyCache(oldPassword);
+            int numThreads = Runtime.getRuntime().availableProcessors();
+            ExecutorService executor = Executors.newFixedThreadPool(numThreads, Util.createThreadFactory("ChangePassword", 256 * 1024, Thread.NORM_PRIORITY));
 
-            lsnr.updateStatus(ChangePasswordStatus.RE_ENCRYPTING_IDENTITIES);
-            identities.changePassword(oldPassword, newKey);
-
-            lsnr.updateStatus(ChangePasswordStatus.RE_ENCRYPTING_ADDRESS_BOOK);
-            addressBook.changePassword(oldPassword, newKey);
-            for (EmailFolder folder: getEmailFolders()) {
-                lsnr.updateStatus(ChangePasswordStatus.RE_ENCRYPTING_FOLDER, folder.getName());
-                folder.changePassword(oldPassword, newKey);
+            try {
+                lsnr.updateStatus(ChangePasswordStatus.RE_ENCRYPTING_IDENTITIES);
+                identities.changePassword(oldKeys, newKey);
+    
+                lsnr.updateStatus(ChangePasswordStatus.RE_ENCRYPTING_ADDRESS_BOOK);
+                addressBook.changePassword(oldKeys, newKey);
+                for (EmailFolder folder: getEmailFolders())
+                    folder.changePassword(oldKeys, newKey, executor, lsnr);
+            } finally {
+                executor.shutdownNow();
+                oldKeys.clear();
             }
 
             lsnr.updateStatus(ChangePasswordStatus.UPDATING_PASSWORD_FILE);
@@ -802,6 +834,16 @@ public class I2PBote implements NetworkStatusSource, EmailFolderManager, MailSen
         return debugSupport.getUndecryptableFiles();
     }
     
+    /** @see DebugSupport#startFileCheck() */
+    public EncryptedFileCheck startFileCheck() throws PasswordException, IOException, GeneralSecurityException {
+        return debugSupport.startFileCheck();
+    }
+    
+    /** @see DebugSupport#getFileCheck() */
+    public EncryptedFileCheck getFileCheck() {
+        return debugSupport.getFileCheck();
+    }
+    
     public List<EmailFolder> getEmailFolders() {
         ArrayList<EmailFolder> folders = new ArrayList<EmailFolder>();
         folders.add(inbox);
@@ -23,6 +23,7 @@ package i2p.bote.addressbook;
 
 import i2p.bote.email.EmailDestination;
 import i2p.bote.fileencryption.DerivedKey;
+import i2p.bote.fileencryption.DerivedKeyCache;
 import i2p.bote.fileencryption.EncryptedInputStream;
 import i2p.bote.fileencryption.EncryptedOutputStream;
 import i2p.bote.fileencryption.FileEncryptionUtil;
@@ -43,6 +44,8 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.security.GeneralSecurityException;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -60,6 +63,7 @@ public class AddressBook extends ExportableData {
     private File addressFile;
     private PasswordHolder passwordHolder;
     private SortedSet<Contact> contacts;
+    private Map<String, Contact> contactsByDest;   // index into contacts by Base64 destination
 
     /**
      * Constructs a new empty <code>AddressBook</code>.
@@ -86,6 +90,7 @@ public class AddressBook extends ExportableData {
         if (!addressFile.exists()) {
             log.debug("Address file does not exist: <" + addressFile.getAbsolutePath() + ">");
             contacts = new TreeSet<Contact>(new ContactComparator());
+            contactsByDest = new HashMap<String, Contact>();
             return;
         }
         
@@ -119,6 +124,7 @@ public class AddressBook extends ExportableData {
     protected boolean loadFromProperties(Properties properties, boolean append, boolean replace) {
         if (contacts == null || !append) {
             contacts = new TreeSet<Contact>(new ContactComparator());
+            contactsByDest = new HashMap<String, Contact>();
         }
         int index = 0;
         while (true) {
@@ -136,10 +142,9 @@ public class AddressBook extends ExportableData {
                 String text = properties.getProperty(prefix + "text");
                 Contact contact = new Contact(name, destination, pictureBase64, text);
 
-                if (append && replace && contacts.contains(contact)) {
-                    contacts.remove(contact);
-                }
-                contacts.add(contact);
+                if (append && replace)
+                    removeContact(contact);
+                addContact(contact);
             }
             catch (GeneralSecurityException e) {
                 log.error("Not a valid Email Destination: <" + destBase64 + ">", e);
@@ -184,23 +189,59 @@ public class AddressBook extends ExportableData {
     
     public void add(Contact contact) throws PasswordException {
         initializeIfNeeded();
-        contacts.add(contact);
+        addContact(contact);
     }
     
     public void remove(String destination) throws PasswordException {
         initializeIfNeeded();
         Contact contact = get(destination);
         if (contact != null)
-            contacts.remove(contact);
+            removeContact(contact);
+    }
+    
+    /**
+     * Adds a contact to the sorted set and, if the set changed, to the index.
+     * If several contacts have the same destination, the index points to the
+     * first one in sort order.
+     * @param contact
+     */
+    private void addContact(Contact contact) {
+        if (!contacts.add(contact))
+            return;
+        String destination = contact.getBase64Dest();
+        Contact indexedContact = contactsByDest.get(destination);
+        if (indexedContact==null || contacts.comparator().compare(contact, indexedContact)<0)
+            contactsByDest.put(destination, contact);
+    }
+    
+    /**
+     * Removes a contact from the sorted set and the index. If another contact
+     * has the same destination, the index is updated to point to that contact.
+     * @param contact
+     */
+    private void removeContact(Contact contact) {
+        if (!contacts.remove(contact))
+            return;
+        String destination = contact.getBase64Dest();
+        Contact indexedContact = contactsByDest.get(destination);
+        if (indexedContact!=null && contacts.comparator().compare(contact, indexedContact)==0) {
+            contactsByDest.remove(destination);
+            for (Contact otherContact: contacts)
+                if (destination.equals(otherContact.getBase64Dest())) {
+                    contactsByDest.put(destination, otherContact);
+                    break;
+                }
+        }
     }
     
-    public void changePassword(byte[] oldPassword, DerivedKey newKey) throws FileNotFoundException, IOException, GeneralSecurityException, PasswordException {
+    public void changePassword(DerivedKeyCache oldKeys, DerivedKey newKey) throws FileNotFoundException, IOException, GeneralSecurityException, PasswordException {
         if (addressFile.exists())
-            FileEncryptionUtil.changePassword(addressFile, oldPassword, newKey);
+            FileEncryptionUtil.changePassword(addressFile, oldKeys, newKey);
     }
     
     public void clearPasswordProtectedData() {
         contacts = null;
+        contactsByDest = null;
     }
     
     /**
@@ -214,10 +255,7 @@ public class AddressBook extends ExportableData {
        if (contacts==null || destination==null || destination.isEmpty())
             return null;
         
-        for (Contact contact: contacts)
-            if (destination.equals(contact.getBase64Dest()))
-                return contact;
-        return null;
+        return contactsByDest.get(destination);
     }
     
     /**
@@ -231,10 +269,7 @@ public class AddressBook extends ExportableData {
         if (base64dest == null)
             return false;
         
-        for (Contact contact: contacts)
-            if (base64dest.equals(contact.getBase64Dest()))
-                return true;
-        return false;
+        return contactsByDest.containsKey(base64dest);
     }
     
     public SortedSet<Contact> getAll() throws PasswordException {
@@ -22,6 +22,7 @@
 package i2p.bote.crypto;
 
 import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
 
 import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
@@ -32,20 +33,26 @@ import net.i2p.I2PAppContext;
 
 /**
  * Implements {@link #toByteArray(PublicKeyPair)} and {@link #toByteArray(PrivateKeyPair)},
- * and provides methods for AES encryption and decryption.
+ * and provides thread-safe methods for AES encryption and decryption.
  */
 public abstract class AbstractCryptoImplementation implements CryptoImplementation {
     protected I2PAppContext appContext;
-    private Cipher aesCipher;
+    private EnginePool<Cipher> aesCiphers;
 
     protected AbstractCryptoImplementation() throws GeneralSecurityException {
         appContext = I2PAppContext.getGlobalContext();
-        try {
-            aesCipher = Cipher.getInstance("AES/CBC/PKCS7Padding");
-        } catch (NoSuchPaddingException e) {
-            // SUN provider incorrectly calls it PKCS5Padding
-            aesCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-        }
+        aesCiphers = new EnginePool<Cipher>() {
+            @Override
+            protected Cipher create() throws GeneralSecurityException {
+                try {
+                    return Cipher.getInstance("AES/CBC/PKCS7Padding");
+                } catch (NoSuchPaddingException e) {
+                    // SUN provider incorrectly calls it PKCS5Padding
+                    return Cipher.getInstance("AES/CBC/PKCS5Padding");
+                }
+            }
+        };
+        aesCiphers.release(aesCiphers.borrow());   // fail early if AES is not available
     }
     
     /** This implementation returns the whole set of Base64 characters. */
@@ -76,27 +83,43 @@ public abstract class AbstractCryptoImplementation implements CryptoImplementati
         return encodedKeys;
     }
 
+    /** This implementation returns <code>privateKey</code> unchanged. */
+    @Override
+    public PrivateKey prepareDecryptionKey(PrivateKey privateKey) throws GeneralSecurityException {
+        return privateKey;
+    }
+    
     protected byte[] encryptAes(byte[] data, byte[] key, byte[] iv) throws GeneralSecurityException {
         SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
         IvParameterSpec ivps = new IvParameterSpec(iv, 0, 16);
-        aesCipher.init(Cipher.ENCRYPT_MODE, keySpec, ivps, appContext.random());
-
-        byte[] encryptedData = new byte[aesCipher.getOutputSize(data.length)];
-        int encLen = aesCipher.doFinal(data, 0, data.length, encryptedData, 0);
-        byte[] ret = new byte[encLen];
-        System.arraycopy(encryptedData, 0, ret, 0, encLen);
-        return ret;
+        Cipher aesCipher = aesCiphers.borrow();
+        try {
+            aesCipher.init(Cipher.ENCRYPT_MODE, keySpec, ivps, appContext.random());
+    
+            byte[] encryptedData = new byte[aesCipher.getOutputSize(data.length)];
+            int encLen = aesCipher.doFinal(data, 0, data.length, encryptedData, 0);
+            byte[] ret = new byte[encLen];
+            System.arraycopy(encryptedData, 0, ret, 0, encLen);
+            return ret;
+        } finally {
+            aesCiphers.release(aesCipher);
+        }
     }
     
     protected byte[] decryptAes(byte[] data, byte[] key, byte[] iv) throws GeneralSecurityException {
         SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
         IvParameterSpec ivps = new IvParameterSpec(iv, 0, 16);
-        aesCipher.init(Cipher.DECRYPT_MODE, keySpec, ivps, appContext.random());
-
-        byte[] decryptedData = new byte[aesCipher.getOutputSize(data.length)];
-        int decLen = aesCipher.doFinal(data, 0, data.length, decryptedData, 0);
-        byte[] ret = new byte[decLen];
-        System.arraycopy(decryptedData, 0, ret, 0, decLen);
-        return ret;
+        Cipher aesCipher = aesCiphers.borrow();
+        try {
+            aesCipher.init(Cipher.DECRYPT_MODE, keySpec, ivps, appContext.random());
+    
+            byte[] decryptedData = new byte[aesCipher.getOutputSize(data.length)];
+            int decLen = aesCipher.doFinal(data, 0, data.length, decryptedData, 0);
+            byte[] ret = new byte[decLen];
+            System.arraycopy(decryptedData, 0, ret, 0, decLen);
+            return ret;
+        } finally {
+            aesCiphers.release(aesCipher);
+        }
     }
 }
\ No newline at end of file
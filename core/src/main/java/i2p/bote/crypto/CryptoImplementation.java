@@ -35,6 +35,8 @@ import java.security.PublicKey;
  * <p/>
  * This interface does not define symmetric encryption, which is always AES-256,
  * nor a hash algorithm, which is SHA-256 or SHA-512.
+ * <p/>
+ * Implementations are shared by all threads and must be safe for concurrent use.
  */
 public interface CryptoImplementation {
     
@@ -135,6 +137,17 @@ public interface CryptoImplementation {
     /** This method takes a public key in addition to the private key because some algorithms need the public key for decryption. */
     byte[] decrypt(byte[] data, PublicKey publicKey, PrivateKey privateKey) throws GeneralSecurityException;
     
+    /**
+     * Returns a key that can be passed to {@link #decrypt(byte[], PublicKey, PrivateKey)} in place of
+     * <code>privateKey</code> and that makes repeated decryption with the same key faster, for example
+     * by keeping engines that are already initialized with the key.<br/>
+     * The returned key must only be used for decryption. Implementations that have nothing to
+     * prepare return <code>privateKey</code>.
+     * @param privateKey A private encryption key
+     * @throws GeneralSecurityException
+     */
+    PrivateKey prepareDecryptionKey(PrivateKey privateKey) throws GeneralSecurityException;
+    
     /**
      * @param data
      * @param privateKey
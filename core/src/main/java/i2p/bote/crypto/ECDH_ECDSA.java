@@ -64,18 +64,22 @@ import net.i2p.util.Log;
  * and private keys produced by this class always start with an upper case A when
  * base64-encoded. The leading A is omitted, which saves two bytes in email destinations
  * (see the {@link #toBase64(PublicKey)} and {@link #toBase64(PrivateKey)} methods).
+ * <p/>
+ * JCA engines are not thread-safe, so they are kept in {@link EnginePool}s.
  */
 public abstract class ECDH_ECDSA extends AbstractCryptoImplementation {
     private static final int IV_SIZE = 16;   // length of the AES initialization vector
 
     protected int keyLengthBytes;
     protected ECParameterSpec ecParameterSpec;
-    private KeyPairGenerator encryptionKeyPairGenerator;
-    private KeyPairGenerator signingKeyPairGenerator;
-    private KeyFactory ecdhKeyFactory;
-    private KeyFactory ecdsaKeyFactory;
-    private Signature signatureAlg;
-    private Signature altSignatureAlg;
+    private EnginePool<KeyPairGenerator> encryptionKeyPairGenerators;
+    private KeyPairGenerator signingKeyPairGenerator;   // only used for creating identities; access is synchronized
+    private EnginePool<KeyFactory> ecdhKeyFactories;
+    private EnginePool<KeyFactory> ecdsaKeyFactories;
+    private EnginePool<KeyAgreement> keyAgreements;
+    private EnginePool<MessageDigest> sha256Digests;
+    private EnginePool<Signature> signatureAlgs;
+    private EnginePool<Signature> altSignatureAlgs;
     private Log log = new Log(ECDH_ECDSA.class);
 
     /**
@@ -86,26 +90,73 @@ public abstract class ECDH_ECDSA extends AbstractCryptoImplementation {
      * @param keyLengthBytes Length of a byte array encoding of one (public or private) key
      * @throws GeneralSecurityException
      */
-    ECDH_ECDSA(String curveName, String sigName, int keyLengthBytes) throws GeneralSecurityException {
+    ECDH_ECDSA(String curveName, final String sigName, int keyLengthBytes) throws GeneralSecurityException {
         super();
 
         ecParameterSpec = ECUtils.getParameters(curveName);
 
-        signatureAlg = Signature.getInstance(sigName);
+        signatureAlgs = new EnginePool<Signature>() {
+            @Override
+            protected Signature create() throws GeneralSecurityException {
+                return Signature.getInstance(sigName);
+            }
+        };
         // Backwards-compatibility with old ECDSA-521 signatures that used SHA-256
         if ("P-521".equals(curveName))
-            altSignatureAlg = Signature.getInstance("SHA256withECDSA");
+            altSignatureAlgs = new EnginePool<Signature>() {
+                @Override
+                protected Signature create() throws GeneralSecurityException {
+                    return Signature.getInstance("SHA256withECDSA");
+                }
+            };
 
         this.keyLengthBytes = keyLengthBytes;
 
-        encryptionKeyPairGenerator = KeyPairGenerator.getInstance("ECDH");
-        encryptionKeyPairGenerator.initialize(ecParameterSpec, appContext.random());
+        encryptionKeyPairGenerators = new EnginePool<KeyPairGenerator>() {
+            @Override
+            protected KeyPairGenerator create() throws GeneralSecurityException {
+                KeyPairGenerator generator = KeyPairGenerator.getInstance("ECDH");
+                generator.initialize(ecParameterSpec, appContext.random());
+                return generator;
+            }
+        };
 
         signingKeyPairGenerator = KeyPairGenerator.getInstance("ECDSA");
         signingKeyPairGenerator.initialize(ecParameterSpec, appContext.random());
 
-        ecdhKeyFactory = KeyFactory.getInstance("ECDH");
-        ecdsaKeyFactory = KeyFactory.getInstance("ECDSA");
+        ecdhKeyFactories = createKeyFactoryPool("ECDH");
+        ecdsaKeyFactories = createKeyFactoryPool("ECDSA");
+        keyAgreements = new EnginePool<KeyAgreement>() {
+            @Override
+            protected KeyAgreement create() throws GeneralSecurityException {
+                return KeyAgreement.getInstance("ECDH");
+            }
+        };
+        sha256Digests = new EnginePool<MessageDigest>() {
+            @Override
+            protected MessageDigest create() throws GeneralSecurityException {
+                return MessageDigest.getInstance("SHA-256");
+            }
+        };
+        
+        // fail early if an algorithm is not available
+        signatureAlgs.release(signatureAlgs.borrow());
+        if (altSignatureAlgs != null)
+            altSignatureAlgs.release(altSignatureAlgs.borrow());
+        encryptionKeyPairGenerators.release(encryptionKeyPairGenerators.borrow());
+        ecdhKeyFactories.release(ecdhKeyFactories.borrow());
+        ecdsaKeyFactories.release(ecdsaKeyFactories.borrow());
+        keyAgreements.release(keyAgreements.borrow());
+        sha256Digests.release(sha256Digests.borrow());
+    }
+    
+    private EnginePool<KeyFactory> createKeyFactoryPool(final String algorithm) {
+        return new EnginePool<KeyFactory>() {
+            @Override
+            protected KeyFactory create() throws GeneralSecurityException {
+                return KeyFactory.getInstance(algorithm);
+            }
+        };
     }
     
     @Override
@@ -114,13 +165,20 @@ public abstract class ECDH_ECDSA extends AbstractCryptoImplementation {
     }
     
     @Override
-    public KeyPair generateEncryptionKeyPair() {
-        return encryptionKeyPairGenerator.generateKeyPair();
+    public KeyPair generateEncryptionKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator generator = encryptionKeyPairGenerators.borrow();
+        try {
+            return generator.generateKeyPair();
+        } finally {
+            encryptionKeyPairGenerators.release(generator);
+        }
     }
     
     @Override
     public KeyPair generateSigningKeyPair() {
-        return signingKeyPairGenerator.generateKeyPair();
+        synchronized(signingKeyPairGenerator) {
+            return signingKeyPairGenerator.generateKeyPair();
+        }
     }
     
     @Override
@@ -196,10 +254,10 @@ public abstract class ECDH_ECDSA extends AbstractCryptoImplementation {
         PublicKeyPair keyPair = new PublicKeyPair();
         
         ECPublicKeySpec encryptionKeySpec = createPublicKeySpec(Arrays.copyOf(bytes, keyLengthBytes));
-        keyPair.encryptionKey = ecdhKeyFactory.generatePublic(encryptionKeySpec);
+        keyPair.encryptionKey = generatePublic(ecdhKeyFactories, encryptionKeySpec);
         
         ECPublicKeySpec signingKeySpec = createPublicKeySpec(Arrays.copyOfRange(bytes, keyLengthBytes, 2*keyLengthBytes));
-        keyPair.signingKey = ecdsaKeyFactory.generatePublic(signingKeySpec);
+        keyPair.signingKey = generatePublic(ecdsaKeyFactories, signingKeySpec);
         
         return keyPair;
     }
@@ -209,14 +267,65 @@ public abstract class ECDH_ECDSA extends AbstractCryptoImplementation {
         PrivateKeyPair keyPair = new PrivateKeyPair();
         
         ECPrivateKeySpec encryptionKeySpec = createPrivateKeySpec(Arrays.copyOf(bytes, keyLengthBytes));
-        keyPair.encryptionKey = ecdhKeyFactory.generatePrivate(encryptionKeySpec);
+        keyPair.encryptionKey = generatePrivate(ecdhKeyFactories, encryptionKeySpec);
         
         ECPrivateKeySpec signingKeySpec = createPrivateKeySpec(Arrays.copyOfRange(bytes, keyLengthBytes, 2*keyLengthBytes));
-        keyPair.signingKey = ecdsaKeyFactory.generatePrivate(signingKeySpec);
+        keyPair.signingKey = generatePrivate(ecdsaKeyFactories, signingKeySpec);
         
         return keyPair;
     }
     
+    private PublicKey generatePublic(EnginePool<KeyFactory> keyFactories, ECPublicKeySpec keySpec) throws GeneralSecurityException {
+        KeyFactory keyFactory = keyFactories.borrow();
+        try {
+            return keyFactory.generatePublic(keySpec);
+        } finally {
+            keyFactories.release(keyFactory);
+        }
+    }
+    
+    private PrivateKey generatePrivate(EnginePool<KeyFactory> keyFactories, ECPrivateKeySpec keySpec) throws GeneralSecurityException {
+        KeyFactory keyFactory = keyFactories.borrow();
+        try {
+            return keyFactory.generatePrivate(keySpec);
+        } finally {
+            keyFactories.release(keyFactory);
+        }
+    }
+    
+    /**
+     * Generates an ECDH shared secret and returns its SHA-256 hash.
+     * @param privateKey
+     * @param publicKey
+     * @throws GeneralSecurityException
+     */
+    private byte[] generateSecretHash(PrivateKey privateKey, PublicKey publicKey) throws GeneralSecurityException {
+        byte[] sharedSecret;
+        if (privateKey instanceof PreparedDecryptionKey)
+            sharedSecret = ((PreparedDecryptionKey)privateKey).generateSecret(publicKey);
+        else {
+            KeyAgreement keyAgreement = keyAgreements.borrow();
+            try {
+                keyAgreement.init(privateKey);
+                keyAgreement.doPhase(publicKey, true);
+                sharedSecret = keyAgreement.generateSecret();
+            } finally {
+                keyAgreements.release(keyAgreement);
+            }
+        }
+        
+        byte[] secretHash;
+        MessageDigest hashAlg = sha256Digests.borrow();
+        try {
+            secretHash = hashAlg.digest(sharedSecret);
+        } finally {
+            sha256Digests.release(hashAlg);
+        }
+        if (sharedSecret.length < secretHash.length)
+            log.warn("Not enough data in shared secret!");
+        return secretHash;
+    }
+    
     @Override
     public String toBase64(PublicKeyPair keyPair) throws GeneralSecurityException {
         return toBase64(keyPair.encryptionKey) + toBase64(keyPair.signingKey);
@@ -292,15 +401,8 @@ public abstract class ECDH_ECDSA extends AbstractCryptoImplementation {
     @Override
     public byte[] encrypt(byte[] data, PublicKey encryptionKey) throws GeneralSecurityException {
         // generate an ephemeral EC key and a shared secret
-        KeyPair ephKeyPair = encryptionKeyPairGenerator.generateKeyPair();
-        KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
-        keyAgreement.init(ephKeyPair.getPrivate());
-        keyAgreement.doPhase(encryptionKey, true);
-        byte[] sharedSecret = keyAgreement.generateSecret();
-        MessageDigest hashAlg = MessageDigest.getInstance("SHA-256");
-        byte[] secretHash = hashAlg.digest(sharedSecret);
-        if (sharedSecret.length < secretHash.length)
-            log.warn("Not enough data in shared secret!");
+        KeyPair ephKeyPair = generateEncryptionKeyPair();
+        byte[] secretHash = generateSecretHash(ephKeyPair.getPrivate(), encryptionKey);
         
         // encrypt the data using the hash of the shared secret as an AES key
         byte iv[] = new byte[IV_SIZE];
@@ -336,15 +438,10 @@ public abstract class ECDH_ECDSA extends AbstractCryptoImplementation {
             byte[] encodedKey = new byte[keyLengthBytes];
             byteStream.read(encodedKey);
             ECPublicKeySpec ephPublicKeySpec = createPublicKeySpec(encodedKey);
-            PublicKey ephPublicKey = ecdhKeyFactory.generatePublic(ephPublicKeySpec);
+            PublicKey ephPublicKey = generatePublic(ecdhKeyFactories, ephPublicKeySpec);
         
             // reconstruct the shared secret
-            KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
-            keyAgreement.init(privateKey);
-            keyAgreement.doPhase(ephPublicKey, true);
-            byte[] sharedSecret = keyAgreement.generateSecret();
-            MessageDigest hashAlg = MessageDigest.getInstance("SHA-256");
-            byte[] secretHash = hashAlg.digest(sharedSecret);
+            byte[] secretHash = generateSecretHash(privateKey, ephPublicKey);
         
             // decrypt using the shared secret as an AES key
             byte[] iv = new byte[IV_SIZE];
@@ -362,13 +459,26 @@ public abstract class ECDH_ECDSA extends AbstractCryptoImplementation {
 
     protected abstract ECPublicKeySpec createPublicKeySpec(byte[] encodedKey) throws InvalidKeySpecException, NoSuchAlgorithmException;
 
+    /** Returns a key whose <code>KeyAgreement</code>s are initialized once and then reused. */
     @Override
-    public byte[] sign(byte[] data, PrivateKey privateKey, KeyUpdateHandler keyupdateHandler) throws GeneralSecurityException {
-        signatureAlg.initSign(privateKey);
-        signatureAlg.update(data);
-        byte[] signature = signatureAlg.sign();
+    public PrivateKey prepareDecryptionKey(PrivateKey privateKey) throws GeneralSecurityException {
+        if (privateKey instanceof PreparedDecryptionKey)
+            return privateKey;
+        return new PreparedDecryptionKey(privateKey);
+    }
 
-        return signature;
+    @Override
+    public byte[] sign(byte[] data, PrivateKey privateKey, KeyUpdateHandler keyupdateHandler) throws GeneralSecurityException {
+        Signature signatureAlg = signatureAlgs.borrow();
+        try {
+            signatureAlg.initSign(privateKey);
+            signatureAlg.update(data);
+            byte[] signature = signatureAlg.sign();
+    
+            return signature;
+        } finally {
+            signatureAlgs.release(signatureAlg);
+        }
     }
 
     /**
@@ -376,17 +486,75 @@ public abstract class ECDH_ECDSA extends AbstractCryptoImplementation {
      */
     @Override
     public boolean verify(byte[] data, byte[] signature, PublicKey key) throws GeneralSecurityException {
-        signatureAlg.initVerify(key);
-        signatureAlg.update(data);
-        boolean valid = signatureAlg.verify(signature);
+        boolean valid = verify(signatureAlgs, data, signature, key);
 
         // Backwards-compatibility with old ECDSA-521 signatures that used SHA-256
-        if (!valid && altSignatureAlg != null) {
-            altSignatureAlg.initVerify(key);
-            altSignatureAlg.update(data);
-            valid = altSignatureAlg.verify(signature);
-        }
+        if (!valid && altSignatureAlgs != null)
+            valid = verify(altSignatureAlgs, data, signature, key);
 
         return valid;
     }
-}
\ No newline at end of file
+    
+    private boolean verify(EnginePool<Signature> signatureAlgs, byte[] data, byte[] signature, PublicKey key) throws GeneralSecurityException {
+        Signature signatureAlg = signatureAlgs.borrow();
+        try {
+            signatureAlg.initVerify(key);
+            signatureAlg.update(data);
+            return signatureAlg.verify(signature);
+        } finally {
+            signatureAlgs.release(signatureAlg);
+        }
+    }
+    
+    /**
+     * Wraps a private ECDH key together with a pool of <code>KeyAgreement</code>s
+     * that have already been initialized with the key. A <code>KeyAgreement</code>
+     * keeps its private key after <code>generateSecret()</code>, so it can be reused
+     * for the next ephemeral public key without calling <code>init</code> again.
+     */
+    private class PreparedDecryptionKey implements PrivateKey {
+        private static final long serialVersionUID = -2436702612426306311L;
+        
+        private PrivateKey key;
+        private EnginePool<KeyAgreement> initializedKeyAgreements;
+        
+        PreparedDecryptionKey(PrivateKey key) throws GeneralSecurityException {
+            this.key = key;
+            initializedKeyAgreements = new EnginePool<KeyAgreement>() {
+                @Override
+                protected KeyAgreement create() throws GeneralSecurityException {
+                    KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
+                    keyAgreement.init(PreparedDecryptionKey.this.key);
+                    return keyAgreement;
+                }
+            };
+            // fail early if the key is not a valid ECDH key
+            initializedKeyAgreements.release(initializedKeyAgreements.borrow());
+        }
+        
+        byte[] generateSecret(PublicKey publicKey) throws GeneralSecurityException {
+            KeyAgreement keyAgreement = initializedKeyAgreements.borrow();
+            try {
+                keyAgreement.doPhase(publicKey, true);
+                return keyAgreement.generateSecret();
+            } finally {
+                initializedKeyAgreements.release(keyAgreement);
+            }
+        }
+        
+        @Override
+        public String getAlgorithm() {
+            return key.getAlgorithm();
+        }
+        
+        @Override
+        public String getFormat() {
+            return key.getFormat();
+        }
+        
+        @Override
+        public byte[] getEncoded() {
+            return key.getEncoded();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.crypto;
+
+import java.security.GeneralSecurityException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of crypto engines (<code>Cipher</code>s, <code>Signature</code>s, etc.)
+ * that are not thread-safe. Each thread borrows an engine, uses it, and gives it
+ * back, so <code>CryptoImplementation</code>s can be used by several threads at
+ * the same time without creating a new engine for every operation.<br/>
+ * A pool is used rather than a <code>ThreadLocal</code> because mail checking
+ * can run in short-lived threads, which would each end up with their own engines.
+ * @param <T> The engine type
+ */
+abstract class EnginePool<T> {
+    private static final int MAX_IDLE_ENGINES = Math.max(4, 2*Runtime.getRuntime().availableProcessors());
+    
+    private Queue<T> idleEngines;
+    private AtomicInteger numIdleEngines;
+    
+    EnginePool() {
+        idleEngines = new ConcurrentLinkedQueue<T>();
+        numIdleEngines = new AtomicInteger();
+    }
+    
+    /** Creates a new engine. Called when no idle engine is available. */
+    protected abstract T create() throws GeneralSecurityException;
+    
+    /**
+     * Returns an idle engine from the pool, or a new one if the pool is empty.
+     * The engine must be returned to the pool with {@link #release(Object)}.
+     * @throws GeneralSecurityException
+     */
+    T borrow() throws GeneralSecurityException {
+        T engine = idleEngines.poll();
+        if (engine == null)
+            return create();
+        numIdleEngines.decrementAndGet();
+        return engine;
+    }
+    
+    /**
+     * Returns an engine to the pool. If the pool already holds the maximum number
+     * of idle engines, the engine is discarded.
+     * @param engine
+     */
+    void release(T engine) {
+        if (numIdleEngines.incrementAndGet() <= MAX_IDLE_ENGINES)
+            idleEngines.offer(engine);
+        else
+            numIdleEngines.decrementAndGet();
+    }
+}
@@ -83,6 +83,10 @@ import i2p.bote.fileencryption.PasswordException;
  * keep signature size and key generation time low at the expense of private
  * key size. Signatures are 13712 bytes and private keys are 71584 bytes
  * (including padding).
+ * <p/>
+ * Because a GMSS private key evolves with each signature, signing with the
+ * same key is serialized on that key; signatures with different keys, as well
+ * as all other operations, can run concurrently.
  */
 public class NTRUEncrypt1087_GMSS512 extends AbstractCryptoImplementation {
     private static final EncryptionParameters NTRUENCRYPT_PARAMETERS = EncryptionParameters.EES1087EP2;
@@ -98,14 +102,19 @@ public class NTRUEncrypt1087_GMSS512 extends AbstractCryptoImplementation {
     private static final int ENCRYPTED_LENGTH_BYTES = PUBLIC_ENCRYPTION_KEY_BYTES;   // length of an NTRU-encrypted message (no AES)
     private static final int BLOCK_SIZE = 16;   // length of the AES initialization vector; also the AES block size for padding. Not to be confused with the AES key size.
 
-    private GMSSKeyFactory gmssKeyFactory;
-    private NtruEncrypt ntruEngine;
+    private GMSSKeyFactory gmssKeyFactory;   // only used for decoding keys; access is synchronized
+    private EnginePool<NtruEncrypt> ntruEngines;
 
     public NTRUEncrypt1087_GMSS512() throws GeneralSecurityException {
         super();
 
         gmssKeyFactory = new GMSSKeyFactory();
-        ntruEngine = new NtruEncrypt(NTRUENCRYPT_PARAMETERS);
+        ntruEngines = new EnginePool<NtruEncrypt>() {
+            @Override
+            protected NtruEncrypt create() {
+                return new NtruEncrypt(NTRUENCRYPT_PARAMETERS);
+            }
+        };
     }
     
     @Override
@@ -195,8 +204,14 @@ public class NTRUEncrypt1087_GMSS512 extends AbstractCryptoImplementation {
     }
 
     @Override
-    public KeyPair generateEncryptionKeyPair() throws KeyException {
-        EncryptionKeyPair encKeyPair = ntruEngine.generateKeyPair();
+    public KeyPair generateEncryptionKeyPair() throws GeneralSecurityException {
+        EncryptionKeyPair encKeyPair;
+        NtruEncrypt ntruEngine = ntruEngines.borrow();
+        try {
+            encKeyPair = ntruEngine.generateKeyPair();
+        } finally {
+            ntruEngines.release(ntruEngine);
+        }
         PublicKey publicKey = new NtruEncrypt1087PublicKey(encKeyPair.getPublic());
         PrivateKey privateKey = new NtruEncrypt1087PrivateKey(encKeyPair.getPrivate());
         
@@ -228,7 +243,13 @@ public class NTRUEncrypt1087_GMSS512 extends AbstractCryptoImplementation {
         byte[] encryptedData = encryptAes(data, symmKey, iv);
         
         NtruEncrypt1087PublicKey ntruKey = castToNtruEncryptKey(key);
-        byte[] encryptedSymmKey = ntruEngine.encrypt(symmKey, ntruKey.key);
+        byte[] encryptedSymmKey;
+        NtruEncrypt ntruEngine = ntruEngines.borrow();
+        try {
+            encryptedSymmKey = ntruEngine.encrypt(symmKey, ntruKey.key);
+        } finally {
+            ntruEngines.release(ntruEngine);
+        }
         
         ByteBuffer output = ByteBuffer.allocate(encryptedSymmKey.length + iv.length + encryptedData.length);
         output.put(encryptedSymmKey);
@@ -259,7 +280,13 @@ public class NTRUEncrypt1087_GMSS512 extends AbstractCryptoImplementation {
         NtruEncrypt1087PublicKey publicNtruKey = castToNtruEncryptKey(publicKey);
         NtruEncrypt1087PrivateKey privateNtruKey = castToNtruEncryptKey(privateKey);
         EncryptionKeyPair keyPair = new EncryptionKeyPair(privateNtruKey.key, publicNtruKey.key);
-        byte[] symmKey = ntruEngine.decrypt(encryptedSymmKey, keyPair);
+        byte[] symmKey;
+        NtruEncrypt ntruEngine = ntruEngines.borrow();
+        try {
+            symmKey = ntruEngine.decrypt(encryptedSymmKey, keyPair);
+        } finally {
+            ntruEngines.release(ntruEngine);
+        }
         
         byte[] iv = new byte[BLOCK_SIZE];
         inputBuffer.get(iv);
@@ -280,16 +307,19 @@ public class NTRUEncrypt1087_GMSS512 extends AbstractCryptoImplementation {
     @Override
     public byte[] sign(byte[] data, PrivateKey key, KeyUpdateHandler keyUpdateHandler) throws GeneralSecurityException, PasswordException {
         Gmss512PrivateKey gmssKey = castToGMSS(key);
-        GMSSSignature signer = new GMSSSignature.GMSSwithSHA512();
-        signer.initSign(gmssKey.key);
-        signer.update(data);
-        byte[] signature = signer.sign();
-        try {
-            keyUpdateHandler.updateKey();
-        } catch (IOException e) {
-            throw new KeyStoreException("Error updating GMSS key after signing.", e);
+        // the key changes with every signature, so don't let two threads use it at the same time
+        synchronized(gmssKey) {
+            GMSSSignature signer = new GMSSSignature.GMSSwithSHA512();
+            signer.initSign(gmssKey.key);
+            signer.update(data);
+            byte[] signature = signer.sign();
+            try {
+                keyUpdateHandler.updateKey();
+            } catch (IOException e) {
+                throw new KeyStoreException("Error updating GMSS key after signing.", e);
+            }
+            return signature;
         }
-        return signature;
     }
 
     private Gmss512PrivateKey castToGMSS(PrivateKey key) {
@@ -420,7 +450,9 @@ public class NTRUEncrypt1087_GMSS512 extends AbstractCryptoImplementation {
 
         public Gmss512PublicKey(byte[] keyBytes) throws InvalidKeySpecException {
             GMSSPublicKeySpec keySpec = new GMSSPublicKeySpec(keyBytes, GMSS_PARAMETERS);
-            key = gmssKeyFactory.generatePublic(keySpec);
+            synchronized(gmssKeyFactory) {
+                key = gmssKeyFactory.generatePublic(keySpec);
+            }
         }
 
         @Override
@@ -464,7 +496,9 @@ public class NTRUEncrypt1087_GMSS512 extends AbstractCryptoImplementation {
             byte[] signingKeyBytes = new byte[sigKeySize];
             paddedSigningKey.get(signingKeyBytes);
             KeySpec signingKeySpec = new PKCS8EncodedKeySpec(signingKeyBytes);
-            key = gmssKeyFactory.generatePrivate(signingKeySpec);
+            synchronized(gmssKeyFactory) {
+                key = gmssKeyFactory.generatePrivate(signingKeySpec);
+            }
         }
 
         @Override
@@ -22,27 +22,22 @@
 package i2p.bote.debug;
 
 import i2p.bote.Configuration;
-import i2p.bote.Util;
-import i2p.bote.fileencryption.EncryptedInputStream;
+import i2p.bote.fileencryption.DerivedKeyCache;
 import i2p.bote.fileencryption.FileEncryptionUtil;
 import i2p.bote.fileencryption.PasswordException;
 import i2p.bote.fileencryption.PasswordHolder;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
 
-import net.i2p.util.Log;
-
 public class DebugSupport {
-    private Log log = new Log(DebugSupport.class);
     private Configuration configuration;
     private PasswordHolder passwordHolder;
+    private EncryptedFileCheck fileCheck;   // the most recent file check, or null
 
     public DebugSupport(Configuration configuration, PasswordHolder passwordHolder) {
         this.configuration = configuration;
@@ -50,14 +45,17 @@ public class DebugSupport {
     }
     
     /**
-     * Tests all encrypted I2P-Bote files and returns a list containing those that
-     * cannot be decrypted.
-     * @return A list of problem files, or an empty list if no problems were found
+     * Starts checking all encrypted I2P-Bote files in the background and returns an
+     * {@link EncryptedFileCheck} that reports progress and problem files as they are
+     * found. If a check is already running, that check is returned.
      * @throws PasswordException
      * @throws IOException
      * @throws GeneralSecurityException
      */
-    public List<File> getUndecryptableFiles() throws PasswordException, IOException, GeneralSecurityException {
+    public synchronized EncryptedFileCheck startFileCheck() throws PasswordException, IOException, GeneralSecurityException {
+        if (fileCheck!=null && !fileCheck.isDone())
+            return fileCheck;
+        
         // make sure the password is correct
         byte[] password = passwordHolder.getPassword();
         if (password == null)
@@ -75,22 +73,33 @@ public class DebugSupport {
         for (File dir: emailFolders)
             files.addAll(Arrays.asList(dir.listFiles()));
         
-        for (Iterator<File> iter=files.iterator(); iter.hasNext(); ) {
-            File file = iter.next();
-            FileInputStream stream = new FileInputStream(file);
-            try {
-                Util.readBytes(new EncryptedInputStream(stream, password));
-                // no PasswordException or other exception occurred, so the file is good
-                iter.remove();
-            } catch (Exception e) {
-                // leave the file in the list and log
-                log.debug("Can't decrypt file <" + file.getAbsolutePath() + ">", e);
-            } finally {
-                if (stream != null)
-                    stream.close();
-            }
+        // start with the PasswordHolder's key so no key needs to be derived for files that use the current salt
+        fileCheck = new EncryptedFileCheck(files, new DerivedKeyCache(passwordHolder));
+        return fileCheck;
+    }
+    
+    /** Returns the most recently started {@link EncryptedFileCheck}, or <code>null</code> if none has been started. */
+    public synchronized EncryptedFileCheck getFileCheck() {
+        return fileCheck;
+    }
+    
+    /**
+     * Tests all encrypted I2P-Bote files and returns a list containing those that
+     * cannot be decrypted. Blocks until all files have been checked.
+     * @return A list of problem files, or an empty list if no problems were found
+     * @throws PasswordException
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @see #startFileCheck()
+     */
+    public List<File> getUndecryptableFiles() throws PasswordException, IOException, GeneralSecurityException {
+        EncryptedFileCheck check = startFileCheck();
+        try {
+            check.waitUntilDone();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while checking files.", e);
         }
-        
-        return files;
+        return check.getUndecryptableFiles();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package i2p.bote.debug;
+
+import i2p.bote.Util;
+import i2p.bote.fileencryption.DerivedKeyCache;
+import i2p.bote.fileencryption.EncryptedInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.i2p.util.Log;
+
+/**
+ * Checks a list of encrypted files in the background and collects those that
+ * cannot be decrypted. Files are checked in parallel, and results are available
+ * while the check is running.
+ * @see EncryptedInputStream#verify(InputStream, DerivedKeyCache)
+ */
+public class EncryptedFileCheck {
+    private static final int THREAD_STACK_SIZE = 256 * 1024;
+    
+    private Log log = new Log(EncryptedFileCheck.class);
+    private int numFiles;
+    private DerivedKeyCache keyCache;
+    private List<File> undecryptableFiles;
+    private CountDownLatch remainingFiles;
+    
+    /**
+     * Creates an <code>EncryptedFileCheck</code> and starts checking files.
+     * @param files
+     * @param keyCache For looking up file encryption keys
+     */
+    EncryptedFileCheck(List<File> files, DerivedKeyCache keyCache) {
+        numFiles = files.size();
+        this.keyCache = keyCache;
+        undecryptableFiles = Collections.synchronizedList(new ArrayList<File>());
+        remainingFiles = new CountDownLatch(numFiles);
+        
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads, Util.createThreadFactory("FileCheck", THREAD_STACK_SIZE));
+        for (final File file: files)
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        check(file);
+                    } finally {
+                        remainingFiles.countDown();
+                        // erase the keys when the last file is done
+                        if (remainingFiles.getCount() == 0)
+                            keyCache.clear();
+                    }
+                }
+            });
+        // let the threads terminate when all files have been checked
+        executor.shutdown();
+    }
+    
+    private void check(File file) {
+        InputStream stream = null;
+        try {
+            stream = new BufferedInputStream(new FileInputStream(file));
+            EncryptedInputStream.verify(stream, keyCache);
+        } catch (Exception e) {
+            undecryptableFiles.add(file);
+            log.debug("Can't decrypt file <" + file.getAbsolutePath() + ">", e);
+        } finally {
+            if (stream != null)
+                try {
+                    stream.close();
+                } catch (Exception e) {
+                    log.error("Can't close file <" + file.getAbsolutePath() + ">", e);
+                }
+        }
+    }
+    
+    /** Returns the total number of files to check. */
+    public int getNumFiles() {
+        return numFiles;
+    }
+    
+    /** Returns the number of files that have been checked so far. */
+    public int getNumChecked() {
+        return numFiles - (int)remainingFiles.getCount();
+    }
+    
+    public boolean isDone() {
+        return remainingFiles.getCount() == 0;
+    }
+    
+    /** Waits until all files have been checked. */
+    public void waitUntilDone() throws InterruptedException {
+        remainingFiles.await();
+    }
+    
+    /**
+     * Returns the files found to be undecryptable so far, or an empty list if no
+     * problems have been found.
+     */
+    public List<File> getUndecryptableFiles() {
+        synchronized(undecryptableFiles) {
+            return new ArrayList<File>(undecryptableFiles);
+        }
+    }
+}
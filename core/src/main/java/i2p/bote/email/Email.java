@@ -29,9 +29,15 @@ import net.i2p.util.SystemVersion;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.SequenceInputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
@@ -43,6 +49,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.Properties;
 import java.util.TimeZone;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.mail.Address;
@@ -64,6 +71,7 @@ import javax.mail.internet.MimeMultipart;
 import SevenZip.Compression.LZMA.Decoder;
 import SevenZip.Compression.LZMA.Encoder;
 import i2p.bote.UniqueId;
+import i2p.bote.Util;
 import i2p.bote.crypto.CryptoFactory;
 import i2p.bote.crypto.CryptoImplementation;
 import i2p.bote.crypto.KeyUpdateHandler;
@@ -79,6 +87,9 @@ public class Email extends MimeMessage {
         "Content-Transfer-Encoding", "In-Reply-To", "X-HashCash", "X-Priority", SIGNATURE_HEADER
     };
     private static final int MAX_HEADER_LENGTH = 998;   // Maximum length of a header line, see RFC 5322
+    private static final int COMPRESSION_SAMPLE_SIZE = 64 * 1024;   // number of bytes to test-compress before deciding whether to compress an email
+    private static final int PIPE_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadFactory MIME_WRITER_THREAD_FACTORY = Util.createThreadFactory("MimeWriter", 0, Thread.NORM_PRIORITY);
     private enum CompressionAlgorithm {UNCOMPRESSED, LZMA};   // The first byte in a compressed email
     
     private Log log = new Log(Email.class);
@@ -830,9 +841,7 @@ public class Email extends MimeMessage {
      * @throws PasswordException If the private signing key cannot be updated
      */
     public Collection<UnencryptedEmailPacket> createEmailPackets(EmailIdentity senderIdentity, KeyUpdateHandler keyUpdateHandler, String bccToKeep, int maxPacketSize) throws MessagingException, GeneralSecurityException, PasswordException {
-        ArrayList<UnencryptedEmailPacket> packets = new ArrayList<UnencryptedEmailPacket>();
-        
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        PacketOutputStream outputStream = new PacketOutputStream(maxPacketSize);
         String[] bccHeaders = null;
         try {
             bccHeaders = getHeader("BCC");
@@ -844,6 +853,7 @@ public class Email extends MimeMessage {
             if (!isAnonymous())
                 sign(senderIdentity, keyUpdateHandler);
             compressTo(outputStream);
+            outputStream.close();
         } catch (IOException e) {
             throw new MessagingException("Can't write the email to an OutputStream.", e);
         } catch (GeneralSecurityException e) {
@@ -855,24 +865,10 @@ public class Email extends MimeMessage {
                 for (String bccAddress: bccHeaders)
                     addHeader("BCC", bccAddress);
         }
-        InputStream inputStream = new ByteArrayInputStream(outputStream.toByteArray());
-        
-        int packetIndex = 0;
-        try {
-            while (true) {
-                UnencryptedEmailPacket packet = new UnencryptedEmailPacket(inputStream, messageId, packetIndex, maxPacketSize);
-                packets.add(packet);
-                packetIndex++;
-                if (inputStream.available() <= 0)
-                    break;
-            }
-        }
-        catch (IOException e) {
-            log.error("Can't read from ByteArrayInputStream.", e);
-        }
         
         // #packets has not been set yet, do it now
-        int numPackets = packetIndex;
+        List<UnencryptedEmailPacket> packets = outputStream.getPackets();
+        int numPackets = packets.size();
         for (UnencryptedEmailPacket packet: packets)
             packet.setNumFragments(numPackets);
         
@@ -880,36 +876,174 @@ public class Email extends MimeMessage {
     }
     
     /**
-     * Like {@link writeTo(OutputStream)}, but compresses the data if it reduces the size.
-     * @param input
+     * Like {@link writeTo(OutputStream)}, but compresses the data if it reduces the size.<br/>
+     * The MIME data is written by a separate thread and compressed while it is being
+     * written, so the email never needs to be held in memory in its entirety. Whether
+     * compression reduces the size is decided by compressing the first
+     * <code>COMPRESSION_SAMPLE_SIZE</code> bytes.
+     * @param outputStream
      * @throws IOException 
      * @throws MessagingException 
      * @see Encoder
      */
     private void compressTo(OutputStream outputStream) throws IOException, MessagingException {
-        // Make an uncompressed byte array
-        ByteArrayOutputStream uncompressedStream = new ByteArrayOutputStream();
-        writeTo(uncompressedStream);
-        byte[] uncompressedArray = uncompressedStream.toByteArray();
+        PipedInputStream mimeInputStream = new PipedInputStream(PIPE_BUFFER_SIZE);
+        MimeWriter mimeWriter = new MimeWriter(new PipedOutputStream(mimeInputStream));
+        Thread writerThread = MIME_WRITER_THREAD_FACTORY.newThread(mimeWriter);
+        writerThread.start();
         
-        // Make a compressed byte array
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(uncompressedArray);
-        ByteArrayOutputStream compressedStream = new ByteArrayOutputStream();
+        try {
+            // read the sample
+            byte[] sample = new byte[COMPRESSION_SAMPLE_SIZE];
+            int sampleLength = 0;
+            while (sampleLength < sample.length) {
+                int bytesRead = mimeInputStream.read(sample, sampleLength, sample.length-sampleLength);
+                if (bytesRead < 0)
+                    break;
+                sampleLength += bytesRead;
+            }
+            InputStream inputStream = new SequenceInputStream(new ByteArrayInputStream(sample, 0, sampleLength), mimeInputStream);
+            
+            if (getCompressedLength(sample, sampleLength) < sampleLength) {
+                outputStream.write(CompressionAlgorithm.LZMA.ordinal());
+                Encoder lzmaEncoder = createLzmaEncoder();
+                lzmaEncoder.WriteCoderProperties(outputStream);
+                lzmaEncoder.Code(inputStream, outputStream, -1, -1, null);
+            }
+            else {
+                outputStream.write(CompressionAlgorithm.UNCOMPRESSED.ordinal());
+                Util.copy(inputStream, outputStream);
+            }
+        } finally {
+            mimeInputStream.close();   // if the writer thread is still running, this makes it stop
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the MIME writer thread.");
+            }
+        }
+        mimeWriter.throwException();
+    }
+    
+    /**
+     * Returns the number of bytes LZMA-compressed data takes up, including the
+     * coder properties.
+     * @param data
+     * @param length The number of bytes in <code>data</code> to compress
+     * @throws IOException
+     */
+    private int getCompressedLength(byte[] data, int length) throws IOException {
+        ByteArrayOutputStream compressedStream = new ByteArrayOutputStream(length);
+        Encoder lzmaEncoder = createLzmaEncoder();
+        lzmaEncoder.WriteCoderProperties(compressedStream);
+        lzmaEncoder.Code(new ByteArrayInputStream(data, 0, length), compressedStream, -1, -1, null);
+        return compressedStream.size();
+    }
+    
+    private Encoder createLzmaEncoder() {
         Encoder lzmaEncoder = new Encoder();
         lzmaEncoder.SetDictionarySize(1<<20);   // dictionary size = 1 MByte
         lzmaEncoder.SetEndMarkerMode(true);   // by using an end marker, the uncompressed size doesn't need to be stored with the compressed data
-        lzmaEncoder.WriteCoderProperties(compressedStream);
-        lzmaEncoder.Code(inputStream, compressedStream, -1, -1, null);
-        byte[] compressedArray = compressedStream.toByteArray();
+        return lzmaEncoder;
+    }
+    
+    /**
+     * Writes the email in MIME format to an <code>OutputStream</code>, and closes the stream
+     * when done. Used by {@link Email#compressTo(OutputStream)}.
+     */
+    private class MimeWriter implements Runnable {
+        private OutputStream outputStream;
+        private volatile Exception exception;
         
-        // Write the compressed or uncompressed array, whichever is shorter
-        if (uncompressedArray.length <= compressedArray.length) {
-            outputStream.write(CompressionAlgorithm.UNCOMPRESSED.ordinal());
-            outputStream.write(uncompressedArray);
+        MimeWriter(OutputStream outputStream) {
+            this.outputStream = outputStream;
         }
-        else {
-            outputStream.write(CompressionAlgorithm.LZMA.ordinal());
-            outputStream.write(compressedArray);
+        
+        @Override
+        public void run() {
+            try {
+                writeTo(outputStream);
+            } catch (IOException e) {
+                exception = e;
+            } catch (MessagingException e) {
+                exception = e;
+            } catch (RuntimeException e) {
+                exception = e;
+            } finally {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    log.debug("Can't close MIME output stream.", e);
+                }
+            }
+        }
+        
+        /** Rethrows the exception that occurred while writing the email, if any. */
+        void throwException() throws IOException, MessagingException {
+            if (exception instanceof IOException)
+                throw (IOException)exception;
+            if (exception instanceof MessagingException)
+                throw (MessagingException)exception;
+            if (exception instanceof RuntimeException)
+                throw (RuntimeException)exception;
+        }
+    }
+    
+    /**
+     * Cuts the data written to it into {@link UnencryptedEmailPacket}s. A packet is
+     * created as soon as it is full; the last packet is created when the stream is closed.
+     */
+    private class PacketOutputStream extends OutputStream {
+        private byte[] buffer;
+        private int bufferLength;
+        private List<UnencryptedEmailPacket> packets;
+        private boolean closed;
+        
+        /**
+         * @param maxPacketSize The maximum size of a packet's byte array representation
+         */
+        PacketOutputStream(int maxPacketSize) {
+            buffer = new byte[UnencryptedEmailPacket.getMaxContentLength(maxPacketSize)];
+            packets = new ArrayList<UnencryptedEmailPacket>();
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            if (bufferLength == buffer.length)
+                createPacket();
+            buffer[bufferLength++] = (byte)b;
+        }
+        
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (bufferLength == buffer.length)
+                    createPacket();
+                int bytesToCopy = Math.min(length, buffer.length-bufferLength);
+                System.arraycopy(bytes, offset, buffer, bufferLength, bytesToCopy);
+                bufferLength += bytesToCopy;
+                offset += bytesToCopy;
+                length -= bytesToCopy;
+            }
+        }
+        
+        /** Creates the last packet */
+        @Override
+        public void close() {
+            if (!closed && (bufferLength>0 || packets.isEmpty()))
+                createPacket();
+            closed = true;
+        }
+        
+        private void createPacket() {
+            byte[] content = Arrays.copyOf(buffer, bufferLength);
+            packets.add(new UnencryptedEmailPacket(content, messageId, packets.size()));
+            bufferLength = 0;
+        }
+        
+        List<UnencryptedEmailPacket> getPackets() {
+            return packets;
         }
     }
     
@@ -933,9 +1067,12 @@ public class Email extends MimeMessage {
         case UNCOMPRESSED:
             return inputStream;
         case LZMA:
-            int bytesRead = inputStream.read(lzmaProperties);
-            if (bytesRead < Encoder.kPropSize)
+            // use readFully() because the stream may consist of several email packets
+            try {
+                new DataInputStream(inputStream).readFully(lzmaProperties);
+            } catch (EOFException e) {
                 throw new IOException("Input is too short! Must be at least " + Encoder.kPropSize + " bytes.");
+            }
             if (!lzmaDecoder.SetDecoderProperties(lzmaProperties))
                 throw new IOException("Incorrect stream properties.");
             
@@ -953,7 +1090,7 @@ public class Email extends MimeMessage {
      * @param address
      * @throws MessagingException
      */
-    private boolean isBCC(String address) throws MessagingException {
+    public boolean isBCC(String address) throws MessagingException {
         Address[] bccAddresses = getBCCAddresses();
         if (bccAddresses == null)
             return false;
@@ -24,6 +24,7 @@ package i2p.bote.email;
 import i2p.bote.I2PBote;
 import i2p.bote.crypto.KeyUpdateHandler;
 import i2p.bote.fileencryption.DerivedKey;
+import i2p.bote.fileencryption.DerivedKeyCache;
 import i2p.bote.fileencryption.EncryptedInputStream;
 import i2p.bote.fileencryption.EncryptedOutputStream;
 import i2p.bote.fileencryption.FileEncryptionUtil;
@@ -45,13 +46,18 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Properties;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import net.i2p.data.Hash;
 import net.i2p.util.Log;
@@ -80,7 +86,9 @@ public class Identities extends ExportableData implements KeyUpdateHandler {
     private PasswordHolder passwordHolder;
     private Collection<IdentitiesListener> identitiesListeners;
     private SortedSet<EmailIdentity> identities;   // null until file has been read successfully
+    private Map<String, EmailIdentity> identitiesByKey;   // index into identities by Base64 key
     private EmailIdentity defaultIdentity;
+    private ConcurrentMap<String, PrivateKey> decryptionKeys;   // prepared private encryption keys, by identity key
 
     /**
      * Constructs a new empty <code>Identities</code> object. The <code>identitiesFile</code>
@@ -92,6 +100,7 @@ public class Identities extends ExportableData implements KeyUpdateHandler {
         this.identitiesFile = identitiesFile;
         this.passwordHolder = passwordHolder;
         identitiesListeners = new ArrayList<IdentitiesListener>();
+        decryptionKeys = new ConcurrentHashMap<String, PrivateKey>();
     }
 
     protected void initializeIfNeeded() throws PasswordException, IOException, GeneralSecurityException {
@@ -122,6 +131,7 @@ public class Identities extends ExportableData implements KeyUpdateHandler {
         if (!identitiesFile.exists()) {
             log.debug("Identities file does not exist: <" + identitiesFile.getAbsolutePath() + ">");
             identities = new TreeSet<EmailIdentity>(new IdentityComparator());
+            identitiesByKey = new HashMap<String, EmailIdentity>();
             return;
         }
         
@@ -149,8 +159,10 @@ public class Identities extends ExportableData implements KeyUpdateHandler {
 
     protected boolean loadFromProperties(Properties properties, boolean append, boolean replace) throws GeneralSecurityException {
         String defaultIdentityStr = properties.getProperty(PREF_DEFAULT);
-        if (identities == null || !append)
+        if (identities == null || !append) {
             identities = new TreeSet<EmailIdentity>(new IdentityComparator());
+            identitiesByKey = new HashMap<String, EmailIdentity>();
+        }
         int index = 0;
         while (true) {
             String prefix = IDENTITY_PREFIX + index + ".";
@@ -175,9 +187,9 @@ public class Identities extends ExportableData implements KeyUpdateHandler {
             }
             identity.loadConfig(properties, prefix + CONFIGURATION_PREFIX, true);
 
-            if (append && replace && identities.contains(identity))
-                identities.remove(identity);
-            identities.add(identity);
+            if (append && replace)
+                removeIdentity(identity);
+            addIdentity(identity);
 
             if (identity.getKey().equals(defaultIdentityStr)) {
                 identity.setDefaultIdentity(true);
@@ -243,18 +255,53 @@ public class Identities extends ExportableData implements KeyUpdateHandler {
         
         if (identities.isEmpty())
             identity.setDefaultIdentity(true);
-        identities.add(identity);
+        addIdentity(identity);
 
         for (IdentitiesListener listener : identitiesListeners)
             listener.identityAdded(identity.getKey());
     }
     
+    /**
+     * Adds an identity to the sorted set and, if the set changed, to the index.
+     * If several identities have the same key, the index points to the first
+     * one in sort order.
+     * @param identity
+     */
+    private void addIdentity(EmailIdentity identity) {
+        if (!identities.add(identity))
+            return;
+        String key = identity.getKey();
+        EmailIdentity indexedIdentity = identitiesByKey.get(key);
+        if (indexedIdentity==null || identities.comparator().compare(identity, indexedIdentity)<0)
+            identitiesByKey.put(key, identity);
+    }
+    
+    /**
+     * Removes an identity from the sorted set and the index. If another identity
+     * has the same key, the index is updated to point to that identity.
+     * @param identity
+     */
+    private void removeIdentity(EmailIdentity identity) {
+        if (!identities.remove(identity))
+            return;
+        String key = identity.getKey();
+        EmailIdentity indexedIdentity = identitiesByKey.get(key);
+        if (indexedIdentity!=null && identities.comparator().compare(identity, indexedIdentity)==0) {
+            identitiesByKey.remove(key);
+            for (EmailIdentity otherIdentity: identities)
+                if (key.equals(otherIdentity.getKey())) {
+                    identitiesByKey.put(key, otherIdentity);
+                    break;
+                }
+        }
+    }
+    
     public void remove(String key) throws PasswordException, IOException, GeneralSecurityException {
         initializeIfNeeded();
         
         EmailIdentity identity = get(key);
         if (identity != null) {
-            identities.remove(identity);
+            removeIdentity(identity);
             
             // if we deleted the default identity, set a new default
             if (identity.isDefaultIdentity() && !identities.isEmpty())
@@ -264,19 +311,42 @@ public class Identities extends ExportableData implements KeyUpdateHandler {
             if (identities.isEmpty() && !identitiesFile.delete())
                 log.error("Can't delete file: " + identitiesFile.getAbsolutePath());
 
+            decryptionKeys.remove(key);
             for (IdentitiesListener listener : identitiesListeners)
                 listener.identityRemoved(key);
         }
     }
     
-    public void changePassword(byte[] oldPassword, DerivedKey newKey) throws FileNotFoundException, IOException, GeneralSecurityException, PasswordException {
+    public void changePassword(DerivedKeyCache oldKeys, DerivedKey newKey) throws FileNotFoundException, IOException, GeneralSecurityException, PasswordException {
         if (identitiesFile.exists())
-            FileEncryptionUtil.changePassword(identitiesFile, oldPassword, newKey);
+            FileEncryptionUtil.changePassword(identitiesFile, oldKeys, newKey);
     }
     
     public void clearPasswordProtectedData() {
         // TODO overwrite private keys
         identities = null;
+        identitiesByKey = null;
+        decryptionKeys.clear();
+    }
+    
+    /**
+     * Returns the private encryption key of an <code>EmailIdentity</code>, prepared for
+     * repeated decryption via {@link i2p.bote.crypto.CryptoImplementation#prepareDecryptionKey(PrivateKey)}.
+     * The prepared key is cached until the identity is removed or the password-protected
+     * data is cleared.
+     * @param identity
+     * @throws GeneralSecurityException
+     */
+    public PrivateKey getDecryptionKey(EmailIdentity identity) throws GeneralSecurityException {
+        String key = identity.getKey();
+        PrivateKey decryptionKey = decryptionKeys.get(key);
+        if (decryptionKey == null) {
+            decryptionKey = identity.getCryptoImpl().prepareDecryptionKey(identity.getPrivateEncryptionKey());
+            PrivateKey existingKey = decryptionKeys.putIfAbsent(key, decryptionKey);
+            if (existingKey != null)
+                decryptionKey = existingKey;
+        }
+        return decryptionKey;
     }
     
     /**
@@ -330,11 +400,8 @@ public class Identities extends ExportableData implements KeyUpdateHandler {
         if (identities == null)
             return null;
         
-        for (EmailIdentity identity: identities)
-            if (identity.getPublicEncryptionKey().equals(destination.getPublicEncryptionKey())
-                    && identity.getPublicSigningKey().equals(destination.getPublicSigningKey()))
-                return identity;
-        return null;
+        // the key is the Base64 encoding of the two public keys
+        return identitiesByKey.get(destination.getKey());
     }
     
     /**
@@ -349,13 +416,10 @@ public class Identities extends ExportableData implements KeyUpdateHandler {
     public EmailIdentity get(String key) throws PasswordException, IOException, GeneralSecurityException {
         initializeIfNeeded();
         
-        if (identities == null)
+        if (identities==null || key==null)
             return null;
         
-        for (EmailIdentity identity: identities)
-            if (identity.getKey().equals(key))
-                return identity;
-        return null;
+        return identitiesByKey.get(key);
     }
     
     public Collection<EmailIdentity> getAll() throws PasswordException, IOException, GeneralSecurityException {
@@ -391,11 +455,7 @@ public class Identities extends ExportableData implements KeyUpdateHandler {
         if (identities==null || base64Dest==null)
             return false;
         
-        for (EmailIdentity identity: identities)
-            if (base64Dest.equals(identity.toBase64()))
-                return true;
-        
-        return false;
+        return identitiesByKey.containsKey(base64Dest);
     }
     
     public int size() throws PasswordException, IOException, GeneralSecurityException {
@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ *
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ *
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.fileencryption;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Computes the HMAC-SHA256 that authenticates an encrypted chunk in a version 2
+ * file (see {@link EncryptedOutputStream}).<br/>
+ * The MAC covers the position of the chunk in the file and the "last chunk" flag
+ * in addition to the IV and the ciphertext, so chunks cannot be reordered, and a
+ * truncated file is detected.<br/>
+ * The MAC key is derived from the encryption key, so no additional key material
+ * needs to be stored.
+ * <p/>
+ * This class is not thread-safe.
+ */
+class ChunkMac {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final byte[] KEY_LABEL = "I2P-Bote chunk MAC".getBytes();
+    
+    private Mac mac;
+    
+    ChunkMac(byte[] encryptionKey) throws GeneralSecurityException {
+        Mac kdf = Mac.getInstance(ALGORITHM);
+        kdf.init(new SecretKeySpec(encryptionKey, ALGORITHM));
+        byte[] macKey = kdf.doFinal(KEY_LABEL);
+        
+        mac = Mac.getInstance(ALGORITHM);
+        mac.init(new SecretKeySpec(macKey, ALGORITHM));
+    }
+    
+    /**
+     * @param chunkIndex The position of the chunk in the file, starting at zero
+     * @param lastChunk Whether the chunk is the last one in the file
+     * @param iv
+     * @param encryptedData
+     * @return A <code>MAC_LENGTH</code> byte array
+     */
+    byte[] calculate(long chunkIndex, boolean lastChunk, byte[] iv, byte[] encryptedData) {
+        for (int i=56; i>=0; i-=8)
+            mac.update((byte)(chunkIndex >>> i));
+        mac.update((byte)(lastChunk ? 1 : 0));
+        mac.update(iv);
+        mac.update(encryptedData);
+        return mac.doFinal();
+    }
+    
+    /**
+     * Returns <code>true</code> if <code>expectedMac</code> is the correct MAC for
+     * a chunk.
+     * @see #calculate(long, boolean, byte[], byte[])
+     */
+    boolean verify(long chunkIndex, boolean lastChunk, byte[] iv, byte[] encryptedData, byte[] expectedMac) {
+        return MessageDigest.isEqual(calculate(chunkIndex, lastChunk, iv, encryptedData), expectedMac);
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package i2p.bote.fileencryption;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Derives keys from one password and remembers them by salt and <code>scrypt</code>
+ * parameters, so files that share a salt only cost one <code>scrypt</code> run.<br/>
+ * This is used when the password is changed and when all files are checked for errors;
+ * almost all files are encrypted with the same salt, so usually only one key is derived.
+ * <p/>
+ * This class is thread safe. Key derivation is synchronized, so threads that need the
+ * same key wait for the first thread to derive it rather than deriving it again.
+ */
+public class DerivedKeyCache {
+    private byte[] password;
+    private List<DerivedKey> keys;
+    
+    /**
+     * @param password The password to derive keys from
+     */
+    public DerivedKeyCache(byte[] password) {
+        this.password = password;
+        keys = new ArrayList<DerivedKey>();
+    }
+    
+    /**
+     * Creates a <code>DerivedKeyCache</code> for the password in a <code>PasswordHolder</code>
+     * that already contains the <code>PasswordHolder</code>'s key.
+     * @param passwordHolder
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public DerivedKeyCache(PasswordHolder passwordHolder) throws IOException, GeneralSecurityException {
+        this(passwordHolder.getPassword());
+        DerivedKey key = passwordHolder.getKey();
+        if (key != null)
+            keys.add(key.clone());   // clone because the PasswordHolder can erase its key
+    }
+    
+    /**
+     * Returns the key for a given salt and <code>scrypt</code> parameters, deriving it
+     * from the password if it is not in the cache.
+     * @param salt
+     * @param scryptParams
+     * @throws GeneralSecurityException
+     */
+    synchronized DerivedKey getKey(byte[] salt, SCryptParameters scryptParams) throws GeneralSecurityException {
+        for (DerivedKey key: keys)
+            if (Arrays.equals(salt, key.salt) && scryptParams.equals(key.scryptParams))
+                return key;
+        
+        byte[] keyBytes = FileEncryptionUtil.getEncryptionKey(password, salt, scryptParams);
+        DerivedKey key = new DerivedKey(salt.clone(), scryptParams, keyBytes);
+        keys.add(key);
+        return key;
+    }
+    
+    /** Zeroes out all cached keys and empties the cache. */
+    public synchronized void clear() {
+        for (DerivedKey key: keys)
+            key.clear();
+        keys.clear();
+    }
+}
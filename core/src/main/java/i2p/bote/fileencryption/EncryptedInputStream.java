@@ -22,12 +22,18 @@
 package i2p.bote.fileencryption;
 
 import static i2p.bote.fileencryption.FileEncryptionConstants.BLOCK_SIZE;
+import static i2p.bote.fileencryption.FileEncryptionConstants.CHUNK_SIZE;
 import static i2p.bote.fileencryption.FileEncryptionConstants.FORMAT_VERSION;
+import static i2p.bote.fileencryption.FileEncryptionConstants.FORMAT_VERSION_SINGLE_BLOCK;
+import static i2p.bote.fileencryption.FileEncryptionConstants.MAC_LENGTH;
 import static i2p.bote.fileencryption.FileEncryptionConstants.SALT_LENGTH;
 import static i2p.bote.fileencryption.FileEncryptionConstants.START_OF_FILE;
 import i2p.bote.Util;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -38,14 +44,20 @@ import net.i2p.I2PAppContext;
 import net.i2p.data.SessionKey;
 
 /**
- * Decrypts data written via {@link EncryptedOutputStream}.
+ * Decrypts data written via {@link EncryptedOutputStream}.<br/>
+ * Files in format version 2 are decrypted one chunk at a time as data is read,
+ * so a reader that stops early (after the email headers, for example) doesn't
+ * need to decrypt the rest of the file. Files in format version 1 are decrypted
+ * entirely when the stream is created.
  */
 public class EncryptedInputStream extends FilterInputStream {
-    private ByteArrayInputStream decryptedData;
+    private InputStream decryptedData;
     
     /**
-     * Creates a new <code>EncryptedInputStream</code>, reads and decrypts
-     * the entire underlying <code>InputStream</code>, and buffers it internally.
+     * Creates a new <code>EncryptedInputStream</code> and reads the file header from
+     * the underlying <code>InputStream</code>.<br/>
+     * For version 1 files, all data is decrypted and buffered internally. For version 2
+     * files, only the first chunk is decrypted.
      * @param upstream
      * @param passwordHolder
      * @throws IOException
@@ -59,37 +71,45 @@ public class EncryptedInputStream extends FilterInputStream {
             throw new PasswordException();
         
         DerivedKey cachedKey = passwordHolder.getKey();
-        byte[] bytes = readInputStream(upstream, password, cachedKey);
-        decryptedData = new ByteArrayInputStream(bytes);
+        decryptedData = readInputStream(upstream, password, cachedKey, null);
     }
     
     public EncryptedInputStream(InputStream upstream, byte[] password) throws IOException, GeneralSecurityException, PasswordException {
         super(upstream);
-        byte[] bytes = readInputStream(upstream, password, null);
-        decryptedData = new ByteArrayInputStream(bytes);
+        decryptedData = readInputStream(upstream, password, null, null);
     }
     
     /**
+     * Creates a new <code>EncryptedInputStream</code> that takes the key from a
+     * {@link DerivedKeyCache}, so the key is only derived if the cache doesn't
+     * contain a key for the file's salt yet.
+     * @param upstream
+     * @param keyCache
+     * @throws IOException
+     * @throws GeneralSecurityException 
+     * @throws PasswordException 
+     */
+    public EncryptedInputStream(InputStream upstream, DerivedKeyCache keyCache) throws IOException, GeneralSecurityException, PasswordException {
+        super(upstream);
+        decryptedData = readInputStream(upstream, null, null, keyCache);
+    }
+    
+    /**
+     * Reads the header and returns a stream that contains the decrypted data.
+     * <p/>
      * If <code>cachedKey</code> is not <code>null</code>, this method assumes the
      * key has been generated from a valid password.
      * @param inputStream
      * @param password
      * @param cachedKey
+     * @param keyCache If not <code>null</code>, the key is obtained from here instead of from <code>password</code>
      * @return the decrypted data
      * @throws IOException
      * @throws GeneralSecurityException
      * @throws PasswordException
      */
-    @SuppressWarnings("deprecation") // for net.i2p.crypto.AESEngine
-    private byte[] readInputStream(InputStream inputStream, byte[] password, DerivedKey cachedKey) throws IOException, GeneralSecurityException, PasswordException {
-        byte[] startOfFile = new byte[START_OF_FILE.length];
-        inputStream.read(startOfFile);
-        if (!Arrays.equals(START_OF_FILE, startOfFile))
-            throw new IOException("Invalid header bytes: " + Arrays.toString(startOfFile) + ", expected: " + Arrays.toString(START_OF_FILE));
-        
-        int format = inputStream.read();
-        if (format != FORMAT_VERSION)
-            throw new IOException("Invalid file format identifier: " + format + ", expected: " + FORMAT_VERSION);
+    private InputStream readInputStream(InputStream inputStream, byte[] password, DerivedKey cachedKey, DerivedKeyCache keyCache) throws IOException, GeneralSecurityException, PasswordException {
+        int format = readFormat(inputStream);
         
         SCryptParameters scryptParams = new SCryptParameters(inputStream);
         byte[] salt = new byte[SALT_LENGTH];
@@ -99,9 +119,85 @@ public class EncryptedInputStream extends FilterInputStream {
         byte[] keyBytes;
         if (cachedKey!=null && Arrays.equals(salt, cachedKey.salt) && scryptParams.equals(cachedKey.scryptParams))
             keyBytes = cachedKey.key;
+        else if (keyCache != null)
+            keyBytes = keyCache.getKey(salt, scryptParams).key;
         else
             keyBytes = FileEncryptionUtil.getEncryptionKey(password, salt, scryptParams);
         
+        if (format == FORMAT_VERSION_SINGLE_BLOCK) {
+            byte[] decryptedData = decryptSingleBlock(inputStream, keyBytes);
+            // null means failure
+            if (decryptedData == null)
+                throw decryptionFailure(cachedKey);
+            return new ByteArrayInputStream(decryptedData);
+        }
+        else {
+            ChunkMac chunkMac = new ChunkMac(keyBytes);
+            ChunkInputStream chunkStream = new ChunkInputStream(inputStream, keyBytes, chunkMac);
+            // decrypt the first chunk now so an incorrect password is detected right away
+            try {
+                chunkStream.readChunk();
+            } catch (GeneralSecurityException e) {
+                throw decryptionFailure(cachedKey);
+            }
+            return new BufferedInputStream(chunkStream);
+        }
+    }
+    
+    /**
+     * Checks that data written via {@link EncryptedOutputStream} is intact and can be
+     * decrypted with a key from <code>keyCache</code>.<br/>
+     * For version 2 files, only the MAC of each chunk is checked, so nothing is decrypted
+     * and memory use does not depend on the file size. Version 1 files have no MAC, so
+     * they are decrypted.
+     * @param upstream
+     * @param keyCache
+     * @throws IOException if the data is malformed or truncated
+     * @throws GeneralSecurityException if the data fails authentication or decryption
+     */
+    public static void verify(InputStream upstream, DerivedKeyCache keyCache) throws IOException, GeneralSecurityException {
+        int format = readFormat(upstream);
+        SCryptParameters scryptParams = new SCryptParameters(upstream);
+        byte[] salt = new byte[SALT_LENGTH];
+        upstream.read(salt);
+        byte[] keyBytes = keyCache.getKey(salt, scryptParams).key;
+        
+        if (format == FORMAT_VERSION_SINGLE_BLOCK) {
+            if (decryptSingleBlock(upstream, keyBytes) == null)
+                throw new GeneralSecurityException("Can't decrypt data.");
+        }
+        else {
+            ChunkInputStream chunkStream = new ChunkInputStream(upstream, keyBytes, new ChunkMac(keyBytes));
+            chunkStream.verifyChunks();
+        }
+    }
+    
+    /**
+     * Reads the start of the file header and returns the format version.
+     * @param inputStream
+     * @throws IOException if the header is invalid
+     */
+    private static int readFormat(InputStream inputStream) throws IOException {
+        byte[] startOfFile = new byte[START_OF_FILE.length];
+        inputStream.read(startOfFile);
+        if (!Arrays.equals(START_OF_FILE, startOfFile))
+            throw new IOException("Invalid header bytes: " + Arrays.toString(startOfFile) + ", expected: " + Arrays.toString(START_OF_FILE));
+        
+        int format = inputStream.read();
+        if (format!=FORMAT_VERSION && format!=FORMAT_VERSION_SINGLE_BLOCK)
+            throw new IOException("Invalid file format identifier: " + format + ", expected: " + FORMAT_VERSION + " or " + FORMAT_VERSION_SINGLE_BLOCK);
+        return format;
+    }
+    
+    /**
+     * Decrypts the remainder of a version 1 file.
+     * @param inputStream
+     * @param keyBytes
+     * @return the decrypted data, or <code>null</code> if decryption failed
+     * @throws IOException
+     */
+    @SuppressWarnings("deprecation") // for net.i2p.crypto.AESEngine
+    private static byte[] decryptSingleBlock(InputStream inputStream, byte[] keyBytes) throws IOException {
         byte iv[] = new byte[BLOCK_SIZE];
         inputStream.read(iv);
         byte[] encryptedData = Util.readBytes(inputStream);
@@ -109,43 +205,190 @@ public class EncryptedInputStream extends FilterInputStream {
         SessionKey key = new SessionKey(keyBytes);
         I2PAppContext appContext = I2PAppContext.getGlobalContext();
         
-        byte[] decryptedData = appContext.aes().safeDecrypt(encryptedData, key, iv);
-        // null from safeDecrypt() means failure
-        if (decryptedData == null)
-            if (cachedKey == null)
-                throw new PasswordException();
-            else
-                // If a derived key was supplied but decryption failed, the encrypted
-                // data is corrupt or it was encrypted with a different password than
-                // the key corresponds to, so don't throw a PasswordException because
-                // we're assuming password and key are correct.
-                throw new GeneralSecurityException("Can't decrypt using cached key.");
-        
-        return decryptedData;
+        return appContext.aes().safeDecrypt(encryptedData, key, iv);
+    }
+    
+    /**
+     * Returns the exception to throw when the first (or only) part of a file can't be decrypted.
+     * @param cachedKey The key decryption was attempted with, or <code>null</code> if the key was derived from the password
+     * @throws PasswordException if no cached key was used
+     */
+    private GeneralSecurityException decryptionFailure(DerivedKey cachedKey) throws PasswordException {
+        if (cachedKey == null)
+            throw new PasswordException();
+        else
+            // If a derived key was supplied but decryption failed, the encrypted
+            // data is corrupt or it was encrypted with a different password than
+            // the key corresponds to, so don't throw a PasswordException because
+            // we're assuming password and key are correct.
+            return new GeneralSecurityException("Can't decrypt using cached key.");
     }
     
     @Override
-    public int read() {
+    public int read() throws IOException {
         return decryptedData.read();
     }
     
     @Override
-    public int read(byte[] b, int off, int len) {
+    public int read(byte[] b, int off, int len) throws IOException {
         return decryptedData.read(b, off, len);
     }
     
     @Override
-    public int available() {
+    public long skip(long n) throws IOException {
+        return decryptedData.skip(n);
+    }
+    
+    @Override
+    public int available() throws IOException {
         return decryptedData.available();
     }
     
+    @Override
+    public boolean markSupported() {
+        return decryptedData.markSupported();
+    }
+    
     @Override
     public void mark(int readLimit) {
         decryptedData.mark(readLimit);
     }
     
     @Override
-    public void reset() {
+    public void reset() throws IOException {
         decryptedData.reset();
     }
+    
+    /**
+     * Decrypts version 2 files one chunk at a time.
+     * @see EncryptedOutputStream
+     */
+    private static class ChunkInputStream extends InputStream {
+        private static final int MAX_ENCRYPTED_CHUNK_LENGTH = CHUNK_SIZE + 64;   // allow for the hash, the length field, and padding added by AESEngine
+        
+        private DataInputStream upstream;
+        private SessionKey key;
+        private ChunkMac chunkMac;
+        private byte[] chunk;   // decrypted data of the current chunk
+        private byte[] iv;   // IV of the current chunk
+        private int chunkOffset;   // number of bytes of the current chunk that have been read
+        private long chunkIndex;
+        private boolean lastChunk;
+        
+        /**
+         * Creates a <code>ChunkInputStream</code>. {@link #readChunk()} must be
+         * called once before any data is read.
+         * @param upstream An <code>InputStream</code> positioned after the file header
+         * @param keyBytes
+         * @param chunkMac
+         */
+        ChunkInputStream(InputStream upstream, byte[] keyBytes, ChunkMac chunkMac) {
+            this.upstream = new DataInputStream(upstream);
+            // copy the key because a cached key can be erased before the stream is closed
+            key = new SessionKey(keyBytes.clone());
+            this.chunkMac = chunkMac;
+        }
+        
+        /**
+         * Reads, authenticates, and decrypts the next chunk.
+         * @throws IOException
+         * @throws GeneralSecurityException if the chunk fails authentication or decryption
+         */
+        @SuppressWarnings("deprecation") // for net.i2p.crypto.AESEngine
+        void readChunk() throws IOException, GeneralSecurityException {
+            byte[] encryptedData = readAuthenticatedChunk();
+            byte[] decryptedData = I2PAppContext.getGlobalContext().aes().safeDecrypt(encryptedData, key, iv);
+            if (decryptedData == null)
+                throw new GeneralSecurityException("Can't decrypt chunk " + (chunkIndex-1));
+            
+            chunk = decryptedData;
+            chunkOffset = 0;
+        }
+        
+        /**
+         * Reads all remaining chunks and checks their MACs without decrypting them.
+         * @throws IOException
+         * @throws GeneralSecurityException if a chunk fails authentication
+         */
+        void verifyChunks() throws IOException, GeneralSecurityException {
+            do {
+                readAuthenticatedChunk();
+            } while (!lastChunk);
+        }
+        
+        /**
+         * Reads the next chunk and checks its MAC, and sets <code>iv</code> and <code>lastChunk</code>.
+         * @return the encrypted data of the chunk
+         * @throws IOException
+         * @throws GeneralSecurityException if the chunk fails authentication
+         */
+        private byte[] readAuthenticatedChunk() throws IOException, GeneralSecurityException {
+            byte[] iv = new byte[BLOCK_SIZE];
+            byte[] encryptedData;
+            byte[] mac = new byte[MAC_LENGTH];
+            boolean last;
+            try {
+                upstream.readFully(iv);
+                last = (upstream.read() & EncryptedOutputStream.LAST_CHUNK_FLAG) != 0;
+                int length = upstream.readInt();
+                if (length<0 || length>MAX_ENCRYPTED_CHUNK_LENGTH || length%BLOCK_SIZE!=0)
+                    throw new IOException("Invalid chunk length: " + length);
+                encryptedData = new byte[length];
+                upstream.readFully(encryptedData);
+                upstream.readFully(mac);
+            } catch (EOFException e) {
+                throw new IOException("Encrypted data is truncated: chunk " + chunkIndex + " is incomplete or missing.", e);
+            }
+            
+            if (!chunkMac.verify(chunkIndex, last, iv, encryptedData, mac))
+                throw new GeneralSecurityException("MAC verification failed for chunk " + chunkIndex);
+            
+            this.iv = iv;
+            lastChunk = last;
+            chunkIndex++;
+            return encryptedData;
+        }
+        
+        /**
+         * Makes sure there is unread data in the current chunk, reading chunks as necessary.
+         * @return <code>false</code> if the end of the data has been reached
+         * @throws IOException
+         */
+        private boolean fillChunk() throws IOException {
+            while (chunkOffset >= chunk.length) {
+                if (lastChunk)
+                    return false;
+                try {
+                    readChunk();
+                } catch (GeneralSecurityException e) {
+                    throw new IOException(e);
+                }
+            }
+            return true;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            if (!fillChunk())
+                return -1;
+            return chunk[chunkOffset++] & 0xFF;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!fillChunk())
+                return -1;
+            int bytesToCopy = Math.min(len, chunk.length - chunkOffset);
+            System.arraycopy(chunk, chunkOffset, b, off, bytesToCopy);
+            chunkOffset += bytesToCopy;
+            return bytesToCopy;
+        }
+        
+        @Override
+        public int available() {
+            return chunk.length - chunkOffset;
+        }
+    }
 }
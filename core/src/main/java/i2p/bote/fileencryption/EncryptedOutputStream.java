@@ -22,34 +22,48 @@
 package i2p.bote.fileencryption;
 
 import static i2p.bote.fileencryption.FileEncryptionConstants.BLOCK_SIZE;
+import static i2p.bote.fileencryption.FileEncryptionConstants.CHUNK_SIZE;
 import static i2p.bote.fileencryption.FileEncryptionConstants.FORMAT_VERSION;
 import static i2p.bote.fileencryption.FileEncryptionConstants.START_OF_FILE;
 
-import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
 
 import net.i2p.I2PAppContext;
 import net.i2p.data.SessionKey;
 
 /**
  * Encrypts data with a password and writes it to an underlying {@link OutputStream}.<br/>
- * Nothing is actually written until {@link #close()} is called.<br/>
- * Nothing is written when <code>flush</code> is called, either, because if more data were
- * written after a <code>flush</code>, it would cause data corruption because the stream
- * would be encrypted two separate pieces.
+ * Data is encrypted in chunks of up to {@link FileEncryptionConstants#CHUNK_SIZE} bytes,
+ * so memory use does not depend on the amount of data written. A chunk is written as
+ * soon as it is full and more data follows; the last chunk is written when {@link #close()}
+ * is called.<br/>
+ * <code>flush</code> does not write the current chunk, because the last chunk must be
+ * marked as such and a chunk can't be appended to once it has been written.
  * <p/>
  * A header is written before the encrypted data. The header fields are:<br/>
- * <code>start of file, format version, scrypt parameters (N, r, p), salt, iv, encrypted data</code>.
+ * <code>start of file, format version, scrypt parameters (N, r, p), salt</code><br/>
+ * Each chunk consists of:<br/>
+ * <code>iv, flags (1 = last chunk), length of the encrypted data, encrypted data, MAC</code><br/>
+ * The encrypted data is produced the same way as in format version 1, and the MAC is
+ * calculated by {@link ChunkMac}. There is always at least one chunk.
  */
 public class EncryptedOutputStream extends FilterOutputStream {
-    private OutputStream downstream;
+    static final int LAST_CHUNK_FLAG = 1;
+    
+    private DataOutputStream downstream;
     private DerivedKey derivedKey;
-    private ByteArrayOutputStream outputBuffer;
+    private SessionKey key;
+    private ChunkMac chunkMac;
+    private byte[] buffer;   // plaintext for the current chunk
+    private int bufferLength;
+    private long chunkIndex;
     
     /**
      * Creates an <code>EncryptedOutputStream</code> that encrypts data with a password obtained
@@ -60,7 +74,7 @@ public class EncryptedOutputStream extends FilterOutputStream {
      */
     public EncryptedOutputStream(OutputStream downstream, PasswordHolder passwordHolder) throws PasswordException, IOException, GeneralSecurityException {
         super(downstream);
-        this.downstream = downstream;
+        this.downstream = new DataOutputStream(downstream);
         byte[] password = passwordHolder.getPassword();
         if (password == null)
             throw new PasswordException();
@@ -72,61 +86,101 @@ public class EncryptedOutputStream extends FilterOutputStream {
         } catch (InvalidKeySpecException e) {
             throw new IOException(e);
         }
-        outputBuffer = new ByteArrayOutputStream();
+        buffer = new byte[CHUNK_SIZE];
     }
     
     public EncryptedOutputStream(OutputStream downstream, DerivedKey derivedKey) {
         super(downstream);
-        this.downstream = downstream;
+        this.downstream = new DataOutputStream(downstream);
         this.derivedKey = derivedKey.clone();
-        outputBuffer = new ByteArrayOutputStream();
+        buffer = new byte[CHUNK_SIZE];
     }
     
     @Override
     public void write(int b) throws IOException {
-        outputBuffer.write(b);
+        if (bufferLength == buffer.length)
+            writeChunk(false);
+        buffer[bufferLength++] = (byte)b;
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (bufferLength == buffer.length)
+                writeChunk(false);
+            int bytesToCopy = Math.min(len, buffer.length - bufferLength);
+            System.arraycopy(b, off, buffer, bufferLength, bytesToCopy);
+            bufferLength += bytesToCopy;
+            off += bytesToCopy;
+            len -= bytesToCopy;
+        }
     }
     
+    /** Flushes the underlying stream. The current chunk is not written until it is complete. */
     @Override
-    public void write(byte[] b, int off, int len) {
-        outputBuffer.write(b, off, len);
+    public void flush() throws IOException {
+        downstream.flush();
     }
     
     @Override
     public void close() throws IOException {
+        if (derivedKey == null)
+            return;
+        
         try {
-            encryptAndWrite();
+            writeChunk(true);
+            downstream.flush();
         }
         finally {
-            // erase the copy of the key
+            // erase the copy of the key and the plaintext
             derivedKey.clear();
             derivedKey = null;
+            Arrays.fill(buffer, (byte)0);
             
             downstream.close();
         }
     }
     
     /**
-     * Writes the header, then encrypts the internal buffer and writes the encrypted
-     * data to the underlying <code>OutputStream</code>.
+     * Writes the header if this is the first chunk, then encrypts the internal buffer
+     * and writes it to the underlying <code>OutputStream</code> as a chunk.
+     * @param lastChunk
      * @throws IOException
      */
     @SuppressWarnings("deprecation") // for net.i2p.crypto.AESEngine
-    private void encryptAndWrite() throws IOException {
-        downstream.write(START_OF_FILE);
-        downstream.write(FORMAT_VERSION);
-        FileEncryptionConstants.KDF_PARAMETERS.writeTo(downstream);
-        
-        downstream.write(derivedKey.salt);
+    private void writeChunk(boolean lastChunk) throws IOException {
+        if (chunkIndex == 0)
+            writeHeader();
         
         byte iv[] = new byte[BLOCK_SIZE];
         I2PAppContext appContext = I2PAppContext.getGlobalContext();
         appContext.random().nextBytes(iv);
-        downstream.write(iv);
         
-        byte[] data = outputBuffer.toByteArray();
-        SessionKey key = new SessionKey(derivedKey.key);
+        byte[] data = Arrays.copyOf(buffer, bufferLength);
         byte[] encryptedData = appContext.aes().safeEncrypt(data, key, iv, 0);
+        Arrays.fill(data, (byte)0);
+        
+        downstream.write(iv);
+        downstream.write(lastChunk ? LAST_CHUNK_FLAG : 0);
+        downstream.writeInt(encryptedData.length);
         downstream.write(encryptedData);
+        downstream.write(chunkMac.calculate(chunkIndex, lastChunk, iv, encryptedData));
+        
+        chunkIndex++;
+        bufferLength = 0;
+    }
+    
+    private void writeHeader() throws IOException {
+        key = new SessionKey(derivedKey.key);
+        try {
+            chunkMac = new ChunkMac(derivedKey.key);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Can't initialize MAC.", e);
+        }
+        
+        downstream.write(START_OF_FILE);
+        downstream.write(FORMAT_VERSION);
+        FileEncryptionConstants.KDF_PARAMETERS.writeTo(downstream);
+        downstream.write(derivedKey.salt);
     }
 }
@@ -25,10 +25,13 @@ import java.util.Random;
 
 public class FileEncryptionConstants {
     public static final byte[] START_OF_FILE = "IBef".getBytes();   // "I2P-Bote encrypted file"
-    static final int FORMAT_VERSION = 1;   // file format identifier
+    static final int FORMAT_VERSION = 2;   // file format identifier for new files
+    static final int FORMAT_VERSION_SINGLE_BLOCK = 1;   // old format that encrypts the entire file in one piece; still readable
     static final int KEY_LENGTH = 32;   // encryption key length
     static final int SALT_LENGTH = 32;
     static final SCryptParameters KDF_PARAMETERS = new SCryptParameters(1<<14, 8, 1);
+    static final int CHUNK_SIZE = 64 * 1024;   // max. number of plaintext bytes per encrypted chunk (format version 2)
+    static final int MAC_LENGTH = 32;   // length of the HMAC-SHA256 that authenticates a chunk
     static final int BLOCK_SIZE = 16;   // length of the AES initialization vector; also the AES block size for padding. Not to be confused with the AES key size.
     static final byte[] PASSWORD_FILE_PLAIN_TEXT = "If this is the decrypted text, the password was correct.".getBytes();
     static final byte[] DEFAULT_PASSWORD;   // this is substituted for empty passwords to add some security through obscurity,
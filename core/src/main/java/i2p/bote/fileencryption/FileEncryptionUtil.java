@@ -37,6 +37,7 @@ import java.security.GeneralSecurityException;
 import java.util.Arrays;
 
 import net.i2p.util.Log;
+import net.i2p.util.SecureFileOutputStream;
 
 import com.lambdaworks.crypto.SCrypt;
 
@@ -143,26 +144,77 @@ public class FileEncryptionUtil {
      * @throws IOException
      * @throws GeneralSecurityException 
      * @throws PasswordException 
+     * @see #changePassword(File, DerivedKeyCache, DerivedKey)
      */
     public static void changePassword(File file, byte[] oldPassword, DerivedKey newKey) throws IOException, GeneralSecurityException, PasswordException {
+        changePassword(file, new DerivedKeyCache(oldPassword), newKey);
+    }
+    
+    /**
+     * Encrypts a file with a new password. No verification of the old password is done.<br/>
+     * The old key is taken from <code>oldKeys</code>, so when many files are re-encrypted,
+     * the old key only needs to be derived once per salt.<br/>
+     * The new file is written to a temporary file first which then replaces the original,
+     * so the original is left intact if an error occurs.<br/>
+     * This method can be called from several threads at the same time as long as each
+     * thread works on a different file.
+     * @param file
+     * @param oldKeys For looking up keys derived from the old password
+     * @param newKey
+     * @throws IOException
+     * @throws GeneralSecurityException 
+     * @throws PasswordException 
+     */
+    public static void changePassword(File file, DerivedKeyCache oldKeys, DerivedKey newKey) throws IOException, GeneralSecurityException, PasswordException {
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
         InputStream inputStream = null;
-        byte[] decryptedData = null;
+        OutputStream outputStream = null;
         try {
-            inputStream = new EncryptedInputStream(new FileInputStream(file), oldPassword);
-            decryptedData = Util.readBytes(inputStream);
+            inputStream = new EncryptedInputStream(new FileInputStream(file), oldKeys);
+            outputStream = new EncryptedOutputStream(new SecureFileOutputStream(tempFile), newKey);
+            Util.copy(inputStream, outputStream);
+            outputStream.close();
+            outputStream = null;
+            inputStream.close();
+            inputStream = null;
+            
+            replaceFile(tempFile, file);
         }
         finally {
             if (inputStream != null)
                 inputStream.close();
-        }
-        OutputStream outputStream = null;
-        try {
-            outputStream = new EncryptedOutputStream(new FileOutputStream(file), newKey);
-            outputStream.write(decryptedData);
-        }
-        finally {
             if (outputStream != null)
                 outputStream.close();
+            if (tempFile.exists() && !tempFile.delete())
+                new Log(FileEncryptionUtil.class).error("Can't delete file: " + tempFile.getAbsolutePath());
+        }
+    }
+    
+    /**
+     * Replaces <code>file</code> with <code>newFile</code>. Only renames are used, never a copy,
+     * so a crash can't leave a partially written <code>file</code> behind.<br/>
+     * <code>renameTo()</code> fails on some platforms if the target exists; in that case the
+     * original is renamed to a backup file first, which is deleted after <code>newFile</code> has
+     * been moved into place, or restored if that fails.
+     * @param newFile
+     * @param file
+     * @throws IOException if <code>file</code> couldn't be replaced
+     */
+    private static void replaceFile(File newFile, File file) throws IOException {
+        if (newFile.renameTo(file))
+            return;
+        
+        File backupFile = new File(file.getParentFile(), file.getName() + ".bak");
+        if (backupFile.exists() && !backupFile.delete())
+            throw new IOException("Can't delete file: <" + backupFile.getAbsolutePath() + ">");
+        if (!file.renameTo(backupFile))
+            throw new IOException("Can't rename <" + file.getAbsolutePath() + "> to <" + backupFile.getAbsolutePath() + ">");
+        if (!newFile.renameTo(file)) {
+            if (!backupFile.renameTo(file))
+                throw new IOException("Can't rename <" + newFile.getAbsolutePath() + "> to <" + file.getAbsolutePath() + ">, the original file is in <" + backupFile.getAbsolutePath() + ">");
+            throw new IOException("Can't rename <" + newFile.getAbsolutePath() + "> to <" + file.getAbsolutePath() + ">");
         }
+        if (!backupFile.delete())
+            new Log(FileEncryptionUtil.class).error("Can't delete file: <" + backupFile.getAbsolutePath() + ">");
     }
-}
\ No newline at end of file
+}
@@ -26,9 +26,11 @@ import i2p.bote.packet.MalformedPacketException;
 import i2p.bote.packet.dht.DhtStorablePacket;
 
 import java.io.File;
-import java.io.FilenameFilter;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
+import net.i2p.data.Base64;
 import net.i2p.data.Hash;
 import net.i2p.util.Log;
 
@@ -69,30 +71,33 @@ public class DhtPacketFolder<T extends DhtStorablePacket> extends PacketFolder<T
     }
 
     /**
-     * Returns the file a packet is stored in, or <code>null</code> if the file doesn't exist.
+     * Returns the file a packet is stored in, or <code>null</code> if the file doesn't exist.<br/>
+     * The file name is derived from the DHT key, so this method doesn't need to
+     * list the storage directory.
      * @param dhtKey a packet key
      */
     protected File findPacketFile(Hash dhtKey) {
-        final String base64Key = dhtKey.toBase64();
-        
-        File[] files = storageDir.listFiles(new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name) {
-                return filenameMatches(name, base64Key);
-            }
-        });
-        
-        if (files.length > 1)
-            log.warn("More than one packet files found for DHT key " + dhtKey);
-        if (files.length > 0) {
-            File file = files[0];
+        File file = new File(storageDir, getFilename(dhtKey));
+        if (file.exists())
             return file;
-        }
-        return null;
+        else
+            return null;
     }
-
-    protected boolean filenameMatches(String filename, String base64DhtKey) {
-        return filename.startsWith(base64DhtKey);
+    
+    /**
+     * Returns the DHT keys of all packets in the folder. Only the file names are
+     * looked at; files whose name is not a DHT key are ignored.
+     */
+    protected List<Hash> getDhtKeysFromFilenames() {
+        List<Hash> dhtKeys = new ArrayList<Hash>();
+        for (File file: getUnsortedFilenames()) {
+            String filename = file.getName();
+            String base64Key = filename.substring(0, filename.length() - PACKET_FILE_EXTENSION.length());
+            byte[] keyBytes = Base64.decode(base64Key);
+            if (keyBytes!=null && keyBytes.length==Hash.HASH_LENGTH)
+                dhtKeys.add(new Hash(keyBytes));
+        }
+        return dhtKeys;
     }
     
     public void delete(Hash dhtKey) {
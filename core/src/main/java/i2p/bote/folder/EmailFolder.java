@@ -28,11 +28,14 @@ import i2p.bote.email.Email;
 import i2p.bote.email.EmailAttribute;
 import i2p.bote.email.EmailMetadata;
 import i2p.bote.fileencryption.DerivedKey;
+import i2p.bote.fileencryption.DerivedKeyCache;
 import i2p.bote.fileencryption.EncryptedInputStream;
 import i2p.bote.fileencryption.EncryptedOutputStream;
 import i2p.bote.fileencryption.FileEncryptionUtil;
 import i2p.bote.fileencryption.PasswordException;
 import i2p.bote.fileencryption.PasswordHolder;
+import i2p.bote.status.ChangePasswordStatus;
+import i2p.bote.status.StatusListener;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -44,13 +47,24 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.mail.MessagingException;
 
+import net.i2p.data.Hash;
 import net.i2p.util.Log;
 import net.i2p.util.SecureFileOutputStream;
 
@@ -58,20 +72,25 @@ import net.i2p.util.SecureFileOutputStream;
  * Stores emails in a directory on the file system.<br/>
  * Two files are stored for each email; one email file with the name
  * <code>&lt;message ID&gt;.mail</code>, and a metadata file with the name
- * <code>&lt;message ID&gt;.meta</code>.
+ * <code>&lt;message ID&gt;.meta</code>.<br/>
+ * An {@link EmailFolderIndex} is maintained so emails can be listed, sorted,
+ * and counted without decrypting all email files.
  */
 public class EmailFolder extends Folder<Email> {
     private static final String EMAIL_FILE_EXTENSION = ".mail";
     private static final String METADATA_FILE_EXTENSION = ".meta";
+    private static final int PROGRESS_INTERVAL = 100;   // report progress every n files when changing the password
     
-    private Log log = new Log(EmailFolder.class);
+    private static Log log = new Log(EmailFolder.class);
     private PasswordHolder passwordHolder;
     private Collection<FolderListener> folderListeners;
+    private EmailFolderIndex index;
     
     public EmailFolder(File storageDir, PasswordHolder passwordHolder) {
         super(storageDir, EMAIL_FILE_EXTENSION);
         this.passwordHolder = passwordHolder;
         folderListeners = new ArrayList<FolderListener>();
+        index = new EmailFolderIndex(new File(storageDir, EmailFolderIndex.INDEX_FILE_NAME), passwordHolder);
     }
 
     /**
@@ -103,125 +122,295 @@ public class EmailFolder extends Folder<Email> {
         
         saveMetadata(email);
         
+        synchronized(index) {
+            index.put(new EmailFolderIndex.Entry(email, emailFile, getMetadataFile(emailFile)));
+        }
+        
         for (FolderListener listener: folderListeners)
             listener.elementAdded(email.getMessageID());
     }
     
-    public void changePassword(byte[] oldPassword, DerivedKey newKey) throws FileNotFoundException, IOException, GeneralSecurityException, PasswordException {
-        for (File emailFile: getFilenames()) {   // getFilenames() only returns email files but not metadata files
-            FileEncryptionUtil.changePassword(emailFile, oldPassword, newKey);
+    /**
+     * Re-encrypts all email files, metadata files, and the index file with a new password.
+     * Email and metadata files are re-encrypted in parallel using the threads of <code>executor</code>.<br/>
+     * Progress is reported as {@link ChangePasswordStatus#RE_ENCRYPTING_FOLDER} with three arguments:
+     * the folder name, the number of files done, and the total number of files.
+     * @param oldKeys For looking up keys derived from the old password
+     * @param newKey
+     * @param executor
+     * @param lsnr
+     * @throws FileNotFoundException
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws PasswordException
+     */
+    public void changePassword(final DerivedKeyCache oldKeys, final DerivedKey newKey, ExecutorService executor, StatusListener<ChangePasswordStatus> lsnr) throws FileNotFoundException, IOException, GeneralSecurityException, PasswordException {
+        List<File> files = new ArrayList<File>();
+        for (File emailFile: getUnsortedFilenames()) {   // getUnsortedFilenames() only returns email files but not metadata files
+            files.add(emailFile);
             File metadataFile = getMetadataFile(emailFile);
             if (metadataFile.exists())
-                FileEncryptionUtil.changePassword(metadataFile, oldPassword, newKey);
+                files.add(metadataFile);
+        }
+        String numFiles = String.valueOf(files.size());
+        lsnr.updateStatus(ChangePasswordStatus.RE_ENCRYPTING_FOLDER, getName(), "0", numFiles);
+        
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (final File file: files)
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException, GeneralSecurityException, PasswordException {
+                    FileEncryptionUtil.changePassword(file, oldKeys, newKey);
+                    return null;
+                }
+            }));
+        
+        try {
+            int numDone = 0;
+            for (Future<Void> result: results) {
+                result.get();
+                numDone++;
+                if (numDone%PROGRESS_INTERVAL==0 && numDone<files.size())
+                    lsnr.updateStatus(ChangePasswordStatus.RE_ENCRYPTING_FOLDER, getName(), String.valueOf(numDone), numFiles);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while re-encrypting folder " + getName(), e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            if (cause instanceof GeneralSecurityException)
+                throw (GeneralSecurityException)cause;
+            if (cause instanceof PasswordException)
+                throw (PasswordException)cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new IOException("Can't re-encrypt folder " + getName(), cause);
+        } finally {
+            // if an error occurred, don't start any more tasks; tasks that are running won't leave partial files
+            for (Future<Void> result: results)
+                result.cancel(false);
+        }
+        
+        synchronized(index) {
+            File indexFile = index.getFile();
+            if (indexFile.exists())
+                FileEncryptionUtil.changePassword(indexFile, oldKeys, newKey);
+        }
+        lsnr.updateStatus(ChangePasswordStatus.RE_ENCRYPTING_FOLDER, getName(), numFiles, numFiles);
+    }
+    
+    /**
+     * Removes the folder index from memory. It is read from disk again the next
+     * time it is needed.
+     */
+    public void clearPasswordProtectedData() {
+        synchronized(index) {
+            index.clear();
         }
     }
     
     /**
-     * Returns all emails in the folder, in the order specified by <code>sortColumn</code>.
+     * Returns the index entries of all emails in the folder, in the order specified by
+     * <code>sortColumn</code>. Only the folder index is read, so this is much faster
+     * than {@link #getElements(AddressDisplayFilter, EmailAttribute, boolean)} when a
+     * folder is listed.
+     * @param displayFilter For sorting by sender or recipient name
+     * @param sortColumn
+     * @param descending
+     * @throws PasswordException 
+     */
+    public List<EmailFolderIndex.Entry> getEntries(AddressDisplayFilter displayFilter, EmailAttribute sortColumn, boolean descending) throws PasswordException {
+        Collection<EmailFolderIndex.Entry> indexEntries;
+        synchronized(index) {
+            indexEntries = updateIndex();
+        }
+        return sortEntries(indexEntries, displayFilter, sortColumn, descending);
+    }
+    
+    /**
+     * Returns all emails in the folder, in the order specified by <code>sortColumn</code>.<br/>
+     * Sorting is done on the folder index, but every email is then read from disk. Use
+     * {@link #getEntries(AddressDisplayFilter, EmailAttribute, boolean)} if the index
+     * attributes are sufficient.
      * @throws PasswordException 
      */
     public List<Email> getElements(AddressDisplayFilter displayFilter, EmailAttribute sortColumn, boolean descending) throws PasswordException {
-        Comparator<Email> comparator = new EmailComparator(sortColumn, displayFilter);
-        if (descending)
-            comparator = Collections.reverseOrder(comparator);
-        
-        List<Email> emails = getElements();
-        Collections.sort(emails, comparator);
+        List<EmailFolderIndex.Entry> entries = getEntries(displayFilter, sortColumn, descending);
+        List<Email> emails = new ArrayList<Email>(entries.size());
+        for (EmailFolderIndex.Entry entry: entries) {
+            Email email = getEmail(entry.messageId);
+            if (email != null)
+                emails.add(email);
+        }
         return emails;
     }
     
     /**
-     * A <code>Comparator</code> for sorting emails by a given {@link EmailAttribute}.
-     * If <code>attribute</code> is <code>null</code>, the date field is used.
+     * Brings the folder index up to date and returns all index entries.<br/>
+     * Emails that are not in the index, or whose email file has changed since they
+     * were indexed, are read from disk. If only the metadata file has changed, only
+     * the metadata is read. Entries for emails that no longer exist are removed.
+     * <p/>
+     * The caller must hold the lock on <code>index</code>.
+     * @throws PasswordException
      */
-    private class EmailComparator implements Comparator<Email> {
-        private EmailAttribute attribute;
-        private AddressDisplayFilter displayFilter;
-        
-        public EmailComparator(EmailAttribute attribute, AddressDisplayFilter displayFilter) {
-            if (attribute == null)
-                attribute = EmailAttribute.DATE;
-            this.attribute = attribute;
-            this.displayFilter = displayFilter;
-        }
+    private Collection<EmailFolderIndex.Entry> updateIndex() throws PasswordException {
+        if (!index.isLoaded())
+            index.load();
         
-        @Override
-        public int compare(Email email1, Email email2) {
-            Comparable<?> value1;
-            Object value2;
-            
+        Set<String> deletedIds = new HashSet<String>(index.getMessageIds());
+        for (File emailFile: getUnsortedFilenames()) {   // getUnsortedFilenames() only returns email files but not metadata files
+            String messageId = getMessageId(emailFile);
+            deletedIds.remove(messageId);
+            EmailFolderIndex.Entry entry = index.get(messageId);
+            File metadataFile = getMetadataFile(emailFile);
             try {
-                switch(attribute) {
-                case DATE:
-                    // use the sent date if there is one, otherwise use the received date
-                    value1 = email1.getSentDate();
-                    if (value1 == null)
-                        value1 = email1.getReceivedDate();
-                    value2 = email2.getSentDate();
-                    if (value2 == null)
-                        value2 = email2.getReceivedDate();
-                    break;
-                case FROM:
-                    value1 = displayFilter.getNameAndDestination(email1.getOneFromAddress());
-                    value2 = displayFilter.getNameAndDestination(email2.getOneFromAddress());
-                    break;
-                case TO:
-                    value1 = displayFilter.getNameAndDestination(email1.getOneRecipient());
-                    value2 = displayFilter.getNameAndDestination(email2.getOneRecipient());
-                    break;
-                case CREATE_TIME:
-                    value1 = email1.getCreateTime();
-                    value2 = email2.getCreateTime();
-                    break;
-                case SUBJECT:
-                    value1 = email1.getSubject();
-                    value2 = email2.getSubject();
-                    break;
-                case DELIVERED:
-                    value1 = email1.getDeliveryPercentage();
-                    value2 = email2.getDeliveryPercentage();
-                    break;
-                default:
-                    log.error("Unknown email attribute type: " + attribute);
-                    return 0;
+                if (entry==null || entry.emailFileModified!=emailFile.lastModified()) {
+                    log.debug("Indexing email file: <" + emailFile.getAbsolutePath() + ">");
+                    Email email = createFolderElement(emailFile);
+                    index.put(new EmailFolderIndex.Entry(email, emailFile, metadataFile));
+                }
+                else if (entry.metadataFileModified != metadataFile.lastModified()) {
+                    EmailMetadata metadata = metadataFile.exists() ? getMetadata(metadataFile) : new EmailMetadata();
+                    index.updateMetadata(messageId, metadata, metadataFile);
                 }
-                
-                @SuppressWarnings("unchecked")
-                int comp = nullSafeCompare((Comparable<Object>)value1, value2);
-                return comp;
             }
-            catch (MessagingException e) {
-                log.error("Can't read the " + attribute + " attribute from an email.", e);
-                return 0;
-            } catch (PasswordException e) {
-                log.error("Can't compare emails because the password is not available.", e);
-                return 0;
-            } catch (IOException e) {
-                log.error("Can't compare emails.", e);
-                return 0;
-            } catch (GeneralSecurityException e) {
-                log.error("Can't compare emails.", e);
-                return 0;
+            catch (PasswordException e) {
+                throw e;
+            }
+            catch (Exception e) {
+                log.error("Can't index email file: <" + emailFile.getAbsolutePath() + ">", e);
+                index.remove(messageId);
             }
         }
+        for (String messageId: deletedIds)
+            index.remove(messageId);
         
-        private <T> int nullSafeCompare(Comparable<T> value1, T value2) {
-            if (value1 == null) {
-                if (value2 == null)
-                    return 0;
-                else
-                    return -1;
+        index.save();
+        return index.getEntries();
+    }
+    
+    /**
+     * Sorts index entries by a given {@link EmailAttribute}. If <code>attribute</code> is
+     * <code>null</code>, the date field is used.<br/>
+     * The value to sort by is extracted from each entry once before sorting, so display
+     * names are looked up once per email rather than on every comparison.
+     * @param entries
+     * @param displayFilter For looking up the names of senders and recipients
+     * @param attribute
+     * @param descending
+     * @throws PasswordException
+     */
+    static List<EmailFolderIndex.Entry> sortEntries(Collection<EmailFolderIndex.Entry> entries, AddressDisplayFilter displayFilter, EmailAttribute attribute, boolean descending) throws PasswordException {
+        if (attribute == null)
+            attribute = EmailAttribute.DATE;
+        
+        Map<String, String> displayNames = new HashMap<String, String>();   // cache for getNameAndDestination(), by address
+        SortKey[] keys = new SortKey[entries.size()];
+        int i = 0;
+        for (EmailFolderIndex.Entry entry: entries) {
+            switch(attribute) {
+            case DATE:
+                // use the sent date if there is one, otherwise use the received date
+                keys[i] = new SortKey(entry, entry.getDate());
+                break;
+            case FROM:
+                keys[i] = new SortKey(entry, getNameAndDestination(entry.fromAddress, displayFilter, displayNames));
+                break;
+            case TO:
+                keys[i] = new SortKey(entry, getNameAndDestination(entry.getOneRecipient(), displayFilter, displayNames));
+                break;
+            case CREATE_TIME:
+                keys[i] = new SortKey(entry, entry.createTime);
+                break;
+            case SUBJECT:
+                keys[i] = new SortKey(entry, entry.subject);
+                break;
+            case DELIVERED:
+                keys[i] = new SortKey(entry, entry.deliveryPercentage);
+                break;
+            default:
+                log.error("Unknown email attribute type: " + attribute);
+                return new ArrayList<EmailFolderIndex.Entry>(entries);
+            }
+            i++;
+        }
+        
+        Arrays.sort(keys, descending ? Collections.reverseOrder(SortKey.COMPARATOR) : SortKey.COMPARATOR);
+        
+        List<EmailFolderIndex.Entry> sortedEntries = new ArrayList<EmailFolderIndex.Entry>(keys.length);
+        for (SortKey key: keys)
+            sortedEntries.add(key.entry);
+        return sortedEntries;
+    }
+    
+    /**
+     * Returns the result of {@link AddressDisplayFilter#getNameAndDestination(String)}, looking
+     * it up only once per address. If the lookup fails, <code>address</code> is returned.
+     */
+    private static String getNameAndDestination(String address, AddressDisplayFilter displayFilter, Map<String, String> displayNames) throws PasswordException {
+        if (address == null)
+            return null;
+        String nameAndDest = displayNames.get(address);
+        if (nameAndDest == null) {
+            try {
+                nameAndDest = displayFilter.getNameAndDestination(address);
+            } catch (IOException e) {
+                log.error("Can't look up name for address <" + address + ">", e);
+                nameAndDest = address;
+            } catch (GeneralSecurityException e) {
+                log.error("Can't look up name for address <" + address + ">", e);
+                nameAndDest = address;
             }
-            else {
-                if (value2 == null)
+            displayNames.put(address, nameAndDest);
+        }
+        return nameAndDest;
+    }
+    
+    /**
+     * An index entry together with the value it is sorted by. The value is either
+     * a number (for dates and the delivery percentage) or a string; strings are
+     * compared case-insensitively. Entries without a value sort first.
+     */
+    private static class SortKey {
+        static final Comparator<SortKey> COMPARATOR = new Comparator<SortKey>() {
+            @Override
+            public int compare(SortKey key1, SortKey key2) {
+                if (key1.isNull)
+                    return key2.isNull ? 0 : -1;
+                if (key2.isNull)
                     return 1;
-                else {
-                    if (value1 instanceof String)
-                        return ((String)value1).compareToIgnoreCase((String)value2);
-                    else
-                        return value1.compareTo(value2);
-                }
+                if (key1.text != null)
+                    return key1.text.compareToIgnoreCase(key2.text);
+                return key1.number<key2.number ? -1 : (key1.number==key2.number ? 0 : 1);
             }
+        };
+        
+        final EmailFolderIndex.Entry entry;
+        final boolean isNull;
+        final String text;
+        final long number;
+        
+        SortKey(EmailFolderIndex.Entry entry, String text) {
+            this.entry = entry;
+            isNull = text == null;
+            this.text = text;
+            number = 0;
+        }
+        
+        SortKey(EmailFolderIndex.Entry entry, Date date) {
+            this.entry = entry;
+            isNull = date == null;
+            text = null;
+            number = date==null ? 0 : date.getTime();
+        }
+        
+        SortKey(EmailFolderIndex.Entry entry, long number) {
+            this.entry = entry;
+            isNull = false;
+            text = null;
+            this.number = number;
         }
     }
     
@@ -289,6 +478,15 @@ public class EmailFolder extends Folder<Email> {
         }
 
         if (success) {
+            EmailFolderIndex.Entry entry;
+            synchronized(index) {
+                entry = index.remove(messageId);
+            }
+            if (entry != null)
+                synchronized(newFolder.index) {
+                    newFolder.index.put(new EmailFolderIndex.Entry(entry, newEmailFile, getMetadataFile(newEmailFile)));
+                }
+            
             for (FolderListener listener: folderListeners)
                 listener.elementRemoved(messageId);
             for (FolderListener listener: newFolder.folderListeners)
@@ -340,6 +538,11 @@ public class EmailFolder extends Folder<Email> {
         return new File(storageDir, messageId + METADATA_FILE_EXTENSION);
     }
     
+    /** Returns the message ID for an email file name. */
+    private String getMessageId(File emailFile) {
+        return emailFile.getName().substring(0, 44);
+    }
+    
     private File getMetadataFile(File emailFile) {
         File parent = emailFile.getParentFile();
         String filename = emailFile.getName();
@@ -374,35 +577,43 @@ public class EmailFolder extends Folder<Email> {
     
     /**
      * Returns the number of <strong>new</strong> emails in the folder.
+     * The number is obtained from the folder index.
      * @throws PasswordException 
      * @see i2p.bote.folder.Folder#getNumElements()
      */
     public int getNumNewEmails() throws PasswordException {
         int numNew = 0;
-        for (File emailFile: getFilenames()) {
-            // getFilenames() only returns email files but not metadata files
-            File metaFile = getMetadataFile(emailFile);
-            if (metaFile.exists())
-                try {
-                    EmailMetadata metadata = getMetadata(metaFile);
-                    if (metadata.isUnread())
-                        numNew++;
-                } catch (IOException e) {
-                    log.error("Can't read metadata file: <" + metaFile.getAbsolutePath() + ">", e);
-                } catch (GeneralSecurityException gse) {
-                	log.error("Can't access metadata file: <" + metaFile.getAbsolutePath() + ">", gse);
-                }
-            else
-                numNew++;
+        synchronized(index) {
+            for (EmailFolderIndex.Entry entry: updateIndex())
+                if (entry.unread)
+                    numNew++;
         }
         
         return numNew;
     }
 
+    /**
+     * Returns the unread email whose file was modified most recently, or <code>null</code>
+     * if there are no unread emails.
+     * @throws PasswordException
+     */
     public Email getLatestUnreadEmail() throws PasswordException {
-        for (Email email : getElements()) {
-            if (email.isUnread())
-                return email;
+        Set<String> unreadIds = new HashSet<String>();
+        synchronized(index) {
+            for (EmailFolderIndex.Entry entry: updateIndex())
+                if (entry.unread)
+                    unreadIds.add(entry.messageId);
+        }
+        if (unreadIds.isEmpty())
+            return null;
+        
+        for (File emailFile: getFilenames()) {
+            String messageId = getMessageId(emailFile);
+            if (unreadIds.contains(messageId)) {
+                Email email = getEmail(messageId);
+                if (email != null)
+                    return email;
+            }
         }
         return null;
     }
@@ -411,7 +622,7 @@ public class EmailFolder extends Folder<Email> {
         EmailMetadata metadata = getMetadata(messageId);
         metadata.setRecent(isRecent);
         try {
-            saveMetadata(metadata, getMetadataFile(messageId));
+            saveMetadata(messageId, metadata);
         } catch (IOException e) {
             log.error("Can't read metadata file for message ID <" + messageId + ">", e);
         }
@@ -429,7 +640,7 @@ public class EmailFolder extends Folder<Email> {
         EmailMetadata metadata = getMetadata(messageId);
         metadata.setUnread(isNew);
         try {
-            saveMetadata(metadata, getMetadataFile(messageId));
+            saveMetadata(messageId, metadata);
         } catch (IOException e) {
             log.error("Can't read metadata file for message ID <" + messageId + ">", e);
         }
@@ -449,19 +660,42 @@ public class EmailFolder extends Folder<Email> {
         EmailMetadata metadata = getMetadata(messageId);
         metadata.setReplied(replied);
         try {
-            saveMetadata(metadata, getMetadataFile(messageId));
+            saveMetadata(messageId, metadata);
         } catch (IOException e) {
             log.error("Can't read metadata file for message ID <" + messageId + ">", e);
         }
     }
     
+    /**
+     * Flags email packets as delivered. The metadata is read from disk rather than
+     * taken from an <code>Email</code> object, so changes made since the email was
+     * read are not overwritten.
+     * @param messageId
+     * @param dhtKeys The DHT keys of the delivered packets
+     * @return <code>false</code> if the email or its metadata file doesn't exist, <code>true</code> otherwise
+     * @throws PasswordException
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public boolean setPacketsDelivered(String messageId, Collection<Hash> dhtKeys) throws PasswordException, IOException, GeneralSecurityException {
+        File metadataFile = getMetadataFile(messageId);
+        // don't recreate the metadata file of an email that has been moved or deleted
+        if (!getEmailFile(messageId).exists() || !metadataFile.exists())
+            return false;
+        
+        EmailMetadata metadata = getMetadata(metadataFile);
+        for (Hash dhtKey: dhtKeys)
+            metadata.setPacketDelivered(dhtKey, true);
+        saveMetadata(messageId, metadata);
+        return true;
+    }
+    
     public void saveMetadata(Email email) throws PasswordException, FileNotFoundException, IOException, GeneralSecurityException {
-        EmailMetadata metadata = email.getMetadata();
-        File metaFile = getMetadataFile(email.getMessageID());
-        saveMetadata(metadata, metaFile);
+        saveMetadata(email.getMessageID(), email.getMetadata());
     }
     
-    private void saveMetadata(EmailMetadata metadata, File file) throws PasswordException, FileNotFoundException, IOException, GeneralSecurityException {
+    public void saveMetadata(String messageId, EmailMetadata metadata) throws PasswordException, FileNotFoundException, IOException, GeneralSecurityException {
+        File file = getMetadataFile(messageId);
         log.info("Mail folder <" + storageDir + ">: storing metadata file: <" + file.getAbsolutePath() + ">");
         OutputStream emailOutputStream = new BufferedOutputStream(new EncryptedOutputStream(new SecureFileOutputStream(file), passwordHolder));
         try {
@@ -474,6 +708,10 @@ public class EmailFolder extends Folder<Email> {
                 emailOutputStream.close();
         }
 
+        synchronized(index) {
+            index.updateMetadata(messageId, metadata, file);
+        }
+        
         for (FolderListener listener: folderListeners)
             listener.elementUpdated();
     }
@@ -496,6 +734,10 @@ public class EmailFolder extends Folder<Email> {
         else
             deleted = false;
         
+        synchronized(index) {
+            index.remove(messageId);
+        }
+        
         for (FolderListener listener: folderListeners)
             listener.elementRemoved(messageId);
         
@@ -521,8 +763,7 @@ public class EmailFolder extends Folder<Email> {
                 metadataStream = new BufferedInputStream(new EncryptedInputStream(new FileInputStream(metadataFile), passwordHolder));
             Email email = new Email(emailStream, metadataStream, passwordHolder);
             
-            String messageIdString = emailFile.getName().substring(0, 44);
-            email.setMessageID(messageIdString);
+            email.setMessageID(getMessageId(emailFile));
             
             return email;
         } finally {
@@ -0,0 +1,510 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.folder;
+
+import i2p.bote.email.Email;
+import i2p.bote.email.EmailMetadata;
+import i2p.bote.fileencryption.EncryptedInputStream;
+import i2p.bote.fileencryption.EncryptedOutputStream;
+import i2p.bote.fileencryption.PasswordException;
+import i2p.bote.fileencryption.PasswordHolder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+
+import net.i2p.util.Log;
+import net.i2p.util.SecureFileOutputStream;
+
+/**
+ * Keeps the attributes of all emails in an {@link EmailFolder} that are needed
+ * for listing, sorting, and counting emails, so the folder doesn't have to decrypt
+ * and parse every email file for these operations.<br/>
+ * The index is stored in an encrypted file in the folder directory. It is loaded
+ * when it is first needed and written back after it has changed. Each entry
+ * records the last modification time of the email file and the metadata file it
+ * was created from, so entries that are missing or out of date can be detected
+ * and recreated (see {@link EmailFolder}).
+ * <p/>
+ * File format: a format version number, the number of entries, and one record
+ * per entry in the order of the fields in {@link Entry}.
+ * <p/>
+ * This class is not thread-safe; {@link EmailFolder} synchronizes access to it.
+ * Only {@link Entry} is meant to be used outside this package.
+ */
+public class EmailFolderIndex {
+    static final String INDEX_FILE_NAME = "folder.idx";
+    private static final int FORMAT_VERSION = 2;
+    
+    private Log log = new Log(EmailFolderIndex.class);
+    private File indexFile;
+    private PasswordHolder passwordHolder;
+    private Map<String, Entry> entries;   // maps message IDs to entries; null if the index hasn't been loaded
+    private boolean modified;   // true if the in-memory index differs from the index file
+    
+    EmailFolderIndex(File indexFile, PasswordHolder passwordHolder) {
+        this.indexFile = indexFile;
+        this.passwordHolder = passwordHolder;
+    }
+    
+    File getFile() {
+        return indexFile;
+    }
+    
+    /** Returns <code>true</code> if the index has been read into memory. */
+    boolean isLoaded() {
+        return entries != null;
+    }
+    
+    /**
+     * Reads the index file into memory. If the file doesn't exist or cannot be read,
+     * the index is empty afterwards.
+     * @throws PasswordException
+     */
+    void load() throws PasswordException {
+        Map<String, Entry> loadedEntries = new HashMap<String, Entry>();
+        if (!indexFile.exists()) {
+            entries = loadedEntries;
+            modified = true;
+            return;
+        }
+        
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new EncryptedInputStream(new FileInputStream(indexFile), passwordHolder)));
+            int formatVersion = inputStream.readInt();
+            if (formatVersion == FORMAT_VERSION) {
+                int numEntries = inputStream.readInt();
+                for (int i=0; i<numEntries; i++) {
+                    Entry entry = new Entry(inputStream);
+                    loadedEntries.put(entry.messageId, entry);
+                }
+                modified = false;
+            }
+            else {
+                log.info("Unknown index format version: " + formatVersion + ", the index <" + indexFile.getAbsolutePath() + "> will be rebuilt.");
+                modified = true;
+            }
+        } catch (IOException e) {
+            log.error("Can't read index file <" + indexFile.getAbsolutePath() + ">, the index will be rebuilt.", e);
+            loadedEntries.clear();
+            modified = true;
+        } catch (GeneralSecurityException e) {
+            log.error("Can't decrypt index file <" + indexFile.getAbsolutePath() + ">, the index will be rebuilt.", e);
+            loadedEntries.clear();
+            modified = true;
+        } finally {
+            if (inputStream != null)
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    log.error("Can't close index file <" + indexFile.getAbsolutePath() + ">", e);
+                }
+        }
+        entries = loadedEntries;
+    }
+    
+    /**
+     * Writes the index to disk if it has been loaded and has changed since it was
+     * last read or written. The data is written to a temporary file first, so an
+     * interrupted write doesn't leave a truncated index behind.
+     * @throws PasswordException
+     */
+    void save() throws PasswordException {
+        if (entries==null || !modified)
+            return;
+        
+        File tempFile = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        DataOutputStream outputStream = null;
+        try {
+            outputStream = new DataOutputStream(new BufferedOutputStream(new EncryptedOutputStream(new SecureFileOutputStream(tempFile), passwordHolder)));
+            outputStream.writeInt(FORMAT_VERSION);
+            outputStream.writeInt(entries.size());
+            for (Entry entry: entries.values())
+                entry.writeTo(outputStream);
+            outputStream.close();
+            outputStream = null;
+            
+            if (!tempFile.renameTo(indexFile)) {
+                // renameTo() fails on some platforms if the target exists
+                indexFile.delete();
+                if (!tempFile.renameTo(indexFile)) {
+                    log.error("Can't rename <" + tempFile.getAbsolutePath() + "> to <" + indexFile.getAbsolutePath() + ">");
+                    return;
+                }
+            }
+            modified = false;
+        } catch (IOException e) {
+            log.error("Can't write index file <" + indexFile.getAbsolutePath() + ">", e);
+        } catch (GeneralSecurityException e) {
+            log.error("Can't encrypt index file <" + indexFile.getAbsolutePath() + ">", e);
+        } finally {
+            if (outputStream != null)
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    log.error("Can't close index file <" + tempFile.getAbsolutePath() + ">", e);
+                }
+            if (tempFile.exists() && !tempFile.delete())
+                log.error("Can't delete file: <" + tempFile.getAbsolutePath() + ">");
+        }
+    }
+    
+    /** Removes all entries from memory, so the index is reloaded the next time it is used. */
+    void clear() {
+        entries = null;
+        modified = false;
+    }
+    
+    /**
+     * Returns the entry for a given message ID, or <code>null</code> if there is
+     * no such entry or the index hasn't been loaded.
+     * @param messageId
+     */
+    Entry get(String messageId) {
+        if (entries == null)
+            return null;
+        return entries.get(messageId);
+    }
+    
+    /**
+     * Adds or replaces an entry. Does nothing if the index hasn't been loaded,
+     * because the entry will be created when the index is loaded.
+     * @param entry
+     */
+    void put(Entry entry) {
+        if (entries == null)
+            return;
+        entries.put(entry.messageId, entry);
+        modified = true;
+    }
+    
+    /**
+     * Removes the entry for a given message ID and returns it. If there is no
+     * such entry or the index hasn't been loaded, <code>null</code> is returned.
+     * @param messageId
+     */
+    Entry remove(String messageId) {
+        if (entries == null)
+            return null;
+        Entry entry = entries.remove(messageId);
+        if (entry != null)
+            modified = true;
+        return entry;
+    }
+    
+    /**
+     * Updates the metadata fields of an entry. Does nothing if there is no entry
+     * for the message ID.
+     * @param messageId
+     * @param metadata
+     * @param metadataFile The metadata file the new values have been written to
+     */
+    void updateMetadata(String messageId, EmailMetadata metadata, File metadataFile) {
+        Entry entry = get(messageId);
+        if (entry == null)
+            return;
+        Entry updatedEntry = new Entry(entry);
+        updatedEntry.setMetadata(metadata, metadataFile);
+        put(updatedEntry);
+    }
+    
+    /** Returns the message IDs of all entries. The index must be loaded. */
+    Collection<String> getMessageIds() {
+        return new ArrayList<String>(entries.keySet());
+    }
+    
+    /** Returns a copy of the list of entries. The index must be loaded. */
+    Collection<Entry> getEntries() {
+        return new ArrayList<Entry>(entries.values());
+    }
+    
+    /**
+     * The indexed attributes of one email.<br/>
+     * Entries are not modified once they have been added to the index, so they
+     * can be used outside the folder lock; updates replace the entry with a copy.<br/>
+     * The getters have the same names as the corresponding methods in {@link Email},
+     * so an entry can be used in place of an email when listing a folder.
+     */
+    public static class Entry {
+        final String messageId;
+        Date sentDate;
+        Date receivedDate;
+        Date createTime;
+        String fromAddress;
+        String[] recipients;
+        String subject;
+        boolean signatureValid;
+        boolean containingAttachments;
+        boolean unread;
+        boolean recent;
+        boolean replied;
+        boolean deleted;
+        boolean delivered;
+        int deliveryPercentage;
+        long emailFileModified;   // last modification time of the email file when the entry was created
+        long metadataFileModified;   // last modification time of the metadata file when the entry was updated, 0 if there is no metadata file
+        
+        /**
+         * Creates an entry from an email read from a folder.
+         * @param email
+         * @param emailFile
+         * @param metadataFile
+         * @throws MessagingException
+         * @throws IOException
+         */
+        Entry(Email email, File emailFile, File metadataFile) throws MessagingException, IOException {
+            messageId = email.getMessageID();
+            sentDate = email.getSentDate();
+            fromAddress = email.getOneFromAddress();
+            Address[] recipientAddresses = email.getAllRecipients();
+            if (recipientAddresses == null)
+                recipients = new String[0];
+            else {
+                recipients = new String[recipientAddresses.length];
+                for (int i=0; i<recipientAddresses.length; i++)
+                    recipients[i] = recipientAddresses[i].toString();
+            }
+            subject = email.getSubject();
+            signatureValid = email.isSignatureValid();
+            containingAttachments = email.isContainingAttachments();
+            emailFileModified = emailFile.lastModified();
+            setMetadata(email.getMetadata(), metadataFile);
+        }
+        
+        /**
+         * Creates a copy of an entry that refers to a new location of the email file
+         * and the metadata file.
+         * @param original
+         * @param emailFile
+         * @param metadataFile
+         */
+        Entry(Entry original, File emailFile, File metadataFile) {
+            this(original);
+            emailFileModified = emailFile.lastModified();
+            metadataFileModified = metadataFile.lastModified();
+        }
+        
+        private Entry(Entry original) {
+            messageId = original.messageId;
+            sentDate = original.sentDate;
+            receivedDate = original.receivedDate;
+            createTime = original.createTime;
+            fromAddress = original.fromAddress;
+            recipients = original.recipients;
+            subject = original.subject;
+            signatureValid = original.signatureValid;
+            containingAttachments = original.containingAttachments;
+            unread = original.unread;
+            recent = original.recent;
+            replied = original.replied;
+            deleted = original.deleted;
+            delivered = original.delivered;
+            deliveryPercentage = original.deliveryPercentage;
+            emailFileModified = original.emailFileModified;
+            metadataFileModified = original.metadataFileModified;
+        }
+        
+        private Entry(DataInputStream inputStream) throws IOException {
+            messageId = inputStream.readUTF();
+            sentDate = readDate(inputStream);
+            receivedDate = readDate(inputStream);
+            createTime = readDate(inputStream);
+            fromAddress = readString(inputStream);
+            recipients = new String[inputStream.readInt()];
+            for (int i=0; i<recipients.length; i++)
+                recipients[i] = readString(inputStream);
+            subject = readString(inputStream);
+            signatureValid = inputStream.readBoolean();
+            containingAttachments = inputStream.readBoolean();
+            unread = inputStream.readBoolean();
+            recent = inputStream.readBoolean();
+            replied = inputStream.readBoolean();
+            deleted = inputStream.readBoolean();
+            delivered = inputStream.readBoolean();
+            deliveryPercentage = inputStream.readInt();
+            emailFileModified = inputStream.readLong();
+            metadataFileModified = inputStream.readLong();
+        }
+        
+        private void setMetadata(EmailMetadata metadata, File metadataFile) {
+            receivedDate = metadata.getReceivedDate();
+            createTime = metadata.getCreateTime();
+            unread = metadata.isUnread();
+            recent = metadata.isRecent();
+            replied = metadata.isReplied();
+            deleted = metadata.isDeleted();
+            delivered = metadata.isDelivered();
+            deliveryPercentage = metadata.getDeliveryPercentage();
+            metadataFileModified = metadataFile.lastModified();   // 0 if the file doesn't exist
+        }
+        
+        /** Returns the sent date if there is one, otherwise the received date. */
+        Date getDate() {
+            return sentDate!=null ? sentDate : receivedDate;
+        }
+        
+        public String getMessageID() {
+            return messageId;
+        }
+        
+        public Date getSentDate() {
+            return sentDate;
+        }
+        
+        public Date getReceivedDate() {
+            return receivedDate;
+        }
+        
+        public Date getCreateTime() {
+            return createTime;
+        }
+        
+        /** @see Email#getOneFromAddress() */
+        public String getOneFromAddress() {
+            return fromAddress;
+        }
+        
+        /** @see Email#isAnonymous() */
+        public boolean isAnonymous() {
+            return fromAddress==null || "Anonymous".equalsIgnoreCase(fromAddress);
+        }
+        
+        /** Returns the first recipient, or <code>null</code> if there are no recipients. */
+        public String getOneRecipient() {
+            return recipients.length>0 ? recipients[0] : null;
+        }
+        
+        /** Returns all recipients. The array is never <code>null</code>. */
+        public String[] getAllRecipients() {
+            return recipients.clone();
+        }
+        
+        public String getSubject() {
+            return subject;
+        }
+        
+        public boolean isSignatureValid() {
+            return signatureValid;
+        }
+        
+        public boolean isContainingAttachments() {
+            return containingAttachments;
+        }
+        
+        public boolean isUnread() {
+            return unread;
+        }
+        
+        public boolean isRecent() {
+            return recent;
+        }
+        
+        public boolean isReplied() {
+            return replied;
+        }
+        
+        public boolean isDeleted() {
+            return deleted;
+        }
+        
+        public boolean isDelivered() {
+            return delivered;
+        }
+        
+        public int getDeliveryPercentage() {
+            return deliveryPercentage;
+        }
+        
+        private void writeTo(DataOutputStream outputStream) throws IOException {
+            outputStream.writeUTF(messageId);
+            writeDate(outputStream, sentDate);
+            writeDate(outputStream, receivedDate);
+            writeDate(outputStream, createTime);
+            writeString(outputStream, fromAddress);
+            outputStream.writeInt(recipients.length);
+            for (String recipient: recipients)
+                writeString(outputStream, recipient);
+            writeString(outputStream, subject);
+            outputStream.writeBoolean(signatureValid);
+            outputStream.writeBoolean(containingAttachments);
+            outputStream.writeBoolean(unread);
+            outputStream.writeBoolean(recent);
+            outputStream.writeBoolean(replied);
+            outputStream.writeBoolean(deleted);
+            outputStream.writeBoolean(delivered);
+            outputStream.writeInt(deliveryPercentage);
+            outputStream.writeLong(emailFileModified);
+            outputStream.writeLong(metadataFileModified);
+        }
+        
+        private static Date readDate(DataInputStream inputStream) throws IOException {
+            if (inputStream.readBoolean())
+                return new Date(inputStream.readLong());
+            else
+                return null;
+        }
+        
+        private static void writeDate(DataOutputStream outputStream, Date date) throws IOException {
+            outputStream.writeBoolean(date != null);
+            if (date != null)
+                outputStream.writeLong(date.getTime());
+        }
+        
+        /** Reads a string written by {@link #writeString(DataOutputStream, String)}. */
+        private static String readString(DataInputStream inputStream) throws IOException {
+            int length = inputStream.readInt();
+            if (length < 0)
+                return null;
+            byte[] bytes = new byte[length];
+            inputStream.readFully(bytes);
+            return new String(bytes, "UTF-8");
+        }
+        
+        /**
+         * Writes a string that can be <code>null</code>. Unlike <code>writeUTF</code>,
+         * this method doesn't limit the length of the string to 64 kBytes.
+         */
+        private static void writeString(DataOutputStream outputStream, String string) throws IOException {
+            if (string == null)
+                outputStream.writeInt(-1);
+            else {
+                byte[] bytes = string.getBytes("UTF-8");
+                outputStream.writeInt(bytes.length);
+                outputStream.write(bytes);
+            }
+        }
+    }
+}
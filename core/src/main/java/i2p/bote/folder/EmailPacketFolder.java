@@ -33,7 +33,7 @@ import i2p.bote.packet.dht.EmailPacketDeleteRequest;
 import i2p.bote.packet.dht.EncryptedEmailPacket;
 
 import java.io.File;
-import java.util.Iterator;
+import java.util.List;
 
 import net.i2p.data.Destination;
 import net.i2p.data.Hash;
@@ -51,10 +51,19 @@ import net.i2p.util.Log;
  * (unlike Email Packets, which are all stored in separate files).
  */
 public class EmailPacketFolder extends DeletionAwareDhtFolder<EncryptedEmailPacket> implements PacketListener, ExpirationListener {
+    static final int EXPIRATION_SLICE_SIZE = 100;   // the number of email packets deleteExpired() takes from the queue at a time
+    
     private Log log = new Log(EmailPacketFolder.class);
+    private ExpirationQueue<Hash> expirationQueue;   // DHT keys of email packets by expiration time
 
     public EmailPacketFolder(File storageDir) {
         super(storageDir);
+        
+        // Store times are not known until the files are read, so check all
+        // existing packets during the next runs of deleteExpired().
+        expirationQueue = new ExpirationQueue<Hash>();
+        for (Hash dhtKey: getDhtKeysFromFilenames())
+            expirationQueue.add(dhtKey, 0);
     }
 
     /** Overridden to set a time stamp on the packet */
@@ -68,6 +77,7 @@ public class EmailPacketFolder extends DeletionAwareDhtFolder<EncryptedEmailPack
         if (emailPacket.getStoreTime() == 0)
             emailPacket.setStoreTime(System.currentTimeMillis());
         super.store(packetToStore);
+        expirationQueue.add(emailPacket.getDhtKey(), emailPacket.getStoreTime() + EXPIRATION_TIME_MILLISECONDS + 1);
     }
     
     /** Overridden to erase the time stamp because there is no need for other peers to see it. */
@@ -136,16 +146,40 @@ public class EmailPacketFolder extends DeletionAwareDhtFolder<EncryptedEmailPack
         addToDeletedPackets(delFileName, dhtKey, delAuthorization);
     }
 
+    /**
+     * Deletes all expired email packets. Packets are taken from the expiration queue
+     * <code>EXPIRATION_SLICE_SIZE</code> at a time, and the lock is only held while one
+     * packet is checked. Does not add a Deletion Record, just deletes the file.
+     */
     @Override
-    public synchronized void deleteExpired() {
-        long currentTimeMillis = System.currentTimeMillis();
-        for (Iterator<EncryptedEmailPacket> iterator=iterator(); iterator.hasNext();) {
-            EncryptedEmailPacket emailPacket = iterator.next();
-            if (currentTimeMillis > emailPacket.getStoreTime() + EXPIRATION_TIME_MILLISECONDS) {
-                log.debug("Deleting expired email packet: <" + emailPacket + ">");
-                iterator.remove();
-            }
+    public void deleteExpired() {
+        long currentTime = System.currentTimeMillis();
+        List<Hash> dhtKeys;
+        do {
+            dhtKeys = expirationQueue.pollExpired(currentTime, EXPIRATION_SLICE_SIZE);
+            for (Hash dhtKey: dhtKeys)
+                deleteExpired(dhtKey, currentTime);
+        } while (dhtKeys.size()==EXPIRATION_SLICE_SIZE && !Thread.currentThread().isInterrupted());
+    }
+    
+    /**
+     * Deletes an email packet if it has expired.
+     * @param dhtKey
+     * @param currentTime
+     */
+    private synchronized void deleteExpired(Hash dhtKey, long currentTime) {
+        DhtStorablePacket packet = super.retrieve(dhtKey);   // use super.retrieve() because we need the time stamp
+        if (!(packet instanceof EncryptedEmailPacket))
+            return;
+        EncryptedEmailPacket emailPacket = (EncryptedEmailPacket)packet;
+        
+        long expirationTime = emailPacket.getStoreTime() + EXPIRATION_TIME_MILLISECONDS;
+        if (currentTime > expirationTime) {
+            log.debug("Deleting expired email packet: <" + emailPacket + ">");
+            delete(dhtKey);
         }
+        else
+            expirationQueue.add(dhtKey, expirationTime + 1);
     }
     
     private String getDeletionFileName(Hash dhtKey) {
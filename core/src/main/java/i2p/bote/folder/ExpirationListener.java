@@ -25,6 +25,10 @@ package i2p.bote.folder;
 public interface ExpirationListener {
     final static long EXPIRATION_TIME_MILLISECONDS = 100 * 24 * 3600 * 1000L;   // keep for up to 100 days
 
-    /** Deletes any expired content */
+    /**
+     * Deletes expired content.<br/>
+     * This method is called frequently, so implementations may delete only part
+     * of the expired content on each call in order to keep the amount of work small.
+     */
     void deleteExpired();
 }
\ No newline at end of file
@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.folder;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Keeps track of the times at which folder elements expire, so expired elements
+ * can be found without reading every file in the folder.<br/>
+ * A key can be added more than once with different expiration times. Callers
+ * should check the actual expiration time when a key is returned by
+ * {@link #pollExpired(long, int)}, and add the key again if it hasn't expired.
+ * @param <K> The type of key that identifies a folder element
+ */
+class ExpirationQueue<K> {
+    private TreeMap<Long, Set<K>> keysByTime;
+    
+    ExpirationQueue() {
+        keysByTime = new TreeMap<Long, Set<K>>();
+    }
+    
+    /**
+     * Adds a key that expires at a given time.
+     * @param key
+     * @param expirationTime In milliseconds since 1-1-1970
+     */
+    synchronized void add(K key, long expirationTime) {
+        Set<K> keys = keysByTime.get(expirationTime);
+        if (keys == null) {
+            keys = new HashSet<K>();
+            keysByTime.put(expirationTime, keys);
+        }
+        keys.add(key);
+    }
+    
+    /**
+     * Removes and returns up to <code>maxKeys</code> keys whose expiration time is
+     * not later than <code>currentTime</code>, earliest first.
+     * @param currentTime In milliseconds since 1-1-1970
+     * @param maxKeys
+     */
+    synchronized List<K> pollExpired(long currentTime, int maxKeys) {
+        Set<K> expiredKeys = new LinkedHashSet<K>();
+        Iterator<Map.Entry<Long, Set<K>>> timeIterator = keysByTime.headMap(currentTime, true).entrySet().iterator();
+        while (timeIterator.hasNext() && expiredKeys.size()<maxKeys) {
+            Set<K> keys = timeIterator.next().getValue();
+            Iterator<K> keyIterator = keys.iterator();
+            while (keyIterator.hasNext() && expiredKeys.size()<maxKeys) {
+                expiredKeys.add(keyIterator.next());
+                keyIterator.remove();
+            }
+            if (keys.isEmpty())
+                timeIterator.remove();
+        }
+        return new ArrayList<K>(expiredKeys);
+    }
+    
+    /** Returns the number of (key, expiration time) pairs in the queue. */
+    synchronized int size() {
+        int size = 0;
+        for (Set<K> keys: keysByTime.values())
+            size += keys.size();
+        return size;
+    }
+}
@@ -84,16 +84,8 @@ public abstract class Folder<T> {
      * If there are no such files, an empty array is returned.
      */
     protected File[] getFilenames() {
-        File[] files = storageDir.listFiles(new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name) {
-                return name.toUpperCase().endsWith(fileExtension.toUpperCase());
-            }
-        });
-        if (files == null) {
-            log.error("Cannot list files in directory <" + storageDir + ">");
-            files = new File[0];
-        } else {
+        File[] files = getUnsortedFilenames();
+        if (files.length > 0) {
             // sort files by date, newest first
             // This sort may be unstable, as the lastModified time of the files
             // may change during sorting (e.g. by a different thread), causing
@@ -113,6 +105,24 @@ public abstract class Folder<T> {
         return files;
     }
     
+    /**
+     * Same as {@link #getFilenames()} but the files are returned in no particular
+     * order, which avoids reading the modification date of every file.
+     */
+    protected File[] getUnsortedFilenames() {
+        File[] files = storageDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.toUpperCase().endsWith(fileExtension.toUpperCase());
+            }
+        });
+        if (files == null) {
+            log.error("Cannot list files in directory <" + storageDir + ">");
+            files = new File[0];
+        }
+        return files;
+    }
+    
     /**
      * Returns all folder elements as a {@link List}.
      * @throws PasswordException
@@ -28,18 +28,23 @@ import i2p.bote.packet.I2PBotePacket;
 import i2p.bote.packet.MalformedPacketException;
 import i2p.bote.packet.dht.UnencryptedEmailPacket;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
-import java.util.Comparator;
 import java.util.Date;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import net.i2p.util.Log;
 
@@ -51,28 +56,62 @@ public class IncompleteEmailFolder extends PacketFolder<UnencryptedEmailPacket>
     private EmailFolder inbox;
     private MessageIdCache messageIdCache;
     private Collection<NewEmailListener> newEmailListeners;
+    private Map<String, SortedMap<Integer, File>> fragmentFiles;   // packet files by base64 message ID and fragment index
 
     public IncompleteEmailFolder(File storageDir, MessageIdCache messageIdCache, EmailFolder inbox) {
         super(storageDir);
         this.inbox = inbox;
         this.messageIdCache = messageIdCache;
         newEmailListeners = new ArrayList<NewEmailListener>();
+        
+        fragmentFiles = new HashMap<String, SortedMap<Integer, File>>();
+        for (File file: getUnsortedFilenames())
+            indexFile(file);
+    }
+    
+    /**
+     * Adds a packet file to <code>fragmentFiles</code>, using the message ID
+     * and fragment index from the file name.
+     * @param file
+     */
+    private void indexFile(File file) {
+        String filename = file.getName();
+        int separatorIndex = filename.lastIndexOf('_');
+        if (separatorIndex < 0) {
+            log.error("Invalid file name in the IncompleteEmailFolder: <" + file.getAbsolutePath() + ">");
+            return;
+        }
+        String messageId = filename.substring(0, separatorIndex);
+        String fragIndexStr = filename.substring(separatorIndex+1, filename.length()-PACKET_FILE_EXTENSION.length());
+        try {
+            getFragmentFiles(messageId).put(Integer.valueOf(fragIndexStr), file);
+        } catch (NumberFormatException e) {
+            log.error("Invalid file name in the IncompleteEmailFolder: <" + file.getAbsolutePath() + ">");
+        }
+    }
+    
+    /**
+     * Returns the packet files for a message ID, creating an empty map if there are none.
+     * @param base64MessageId
+     */
+    private SortedMap<Integer, File> getFragmentFiles(String base64MessageId) {
+        SortedMap<Integer, File> files = fragmentFiles.get(base64MessageId);
+        if (files == null) {
+            files = new TreeMap<Integer, File>();
+            fragmentFiles.put(base64MessageId, files);
+        }
+        return files;
     }
 
     public synchronized int getNumIncompleteEmails() {
-        Set<String> messages = new HashSet<String>();
-        File[] packets = getFilenames();
-        for (int i = 0; i < packets.length; i++) {
-            File packet = packets[i];
-            String messageId = packet.getName().split("_")[0];
-            messages.add(messageId);
-        }
-        return messages.size();
+        return fragmentFiles.size();
     }
     
     /**
      * Stores an <code>UnencryptedEmailPacket</code> in the folder and returns <code>true</code>
-     * if an email was completed as a result of adding the packet.
+     * if an email was completed as a result of adding the packet.<br/>
+     * Emails that consist of only one packet are added to the inbox without storing the
+     * packet in the folder.
      * @param packetToStore
      * @see i2p.bote.folder.PacketFolder#add(I2PBotePacket, String)
      */
@@ -84,16 +123,29 @@ public class IncompleteEmailFolder extends PacketFolder<UnencryptedEmailPacket>
             return false;
         }
         
-        add(packetToStore, getFilename(packetToStore));
+        String base64Id = messageId.toBase64();
+        SortedMap<Integer, File> files = fragmentFiles.get(base64Id);
+        // single-packet emails need not be written to disk and read back;
+        // if assembly fails, store the packet like any other packet.
+        if (packetToStore.getNumFragments()==1 && files==null)
+            if (assemble(messageId, new TreeMap<Integer, File>(), packetToStore)) {
+                messageIdCache.add(messageId);
+                return true;
+            }
         
-        // TODO possible optimization: if getNumFragments == 1, no need to check for other packet files
-        File[] finishedPacketFiles = getAllMatchingFiles(messageId);
+        String filename = getFilename(packetToStore);
+        add(packetToStore, filename);
+        if (files == null)
+            files = getFragmentFiles(base64Id);
+        files.put(packetToStore.getFragmentIndex(), new File(storageDir, filename));
         
         // if all packets of the email are available, assemble them into an email
-        if (finishedPacketFiles.length == packetToStore.getNumFragments()) {
-            assemble(finishedPacketFiles);
-            messageIdCache.add(messageId);
-            return true;
+        if (files.size() == packetToStore.getNumFragments()) {
+            if (assemble(messageId, files, packetToStore)) {
+                fragmentFiles.remove(base64Id);
+                messageIdCache.add(messageId);
+                return true;
+            }
         }
         return false;
     }
@@ -103,89 +155,83 @@ public class IncompleteEmailFolder extends PacketFolder<UnencryptedEmailPacket>
         return packet.getMessageId() + "_" + fragIndex + PacketFolder.PACKET_FILE_EXTENSION;
     }
 
-    private void assemble(File[] packetFiles) {
-        // No need to do this in a separate thread, just call run()
-        new AssembleTask(packetFiles, inbox).run();
-    }
-    
     /**
-     * Returns all filenames that match a given message ID. Not to be confused with
-     * the {@link #retrieve(net.i2p.data.Hash)} method, which takes a DHT key.
+     * Makes a set of {@link UnencryptedEmailPacket}s into an {@link Email}, stores the email in the inbox,
+     * and deletes the packet files.
      * @param messageId
+     * @param packetFiles The packet files by fragment index
+     * @param lastPacket The packet that completed the email. It is used directly instead of being read from disk.
+     * @return <code>true</code> if the email was added to the inbox
      */
-    private File[] getAllMatchingFiles(UniqueId messageId) {
-        final String base64Id = messageId.toBase64();
-        
-        return storageDir.listFiles(new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name) {
-                return name.startsWith(base64Id);
-            }
-        });
+    private boolean assemble(UniqueId messageId, SortedMap<Integer, File> packetFiles, UnencryptedEmailPacket lastPacket) {
+        try {
+            InputStream contentStream = new SequenceInputStream(new FragmentEnumeration(packetFiles, lastPacket));
+            Email email = new Email(contentStream, true);
+            email.setMessageID(messageId);
+            email.setSignatureFlag();   // incoming emails have no signature flag, so set it now; if it exists, don't trust but overwrite
+            email.getMetadata().setReceivedDate(new Date());
+            inbox.add(email);
+
+            // notify listeners
+            for (NewEmailListener listener : newEmailListeners)
+                listener.emailReceived(email.getMessageID());
+            
+            // delete packets
+            for (File file: packetFiles.values())
+                if (!file.delete())
+                    log.warn("Email packet file not deleted: <" + file.getAbsolutePath() + ">");
+            return true;
+        }
+        catch (Exception e) {
+            log.error("Error assembling/storing email, or deleting email packets. ", e);
+            return false;
+        }
     }
     
     /**
-     * Makes a set of {@link UnencryptedEmailPacket}s into an {@link Email}, stores the email in the inbox,
-     * and deletes the packet files.
+     * Returns the contents of the fragments of an email in order of fragment index.
+     * Packet files are not read until their content is needed.
      */
-    private class AssembleTask implements Runnable {
-        File[] packetFiles;
+    private class FragmentEnumeration implements Enumeration<InputStream> {
+        private SortedMap<Integer, File> packetFiles;
+        private UnencryptedEmailPacket lastPacket;
+        private Iterator<Integer> indexIterator;
         
-        public AssembleTask(File[] packetFiles, EmailFolder inbox) {
+        /**
+         * @param packetFiles The packet files by fragment index
+         * @param lastPacket A packet that hasn't been read from disk. If <code>packetFiles</code>
+         * contains a file for the same fragment index, the file is not read.
+         */
+        public FragmentEnumeration(SortedMap<Integer, File> packetFiles, UnencryptedEmailPacket lastPacket) {
             this.packetFiles = packetFiles;
+            this.lastPacket = lastPacket;
+            SortedSet<Integer> fragmentIndices = new TreeSet<Integer>(packetFiles.keySet());
+            fragmentIndices.add(lastPacket.getFragmentIndex());
+            indexIterator = fragmentIndices.iterator();
         }
 
         @Override
-        public void run() {
-            UnencryptedEmailPacket[] packets = getEmailPackets(packetFiles).toArray(new UnencryptedEmailPacket[0]);
-            
-            // sort by fragment index
-            Arrays.sort(packets, new Comparator<UnencryptedEmailPacket>() {
-                @Override
-                public int compare(UnencryptedEmailPacket packet1, UnencryptedEmailPacket packet2) {
-                    return Integer.valueOf(packet1.getFragmentIndex()).compareTo(packet2.getFragmentIndex());
-                }
-            });
+        public boolean hasMoreElements() {
+            return indexIterator.hasNext();
+        }
 
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        @Override
+        public InputStream nextElement() {
+            int fragmentIndex = indexIterator.next();
+            if (fragmentIndex == lastPacket.getFragmentIndex())
+                return new ByteArrayInputStream(lastPacket.getContent());
+            
+            File file = packetFiles.get(fragmentIndex);
             try {
-                for (UnencryptedEmailPacket packet: packets)
-                    outputStream.write(packet.getContent());
-                Email email = new Email(outputStream.toByteArray());
-                email.setMessageID(packets[0].getMessageId());   // all packets in the array have the same message ID
-                email.setSignatureFlag();   // incoming emails have no signature flag, so set it now; if it exists, don't trust but overwrite
-                email.getMetadata().setReceivedDate(new Date());
-                inbox.add(email);
-
-                // notify listeners
-                for (NewEmailListener listener : newEmailListeners)
-                    listener.emailReceived(email.getMessageID());
-                
-                // delete packets
-                for (File file: packetFiles)
-                    if (!file.delete())
-                        log.warn("Email packet file not deleted: <" + file.getAbsolutePath() + ">");
-            }
-            catch (Exception e) {
-                log.error("Error assembling/storing email, or deleting email packets. ", e);
-                return;
-            }
-        }
-        
-        private Collection<UnencryptedEmailPacket> getEmailPackets(File[] files) {
-            Collection<UnencryptedEmailPacket> packets = new ArrayList<UnencryptedEmailPacket>();
-            for (File file: files) {
-                try {
-                    I2PBotePacket packet = DataPacket.createPacket(file);
-                    if (packet instanceof UnencryptedEmailPacket)
-                        packets.add((UnencryptedEmailPacket)packet);
-                    else
-                        log.error("Non-Email Packet found in the IncompleteEmailFolder, file: <" + file.getAbsolutePath() + ">");
-                } catch (MalformedPacketException e) {
-                    log.error("Cannot create packet from file: <" + file.getAbsolutePath() + ">", e);
-                }
+                I2PBotePacket packet = DataPacket.createPacket(file);
+                if (packet instanceof UnencryptedEmailPacket)
+                    return new ByteArrayInputStream(((UnencryptedEmailPacket)packet).getContent());
+                else
+                    log.error("Non-Email Packet found in the IncompleteEmailFolder, file: <" + file.getAbsolutePath() + ">");
+            } catch (MalformedPacketException e) {
+                log.error("Cannot create packet from file: <" + file.getAbsolutePath() + ">", e);
             }
-            return packets;
+            return new ByteArrayInputStream(new byte[0]);
         }
     }
 
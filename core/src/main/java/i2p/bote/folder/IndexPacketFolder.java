@@ -36,6 +36,7 @@ import i2p.bote.packet.dht.IndexPacketEntry;
 import java.io.File;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 
 import net.i2p.data.Destination;
 import net.i2p.data.Hash;
@@ -47,10 +48,19 @@ import net.i2p.util.Log;
  * packet when a new packet is stored under the same key, but adds the new packet.
  */
 public class IndexPacketFolder extends DeletionAwareDhtFolder<IndexPacket> implements PacketListener, ExpirationListener {
+    static final int EXPIRATION_SLICE_SIZE = 100;   // the number of index packets deleteExpired() takes from the queue at a time
+    
     private final Log log = new Log(IndexPacketFolder.class);
+    private ExpirationQueue<Hash> expirationQueue;   // DHT keys of index packets by the time their oldest entry expires
 
     public IndexPacketFolder(File storageDir) {
         super(storageDir);
+        
+        // Store times are not known until the files are read, so check all
+        // existing packets during the next runs of deleteExpired().
+        expirationQueue = new ExpirationQueue<Hash>();
+        for (Hash dhtKey: getDhtKeysFromFilenames())
+            expirationQueue.add(dhtKey, 0);
     }
 
     /** Overridden to merge the packet with an existing one, and to set time stamps on the packet entries */
@@ -91,27 +101,59 @@ public class IndexPacketFolder extends DeletionAwareDhtFolder<IndexPacket> imple
     }
 
     /**
-     * Does not add a Deletion Record, just deletes the file.
+     * Deletes expired entries from all index packets whose oldest entry has expired.
+     * Packets are taken from the expiration queue <code>EXPIRATION_SLICE_SIZE</code> at
+     * a time, and the lock is only held while one packet is processed.<br/>
+     * Does not add a Deletion Record, just deletes the entry.
      */
     @Override
-    public synchronized void deleteExpired() {
+    public void deleteExpired() {
         long currentTime = System.currentTimeMillis();
-        for (IndexPacket indexPacket: this) {
-            boolean removed = false;   // true if at least one entry was removed
-            synchronized(indexPacket) {
-                Iterator<IndexPacketEntry> iterator = indexPacket.iterator();
-                while (iterator.hasNext()) {
-                    IndexPacketEntry entry = iterator.next();
-                    if (currentTime > entry.storeTime + EXPIRATION_TIME_MILLISECONDS) {
-                        log.debug("Deleting expired index packet entry: file=<" + getFilename(indexPacket.getDhtKey()) + ">, emailPktKey=" + entry.emailPacketKey.toBase64());
-                        iterator.remove();
-                        removed = true;
-                    }
-                }
-                if (removed)
-                    super.store(indexPacket);   // don't merge, but overwrite the file with the entry/entries removed
+        List<Hash> dhtKeys;
+        do {
+            dhtKeys = expirationQueue.pollExpired(currentTime, EXPIRATION_SLICE_SIZE);
+            for (Hash dhtKey: dhtKeys)
+                deleteExpired(dhtKey, currentTime);
+        } while (dhtKeys.size()==EXPIRATION_SLICE_SIZE && !Thread.currentThread().isInterrupted());
+    }
+    
+    /**
+     * Deletes expired entries from one index packet.
+     * @param dhtKey
+     * @param currentTime
+     */
+    private synchronized void deleteExpired(Hash dhtKey, long currentTime) {
+        DhtStorablePacket packet = super.retrieve(dhtKey);   // use super.retrieve() because we need the time stamps
+        if (!(packet instanceof IndexPacket))
+            return;
+        IndexPacket indexPacket = (IndexPacket)packet;
+        
+        boolean removed = false;   // true if at least one entry was removed
+        Iterator<IndexPacketEntry> iterator = indexPacket.iterator();
+        while (iterator.hasNext()) {
+            IndexPacketEntry entry = iterator.next();
+            if (currentTime > entry.storeTime + EXPIRATION_TIME_MILLISECONDS) {
+                log.debug("Deleting expired index packet entry: file=<" + getFilename(indexPacket.getDhtKey()) + ">, emailPktKey=" + entry.emailPacketKey.toBase64());
+                iterator.remove();
+                removed = true;
             }
         }
+        if (removed)
+            super.store(indexPacket);   // don't merge, but overwrite the file with the entry/entries removed
+        scheduleExpiration(indexPacket);
+    }
+    
+    /**
+     * Adds an index packet to the expiration queue, using the time at which
+     * the oldest entry expires.
+     * @param indexPacket
+     */
+    private void scheduleExpiration(IndexPacket indexPacket) {
+        long oldestStoreTime = Long.MAX_VALUE;
+        for (IndexPacketEntry entry: indexPacket)
+            oldestStoreTime = Math.min(oldestStoreTime, entry.storeTime);
+        if (oldestStoreTime != Long.MAX_VALUE)
+            expirationQueue.add(indexPacket.getDhtKey(), oldestStoreTime + EXPIRATION_TIME_MILLISECONDS + 1);
     }
     
     /** Overridden to put each index packet entry in its own index packet */
@@ -201,6 +243,7 @@ public class IndexPacketFolder extends DeletionAwareDhtFolder<IndexPacket> imple
             log.error("Packet of type " + existingPacket.getClass().getSimpleName() + " found in IndexPacketFolder.");
         
         super.store(indexPacketToStore);   // don't merge, but overwrite
+        scheduleExpiration(indexPacketToStore);
         return delRequest;
     }
         
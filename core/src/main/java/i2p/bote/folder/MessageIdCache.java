@@ -30,9 +30,10 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
-import java.util.ArrayList;
 import java.util.Collections;
-import java.util.List;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 import net.i2p.util.Log;
 import net.i2p.util.SecureFileOutputStream;
@@ -41,9 +42,14 @@ import net.i2p.util.SecureFileOutputStream;
  * Email packets are sometimes delivered again after the email has already
  * been received, because some storage nodes were offline the first time.
  * This class stores message IDs of received emails to avoid this problem.
- * 
+ * <p/>
+ * The IDs are kept in insertion order so the oldest ID can be evicted in
+ * constant time when the cache is full.
+ * <p/>
  * File format: one message ID per line, sorted by the time the email was first
- * assembled, oldest to newest.
+ * assembled, oldest to newest. New IDs are appended to the file; IDs that have
+ * been evicted from the cache remain in the file until it is compacted, which
+ * happens when the file has grown to twice the cache size.
  * 
  * @see IncompleteEmailFolder
  */
@@ -51,16 +57,25 @@ public class MessageIdCache {
     private Log log = new Log(MessageIdCache.class);
     private File cacheFile;
     private int cacheSize;
-    private List<UniqueId> idList;
+    private Set<UniqueId> ids;
+    private int numFileEntries;   // number of lines in the cache file
     
     public MessageIdCache(File cacheFile, int sizecacheSize) {
         this.cacheFile = cacheFile;
         this.cacheSize = sizecacheSize;
         read(cacheFile);
+        if (needsCompaction())
+            compact();
     }
     
+    /**
+     * Reads the cache file. If the file contains invalid lines, it is compacted
+     * right away so new IDs don't get appended to an incomplete last line.
+     * @param cacheFile
+     */
     private void read(File cacheFile) {
-        idList = Collections.synchronizedList(new ArrayList<UniqueId>());
+        ids = new LinkedHashSet<UniqueId>();
+        numFileEntries = 0;
         if (!cacheFile.exists()) {
             log.debug("Message ID cache file doesn't exist: <" + cacheFile.getAbsolutePath() + ">");
             return;
@@ -68,6 +83,7 @@ public class MessageIdCache {
         
         log.debug("Reading message ID cache file: <" + cacheFile.getAbsolutePath() + ">");
         BufferedReader input = null;
+        boolean invalidLines = false;
         try {
             input = new BufferedReader(new FileReader(cacheFile));
             
@@ -75,9 +91,17 @@ public class MessageIdCache {
                 String idString = input.readLine();
                 if (idString == null)   // EOF
                     break;
+                numFileEntries++;
                 
                 UniqueId id = new UniqueId(idString);
-                idList.add(id);
+                // the last line can be incomplete if writing was interrupted
+                if (id.toByteArray()==null || id.toByteArray().length!=UniqueId.LENGTH) {
+                    log.warn("Ignoring invalid line in message ID cache file: <" + idString + ">");
+                    invalidLines = true;
+                    continue;
+                }
+                ids.add(id);
+                evictOldest();
             }
             
         }
@@ -93,19 +117,39 @@ public class MessageIdCache {
                     log.error("Error closing BufferedReader.", e);
                 }
         }
+        
+        if (invalidLines)
+            compact();
     }
     
-    private void write(File cacheFile) {
-        log.debug("Writing message ID cache file: <" + cacheFile.getAbsolutePath() + ">");
+    /** Removes the oldest IDs until the cache is no larger than <code>cacheSize</code>. */
+    private void evictOldest() {
+        Iterator<UniqueId> iterator = ids.iterator();
+        while (ids.size() > cacheSize) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+    
+    /**
+     * Writes message IDs to a file, one per line.
+     * @param file
+     * @param ids The IDs to write
+     * @param append If <code>true</code>, the IDs are added to the end of the file; otherwise the file is overwritten
+     * @return <code>true</code> if the IDs were written successfully
+     */
+    private boolean write(File file, Iterable<UniqueId> ids, boolean append) {
         String newLine = System.getProperty("line.separator");
         Writer writer = null;
         try {
-            writer = new BufferedWriter(new OutputStreamWriter(new SecureFileOutputStream(cacheFile.getAbsolutePath())));
-            for (UniqueId id: idList)
+            writer = new BufferedWriter(new OutputStreamWriter(new SecureFileOutputStream(file, append)));
+            for (UniqueId id: ids)
                 writer.write(id.toBase64() + newLine);
+            return true;
         }
         catch (IOException e) {
             log.error("Can't write message ID cache file.", e);
+            return false;
         }
         finally {
             if (writer != null)
@@ -118,16 +162,41 @@ public class MessageIdCache {
         }
     }
     
-    void add(UniqueId messageId) {
-        while (idList.size() > cacheSize)
-            idList.remove(0);
-        idList.add(messageId);
-        // should not be too big a performance hit to write out the cache here because
-        // this method only gets called when a genuinely new email is received
-        write(cacheFile);
+    private boolean needsCompaction() {
+        return numFileEntries > 2*cacheSize;
+    }
+    
+    /**
+     * Replaces the cache file with one that only contains the IDs currently in the cache.
+     * The new file is written to a temporary file first, so the old file is left intact
+     * if an error occurs.
+     */
+    private void compact() {
+        log.debug("Compacting message ID cache file: <" + cacheFile.getAbsolutePath() + ">");
+        File tempFile = new File(cacheFile.getParentFile(), cacheFile.getName() + ".tmp");
+        if (write(tempFile, ids, false)) {
+            // renameTo() fails on some platforms if the target exists, so delete the target first in that case
+            if (!tempFile.renameTo(cacheFile) && !(cacheFile.delete() && tempFile.renameTo(cacheFile))) {
+                log.error("Can't rename <" + tempFile.getAbsolutePath() + "> to <" + cacheFile.getAbsolutePath() + ">");
+                return;
+            }
+            numFileEntries = ids.size();
+        }
+    }
+    
+    synchronized void add(UniqueId messageId) {
+        if (!ids.add(messageId))
+            return;
+        evictOldest();
+        
+        // append the new ID rather than writing out the whole cache
+        if (write(cacheFile, Collections.singleton(messageId), true))
+            numFileEntries++;
+        if (needsCompaction())
+            compact();
     }
     
-    boolean contains(UniqueId messageId) {
-        return idList.contains(messageId);
+    synchronized boolean contains(UniqueId messageId) {
+        return ids.contains(messageId);
     }
-}
\ No newline at end of file
+}
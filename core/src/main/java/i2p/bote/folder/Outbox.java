@@ -106,26 +106,34 @@ public class Outbox extends EmailFolder {
      * @throws PasswordException 
      */
     @Override
-    public List<Email> getElements(AddressDisplayFilter displayFilter, EmailAttribute sortColumn, boolean descending) throws PasswordException {
+    public List<EmailFolderIndex.Entry> getEntries(AddressDisplayFilter displayFilter, EmailAttribute sortColumn, boolean descending) throws PasswordException {
         if (!EmailAttribute.STATUS.equals(sortColumn))
-            return super.getElements(displayFilter, sortColumn, descending);
+            return super.getEntries(displayFilter, sortColumn, descending);
             
         // sort by status
-        List<Email> emails = getElements();
-        Comparator<Email> comparator = new Comparator<Email>() {
+        List<EmailFolderIndex.Entry> entries = super.getEntries(displayFilter, EmailAttribute.DATE, false);
+        Comparator<EmailFolderIndex.Entry> comparator = new Comparator<EmailFolderIndex.Entry>() {
             @Override
-            public int compare(Email email1, Email email2) {
-                return getStatus(email1).compareTo(getStatus(email2));
+            public int compare(EmailFolderIndex.Entry entry1, EmailFolderIndex.Entry entry2) {
+                return getStatus(entry1.getMessageID()).compareTo(getStatus(entry2.getMessageID()));
             }
         };
         if (descending)
             comparator = Collections.reverseOrder(comparator);
-        Collections.sort(emails, comparator);
-        return emails;
+        Collections.sort(entries, comparator);
+        return entries;
     }
 
     public void setStatus(Email email, EmailStatus status) {
-        String messageId = email.getMessageID();
+        setStatus(email.getMessageID(), status);
+    }
+
+    /**
+     * Sets the status of an email with a given message ID.
+     * @param messageId The message ID of the email
+     * @param status
+     */
+    public void setStatus(String messageId, EmailStatus status) {
         if (messageId != null)
             statusMap.put(messageId, status);
     }
@@ -158,4 +166,17 @@ public class Outbox extends EmailFolder {
         else
             return getStatus(messageId);
     }
+    
+    /**
+     * Returns the status of the email a folder index entry refers to.
+     * @param entry
+     * @see #getStatus(Email)
+     */
+    public EmailStatus getStatus(EmailFolderIndex.Entry entry) {
+        String messageId = entry.getMessageID();
+        if (messageId == null)
+            return DEFAULT_STATUS;
+        else
+            return getStatus(messageId);
+    }
 }
\ No newline at end of file
@@ -24,8 +24,17 @@ package i2p.bote.folder;
 import i2p.bote.packet.relay.RelayRequest;
 
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import net.i2p.crypto.SHA256Generator;
 import net.i2p.data.Hash;
@@ -34,12 +43,28 @@ import net.i2p.util.Log;
 /**
  * A <code>PacketFolder</code> that uses filenames that consist of
  * the packet's scheduled send time and the SHA256 hash of the packet.
+ * <p/>
+ * The hashes and send times of all packets are kept in memory, so adding a packet
+ * and finding packets by send time don't require listing the directory. The index
+ * is built from the file names when the folder is created, and is only correct if
+ * packets are added and removed through this class.
  */
 public class RelayPacketFolder extends PacketFolder<RelayRequest> {
     private final Log log = new Log(RelayPacketFolder.class);
+    private List<RelayPacketListener> packetListeners;
+    private Set<String> packetHashes;   // base64-encoded hashes of all packets in the folder
+    private Map<File, PacketFile> packetFiles;   // all packet files in the folder
+    private TreeSet<PacketFile> sendTimeIndex;   // the elements of packetFiles, ordered by send time
 
     public RelayPacketFolder(File storageDir) {
         super(storageDir);
+        packetListeners = new CopyOnWriteArrayList<RelayPacketListener>();
+        packetHashes = new HashSet<String>();
+        packetFiles = new HashMap<File, PacketFile>();
+        sendTimeIndex = new TreeSet<PacketFile>();
+        
+        for (File file: getUnsortedFilenames())
+            addToIndex(file);
     }
 
     /**
@@ -51,41 +76,205 @@ public class RelayPacketFolder extends PacketFolder<RelayRequest> {
         byte[] bytes = packet.toByteArray();
         Hash packetHash = SHA256Generator.getInstance().calculateHash(bytes);
         String base64Hash = packetHash.toBase64();
-        if (!fileExistsForHash(base64Hash)) {
+        File file;
+        synchronized(this) {
+            if (packetHashes.contains(base64Hash))
+                return;
             long sendTime = System.currentTimeMillis() + packet.getDelay();
             String filename = sendTime + "_" + base64Hash + PACKET_FILE_EXTENSION;
             add(packet, filename);
-            return;
+            
+            file = new File(storageDir, filename);
+            if (!file.exists())
+                return;
+            addToIndex(file);
         }
+        
+        for (RelayPacketListener listener: packetListeners)
+            listener.relayPacketAdded(file);
+    }
+    
+    public void addRelayPacketListener(RelayPacketListener listener) {
+        packetListeners.add(listener);
+    }
+    
+    public void removeRelayPacketListener(RelayPacketListener listener) {
+        packetListeners.remove(listener);
+    }
+    
+    /** Returns the files of all packets in the folder, ordered by send time. */
+    public synchronized List<File> getPacketFiles() {
+        List<File> files = new ArrayList<File>(sendTimeIndex.size());
+        for (PacketFile packetFile: sendTimeIndex)
+            files.add(packetFile.file);
+        return files;
     }
     
-    private boolean fileExistsForHash(final String base64Hash) {
-        File[] files = storageDir.listFiles(new FilenameFilter() {
+    /**
+     * Returns the files of all packets whose send time is before a given time,
+     * ordered by send time.
+     * @param time A time in milliseconds since 1-1-1970
+     */
+    public synchronized List<File> getPacketFilesBefore(long time) {
+        List<File> files = new ArrayList<File>();
+        for (PacketFile packetFile: sendTimeIndex.headSet(new PacketFile(new File(""), time, null), false))
+            files.add(packetFile.file);
+        return files;
+    }
+    
+    /**
+     * Returns <code>true</code> if a file has been added to this folder and
+     * has not been removed yet.
+     * @param file
+     */
+    public synchronized boolean contains(File file) {
+        return packetFiles.containsKey(file);
+    }
+    
+    /**
+     * Reads a packet from a file in this folder.
+     * @param file
+     * @return The packet, with the send time set; or <code>null</code> if the file cannot be read.
+     */
+    public RelayRequest getPacket(File file) {
+        try {
+            RelayRequest packet = createFolderElement(file);
+            if (packet == null && !file.exists())   // malformed packet files are deleted by createFolderElement()
+                removeFromIndex(file);
+            return packet;
+        } catch (IOException e) {
+            log.error("Can't read relay packet from file: <" + file.getAbsolutePath() + ">", e);
+            return null;
+        }
+    }
+    
+    /**
+     * Deletes a packet file from this folder.
+     * @param file
+     */
+    public void remove(File file) {
+        removeFromIndex(file);
+        if (!file.delete())
+            log.error("Can't delete file: <" + file.getAbsolutePath() + ">");
+    }
+    
+    /**
+     * Overridden to return packets in the order of their send time, and to keep the
+     * index up to date when packets are removed through the iterator.
+     */
+    @Override
+    public Iterator<RelayRequest> iterator() {
+        final Iterator<File> fileIterator = getPacketFiles().iterator();
+        
+        return new Iterator<RelayRequest>() {
+            RelayRequest nextPacket;   // the next packet to return
+            File nextFile;   // the file nextPacket was read from
+            File lastFile;   // the file that corresponds to the last packet returned by next()
+            
             @Override
-            public boolean accept(File dir, String name) {
-                return name.contains(base64Hash);
+            public boolean hasNext() {
+                while (nextPacket==null && fileIterator.hasNext()) {
+                    File file = fileIterator.next();
+                    if (contains(file)) {
+                        nextPacket = getPacket(file);
+                        nextFile = file;
+                    }
+                }
+                return nextPacket != null;
             }
-        });
-        
-        return files.length > 0;
+            
+            @Override
+            public RelayRequest next() {
+                if (!hasNext())
+                    throw new NoSuchElementException("No more folder elements!");
+                RelayRequest packet = nextPacket;
+                lastFile = nextFile;
+                nextPacket = null;
+                return packet;
+            }
+            
+            @Override
+            public void remove() {
+                if (lastFile == null)
+                    throw new IllegalStateException("remove() was called before next()");
+                RelayPacketFolder.this.remove(lastFile);
+            }
+        };
     }
     
     @Override
     protected RelayRequest createFolderElement(File file) throws IOException {
         RelayRequest packet = super.createFolderElement(file);
-        if (packet != null) {
-            try {
-                long sendTime = getSendTime(file.getName());
-                packet.setSendTime(sendTime);
-            } catch (NumberFormatException e) {
-                log.error("Invalid send time in filename: <" + file.getAbsolutePath() + ">", e);
-            }
-        }
+        if (packet != null)
+            packet.setSendTime(getSendTime(file));
         return packet;
     }
     
-    private long getSendTime(String filename) throws NumberFormatException {
-        String[] parts = filename.split("_");
-        return Long.valueOf(parts[0]);
+    /**
+     * Returns the scheduled send time of a packet, which is part of the file name.
+     * The packet file is not read.
+     * @param file
+     * @return The send time, or 0 if the file name is invalid
+     */
+    public long getSendTime(File file) {
+        synchronized(this) {
+            PacketFile packetFile = packetFiles.get(file);
+            if (packetFile != null)
+                return packetFile.sendTime;
+        }
+        return parseSendTime(file);
+    }
+    
+    private synchronized void addToIndex(File file) {
+        String filename = file.getName();
+        String base64Hash = filename.substring(filename.indexOf('_') + 1);
+        if (base64Hash.endsWith(PACKET_FILE_EXTENSION))
+            base64Hash = base64Hash.substring(0, base64Hash.length() - PACKET_FILE_EXTENSION.length());
+        PacketFile packetFile = new PacketFile(file, parseSendTime(file), base64Hash);
+        
+        packetFiles.put(file, packetFile);
+        sendTimeIndex.add(packetFile);
+        packetHashes.add(base64Hash);
+    }
+    
+    private synchronized void removeFromIndex(File file) {
+        PacketFile packetFile = packetFiles.remove(file);
+        if (packetFile != null) {
+            sendTimeIndex.remove(packetFile);
+            packetHashes.remove(packetFile.base64Hash);
+        }
+    }
+    
+    private long parseSendTime(File file) {
+        try {
+            String[] parts = file.getName().split("_");
+            return Long.valueOf(parts[0]);
+        } catch (NumberFormatException e) {
+            log.error("Invalid send time in filename: <" + file.getAbsolutePath() + ">", e);
+            return 0;
+        }
+    }
+    
+    /** A packet file along with the send time and packet hash from the file name */
+    private static class PacketFile implements Comparable<PacketFile> {
+        private File file;
+        private long sendTime;
+        private String base64Hash;
+        
+        public PacketFile(File file, long sendTime, String base64Hash) {
+            this.file = file;
+            this.sendTime = sendTime;
+            this.base64Hash = base64Hash;
+        }
+        
+        @Override
+        public int compareTo(PacketFile other) {
+            if (sendTime < other.sendTime)
+                return -1;
+            else if (sendTime > other.sendTime)
+                return 1;
+            else
+                return file.compareTo(other.file);
+        }
     }
-}
\ No newline at end of file
+}
@@ -19,25 +19,16 @@
  * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
  */
 
-package i2p.bote.network.kademlia;
+package i2p.bote.folder;
 
-import java.math.BigInteger;
+import java.io.File;
 
-import net.i2p.data.DataHelper;
-import net.i2p.data.Hash;
-
-class KademliaUtil {
+/** Listens to packets being added to a {@link RelayPacketFolder}. */
+public interface RelayPacketListener {
 
     /**
-     * Calculates the Kademlia distance (XOR distance) between two hashes.
-     * If the hashes are equal, the distance is zero; otherwise, it is greater
-     * than zero.
-     * @param key1
-     * @param key2
+     * Called after a relay packet has been written to a file.
+     * @param file The file the packet was written to
      */
-    static BigInteger getDistance(Hash key1, Hash key2) {
-        // This shouldn't be a performance bottleneck, so save some mem by not using Hash.cachedXor
-        byte[] xoredData = DataHelper.xor(key1.getData(), key2.getData());
-        return new BigInteger(1, xoredData);
-    }
-}
\ No newline at end of file
+    void relayPacketAdded(File file);
+}
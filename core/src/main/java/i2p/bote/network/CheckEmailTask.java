@@ -24,6 +24,7 @@ package i2p.bote.network;
 import i2p.bote.UniqueId;
 import i2p.bote.Util;
 import i2p.bote.email.EmailIdentity;
+import i2p.bote.email.Identities;
 import i2p.bote.folder.EmailPacketFolder;
 import i2p.bote.folder.IncompleteEmailFolder;
 import i2p.bote.folder.IndexPacketFolder;
@@ -37,15 +38,13 @@ import i2p.bote.packet.dht.UnencryptedEmailPacket;
 import i2p.bote.service.RelayPeerManager;
 
 import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -54,18 +53,20 @@ import net.i2p.data.Hash;
 import net.i2p.util.Log;
 
 /**
- * Gets email packets from the DHT for one email identity. A separate thread is used for
- * each packet in order to speed things up, and because the packets are in different places
- * on the network.
+ * Gets email packets from the DHT for one email identity. The packets are retrieved in
+ * parallel in order to speed things up, and because the packets are in different places
+ * on the network. The threads are provided by an {@link EmailPacketFetchExecutor} that is
+ * shared by all <code>CheckEmailTask</code>s.
  */
 public class CheckEmailTask implements Callable<Boolean> {
     public static final int THREAD_STACK_SIZE = 256 * 1024;   // TODO find a safe low value (64k is too low, default in 64-bit Java 1.6 = 1MByte)
-    private static final int MAX_THREADS = 50;
-    private static final ThreadFactory EMAIL_PACKET_TASK_THREAD_FACTORY = Util.createThreadFactory("EmailPktTask", THREAD_STACK_SIZE);
     
     private Log log = new Log(CheckEmailTask.class);
     private EmailIdentity identity;
+    private Identities identities;
+    private PrivateKey decryptionKey;
     private DHT dht;
+    private EmailPacketFetchExecutor fetchExecutor;
     private RelayPeerManager peerManager;
     private I2PSendQueue sendQueue;
     private Destination localDestination;
@@ -78,17 +79,21 @@ public class CheckEmailTask implements Callable<Boolean> {
     /**
      * 
      * @param identity The email identity to check emails for
+     * @param identities For obtaining a cached decryption key for <code>identity</code>
      * @param dht For retrieving index packets and email packets
+     * @param fetchExecutor For running the tasks that retrieve email packets
      * @param peerManager Unused; will be needed once emails can be retrieved via relays
      * @param sendQueue
      * @param incompleteEmailFolder For storing retrieved email packets
      * @param emailPacketFolder For accessing locally stored email packets directly (rather than sending a retrieve request)
      * @param indexPacketFolder For accessing locally stored index packets directly
      */
-    public CheckEmailTask(EmailIdentity identity, DHT dht, RelayPeerManager peerManager, I2PSendQueue sendQueue,
+    public CheckEmailTask(EmailIdentity identity, Identities identities, DHT dht, EmailPacketFetchExecutor fetchExecutor, RelayPeerManager peerManager, I2PSendQueue sendQueue,
             IncompleteEmailFolder incompleteEmailFolder, EmailPacketFolder emailPacketFolder, IndexPacketFolder indexPacketFolder) {
         this.identity = identity;
+        this.identities = identities;
         this.dht = dht;
+        this.fetchExecutor = fetchExecutor;
         this.peerManager = peerManager;
         this.sendQueue = sendQueue;
         localDestination = sendQueue.getLocalDestination();
@@ -115,22 +120,22 @@ public class CheckEmailTask implements Callable<Boolean> {
         log.debug("Found " + mergedPacket.getNumEntries() + " Email Packet keys in " + indexPacketResults.getNumResults() + " Index Packets.");
         
         newEmail = false;
+        decryptionKey = identities.getDecryptionKey(identity);
         indexPacketDeleteRequest = new IndexPacketDeleteRequest(identity.getHash());
 
         Collection<Future<?>> futureResults = new ArrayList<Future<?>>();
-        ExecutorService executor = Executors.newFixedThreadPool(MAX_THREADS, EMAIL_PACKET_TASK_THREAD_FACTORY);
         for (IndexPacketEntry entry: mergedPacket) {
             Runnable task = new EmailPacketTask(entry.emailPacketKey);
-            futureResults.add(executor.submit(task));
+            futureResults.add(fetchExecutor.submit(identity, task));
         }
-        executor.shutdown();   // end all EmailPacketTask threads when tasks are finished
         
         // wait until all EmailPacketTasks are done
         try {
             for (Future<?> result: futureResults)
                 result.get(1, TimeUnit.HOURS);
         } catch (InterruptedException e) {
-            executor.shutdownNow();
+            for (Future<?> result: futureResults)
+                result.cancel(true);
             Thread.currentThread().interrupt();
             throw new InterruptedException("EmailPacketTask interrupted");
         }
@@ -213,7 +218,7 @@ public class CheckEmailTask implements Callable<Boolean> {
                     // if the hash does not match the DHT key, throw the packet away
                     if (emailPacket.verifyPacketHash())
                         try {
-                            UnencryptedEmailPacket decryptedPacket = emailPacket.decrypt(identity);
+                            UnencryptedEmailPacket decryptedPacket = emailPacket.decrypt(identity, decryptionKey);
                             if (validPacket == null) {
                                 emailCompleted = incompleteEmailFolder.addEmailPacket(decryptedPacket);
                                 validPacket = emailPacket;
@@ -25,6 +25,7 @@ import i2p.bote.UniqueId;
 import i2p.bote.packet.dht.DhtStorablePacket;
 import i2p.bote.packet.dht.EncryptedEmailPacket;
 
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 
 import net.i2p.data.Hash;
@@ -45,6 +46,16 @@ public interface DHT {
      */
     UniqueId findDeleteAuthorizationKey(Hash dhtKey, Hash verificationHash) throws InterruptedException;
     
+    /**
+     * Does the same as {@link #findDeleteAuthorizationKey(Hash, Hash)} for a number of DHT keys.
+     * The DHT is queried for several keys at the same time, so this is faster than calling
+     * <code>findDeleteAuthorizationKey</code> for each key.
+     * @param verificationHashes Maps DHT keys to delete verification hashes
+     * @param maxParallelLookups The maximum number of DHT lookups to run at the same time
+     * @return The valid Delete Authorizations that were found, keyed by DHT key
+     */
+    Map<Hash, UniqueId> findDeleteAuthorizationKeys(Map<Hash, Hash> verificationHashes, int maxParallelLookups) throws InterruptedException;
+    
     /**
      * Registers a <code>DhtStorageHandler</code> that handles incoming storage requests of a certain
      * type (but not its subclasses).
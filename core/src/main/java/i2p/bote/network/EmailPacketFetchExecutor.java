@@ -0,0 +1,222 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package i2p.bote.network;
+
+import i2p.bote.Util;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import net.i2p.util.Log;
+
+/**
+ * Runs the tasks that fetch email packets from the DHT. One instance is shared
+ * by all {@link CheckEmailTask}s, so the total number of threads stays bounded
+ * no matter how many email identities are being checked.<br/>
+ * Tasks are queued per owner (normally an email identity), and the next task
+ * to run is taken from the owners in round-robin order, so an identity with a
+ * large number of email packets cannot hold up the other identities.<br/>
+ * When running on a Java version that supports virtual threads, those are used
+ * instead of platform threads.
+ */
+public class EmailPacketFetchExecutor {
+    private static final String THREAD_NAME = "EmailPktTask";
+    
+    private Log log = new Log(EmailPacketFetchExecutor.class);
+    private int maxThreads;
+    private ThreadFactory threadFactory;
+    private boolean virtualThreads;
+    private Map<Object, Queue<FutureTask<?>>> queuesByOwner;   // owners in round-robin order
+    private int numQueuedTasks;
+    private int numActiveTasks;
+    private Set<Thread> workerThreads;
+    private boolean shutdown;
+
+    /**
+     * @param maxThreads The maximum number of tasks that can run at the same time
+     */
+    public EmailPacketFetchExecutor(int maxThreads) {
+        this.maxThreads = maxThreads;
+        threadFactory = createVirtualThreadFactory(THREAD_NAME);
+        virtualThreads = threadFactory != null;
+        if (threadFactory == null)
+            threadFactory = Util.createThreadFactory(THREAD_NAME, CheckEmailTask.THREAD_STACK_SIZE);
+        queuesByOwner = new LinkedHashMap<Object, Queue<FutureTask<?>>>();
+        workerThreads = new HashSet<Thread>();
+    }
+    
+    /**
+     * Returns a <code>ThreadFactory</code> for virtual threads, or <code>null</code>
+     * if the JVM doesn't support them (virtual threads were added in Java 21).
+     * @param threadName
+     */
+    private ThreadFactory createVirtualThreadFactory(String threadName) {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = ofVirtual.invoke(null);
+            builder = builderClass.getMethod("name", String.class).invoke(builder, threadName);
+            return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (Exception e) {
+            log.debug("Can't create a virtual thread factory, using platform threads.", e);
+            return null;
+        }
+    }
+    
+    /**
+     * Queues a task for execution.
+     * @param owner The object the task is run for, usually an <code>EmailIdentity</code>
+     * @param task
+     * @return A <code>Future</code> that can be used to wait for the task or cancel it
+     * @throws RejectedExecutionException if the executor has been shut down
+     */
+    public synchronized Future<?> submit(Object owner, Runnable task) {
+        if (shutdown)
+            throw new RejectedExecutionException("EmailPacketFetchExecutor has been shut down.");
+        
+        FutureTask<Object> futureTask = new FutureTask<Object>(task, null);
+        Queue<FutureTask<?>> queue = queuesByOwner.get(owner);
+        if (queue == null) {
+            queue = new LinkedList<FutureTask<?>>();
+            queuesByOwner.put(owner, queue);
+        }
+        queue.add(futureTask);
+        numQueuedTasks++;
+        
+        if (numActiveTasks < maxThreads) {
+            numActiveTasks++;
+            Thread thread = threadFactory.newThread(new Worker(pollNextTask()));
+            workerThreads.add(thread);
+            thread.start();
+        }
+        
+        return futureTask;
+    }
+    
+    /**
+     * Removes the next task from the queue of the owner whose turn it is, and
+     * moves that owner to the end of the line.
+     * @return The next task, or <code>null</code> if no tasks are queued
+     */
+    private FutureTask<?> pollNextTask() {
+        Iterator<Map.Entry<Object, Queue<FutureTask<?>>>> iterator = queuesByOwner.entrySet().iterator();
+        if (!iterator.hasNext())
+            return null;
+        
+        Map.Entry<Object, Queue<FutureTask<?>>> entry = iterator.next();
+        Queue<FutureTask<?>> queue = entry.getValue();
+        FutureTask<?> task = queue.poll();
+        iterator.remove();
+        if (!queue.isEmpty())
+            queuesByOwner.put(entry.getKey(), queue);
+        numQueuedTasks--;
+        return task;
+    }
+    
+    /**
+     * Called by a worker thread when it has finished a task.
+     * @return The next task for the worker, or <code>null</code> if the worker should exit
+     */
+    private synchronized FutureTask<?> taskFinished() {
+        FutureTask<?> task = shutdown ? null : pollNextTask();
+        if (task == null) {
+            numActiveTasks--;
+            workerThreads.remove(Thread.currentThread());
+        }
+        return task;
+    }
+    
+    /** Returns the number of tasks that are waiting for a thread. */
+    public synchronized int getQueuedTaskCount() {
+        return numQueuedTasks;
+    }
+    
+    /** Returns the number of tasks that are currently running. */
+    public synchronized int getActiveTaskCount() {
+        return numActiveTasks;
+    }
+    
+    /** Returns <code>true</code> if tasks run in virtual threads. */
+    public boolean isUsingVirtualThreads() {
+        return virtualThreads;
+    }
+    
+    /**
+     * Cancels all queued tasks and interrupts the running ones. No new tasks
+     * are accepted after this method has been called.
+     */
+    public void shutdownNow() {
+        List<FutureTask<?>> queuedTasks = new ArrayList<FutureTask<?>>();
+        List<Thread> threads;
+        synchronized(this) {
+            shutdown = true;
+            for (Queue<FutureTask<?>> queue: queuesByOwner.values())
+                queuedTasks.addAll(queue);
+            queuesByOwner.clear();
+            numQueuedTasks = 0;
+            threads = new ArrayList<Thread>(workerThreads);
+        }
+        
+        for (FutureTask<?> task: queuedTasks)
+            task.cancel(false);
+        for (Thread thread: threads)
+            thread.interrupt();
+    }
+    
+    /** Runs tasks until there are none left. */
+    private class Worker implements Runnable {
+        private FutureTask<?> task;
+        
+        public Worker(FutureTask<?> firstTask) {
+            task = firstTask;
+        }
+        
+        @Override
+        public void run() {
+            while (task != null) {
+                try {
+                    task.run();   // FutureTask catches exceptions thrown by the task
+                } finally {
+                    Thread.interrupted();   // clear the interrupt flag in case the task was cancelled
+                }
+                task = taskFinished();
+            }
+        }
+    }
+}
@@ -27,8 +27,8 @@ import i2p.bote.packet.I2PBotePacket;
 import i2p.bote.packet.MalformedCommunicationPacket;
 import i2p.bote.packet.MalformedPacketException;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import net.i2p.client.I2PSession;
 import net.i2p.client.I2PSessionException;
@@ -48,26 +48,21 @@ public class I2PPacketDispatcher implements I2PSessionMuxedListener {
     private List<PacketListener> packetListeners;
 
     public I2PPacketDispatcher() {
-        packetListeners = new ArrayList<PacketListener>();
+        // copy-on-write so listeners can add or remove listeners from packetReceived()
+        packetListeners = new CopyOnWriteArrayList<PacketListener>();
     }
     
     public void addPacketListener(PacketListener listener) {
-        synchronized(packetListeners) {
-            packetListeners.add(listener);
-        }
+        packetListeners.add(listener);
     }
     
     public void removePacketListener(PacketListener listener) {
-        synchronized(packetListeners) {
-            packetListeners.remove(listener);
-        }
+        packetListeners.remove(listener);
     }
     
     private void firePacketReceivedEvent(CommunicationPacket packet, Destination sender) {
-        synchronized(packetListeners) {
-            for (PacketListener listener: packetListeners)
-                listener.packetReceived(packet, sender, System.currentTimeMillis());
-        }
+        for (PacketListener listener: packetListeners)
+            listener.packetReceived(packet, sender, System.currentTimeMillis());
     }
     
     // I2PSessionMuxedListener implementation follows
@@ -31,18 +31,22 @@ import i2p.bote.packet.StatusCode;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
-import java.util.Set;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import net.i2p.client.I2PSession;
 import net.i2p.client.I2PSessionException;
 import net.i2p.client.datagram.I2PDatagramMaker;
 import net.i2p.data.Destination;
-import net.i2p.util.ConcurrentHashSet;
 import net.i2p.util.I2PAppThread;
 import net.i2p.util.Log;
 
@@ -52,29 +56,53 @@ import net.i2p.util.Log;
  * Packets are sent at a rate no greater than specified by the
  * <CODE>maxBandwidth</CODE> property.
  * <p/>
- * The packet queue is FIFO with the exception of delayed packets.<br/>
- * The packet with the highest index in the queue is always the next
- * to be sent.
+ * The packet queue is FIFO with the exception of delayed packets,
+ * which are sent when their <code>earliestSendTime</code> is reached.
+ * <p/>
+ * Packets are taken off the queue by this thread and, if more than one
+ * sender thread is configured, by additional worker threads, so a slow
+ * call to the router doesn't hold up all other packets.
  */
 public class I2PSendQueue extends I2PAppThread implements PacketListener {
+    private static final long BATCH_TIMEOUT = TimeUnit.MINUTES.toMillis(30);   // batches that haven't been removed after this time are discarded
+    private static final long BATCH_CLEANUP_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    
     private Log log = new Log(I2PSendQueue.class);
     private I2PSession i2pSession;
     private I2PDatagramMaker datagramMaker;
     private PacketQueue packetQueue;
-    private Set<PacketBatch> runningBatches;
-    private int maxBandwidth;
+    private Map<PacketBatch, Long> runningBatches;   // maps batches to the time they expire
+    private ConcurrentMap<UniqueId, PacketBatch> batchesByPacketId;   // for finding the batch a response belongs to
+    private volatile long lastBatchCleanupTime;
+    private volatile int maxBandwidth;
+    private TokenBucket tokenBucket;
+    private int numThreads;
 
     /**
+     * Creates an <code>I2PSendQueue</code> with a single sender thread.
      * @param i2pSession
      * @param i2pReceiver
      */
     public I2PSendQueue(I2PSession i2pSession, I2PPacketDispatcher i2pReceiver) {
+        this(i2pSession, i2pReceiver, 1);
+    }
+    
+    /**
+     * @param i2pSession
+     * @param i2pReceiver
+     * @param numThreads The number of threads that send packets, including this one
+     */
+    public I2PSendQueue(I2PSession i2pSession, I2PPacketDispatcher i2pReceiver, int numThreads) {
         super("I2PSendQueue");
         
         this.i2pSession = i2pSession;
+        this.numThreads = Math.max(1, numThreads);
         i2pReceiver.addPacketListener(this);
         packetQueue = new PacketQueue();
-        runningBatches = new ConcurrentHashSet<PacketBatch>();
+        runningBatches = new ConcurrentHashMap<PacketBatch, Long>();
+        batchesByPacketId = new ConcurrentHashMap<UniqueId, PacketBatch>();
+        tokenBucket = new TokenBucket();
+        // I2PDatagramMaker is not thread safe, so each sender thread gets its own
         datagramMaker = new I2PDatagramMaker(i2pSession);
     }
 
@@ -148,16 +176,48 @@ public class I2PSendQueue extends I2PAppThread implements PacketListener {
      */
     public void send(PacketBatch batch) {
         log.debug("Adding a batch containing " + batch.getPacketCount() + " packets.");
-        runningBatches.add(batch);
+        removeExpiredBatches();
+        runningBatches.put(batch, System.currentTimeMillis() + BATCH_TIMEOUT);
         batch.initializeSentSignal();
         for (PacketBatchItem batchItem: batch) {
+            batchesByPacketId.put(batchItem.getPacket().getPacketId(), batch);
             ScheduledPacket scheduledPacket = new ScheduledPacket(batchItem.getPacket(), batchItem.getDestination(), 0, batch);
             packetQueue.add(scheduledPacket);
         }
     }
 
+    /**
+     * Stops receiving replies to a batch's packets.
+     * @param batch
+     */
     public void remove(PacketBatch batch) {
         runningBatches.remove(batch);
+        for (PacketBatchItem batchItem: batch)
+            batchesByPacketId.remove(batchItem.getPacket().getPacketId(), batch);
+    }
+    
+    /**
+     * Removes batches that have been running for longer than <code>BATCH_TIMEOUT</code>,
+     * in case {@link #remove(PacketBatch)} was never called for them.
+     * Does nothing if the last cleanup was less than <code>BATCH_CLEANUP_INTERVAL</code> ago.
+     */
+    private void removeExpiredBatches() {
+        long now = System.currentTimeMillis();
+        if (now - lastBatchCleanupTime < BATCH_CLEANUP_INTERVAL)
+            return;
+        lastBatchCleanupTime = now;
+        
+        Iterator<Map.Entry<PacketBatch, Long>> iterator = runningBatches.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<PacketBatch, Long> entry = iterator.next();
+            if (entry.getValue() < now) {
+                PacketBatch batch = entry.getKey();
+                log.debug("Discarding expired batch containing " + batch.getPacketCount() + " packets.");
+                iterator.remove();
+                for (PacketBatchItem batchItem: batch)
+                    batchesByPacketId.remove(batchItem.getPacket().getPacketId(), batch);
+            }
+        }
     }
     
     /**
@@ -185,54 +245,78 @@ public class I2PSendQueue extends I2PAppThread implements PacketListener {
         if (packet instanceof ResponsePacket) {
             UniqueId packetId = packet.getPacketId();
             
-            for (PacketBatch batch: runningBatches)
-                if (batch.contains(packetId)) {
-                    DataPacket payload = ((ResponsePacket)packet).getPayload();
-                    if (payload != null)
-                        batch.addResponse(sender, payload);
-                    else
-                        batch.addResponse(sender, new EmptyResponse());
-                }
+            PacketBatch batch = batchesByPacketId.get(packetId);
+            if (batch != null) {
+                DataPacket payload = ((ResponsePacket)packet).getPayload();
+                if (payload != null)
+                    batch.addResponse(sender, payload);
+                else
+                    batch.addResponse(sender, new EmptyResponse());
+            }
         }
     }
     
     @Override
     public void run() {
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i=1; i<numThreads; i++) {
+            Thread worker = new I2PAppThread("I2PSendQueue-" + i) {
+                @Override
+                public void run() {
+                    sendLoop(new I2PDatagramMaker(i2pSession));
+                }
+            };
+            worker.start();
+            workers.add(worker);
+        }
+        
+        sendLoop(datagramMaker);
+        
+        for (Thread worker: workers)
+            worker.interrupt();
+        for (Thread worker: workers)
+            try {
+                worker.join(1000);
+            } catch (InterruptedException e) {
+                break;
+            }
+        log.debug("I2PSendQueue thread exiting.");
+    }
+    
+    /**
+     * Takes packets off the queue and sends them until the current thread is interrupted.
+     * @param datagramMaker An <code>I2PDatagramMaker</code> that is only used by the current thread
+     */
+    private void sendLoop(I2PDatagramMaker datagramMaker) {
         while (!Thread.interrupted())
             try {
                 ScheduledPacket scheduledPacket = packetQueue.take();
-                if (scheduledPacket != null) {
-                    doPacketDelay(scheduledPacket);
-                    send(scheduledPacket);
-                }
+                doPacketDelay(scheduledPacket);
+                send(scheduledPacket, datagramMaker);
             } catch (InterruptedException e) {
                 break;
             } catch (RuntimeException e) {   // catch unexpected exceptions to keep the thread running
                 log.error("Exception caught in I2PSendQueue loop", e);
             }
-        
-        log.debug("I2PSendQueue thread exiting.");
     }
     
     /**
-     * Waits for an amount of time that is long enough to keep the sending rate below <code>maxBandwidth<code>,
-     * and until the current time is past <code>earliestSendTime</code>.
+     * Waits for an amount of time that is long enough to keep the sending rate below <code>maxBandwidth<code>.
+     * The packet's <code>earliestSendTime</code> has already been taken care of by {@link PacketQueue#take()}.
      * @param scheduledPacket
      */
     private void doPacketDelay(ScheduledPacket scheduledPacket) throws InterruptedException {
+        int maxBandwidth = this.maxBandwidth;
         if (maxBandwidth > 0) {
-            CommunicationPacket i2pBotePacket = scheduledPacket.data;
-            int packetSizeBits = i2pBotePacket.getSize() * 8;
-            int maxBWBitsPerSecond = maxBandwidth * 1024;
-            long waitTimeMsecs = 1000L * packetSizeBits / maxBWBitsPerSecond;
-            if (System.currentTimeMillis()+waitTimeMsecs < scheduledPacket.earliestSendTime)
-                waitTimeMsecs = scheduledPacket.earliestSendTime;
-            TimeUnit.MILLISECONDS.sleep(waitTimeMsecs);
+            long packetSizeBits = scheduledPacket.data.getSize() * 8L;
+            long waitTimeMsecs = tokenBucket.reserve(packetSizeBits, maxBandwidth * 1024L);
+            if (waitTimeMsecs > 0)
+                TimeUnit.MILLISECONDS.sleep(waitTimeMsecs);
         }
     }
     
     /** This method actually sends a packet via the router */
-    private void send(ScheduledPacket scheduledPacket) throws InterruptedException {
+    private void send(ScheduledPacket scheduledPacket, I2PDatagramMaker datagramMaker) throws InterruptedException {
         CommunicationPacket i2pBotePacket = scheduledPacket.data;
         byte[] bytes = i2pBotePacket.toByteArray();
         
@@ -241,7 +325,7 @@ public class I2PSendQueue extends I2PAppThread implements PacketListener {
         log.debug("Sending " + (isBatchPacket?"":"non-") + "batch packet: [" + i2pBotePacket + "] to " + Util.toShortenedBase32(scheduledPacket.destination));
         
         try {
-            sendDatagram(bytes, scheduledPacket.destination);
+            sendDatagram(bytes, scheduledPacket.destination, datagramMaker);
             
             // set sentTime, update queue and sentLatch, fire packet listeners
             scheduledPacket.data.setSentTime(System.currentTimeMillis());
@@ -256,66 +340,139 @@ public class I2PSendQueue extends I2PAppThread implements PacketListener {
         }
     }
     
-    private void sendDatagram(byte[] data, Destination destination) throws I2PSessionException {
+    private void sendDatagram(byte[] data, Destination destination, I2PDatagramMaker datagramMaker) throws I2PSessionException {
         byte[] replyableDatagram = datagramMaker.makeI2PDatagram(data);
         i2pSession.sendMessage(destination, replyableDatagram, I2PSession.PROTO_DATAGRAM, I2PSession.PORT_UNSPECIFIED, I2PSession.PORT_UNSPECIFIED);
     }
     
     /**
-     * Keeps packets sorted by <code>earliestSendTime</code>.
+     * Keeps packets sorted by <code>earliestSendTime</code>. Packets with the same
+     * <code>earliestSendTime</code> are taken off the queue in the order they were added.
+     * <p/>
+     * {@link #take()} blocks until the first packet is due, and wakes up as soon as a
+     * packet is added that is due earlier.
      */
-    private static class PacketQueue {
-        private Log log = new Log(PacketQueue.class);
-        private List<ScheduledPacket> queue;
-        private Comparator<ScheduledPacket> comparator;
+    static class PacketQueue {
+        private PriorityQueue<ScheduledPacket> queue;
+        private ReentrantLock lock;
+        private Condition changed;
         
         public PacketQueue() {
-            queue = new ArrayList<ScheduledPacket>();
-            comparator = new Comparator<ScheduledPacket>() {
-                @Override
-                public int compare(ScheduledPacket packet1, ScheduledPacket packet2) {
-                    return new Long(packet1.earliestSendTime).compareTo(packet2.earliestSendTime);
-                }
-            };
+            queue = new PriorityQueue<ScheduledPacket>();
+            lock = new ReentrantLock();
+            changed = lock.newCondition();
         }
         
-        public synchronized void add(ScheduledPacket packet) {
-            if (packet.earliestSendTime > 0) {
-                int index = getInsertionIndex(packet);
-                queue.add(index, packet);
-            }
-            else
+        public void add(ScheduledPacket packet) {
+            lock.lock();
+            try {
                 queue.add(packet);
+                // only a waiting thread needs to be woken up if the packet is the next one due
+                if (queue.peek() == packet)
+                    changed.signal();
+            } finally {
+                lock.unlock();
+            }
         }
 
-        private int getInsertionIndex(ScheduledPacket packet) {
-            int index = Collections.binarySearch(queue, packet, comparator);
-            if (index < 0)
-                return -(index+1);
-            else {
-                log.warn("Packet exists in queue already: " + packet);
-                return index;
+        /**
+         * Removes the first packet from the queue, waiting until there is one whose
+         * <code>earliestSendTime</code> has been reached.
+         * @throws InterruptedException
+         */
+        public ScheduledPacket take() throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (true) {
+                    ScheduledPacket packet = queue.peek();
+                    if (packet == null)
+                        changed.await();
+                    else {
+                        long delay = packet.earliestSendTime - System.currentTimeMillis();
+                        if (delay <= 0) {
+                            queue.poll();
+                            // let another thread have a look at the next packet
+                            if (!queue.isEmpty())
+                                changed.signal();
+                            return packet;
+                        }
+                        changed.await(delay, TimeUnit.MILLISECONDS);
+                    }
+                }
+            } finally {
+                lock.unlock();
             }
         }
+    }
 
-        public ScheduledPacket take() throws InterruptedException {
-            while (queue.isEmpty() && !Thread.currentThread().isInterrupted())
-                TimeUnit.SECONDS.sleep(1);
-            synchronized(this) {
-                if (queue.isEmpty())
-                    return null;
-                else
-                    return queue.remove(queue.size()-1);
+    /**
+     * Limits the sending rate to a number of bits per second while allowing bursts of
+     * up to one second's worth of data. Callers that exceed the limit are told how long
+     * to wait; the bits are reserved right away so concurrent callers queue up behind them.
+     * A negative balance is paid off by refilling before new bits become available.
+     */
+    static class TokenBucket {
+        private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+        
+        private long availableBits;
+        private long lastRefillTime;
+        private long bitsPerSecond;
+        
+        /**
+         * Takes <code>bits</code> out of the bucket and returns the number of
+         * milliseconds the caller must wait before sending.
+         * @param bits
+         * @param bitsPerSecond The maximum rate; must be greater than zero
+         */
+        public long reserve(long bits, long bitsPerSecond) {
+            return reserve(bits, bitsPerSecond, System.nanoTime());
+        }
+        
+        /**
+         * @param bits
+         * @param bitsPerSecond The maximum rate; must be greater than zero
+         * @param now The current time as returned by {@link System#nanoTime()}
+         */
+        synchronized long reserve(long bits, long bitsPerSecond, long now) {
+            if (this.bitsPerSecond != bitsPerSecond) {
+                // first call, or the bandwidth limit has changed; start with a full bucket
+                this.bitsPerSecond = bitsPerSecond;
+                availableBits = bitsPerSecond;
+                lastRefillTime = now;
             }
+            else {
+                long elapsed = now - lastRefillTime;
+                long missingBits = bitsPerSecond - availableBits;
+                if (elapsed/NANOS_PER_SECOND > missingBits/bitsPerSecond) {
+                    // long enough to pay off any debt and fill the bucket; avoids an overflow below
+                    availableBits = bitsPerSecond;
+                    lastRefillTime = now;
+                }
+                else if (elapsed > 0) {
+                    long newBits = elapsed * bitsPerSecond / NANOS_PER_SECOND;
+                    availableBits = Math.min(bitsPerSecond, availableBits + newBits);
+                    // only advance by the time that was converted to bits so no fractions get lost
+                    lastRefillTime += newBits * NANOS_PER_SECOND / bitsPerSecond;
+                }
+            }
+            
+            availableBits -= bits;
+            if (availableBits >= 0)
+                return 0;
+            else
+                return (-availableBits * 1000 + bitsPerSecond - 1) / bitsPerSecond;
         }
     }
 
-    private static class ScheduledPacket {
+    static class ScheduledPacket implements Comparable<ScheduledPacket> {
+        private static final AtomicLong nextSequenceNumber = new AtomicLong();
+        
         CommunicationPacket data;
         Destination destination;
         long earliestSendTime;
         PacketBatch batch;   // the batch this packet belongs to, or null if not part of a batch
         CountDownLatch sentSignal;
+        long sequenceNumber;   // keeps packets with the same earliestSendTime in FIFO order
         
         public ScheduledPacket(CommunicationPacket packet, Destination destination, long earliestSendTime) {
             this(packet, destination, earliestSendTime, null);
@@ -327,6 +484,16 @@ public class I2PSendQueue extends I2PAppThread implements PacketListener {
             this.earliestSendTime = earliestSendTime;
             this.batch = batch;
             this.sentSignal = new CountDownLatch(1);
+            sequenceNumber = nextSequenceNumber.getAndIncrement();
+        }
+
+        @Override
+        public int compareTo(ScheduledPacket other) {
+            if (earliestSendTime != other.earliestSendTime)
+                return earliestSendTime < other.earliestSendTime ? -1 : 1;
+            if (sequenceNumber != other.sequenceNumber)
+                return sequenceNumber < other.sequenceNumber ? -1 : 1;
+            return 0;
         }
 
         public void decrementSentLatch() {
@@ -45,13 +45,13 @@ public class PacketBatch implements Iterable<PacketBatchItem> {
     private volatile Map<UniqueId, PacketBatchItem> outgoingPackets;
     private volatile Map<Destination, DataPacket> incomingPackets;
     private CountDownLatch sentSignal;   // this field is initialized by I2PSendQueue when the batch is submitted for sending
-    private CountDownLatch firstReplyReceivedSignal;
+    private final Object responseLock;   // notified every time a response is added
 
     public PacketBatch() {
         outgoingPackets = new ConcurrentHashMap<UniqueId, PacketBatchItem>();
         incomingPackets = new ConcurrentHashMap<Destination, DataPacket>();
         sentSignal = new CountDownLatch(0);
-        firstReplyReceivedSignal = new CountDownLatch(1);
+        responseLock = new Object();
     }
     
     // TODO throw an exception if this method is called after the batch has been submitted to the queue
@@ -77,8 +77,10 @@ public class PacketBatch implements Iterable<PacketBatchItem> {
     }
     
     void addResponse(Destination peer, DataPacket packet) {
-        incomingPackets.put(peer, packet);
-        firstReplyReceivedSignal.countDown();
+        synchronized(responseLock) {
+            incomingPackets.put(peer, packet);
+            responseLock.notifyAll();
+        }
     }
     
     /**
@@ -108,18 +110,38 @@ public class PacketBatch implements Iterable<PacketBatchItem> {
     }
     
     public void awaitFirstReply(long timeout, TimeUnit timeoutUnit) throws InterruptedException {
-        firstReplyReceivedSignal.await(timeout, timeoutUnit);
+        awaitResponses(1, timeout, timeoutUnit);
     }
     
     public void awaitAllResponses(long timeout, TimeUnit timeoutUnit) throws InterruptedException {
-        long startTime = System.currentTimeMillis();
-        long timeoutMillis = timeoutUnit.toMillis(timeout);
-        long endTime = startTime + timeoutMillis;
+        awaitResponses(getPacketCount(), timeout, timeoutUnit);
+    }
+    
+    /**
+     * Waits until responses from at least <code>numResponses</code> peers have been received,
+     * or until the timeout is reached. If <code>numResponses</code> is greater than the
+     * number of packets in the batch, this method waits for a response to every packet.
+     * @param numResponses
+     * @param timeout
+     * @param timeoutUnit
+     * @return <code>true</code> if enough responses were received, <code>false</code> if the timeout was reached
+     * @throws InterruptedException
+     */
+    public boolean awaitResponses(int numResponses, long timeout, TimeUnit timeoutUnit) throws InterruptedException {
+        int required = Math.min(numResponses, getPacketCount());
+        long startTime = System.nanoTime();
+        long remainingNanos = timeoutUnit.toNanos(timeout);
         
-        log.debug("Waiting for responses to batch packets. Start time=" + startTime + ", end time=" + endTime);
+        log.debug("Waiting for " + required + " responses to batch packets. Timeout=" + timeoutUnit.toMillis(timeout) + "ms");
         
-        while (System.currentTimeMillis()<=endTime && incomingPackets.size()<outgoingPackets.size())
-            TimeUnit.SECONDS.sleep(1);
-        log.debug("Finished waiting. Time now: " + System.currentTimeMillis() + ", #incoming=" + incomingPackets.size() + ", #outgoing=" + outgoingPackets.size());
+        boolean complete;
+        synchronized(responseLock) {
+            while (!(complete = incomingPackets.size()>=required) && remainingNanos>0) {
+                TimeUnit.NANOSECONDS.timedWait(responseLock, remainingNanos);
+                remainingNanos = timeoutUnit.toNanos(timeout) - (System.nanoTime()-startTime);
+            }
+        }
+        log.debug("Finished waiting after " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-startTime) + "ms, #incoming=" + incomingPackets.size() + ", #outgoing=" + outgoingPackets.size());
+        return complete;
     }
 }
\ No newline at end of file
@@ -21,14 +21,12 @@
 
 package i2p.bote.network.kademlia;
 
-import java.math.BigInteger;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import net.i2p.data.Destination;
-import net.i2p.data.Hash;
 
 /**
  * This is the parent class for k-buckets and s-buckets.
@@ -38,9 +36,6 @@ import net.i2p.data.Hash;
  * </strong>
  */
 abstract class AbstractBucket implements Iterable<KademliaPeer> {
-    static final BigInteger MIN_HASH_VALUE = BigInteger.ZERO;   // system-wide minimum hash value
-    static final BigInteger MAX_HASH_VALUE = BigInteger.ONE.shiftLeft(Hash.HASH_LENGTH*8).subtract(BigInteger.ONE);   // system-wide maximum hash value
-
     protected List<KademliaPeer> peers;   // peers are sorted most recently seen to least recently seen
     protected int capacity;
     
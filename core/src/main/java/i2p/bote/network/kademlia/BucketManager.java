@@ -28,12 +28,13 @@ import i2p.bote.network.DhtPeerStatsRenderer;
 import i2p.bote.network.PacketListener;
 import i2p.bote.packet.CommunicationPacket;
 
-import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import net.i2p.data.Destination;
@@ -52,7 +53,7 @@ class BucketManager implements PacketListener, Iterable<KBucket> {
     public BucketManager(Hash localDestinationHash) {
         this.localDestinationHash = localDestinationHash;
         kBuckets = new CopyOnWriteArrayList<KBucket>();
-        kBuckets.add(new KBucket(AbstractBucket.MIN_HASH_VALUE, AbstractBucket.MAX_HASH_VALUE, 0));   // this is the root bucket, so depth=0
+        kBuckets.add(new KBucket(KademliaId.MIN_VALUE, KademliaId.MAX_VALUE, 0));   // this is the root bucket, so depth=0
         sBucket = new SBucket(localDestinationHash);
     }
     
@@ -181,12 +182,12 @@ class BucketManager implements PacketListener, Iterable<KBucket> {
         int lowIndex = 0;
         int highIndex = kBuckets.size() - 1;
         
-        BigInteger keyValue = new BigInteger(1, key.getData());
         while (lowIndex < highIndex) {
             int centerIndex = (highIndex + lowIndex) / 2;
-            if (keyValue.compareTo(kBuckets.get(centerIndex).getStartId()) < 0)
+            KBucket bucket = kBuckets.get(centerIndex);
+            if (bucket.getStartId().compareToHash(key) > 0)
                 highIndex = centerIndex - 1;
-            else if (keyValue.compareTo(kBuckets.get(centerIndex).getEndId()) >= 0)
+            else if (bucket.getEndId().compareToHash(key) <= 0)
                 lowIndex = centerIndex + 1;
             else
                 return centerIndex;
@@ -244,18 +245,87 @@ class BucketManager implements PacketListener, Iterable<KBucket> {
      * and which are not locked.
      * Less than <code>count</code> peers may be returned if there aren't
      * enough peers in the k-buckets and the s-bucket.
+     * <p/>
+     * Only the s-bucket and the k-buckets that can contain peers closer than the
+     * <code>count</code> closest ones found so far are looked at. K-buckets are
+     * visited in ascending order of the smallest possible distance between the
+     * key and the bucket's ID range, which means the key's own bucket comes first.
      * @param key
      * @param count
      * @return Up to <code>count</code> peers, sorted by distance to <code>key</code>.
      */
-    public List<Destination> getClosestPeers(Hash key, int count) {
-        // TODO don't put all peers in one huge list, only use two k-buckets and the s-bucket at a time
-        List<Destination> peers = getAllUnlockedPeers();
-        Collections.sort(peers, new PeerDistanceComparator(key));
-        if (peers.size() < count)
-            return peers;
-        else
-            return peers.subList(0, count);
+    public synchronized List<Destination> getClosestPeers(Hash key, int count) {
+        List<Destination> closestPeers = new ArrayList<Destination>();
+        if (count <= 0)
+            return closestPeers;
+        
+        Comparator<Destination> distanceComparator = new PeerDistanceComparator(key);
+        // a max-heap that keeps the most distant of the closest peers found so far at the head
+        PriorityQueue<Destination> closestHeap = new PriorityQueue<Destination>(count, Collections.reverseOrder(distanceComparator));
+        addCloserPeers(sBucket, closestHeap, count, distanceComparator);
+        
+        KademliaId keyId = new KademliaId(key);
+        List<BucketDistance> bucketDistances = new ArrayList<BucketDistance>(kBuckets.size());
+        for (KBucket bucket: kBuckets)
+            bucketDistances.add(new BucketDistance(bucket, keyId));
+        Collections.sort(bucketDistances);
+        for (BucketDistance bucketDistance: bucketDistances) {
+            if (closestHeap.size() >= count) {
+                // stop if no peer in this bucket (or any of the following ones) can be closer than the peers found so far
+                KademliaId maxDistance = KademliaId.getDistance(key, closestHeap.peek().calculateHash());
+                if (bucketDistance.minDistance.compareTo(maxDistance) >= 0)
+                    break;
+            }
+            addCloserPeers(bucketDistance.bucket, closestHeap, count, distanceComparator);
+        }
+        
+        closestPeers.addAll(closestHeap);
+        Collections.sort(closestPeers, distanceComparator);
+        return closestPeers;
+    }
+    
+    /**
+     * Adds the unlocked peers from a bucket to a max-heap of up to <code>count</code> peers
+     * if they are closer to the key than the most distant peer in the heap.
+     * @param bucket
+     * @param closestHeap
+     * @param count
+     * @param distanceComparator
+     */
+    private void addCloserPeers(AbstractBucket bucket, PriorityQueue<Destination> closestHeap, int count, Comparator<Destination> distanceComparator) {
+        for (KademliaPeer peer: bucket) {
+            if (peer.isLocked())
+                continue;
+            if (closestHeap.size() < count)
+                closestHeap.add(peer);
+            else if (distanceComparator.compare(peer, closestHeap.peek()) < 0) {
+                closestHeap.poll();
+                closestHeap.add(peer);
+            }
+        }
+    }
+    
+    /**
+     * Pairs a k-bucket with a lower bound for the distance between a key
+     * and any ID in the bucket's range.
+     */
+    private static class BucketDistance implements Comparable<BucketDistance> {
+        private KBucket bucket;
+        private KademliaId minDistance;
+        
+        public BucketDistance(KBucket bucket, KademliaId key) {
+            this.bucket = bucket;
+            // All IDs in the bucket share the bits that startId and endId have in common,
+            // so the distance to any of them is at least the XOR of those bits.
+            KademliaId startId = bucket.getStartId();
+            int commonPrefixLength = startId.xor(bucket.getEndId()).numberOfLeadingZeros();
+            minDistance = key.xor(startId).clearLowestBits(KademliaId.NUM_BITS - commonPrefixLength);
+        }
+        
+        @Override
+        public int compareTo(BucketDistance other) {
+            return minDistance.compareTo(other.minDistance);
+        }
     }
 
     /**
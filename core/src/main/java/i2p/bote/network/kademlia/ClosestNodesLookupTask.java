@@ -34,19 +34,20 @@ import i2p.bote.packet.PeerList;
 import i2p.bote.packet.ResponsePacket;
 import i2p.bote.packet.dht.FindClosePeersPacket;
 
-import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.SortedSet;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.TreeSet;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import net.i2p.data.Destination;
 import net.i2p.data.Hash;
@@ -60,10 +61,16 @@ import net.i2p.util.Log;
  * The number of pending requests never exceeds {@link KademliaConstants#ALPHA}.
  * According to the <code>infocom-2006-kad.pdf</code> paper (see
  * {@link i2p.bote.network.kademlia.KademliaDHT}), this is the most efficient.
+ * <p/>
+ * The lookup doesn't need a thread of its own. {@link #start()} sends the first
+ * requests and returns; after that, the lookup is driven by incoming responses
+ * and by request timeouts, and a new request is sent as soon as a pending one
+ * is answered or times out. {@link #call()} starts the lookup and waits for the result.
  */
-public class ClosestNodesLookupTask implements Callable<List<Destination>> {
+public class ClosestNodesLookupTask implements Callable<List<Destination>>, Future<List<Destination>> {
     private static final int REQUEST_TIMEOUT = 30 * 1000;
     private static final int CLOSEST_NODES_LOOKUP_TIMEOUT = 5 * 60 * 1000;   // the maximum amount of time a FIND_CLOSEST_NODES can take
+    private static final Timer TIMEOUT_TIMER = new Timer("LookupTimeouts", true);   // shared by all lookups
     
     private Log log = new Log(ClosestNodesLookupTask.class);
     private Hash key;
@@ -71,11 +78,34 @@ public class ClosestNodesLookupTask implements Callable<List<Destination>> {
     private BucketManager bucketManager;
     private I2PSendQueue sendQueue;
     private Destination localDestination;   // The I2P destination of the local node
-    private Comparator<Destination> peerComparator;
-    private SortedSet<Destination> responses;   // sorted by distance to the key to look up
-    private SortedSet<Destination> notQueriedYet;   // peers that are yet to be queried; sorted by distance to the key to look up
+    private PeerDistanceComparator peerComparator;
+    private TreeSet<Destination> responses;   // sorted by distance to the key to look up
+    private TreeSet<Destination> notQueriedYet;   // peers that are yet to be queried; sorted by distance to the key to look up
     private Map<Destination, FindClosePeersPacket> pendingRequests;
-    private long startTime;
+    private Map<UniqueId, Destination> pendingPeersByPacketId;   // the peers in pendingRequests, keyed by request packet id
+    private PacketListener packetListener;
+    private long requestTimeout;
+    private TimerTask lookupTimeoutTask;
+    private Listener listener;
+    private boolean started;
+    private boolean finished;
+    private boolean cancelled;
+    private List<Destination> results;
+    private CountDownLatch doneSignal;
+    
+    /**
+     * Receives the result of a lookup that was started with {@link ClosestNodesLookupTask#start(Listener)}.
+     */
+    public interface Listener {
+        
+        /**
+         * Called once when the lookup has finished. This method should return quickly
+         * because it is called from a network or timer thread.
+         * @param key The DHT key that was looked up
+         * @param results The same <code>List</code> as returned by {@link ClosestNodesLookupTask#get()}
+         */
+        void lookupFinished(Hash key, List<Destination> results);
+    }
     
     /**
      * @param key The DHT key to look up
@@ -84,109 +114,227 @@ public class ClosestNodesLookupTask implements Callable<List<Destination>> {
      * @param bucketManager For looking up peers, and updating them
      */
     public ClosestNodesLookupTask(Hash key, I2PSendQueue sendQueue, I2PPacketDispatcher i2pReceiver, BucketManager bucketManager) {
+        this(key, sendQueue, i2pReceiver, bucketManager, REQUEST_TIMEOUT);
+    }
+    
+    /**
+     * @param key The DHT key to look up
+     * @param sendQueue For sending I2P packets
+     * @param i2pReceiver For receiving I2P packets
+     * @param bucketManager For looking up peers, and updating them
+     * @param requestTimeout The time in milliseconds after which a peer that hasn't responded is given up on
+     */
+    ClosestNodesLookupTask(Hash key, I2PSendQueue sendQueue, I2PPacketDispatcher i2pReceiver, BucketManager bucketManager, long requestTimeout) {
         this.key = key;
+        this.requestTimeout = requestTimeout;
         this.sendQueue = sendQueue;
         localDestination = sendQueue.getLocalDestination();
         this.i2pReceiver = i2pReceiver;
         this.bucketManager = bucketManager;
         
-        peerComparator = new HashDistanceComparator(key);
-        responses = Collections.synchronizedSortedSet(new TreeSet<Destination>(peerComparator));   // nodes that have responded to a query
-        notQueriedYet = Collections.synchronizedSortedSet(new TreeSet<Destination>(peerComparator));   // peers we haven't contacted yet
-        pendingRequests = new ConcurrentHashMap<Destination, FindClosePeersPacket>();   // outstanding queries
+        peerComparator = new PeerDistanceComparator(key);
+        responses = new TreeSet<Destination>(peerComparator);   // nodes that have responded to a query
+        notQueriedYet = new TreeSet<Destination>(peerComparator);   // peers we haven't contacted yet
+        pendingRequests = new HashMap<Destination, FindClosePeersPacket>();   // outstanding queries
+        pendingPeersByPacketId = new HashMap<UniqueId, Destination>();
+        doneSignal = new CountDownLatch(1);
     }
     
+    /**
+     * Starts the lookup and waits for it to finish.
+     * @return Up to <code>k</code> peers sorted by distance from the key, see {@link #get()}
+     * @throws InterruptedException If the current thread was interrupted; the lookup is cancelled in that case
+     */
     public List<Destination> call() throws InterruptedException {
-        log.debug("Looking up nodes closest to " + key);
-        
-        PacketListener packetListener = new IncomingPacketHandler();
-        i2pReceiver.addPacketListener(packetListener);
-        
+        start();
         try {
+            doneSignal.await();
+        } catch (InterruptedException e) {
+            cancel(false);
+            throw e;
+        }
+        return results;
+    }
+    
+    /**
+     * Starts the lookup without waiting for it to finish.
+     * @return This object, for waiting on the result
+     */
+    public Future<List<Destination>> start() {
+        return start(null);
+    }
+    
+    /**
+     * Starts the lookup without waiting for it to finish.
+     * @param listener Notified when the lookup has finished; can be <code>null</code>
+     * @return This object, for waiting on the result
+     */
+    public Future<List<Destination>> start(Listener listener) {
+        synchronized(this) {
+            if (started)
+                throw new IllegalStateException("The lookup has been started already.");
+            started = true;
+            this.listener = listener;
+            
+            log.debug("Looking up nodes closest to " + key);
+            
+            packetListener = new IncomingPacketHandler();
+            i2pReceiver.addPacketListener(packetListener);
+            
+            lookupTimeoutTask = new TimerTask() {
+                @Override
+                public void run() {
+                    log.debug("Lookup for closest nodes timed out.");
+                    finish();
+                }
+            };
+            TIMEOUT_TIMER.schedule(lookupTimeoutTask, CLOSEST_NODES_LOOKUP_TIMEOUT);
+            
             // get a list of all unlocked peers (we don't how many we really need because some may not respond)
             notQueriedYet.addAll(bucketManager.getAllUnlockedPeers());
             logStatus();
             
-            startTime = getTime();
-            do {
-                // send new requests if less than alpha are pending
-                while (pendingRequests.size()<KademliaConstants.ALPHA && !notQueriedYet.isEmpty()) {
-                    Destination peer = notQueriedYet.first();   // query the closest unqueried peer
-                    notQueriedYet.remove(peer);
-                    // if the peer is us, do a local lookup; otherwise, send a request to the peer
-                    if (localDestination.equals(peer))
-                        addLocalResults(key);
-                    else {
-                        FindClosePeersPacket packet = new FindClosePeersPacket(key);
-                        pendingRequests.put(peer, packet);
-                        sendQueue.send(packet, peer);
-                    }
-                    logStatus();
-                }
+            sendRequests();
+        }
+        finishIfDone();
+        return this;
+    }
     
-                // handle timeouts
-                for (Map.Entry<Destination, FindClosePeersPacket> request: pendingRequests.entrySet())
-                    if (hasTimedOut(request.getValue(), REQUEST_TIMEOUT)) {
-                        Destination peer = request.getKey();
+    /**
+     * Sends new requests, starting with the closest unqueried peer, until <code>alpha</code>
+     * requests are pending. The caller must hold the lock on <code>this</code>.
+     */
+    private void sendRequests() {
+        while (!finished && pendingRequests.size()<KademliaConstants.ALPHA && !notQueriedYet.isEmpty()) {
+            Destination peer = notQueriedYet.pollFirst();   // query the closest unqueried peer
+            // if the peer is us, do a local lookup; otherwise, send a request to the peer
+            if (localDestination.equals(peer))
+                addLocalResults(key);
+            else {
+                FindClosePeersPacket packet = new FindClosePeersPacket(key);
+                pendingRequests.put(peer, packet);
+                pendingPeersByPacketId.put(packet.getPacketId(), peer);
+                sendQueue.send(packet, peer);
+                scheduleRequestTimeout(peer, packet, requestTimeout);
+            }
+            logStatus();
+        }
+    }
+    
+    /**
+     * Checks after <code>delay</code> milliseconds if a request has been answered.
+     * The request timeout is measured from the time the packet was sent, so if the
+     * packet was still in the send queue, the check is rescheduled.
+     * @param peer
+     * @param request
+     * @param delay
+     */
+    private void scheduleRequestTimeout(final Destination peer, final FindClosePeersPacket request, long delay) {
+        TIMEOUT_TIMER.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    synchronized(ClosestNodesLookupTask.this) {
+                        if (finished || pendingRequests.get(peer)!=request)
+                            return;
+                        long sentTime = request.getSentTime();
+                        if (sentTime<=0 || !hasTimedOut(sentTime, requestTimeout)) {
+                            long remaining = sentTime<=0 ? requestTimeout : sentTime + requestTimeout - getTime();
+                            scheduleRequestTimeout(peer, request, Math.max(1, remaining));
+                            return;
+                        }
                         log.debug("FindCloseNodes request to peer " + Util.toShortenedBase32(peer) + " timed out.");
-                        bucketManager.noResponse(peer);
-                        pendingRequests.remove(peer);
+                        removePendingRequest(peer);
+                        sendRequests();
                     }
-                
-                TimeUnit.SECONDS.sleep(1);
-            } while (!isDone());
-            log.debug("Node lookup for " + key + " found " + responses.size() + " nodes (may include local node).");
-            synchronized (responses) {
-                Iterator<Destination> i = responses.iterator();
-                while (i.hasNext())
-                    log.debug("  Node: " + Util.toBase32(i.next()));
+                    bucketManager.noResponse(peer);
+                    finishIfDone();
+                } catch (RuntimeException e) {   // an uncaught exception would kill the timer thread
+                    log.error("Exception caught while handling a request timeout", e);
+                }
             }
-        }
-        finally {
-            i2pReceiver.removePacketListener(packetListener);
-        }
-        
-        return getResults();
+        }, delay);
+    }
+    
+    private void removePendingRequest(Destination peer) {
+        FindClosePeersPacket request = pendingRequests.remove(peer);
+        if (request != null)
+            pendingPeersByPacketId.remove(request.getPacketId());
     }
     
     private void logStatus() {
-        log.debug("Lookup status for key " + key.toBase64().substring(0, 8) + "...: resp=" + responses.size() +" pend=" + pendingRequests.size() + " notQ=" + notQueriedYet.size());
+        if (log.shouldLog(Log.DEBUG))
+            log.debug("Lookup status for key " + key.toBase64().substring(0, 8) + "...: resp=" + responses.size() +" pend=" + pendingRequests.size() + " notQ=" + notQueriedYet.size());
     }
     
-    private boolean isDone() {
+    /** The caller must hold the lock on <code>this</code>. */
+    private boolean isLookupComplete() {
         // if there are no more requests to send, and no more responses to wait for, we're finished
         if (pendingRequests.isEmpty() && notQueriedYet.isEmpty())
             return true;
         
         // if we have received responses from the k closest peers, we're also finished
-        Destination kthClosestResult = null;
-        synchronized(responses) {
-            if (responses.size() >= K) {
-                Destination[] responsesArr = responses.toArray(new Destination[0]);
-                kthClosestResult = responsesArr[K-1];
-            }
-        }
-        if (kthClosestResult != null) {
-            Destination closestUnqueriedPeer = null;
-            synchronized(notQueriedYet) {
-                if (notQueriedYet.isEmpty())
-                    return true;
-                closestUnqueriedPeer = notQueriedYet.first();
-            }
+        if (responses.size() >= K) {
+            if (notQueriedYet.isEmpty())
+                return true;
+            Destination kthClosestResult = getKthClosestResponse();
+            Destination closestUnqueriedPeer = notQueriedYet.first();
             if (peerComparator.compare(kthClosestResult, closestUnqueriedPeer) <= 0)
                 return true;
         }
         
-        if (hasTimedOut(startTime, CLOSEST_NODES_LOOKUP_TIMEOUT)) {
-            log.debug("Lookup for closest nodes timed out.");
-            return true;
+        return false;
+    }
+    
+    private Destination getKthClosestResponse() {
+        int index = 0;
+        for (Destination response: responses)
+            if (++index == K)
+                return response;
+        return null;
+    }
+    
+    private void finishIfDone() {
+        boolean done;
+        synchronized(this) {
+            done = isLookupComplete();
         }
+        if (done)
+            finish();
+    }
+    
+    /**
+     * Ends the lookup, makes the results available, and notifies the listener.
+     * Does nothing if the lookup has finished already.
+     */
+    private void finish() {
+        Listener listener;
+        synchronized(this) {
+            if (finished)
+                return;
+            finished = true;
+            
+            i2pReceiver.removePacketListener(packetListener);
+            if (lookupTimeoutTask != null)
+                lookupTimeoutTask.cancel();
+            pendingRequests.clear();
+            pendingPeersByPacketId.clear();
+            
+            log.debug("Node lookup for " + key + " found " + responses.size() + " nodes (may include local node).");
+            if (log.shouldLog(Log.DEBUG))
+                for (Destination response: responses)
+                    log.debug("  Node: " + Util.toBase32(response));
+            results = getResults();
+            listener = this.listener;
+        }
+        doneSignal.countDown();
         
-        // Check for thread interruption
-        if (Thread.currentThread().isInterrupted())
-            return true;
-        
-        return false;
+        if (listener != null)
+            try {
+                listener.lookupFinished(key, results);
+            } catch (RuntimeException e) {
+                log.error("Exception caught in lookup listener", e);
+            }
     }
     
     private long getTime() {
@@ -197,11 +345,6 @@ public class ClosestNodesLookupTask implements Callable<List<Destination>> {
         return getTime() > startTime + timeout;
     }
     
-    private boolean hasTimedOut(CommunicationPacket request, long timeout) {
-        long sentTime = request.getSentTime();
-        return sentTime>0 && hasTimedOut(sentTime, timeout);
-    }
-    
     /**
      * Returns up to {@link i2p.bote.network.kademlia.KademliaConstants#K} peers,
      * sorted by distance from the key.<br/>
@@ -211,13 +354,10 @@ public class ClosestNodesLookupTask implements Callable<List<Destination>> {
      */
     private List<Destination> getResults() {
         List<Destination> resultsList = new ArrayList<Destination>();
-        synchronized (responses) {
-            Iterator<Destination> i = responses.iterator();
-            while (i.hasNext()) {
-                resultsList.add(i.next());
-                if (resultsList.size() >= K)
-                    break;
-            }
+        for (Destination response: responses) {
+            resultsList.add(response);
+            if (resultsList.size() >= K)
+                break;
         }
         return resultsList;
     }
@@ -247,48 +387,89 @@ public class ClosestNodesLookupTask implements Callable<List<Destination>> {
                 notQueriedYet.add(peer);   // this won't create duplicates because notQueriedYet is a Set
     }
     
-    // compares two Destinations in terms of closeness to <code>reference</code>
-    private static class HashDistanceComparator implements Comparator<Destination> {
-        private Hash reference;
-        
-        public HashDistanceComparator(Hash reference) {
-            this.reference = reference;
-        }
-        
-        public int compare(Destination dest1, Destination dest2) {
-            BigInteger dest1Distance = KademliaUtil.getDistance(dest1.calculateHash(), reference);
-            BigInteger dest2Distance = KademliaUtil.getDistance(dest2.calculateHash(), reference);
-            return dest1Distance.compareTo(dest2Distance);
+    // Implementation of Future
+    
+    /**
+     * Stops the lookup. The results received so far are still available through {@link #get()}.
+     * @param mayInterruptIfRunning Ignored because the lookup doesn't run in a thread of its own
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized(this) {
+            if (finished)
+                return false;
+            cancelled = true;
         }
-    };
+        finish();
+        return true;
+    }
+    
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+    
+    @Override
+    public boolean isDone() {
+        return doneSignal.getCount() == 0;
+    }
+    
+    /**
+     * Waits for the lookup to finish and returns up to <code>k</code> peers,
+     * sorted by distance from the key.<br/>
+     * The list may contain the local node if it is among the <code>k</code>
+     * closest.<br/>
+     * If no peers were found, an empty <code>List</code> is returned.
+     */
+    @Override
+    public List<Destination> get() throws InterruptedException, ExecutionException {
+        doneSignal.await();
+        return results;
+    }
+    
+    @Override
+    public List<Destination> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!doneSignal.await(timeout, unit))
+            throw new TimeoutException("Lookup for key " + key + " hasn't finished after " + unit.toMillis(timeout) + " ms.");
+        return results;
+    }
     
     private class IncomingPacketHandler implements PacketListener {
         @Override
         public void packetReceived(CommunicationPacket packet, Destination sender, long receiveTime) {
             if (packet instanceof ResponsePacket) {
                 ResponsePacket responsePacket = (ResponsePacket)packet;
-                synchronized(pendingRequests) {
-                    FindClosePeersPacket request = getPacketById(pendingRequests.values(), responsePacket.getPacketId());   // find the request the node list is in response to
+                synchronized(ClosestNodesLookupTask.this) {
+                    if (finished)
+                        return;
+                    Destination peer = pendingPeersByPacketId.get(responsePacket.getPacketId());   // find the request the node list is in response to
                     
                     // if the packet is in response to a pending request, update responses + notQueriedYet + pendingRequests
-                    if (request != null) {
-                        log.debug("Response to FindCloseNodesPacket received from " + Util.toShortenedBase32(sender));
-                        responses.add(sender);
-                        DataPacket payload = responsePacket.getPayload();
-                        if (payload instanceof PeerList)
-                            updatePeers((PeerList)payload, sender, receiveTime);
-                        
-                        pendingRequests.remove(sender);
-                    }
+                    if (peer == null)
+                        return;
+                    log.debug("Response to FindCloseNodesPacket received from " + Util.toShortenedBase32(sender));
+                    responses.add(sender);
+                    removePendingRequest(peer);
+                    DataPacket payload = responsePacket.getPayload();
+                    if (payload instanceof PeerList)
+                        updatePeers((PeerList)payload, sender, receiveTime);
+                    sendRequests();
                 }
+                finishIfDone();
+            }
+            else if (packet instanceof MalformedCommunicationPacket) {
+                synchronized(ClosestNodesLookupTask.this) {
+                    if (finished || !pendingRequests.containsKey(sender))
+                        return;
+                    removePendingRequest(sender);   // since it is not generally possible to tell if an invalid comm packet is in response to a certain request, always remove invalid packets from the pending list
+                    sendRequests();
+                }
+                finishIfDone();
             }
-            else if (packet instanceof MalformedCommunicationPacket)
-                pendingRequests.remove(sender);   // since it is not generally possible to tell if an invalid comm packet is in response to a certain request, always remove invalid packets from the pending list
         }
         
         /**
-         * Updates the <code>notQueriedYet</code> set with the peers from a <code>peerListPacket</code>,
-         * and adds the <code>sender</code> to <code>responses</code>.
+         * Updates the <code>notQueriedYet</code> set with the peers from a <code>peerListPacket</code>.
          * @param peerListPacket
          * @param sender
          * @param receiveTime
@@ -300,19 +481,5 @@ public class ClosestNodesLookupTask implements Callable<List<Destination>> {
             Collection<Destination> peersReceived = peerListPacket.getPeers();
             addPeersToBeQueried(peersReceived);
         }
-
-        /**
-         * Returns a <code>FindClosePeersPacket</code> that matches a given {@link UniqueId}
-         * from a {@link Collection} of packets, or <code>null</code> if no match.
-         * @param packets
-         * @param packetId
-         * @return
-         */
-        private FindClosePeersPacket getPacketById(Collection<FindClosePeersPacket> packets, UniqueId packetId) {
-            for (FindClosePeersPacket packet: packets)
-                if (packetId.equals(packet.getPacketId()))
-                    return packet;
-            return null;
-        }
     };
-}
\ No newline at end of file
+}
@@ -21,7 +21,6 @@
 
 package i2p.bote.network.kademlia;
 
-import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -52,13 +51,13 @@ class KBucket extends AbstractBucket {
     private static final int REPLACEMENT_CACHE_MAX_SIZE = KademliaConstants.K;
     
     private Log log = new Log(KBucket.class);
-    private BigInteger startId;
-    private BigInteger endId;
+    private KademliaId startId;
+    private KademliaId endId;
     private List<KademliaPeer> replacementCache;   // Basically a FIFO. Peers are sorted most recently seen to least recently seen
     private volatile int depth;
     private volatile long lastLookupTime;
 
-    KBucket(BigInteger startId, BigInteger endId, int depth) {
+    KBucket(KademliaId startId, KademliaId endId, int depth) {
         super(KademliaConstants.K);
         this.startId = startId;
         this.endId = endId;
@@ -66,11 +65,11 @@ class KBucket extends AbstractBucket {
         this.depth = depth;
     }
     
-    synchronized BigInteger getStartId() {
+    synchronized KademliaId getStartId() {
         return startId;
     }
     
-    synchronized BigInteger getEndId() {
+    synchronized KademliaId getEndId() {
         return endId;
     }
     
@@ -169,8 +168,8 @@ class KBucket extends AbstractBucket {
      * @return
      */
     private boolean rangeContains(Destination peer) {
-        BigInteger peerHash = new BigInteger(1, peer.calculateHash().getData());
-        return (startId.compareTo(peerHash)<=0 && endId.compareTo(peerHash)>=0);
+        Hash peerHash = peer.calculateHash();
+        return (startId.compareToHash(peerHash)<=0 && endId.compareToHash(peerHash)>=0);
     }
     
     /**
@@ -183,10 +182,10 @@ class KBucket extends AbstractBucket {
      * tree, with the old bucket representing the left branch and the new bucket
      * representing the right branch.
      * @return The new bucket
-     * @see split(BigInteger)
+     * @see split(KademliaId)
      */
     KBucket split() {
-        BigInteger pivot = startId.add(endId).divide(BigInteger.valueOf(2));
+        KademliaId pivot = startId.add(endId.subtract(startId).shiftRight(1));   // (startId+endId)/2 without overflowing
         return split(pivot);
     }
 
@@ -196,14 +195,13 @@ class KBucket extends AbstractBucket {
      * @param pivot
      * @return The new bucket (which contains the higher IDs)
      */
-    private KBucket split(BigInteger pivot) {
+    private KBucket split(KademliaId pivot) {
         depth++;
         KBucket newBucket = new KBucket(pivot, endId, depth);
         endId = pivot;
         for (int i=peers.size()-1; i>=0; i--) {
             KademliaPeer peer = peers.get(i);
-            BigInteger nodeId = new BigInteger(1, peer.getDestinationHash().getData());
-            if (nodeId.compareTo(pivot) >= 0) {
+            if (pivot.compareToHash(peer.getDestinationHash()) <= 0) {
                 newBucket.add(peer);
                 remove(peer);
             }
@@ -219,10 +217,7 @@ class KBucket extends AbstractBucket {
         if (depth == 0)
             return "(None)";
         
-        String binary = startId.toString(2);
-        while (binary.length() < Hash.HASH_LENGTH*8)
-            binary = "0" + binary;
-        return binary.substring(0, depth);
+        return startId.toBinaryString().substring(0, depth);
     }
     
     @Override
@@ -57,19 +57,22 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
-import java.math.BigInteger;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.i2p.data.DataFormatException;
 import net.i2p.data.Destination;
@@ -183,12 +186,12 @@ public class KademliaDHT extends I2PAppThread implements DHT, PacketListener {
 
     @Override
     public DhtResults findOne(Hash key, Class<? extends DhtStorablePacket> dataType) throws InterruptedException {
-        return find(key, dataType, false);
+        return find(key, dataType, 1);
     }
 
     @Override
     public DhtResults findAll(Hash key, Class<? extends DhtStorablePacket> dataType) throws InterruptedException {
-        return find(key, dataType, true);
+        return find(key, dataType, Integer.MAX_VALUE);
     }
 
     @Override
@@ -196,22 +199,12 @@ public class KademliaDHT extends I2PAppThread implements DHT, PacketListener {
         final Collection<Destination> closeNodes = getClosestNodes(dhtKey);
         log.info("Querying " + closeNodes.size() + " peers with DeletionQueries for Kademlia key " + dhtKey);
         
-        DhtStorageHandler storageHandler = storageHandlers.get(EncryptedEmailPacket.class);
-        if (storageHandler instanceof DeletionAwareDhtFolder) {
-            DeletionAwareDhtFolder<?> folder = (DeletionAwareDhtFolder<?>)storageHandler;
-            UniqueId delAuthorization = folder.getDeleteAuthorization(dhtKey);
-            if (delAuthorization != null)
-                return delAuthorization;
-        }
-        else
-            log.error("StorageHandler for EncryptedEmailPackets is not a DeletionAwareDhtFolder!");
+        UniqueId delAuthorization = getLocalDeleteAuthorization(dhtKey);
+        if (delAuthorization != null)
+            return delAuthorization;
         
         // Send the DeletionQueries
-        PacketBatch batch = new PacketBatch();
-        for (Destination node: closeNodes)
-            if (!localDestination.equals(node))   // local has already been taken care of
-                batch.putPacket(new DeletionQuery(dhtKey), node);
-        sendQueue.send(batch);
+        PacketBatch batch = sendDeletionQueries(dhtKey, closeNodes);
         batch.awaitSendCompletion();
 
         // wait for replies
@@ -220,6 +213,127 @@ public class KademliaDHT extends I2PAppThread implements DHT, PacketListener {
         
         sendQueue.remove(batch);
         
+        return getDeleteAuthorization(batch, dhtKey, verificationHash);
+    }
+    
+    @Override
+    public Map<Hash, UniqueId> findDeleteAuthorizationKeys(Map<Hash, Hash> verificationHashes, final int maxParallelLookups) throws InterruptedException {
+        Map<Hash, UniqueId> delAuthorizations = new HashMap<Hash, UniqueId>();
+        List<Hash> remainingKeys = new ArrayList<Hash>();
+        for (Hash dhtKey: verificationHashes.keySet()) {
+            UniqueId delAuthorization = getLocalDeleteAuthorization(dhtKey);
+            if (delAuthorization != null)
+                delAuthorizations.put(dhtKey, delAuthorization);
+            else
+                remainingKeys.add(dhtKey);
+        }
+        if (remainingKeys.isEmpty())
+            return delAuthorizations;
+        log.info("Sending DeletionQueries for " + remainingKeys.size() + " Kademlia keys, up to " + maxParallelLookups + " lookups at a time");
+        
+        // Look up the closest nodes for up to maxParallelLookups keys at a time, and send
+        // the DeletionQueries for a key as soon as its lookup has finished.
+        final Semaphore lookupPermits = new Semaphore(maxParallelLookups);
+        final Map<Hash, PacketBatch> batches = new ConcurrentHashMap<Hash, PacketBatch>();
+        final AtomicBoolean aborted = new AtomicBoolean();   // set when lookups are cancelled; no DeletionQueries are sent after that
+        List<ClosestNodesLookupTask> lookupTasks = new ArrayList<ClosestNodesLookupTask>();
+        try {
+            for (Hash dhtKey: remainingKeys) {
+                lookupPermits.acquire();
+                bucketManager.updateLastLookupTime(dhtKey);
+                ClosestNodesLookupTask lookupTask = new ClosestNodesLookupTask(dhtKey, sendQueue, i2pReceiver, bucketManager);
+                lookupTasks.add(lookupTask);
+                final AtomicBoolean permitReleased = new AtomicBoolean();   // makes sure the permit is released only once
+                try {
+                    lookupTask.start(new ClosestNodesLookupTask.Listener() {
+                        @Override
+                        public void lookupFinished(Hash key, List<Destination> results) {
+                            try {
+                                // lock so no batch can be added after the finally block below has removed them
+                                synchronized(aborted) {
+                                    if (!aborted.get())
+                                        batches.put(key, sendDeletionQueries(key, results));
+                                }
+                            } finally {
+                                if (permitReleased.compareAndSet(false, true))
+                                    lookupPermits.release();
+                            }
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    // the listener may never be called, so release the permit here
+                    log.error("Can't start lookup for Kademlia key " + dhtKey, e);
+                    if (permitReleased.compareAndSet(false, true))
+                        lookupPermits.release();
+                }
+            }
+            // wait for the remaining lookups to finish
+            lookupPermits.acquire(maxParallelLookups);
+            
+            // wait for replies to all batches at the same time
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(RESPONSE_TIMEOUT);
+            for (Hash dhtKey: remainingKeys) {
+                PacketBatch batch = batches.get(dhtKey);
+                if (batch == null)
+                    continue;
+                batch.awaitFirstReply(Math.max(0, deadline-System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                UniqueId delAuthorization = getDeleteAuthorization(batch, dhtKey, verificationHashes.get(dhtKey));
+                if (delAuthorization != null)
+                    delAuthorizations.put(dhtKey, delAuthorization);
+            }
+            log.info("Found " + delAuthorizations.size() + " Delete Authorizations for " + verificationHashes.size() + " Kademlia keys");
+        } finally {
+            // cancelling a lookup notifies the listener, which must not send DeletionQueries then
+            synchronized(aborted) {
+                aborted.set(true);
+            }
+            for (ClosestNodesLookupTask lookupTask: lookupTasks)
+                lookupTask.cancel(false);
+            for (PacketBatch batch: batches.values())
+                sendQueue.remove(batch);
+        }
+        
+        return delAuthorizations;
+    }
+    
+    /**
+     * Returns the Delete Authorization for a DHT key if the email packet
+     * has been deleted from the local DHT store, or <code>null</code> otherwise.
+     * @param dhtKey
+     */
+    private UniqueId getLocalDeleteAuthorization(Hash dhtKey) {
+        DhtStorageHandler storageHandler = storageHandlers.get(EncryptedEmailPacket.class);
+        if (storageHandler instanceof DeletionAwareDhtFolder)
+            return ((DeletionAwareDhtFolder<?>)storageHandler).getDeleteAuthorization(dhtKey);
+        else {
+            log.error("StorageHandler for EncryptedEmailPackets is not a DeletionAwareDhtFolder!");
+            return null;
+        }
+    }
+    
+    /**
+     * Sends a <code>DeletionQuery</code> for a DHT key to a number of peers.
+     * @param dhtKey
+     * @param closeNodes
+     * @return The batch containing the queries; it must be removed from the send queue when it is no longer needed
+     */
+    private PacketBatch sendDeletionQueries(Hash dhtKey, Collection<Destination> closeNodes) {
+        PacketBatch batch = new PacketBatch();
+        for (Destination node: closeNodes)
+            if (!localDestination.equals(node))   // local has already been taken care of
+                batch.putPacket(new DeletionQuery(dhtKey), node);
+        sendQueue.send(batch);
+        return batch;
+    }
+    
+    /**
+     * Looks for a valid Delete Authorization in the responses to a batch of <code>DeletionQueries</code>.
+     * @param batch
+     * @param dhtKey
+     * @param verificationHash
+     * @return A Delete Authorization, or <code>null</code> if none of the responses contained a valid one
+     */
+    private UniqueId getDeleteAuthorization(PacketBatch batch, Hash dhtKey, Hash verificationHash) {
         Map<Destination, DataPacket> responses = batch.getResponses();
         for (DataPacket response: responses.values())
             if (response instanceof DeletionInfoPacket) {
@@ -260,13 +374,22 @@ public class KademliaDHT extends I2PAppThread implements DHT, PacketListener {
         return bucketManager.getPeerStats(renderer);
     }
     
-    private DhtResults find(Hash key, Class<? extends DhtStorablePacket> dataType, boolean exhaustive) throws InterruptedException {
+    /**
+     * Queries the closest peers for a DHT key and returns as soon as
+     * <code>minResponses</code> peers have responded, or when all peers
+     * have responded, or after <code>RESPONSE_TIMEOUT</code> seconds.
+     * @param key
+     * @param dataType
+     * @param minResponses The number of responses to wait for; <code>Integer.MAX_VALUE</code> waits for all peers
+     * @throws InterruptedException
+     */
+    private DhtResults find(Hash key, Class<? extends DhtStorablePacket> dataType, int minResponses) throws InterruptedException {
         final Collection<Destination> closeNodes = getClosestNodes(key);
         log.info("Querying localhost + " + closeNodes.size() + " peers for data type " + dataType.getSimpleName() + ", Kademlia key " + key);
         
         DhtStorablePacket localResult = findLocally(key, dataType);
         // if a local packet exists and one result is requested, return the local packet
-        if (!exhaustive && localResult!=null) {
+        if (minResponses<=1 && localResult!=null) {
             log.debug("Locally stored packet found for hash " + key + " and data type " + dataType.getSimpleName());
             DhtResults results = new DhtResults();
             results.put(localDestination, localResult);
@@ -282,10 +405,7 @@ public class KademliaDHT extends I2PAppThread implements DHT, PacketListener {
         batch.awaitSendCompletion();
 
         // wait for replies
-        if (exhaustive)
-            batch.awaitAllResponses(RESPONSE_TIMEOUT, TimeUnit.SECONDS);
-        else
-            batch.awaitFirstReply(RESPONSE_TIMEOUT, TimeUnit.SECONDS);
+        batch.awaitResponses(minResponses, RESPONSE_TIMEOUT, TimeUnit.SECONDS);
         log.info(batch.getResponses().size() + " response packets received for hash " + key + " and data type " + dataType.getSimpleName());
         
         sendQueue.remove(batch);
@@ -497,23 +617,13 @@ public class KademliaDHT extends I2PAppThread implements DHT, PacketListener {
      * @param min
      * @param max
      */
-    private Hash createRandomHash(BigInteger min, BigInteger max) {
-        BigInteger hashValue;
+    private Hash createRandomHash(KademliaId min, KademliaId max) {
+        KademliaId hashValue;
         if (min.compareTo(max) >= 0)
             hashValue = min;
-        else {
-            hashValue = new BigInteger(Hash.HASH_LENGTH*8, RandomSource.getInstance());   // a random number between 0 and 2^256-1
-            hashValue = min.add(hashValue.mod(max.subtract(min)));   // a random number equal to or greater than min, and less than max
-        }
-        byte[] hashArray = hashValue.toByteArray();
-        if (hashArray.length>Hash.HASH_LENGTH+1 || (hashArray.length==Hash.HASH_LENGTH+1 && hashArray[0]!=0))   // it's okay for the array length to be Hash.HASH_LENGTH if the zeroth byte only contains the sign bit
-            log.error("Hash value too big to fit in " + Hash.HASH_LENGTH + " bytes: " + hashValue);
-        byte[] hashArrayPadded = new byte[Hash.HASH_LENGTH];
-        if (hashArray.length == Hash.HASH_LENGTH + 1)
-            System.arraycopy(hashArray, 1, hashArrayPadded, 0, Hash.HASH_LENGTH);
         else
-            System.arraycopy(hashArray, 0, hashArrayPadded, Hash.HASH_LENGTH-hashArray.length, hashArray.length);
-        return new Hash(hashArrayPadded);
+            hashValue = min.add(KademliaId.random(RandomSource.getInstance(), max.subtract(min)));   // a random number equal to or greater than min, and less than max
+        return hashValue.toHash();
     }
     
     /**
@@ -0,0 +1,416 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.network.kademlia;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import net.i2p.data.Hash;
+
+/**
+ * An unsigned 256-bit number that represents a Kademlia ID (the hash of a
+ * destination or a DHT key) or a distance between two IDs.<br/>
+ * The value is stored in four <code>long</code>s, so comparisons and XOR
+ * distances don't allocate memory the way <code>BigInteger</code> does.
+ * <p/>
+ * Arithmetic operations wrap around modulo 2<sup>256</sup>.<br/>
+ * Instances are immutable.
+ */
+final class KademliaId implements Comparable<KademliaId> {
+    static final int NUM_BITS = Hash.HASH_LENGTH * 8;
+    static final KademliaId MIN_VALUE = new KademliaId(0, 0, 0, 0);   // system-wide minimum hash value
+    static final KademliaId MAX_VALUE = new KademliaId(-1, -1, -1, -1);   // system-wide maximum hash value
+    
+    // w0 holds the most significant 64 bits, w3 the least significant
+    private final long w0;
+    private final long w1;
+    private final long w2;
+    private final long w3;
+    
+    private KademliaId(long w0, long w1, long w2, long w3) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+    }
+    
+    private KademliaId(long[] words) {
+        this(words[0], words[1], words[2], words[3]);
+    }
+    
+    KademliaId(Hash hash) {
+        this(hash.getData());
+    }
+    
+    /**
+     * @param data A big-endian byte array of length <code>Hash.HASH_LENGTH</code>
+     */
+    KademliaId(byte[] data) {
+        this(readLong(data, 0), readLong(data, 8), readLong(data, 16), readLong(data, 24));
+    }
+    
+    /**
+     * @param value A non-negative number less than 2<sup>256</sup>
+     */
+    KademliaId(BigInteger value) {
+        this(toByteArray(value));
+    }
+    
+    /**
+     * @param value A non-negative number
+     */
+    static KademliaId valueOf(long value) {
+        if (value < 0)
+            throw new IllegalArgumentException("Value must not be negative: " + value);
+        return new KademliaId(0, 0, 0, value);
+    }
+    
+    private static byte[] toByteArray(BigInteger value) {
+        if (value.signum()<0 || value.bitLength()>NUM_BITS)
+            throw new IllegalArgumentException("Value out of range: " + value);
+        byte[] bytes = value.toByteArray();
+        byte[] padded = new byte[Hash.HASH_LENGTH];
+        int length = Math.min(bytes.length, Hash.HASH_LENGTH);   // bytes can have an extra leading zero for the sign bit
+        System.arraycopy(bytes, bytes.length-length, padded, Hash.HASH_LENGTH-length, length);
+        return padded;
+    }
+    
+    private static long readLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i=0; i<8; i++)
+            value = (value << 8) | (data[offset+i] & 0xFF);
+        return value;
+    }
+    
+    private static void writeLong(long value, byte[] data, int offset) {
+        for (int i=7; i>=0; i--) {
+            data[offset+i] = (byte)value;
+            value >>>= 8;
+        }
+    }
+    
+    /**
+     * Calculates the Kademlia distance (XOR distance) between two hashes.
+     * @param key1
+     * @param key2
+     */
+    static KademliaId getDistance(Hash key1, Hash key2) {
+        byte[] data1 = key1.getData();
+        byte[] data2 = key2.getData();
+        return new KademliaId(
+                readLong(data1, 0) ^ readLong(data2, 0),
+                readLong(data1, 8) ^ readLong(data2, 8),
+                readLong(data1, 16) ^ readLong(data2, 16),
+                readLong(data1, 24) ^ readLong(data2, 24));
+    }
+    
+    /**
+     * Compares the distances of two hashes to this ID without creating any objects.
+     * @param key1
+     * @param key2
+     * @return A negative number if <code>key1</code> is closer to this ID than <code>key2</code>,
+     * a positive number if <code>key2</code> is closer, or zero if both are at the same distance
+     */
+    int compareDistances(Hash key1, Hash key2) {
+        byte[] data1 = key1.getData();
+        byte[] data2 = key2.getData();
+        int result = compareUnsigned(readLong(data1, 0)^w0, readLong(data2, 0)^w0);
+        if (result == 0)
+            result = compareUnsigned(readLong(data1, 8)^w1, readLong(data2, 8)^w1);
+        if (result == 0)
+            result = compareUnsigned(readLong(data1, 16)^w2, readLong(data2, 16)^w2);
+        if (result == 0)
+            result = compareUnsigned(readLong(data1, 24)^w3, readLong(data2, 24)^w3);
+        return result;
+    }
+    
+    private static int compareUnsigned(long a, long b) {
+        if (a == b)
+            return 0;
+        return (a ^ Long.MIN_VALUE) < (b ^ Long.MIN_VALUE) ? -1 : 1;
+    }
+    
+    @Override
+    public int compareTo(KademliaId other) {
+        int result = compareUnsigned(w0, other.w0);
+        if (result == 0)
+            result = compareUnsigned(w1, other.w1);
+        if (result == 0)
+            result = compareUnsigned(w2, other.w2);
+        if (result == 0)
+            result = compareUnsigned(w3, other.w3);
+        return result;
+    }
+    
+    /**
+     * Compares this ID to a hash without creating any objects.
+     * @param hash
+     * @return A negative number, zero, or a positive number if this ID is
+     * less than, equal to, or greater than <code>hash</code>
+     */
+    int compareToHash(Hash hash) {
+        byte[] data = hash.getData();
+        int result = compareUnsigned(w0, readLong(data, 0));
+        if (result == 0)
+            result = compareUnsigned(w1, readLong(data, 8));
+        if (result == 0)
+            result = compareUnsigned(w2, readLong(data, 16));
+        if (result == 0)
+            result = compareUnsigned(w3, readLong(data, 24));
+        return result;
+    }
+    
+    /**
+     * Returns <code>true</code> if <code>start &lt;= hash &lt; end</code>.
+     * @param hash
+     * @param start
+     * @param end
+     */
+    static boolean isInRange(Hash hash, KademliaId start, KademliaId end) {
+        return start.compareToHash(hash)<=0 && end.compareToHash(hash)>0;
+    }
+    
+    KademliaId xor(KademliaId other) {
+        return new KademliaId(w0^other.w0, w1^other.w1, w2^other.w2, w3^other.w3);
+    }
+    
+    KademliaId add(KademliaId other) {
+        long r3 = w3 + other.w3;
+        long carry = compareUnsigned(r3, w3)<0 ? 1 : 0;
+        long r2 = w2 + other.w2 + carry;
+        carry = (carry==0 ? compareUnsigned(r2, w2)<0 : compareUnsigned(r2, w2)<=0) ? 1 : 0;
+        long r1 = w1 + other.w1 + carry;
+        carry = (carry==0 ? compareUnsigned(r1, w1)<0 : compareUnsigned(r1, w1)<=0) ? 1 : 0;
+        long r0 = w0 + other.w0 + carry;
+        return new KademliaId(r0, r1, r2, r3);
+    }
+    
+    KademliaId subtract(KademliaId other) {
+        long r3 = w3 - other.w3;
+        long borrow = compareUnsigned(w3, other.w3)<0 ? 1 : 0;
+        long r2 = w2 - other.w2 - borrow;
+        borrow = (borrow==0 ? compareUnsigned(w2, other.w2)<0 : compareUnsigned(w2, other.w2)<=0) ? 1 : 0;
+        long r1 = w1 - other.w1 - borrow;
+        borrow = (borrow==0 ? compareUnsigned(w1, other.w1)<0 : compareUnsigned(w1, other.w1)<=0) ? 1 : 0;
+        long r0 = w0 - other.w0 - borrow;
+        return new KademliaId(r0, r1, r2, r3);
+    }
+    
+    /**
+     * Multiplies this number by a non-negative <code>int</code>.
+     * @param factor
+     */
+    KademliaId multiply(int factor) {
+        if (factor < 0)
+            throw new IllegalArgumentException("Factor must not be negative: " + factor);
+        int[] digits = toIntArray();
+        long carry = 0;
+        for (int i=digits.length-1; i>=0; i--) {
+            long product = (digits[i] & 0xFFFFFFFFL) * factor + carry;
+            digits[i] = (int)product;
+            carry = product >>> 32;
+        }
+        return fromIntArray(digits);
+    }
+    
+    /**
+     * Divides this number by a positive <code>int</code>, rounding down.
+     * @param divisor
+     */
+    KademliaId divide(int divisor) {
+        int[] digits = toIntArray();
+        divide(digits, divisor);
+        return fromIntArray(digits);
+    }
+    
+    /**
+     * Returns the remainder of dividing this number by a positive <code>int</code>.
+     * @param divisor
+     */
+    int remainder(int divisor) {
+        return divide(toIntArray(), divisor);
+    }
+    
+    /** Divides a big-endian array of unsigned 32-bit digits in place and returns the remainder. */
+    private static int divide(int[] digits, int divisor) {
+        if (divisor <= 0)
+            throw new IllegalArgumentException("Divisor must be positive: " + divisor);
+        long remainder = 0;
+        for (int i=0; i<digits.length; i++) {
+            long dividend = (remainder << 32) | (digits[i] & 0xFFFFFFFFL);
+            digits[i] = (int)(dividend / divisor);
+            remainder = dividend % divisor;
+        }
+        return (int)remainder;
+    }
+    
+    private int[] toIntArray() {
+        return new int[] {(int)(w0>>>32), (int)w0, (int)(w1>>>32), (int)w1, (int)(w2>>>32), (int)w2, (int)(w3>>>32), (int)w3};
+    }
+    
+    private static KademliaId fromIntArray(int[] digits) {
+        long[] words = new long[4];
+        for (int i=0; i<4; i++)
+            words[i] = ((long)digits[2*i] << 32) | (digits[2*i+1] & 0xFFFFFFFFL);
+        return new KademliaId(words);
+    }
+    
+    KademliaId shiftRight(int numBits) {
+        if (numBits <= 0)
+            return this;
+        if (numBits >= NUM_BITS)
+            return MIN_VALUE;
+        long[] words = new long[] {w0, w1, w2, w3};
+        long[] result = new long[4];
+        int wordShift = numBits / 64;
+        int bitShift = numBits % 64;
+        for (int i=3; i>=wordShift; i--) {
+            long word = words[i-wordShift] >>> bitShift;
+            if (bitShift>0 && i-wordShift-1>=0)
+                word |= words[i-wordShift-1] << (64-bitShift);
+            result[i] = word;
+        }
+        return new KademliaId(result);
+    }
+    
+    /**
+     * Sets the <code>numBits</code> least significant bits to zero.
+     * @param numBits
+     */
+    KademliaId clearLowestBits(int numBits) {
+        if (numBits <= 0)
+            return this;
+        if (numBits >= NUM_BITS)
+            return MIN_VALUE;
+        long[] words = new long[] {w0, w1, w2, w3};
+        for (int i=3; i>=0 && numBits>0; i--) {
+            if (numBits >= 64)
+                words[i] = 0;
+            else
+                words[i] &= -1L << numBits;
+            numBits -= 64;
+        }
+        return new KademliaId(words);
+    }
+    
+    /**
+     * Returns the number of zero bits preceding the most significant one bit.
+     * If the value is zero, <code>NUM_BITS</code> is returned.
+     */
+    int numberOfLeadingZeros() {
+        if (w0 != 0)
+            return Long.numberOfLeadingZeros(w0);
+        if (w1 != 0)
+            return 64 + Long.numberOfLeadingZeros(w1);
+        if (w2 != 0)
+            return 128 + Long.numberOfLeadingZeros(w2);
+        return 192 + Long.numberOfLeadingZeros(w3);
+    }
+    
+    /** Returns the number of bits needed to represent this number. */
+    int bitLength() {
+        return NUM_BITS - numberOfLeadingZeros();
+    }
+    
+    /**
+     * Returns <code>true</code> if a bit is set.
+     * @param bitIndex The bit index, <code>0</code> being the least significant bit
+     */
+    boolean testBit(int bitIndex) {
+        long word;
+        switch (bitIndex / 64) {
+            case 0: word = w3; break;
+            case 1: word = w2; break;
+            case 2: word = w1; break;
+            case 3: word = w0; break;
+            default: throw new IllegalArgumentException("Bit index out of range: " + bitIndex);
+        }
+        return (word & (1L << (bitIndex%64))) != 0;
+    }
+    
+    /** Returns the lowest 64 bits of this number. */
+    long longValue() {
+        return w3;
+    }
+    
+    /**
+     * Returns a uniformly distributed random value <code>r</code> such that
+     * <code>0 &lt;= r &lt; bound</code>.
+     * @param rng
+     * @param bound Must be greater than zero
+     */
+    static KademliaId random(Random rng, KademliaId bound) {
+        int bitLength = bound.bitLength();
+        if (bitLength == 0)
+            throw new IllegalArgumentException("Bound must be greater than zero.");
+        
+        // generate random numbers with the same bit length as bound until one is less than bound
+        KademliaId value;
+        do {
+            value = new KademliaId(rng.nextLong(), rng.nextLong(), rng.nextLong(), rng.nextLong()).shiftRight(NUM_BITS - bitLength);
+        } while (value.compareTo(bound) >= 0);
+        return value;
+    }
+    
+    Hash toHash() {
+        byte[] data = new byte[Hash.HASH_LENGTH];
+        writeLong(w0, data, 0);
+        writeLong(w1, data, 8);
+        writeLong(w2, data, 16);
+        writeLong(w3, data, 24);
+        return new Hash(data);
+    }
+    
+    BigInteger toBigInteger() {
+        return new BigInteger(1, toHash().getData());
+    }
+    
+    /** Returns all <code>NUM_BITS</code> bits, including leading zeros, most significant bit first. */
+    String toBinaryString() {
+        StringBuilder binary = new StringBuilder(NUM_BITS);
+        for (int i=NUM_BITS-1; i>=0; i--)
+            binary.append(testBit(i) ? '1' : '0');
+        return binary.toString();
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof KademliaId))
+            return false;
+        KademliaId other = (KademliaId)obj;
+        return w0==other.w0 && w1==other.w1 && w2==other.w2 && w3==other.w3;
+    }
+    
+    @Override
+    public int hashCode() {
+        long hash = w0 ^ w1 ^ w2 ^ w3;
+        return (int)(hash ^ (hash>>>32));
+    }
+    
+    /** Returns the value as a 64-digit hexadecimal number. */
+    @Override
+    public String toString() {
+        return String.format("%016x%016x%016x%016x", w0, w1, w2, w3);
+    }
+}
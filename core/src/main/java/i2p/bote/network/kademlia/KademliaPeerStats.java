@@ -24,7 +24,6 @@ package i2p.bote.network.kademlia;
 import net.i2p.data.Destination;
 import net.i2p.data.Hash;
 
-import java.math.BigInteger;
 import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -66,7 +65,7 @@ class KademliaPeerStats implements DhtPeerStats {
     private void addPeerData(DhtPeerStatsRenderer renderer, AbstractBucket bucket,
                              Hash localDestinationHash) {
         for (KademliaPeer peer: bucket) {
-            BigInteger distance = KademliaUtil.getDistance(localDestinationHash, peer.calculateHash());
+            KademliaId distance = KademliaId.getDistance(localDestinationHash, peer.calculateHash());
             data.add(new KademliaPeerStatsRow(
                     renderer,
                     data.size() + 1,
@@ -113,13 +112,13 @@ class KademliaPeerStats implements DhtPeerStats {
         private final int peer;
         private final Destination destination;
         private final String bucketPrefix;
-        private final BigInteger distance;
+        private final KademliaId distance;
         private final boolean isLocked;
         private final int consecTimeouts;
         private final long firstSeen;
 
         KademliaPeerStatsRow(DhtPeerStatsRenderer renderer, int peer, Destination destination,
-                             String bucketPrefix, BigInteger distance, boolean isLocked,
+                             String bucketPrefix, KademliaId distance, boolean isLocked,
                              int consecTimeouts, long firstSeen) {
             this.renderer = renderer;
             this.peer = peer;
@@ -144,7 +143,7 @@ class KademliaPeerStats implements DhtPeerStats {
             row.add(String.valueOf(peer));
             row.add(Util.toBase32(destination));
             row.add(bucketPrefix);
-            row.add(distance.shiftRight((Hash.HASH_LENGTH-2)*8).toString());   // show the 2 most significant bytes
+            row.add(String.valueOf(distance.shiftRight((Hash.HASH_LENGTH-2)*8).longValue()));   // show the 2 most significant bytes
             row.add(String.valueOf(isLocked ?
                     renderer.translateContent(Content.YES)+"("+consecTimeouts+")" :
                     renderer.translateContent(Content.NO)));
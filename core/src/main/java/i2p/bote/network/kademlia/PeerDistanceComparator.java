@@ -21,23 +21,23 @@
 
 package i2p.bote.network.kademlia;
 
-import java.math.BigInteger;
 import java.util.Comparator;
 
 import net.i2p.data.Destination;
 import net.i2p.data.Hash;
 
+/**
+ * Compares two Destinations in terms of closeness to a reference hash.
+ */
 class PeerDistanceComparator implements Comparator<Destination> {
-    private Hash reference;
+    private KademliaId reference;
     
     PeerDistanceComparator(Hash reference) {
-        this.reference = reference;
+        this.reference = new KademliaId(reference);
     }
     
     @Override
     public int compare(Destination peer1, Destination peer2) {
-        BigInteger distance1 = KademliaUtil.getDistance(peer1.calculateHash(), reference);
-        BigInteger distance2 = KademliaUtil.getDistance(peer2.calculateHash(), reference);
-        return distance1.compareTo(distance2);
+        return reference.compareDistances(peer1.calculateHash(), peer2.calculateHash());
     }
 }
\ No newline at end of file
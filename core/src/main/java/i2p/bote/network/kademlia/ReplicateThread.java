@@ -32,14 +32,20 @@ import i2p.bote.packet.dht.DeleteRequest;
 import i2p.bote.packet.dht.DhtStorablePacket;
 import i2p.bote.packet.dht.StoreRequest;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 import net.i2p.data.Destination;
@@ -66,10 +72,17 @@ import net.i2p.util.Log;
  *     <li/>Otherwise, replication for that entry is finished.
  *   </ol>  
  * </ol>
+ * DHT items are read in chunks of <code>CHUNK_SIZE</code>. The store requests for a chunk
+ * are grouped by peer and handed to the send queue without waiting for responses; at most
+ * <code>MAX_PACKETS_IN_FLIGHT</code> requests are queued but not sent yet at any time.
+ * Delete requests are handled in {@link #packetReceived(CommunicationPacket, Destination, long)}
+ * as they come in.
  */
 class ReplicateThread extends I2PAppThread implements PacketListener {
     private static final int SEND_TIMEOUT_MINUTES = 5;   // the maximum amount of time to wait for a store request to be sent
-    private static final int WAIT_TIME_SECONDS = 5;   // amount of time to wait after sending a store request
+    private static final int CHUNK_SIZE = 100;   // number of DHT items to group by peer at a time
+    private static final int MAX_PACKETS_IN_FLIGHT = 50;   // maximum number of store requests that are queued but not sent yet
+    private static final int DELETE_REQUEST_WAIT_SECONDS = 60;   // amount of time to wait for delete requests after the last store request has been sent
     
     private final Log log = new Log(ReplicateThread.class);
     private Destination localDestination;
@@ -80,12 +93,26 @@ class ReplicateThread extends I2PAppThread implements PacketListener {
     private long nextReplicationTime;
     private Set<DhtStorageHandler> dhtStores;
     private Set<Hash> keysToSkip;   // all DHT keys that have been re-stored since the last replication
-    private Map<Hash, DeleteRequest> receivedDeleteRequests;   // Matching keys in this Map cause the delete request
-                                                               // to be replicated instead of the DHT item.
+    private ConcurrentMap<Hash, List<Destination>> replicationTargets;   // the peers each DHT key is being replicated to
+    private ConcurrentMap<Hash, DeleteRequest> receivedDeleteRequests;   // Matching keys in this Map cause the delete request
+                                                                         // to be replicated instead of the DHT item.
     private volatile boolean replicationRunning;   // true when replication is active
+    private long deleteRequestWaitTime;
 
     ReplicateThread(Destination localDestination, I2PSendQueue sendQueue, I2PPacketDispatcher i2pReceiver, BucketManager bucketManager) {
+        this(localDestination, sendQueue, i2pReceiver, bucketManager, TimeUnit.SECONDS.toMillis(DELETE_REQUEST_WAIT_SECONDS));
+    }
+    
+    /**
+     * @param localDestination
+     * @param sendQueue
+     * @param i2pReceiver
+     * @param bucketManager
+     * @param deleteRequestWaitTime The time in milliseconds to wait for delete requests after the last store request has been sent
+     */
+    ReplicateThread(Destination localDestination, I2PSendQueue sendQueue, I2PPacketDispatcher i2pReceiver, BucketManager bucketManager, long deleteRequestWaitTime) {
         super("ReplicateThd");
+        this.deleteRequestWaitTime = deleteRequestWaitTime;
         this.localDestination = localDestination;
         this.sendQueue = sendQueue;
         this.i2pReceiver = i2pReceiver;
@@ -93,6 +120,7 @@ class ReplicateThread extends I2PAppThread implements PacketListener {
         rng = new Random();
         dhtStores = new ConcurrentHashSet<DhtStorageHandler>();
         keysToSkip = new ConcurrentHashSet<Hash>();
+        replicationTargets = new ConcurrentHashMap<Hash, List<Destination>>();
         receivedDeleteRequests = new ConcurrentHashMap<Hash, DeleteRequest>();
     }
     
@@ -107,53 +135,87 @@ class ReplicateThread extends I2PAppThread implements PacketListener {
             return min;
     }
 
-    private void replicate() throws InterruptedException {
+    void replicate() throws InterruptedException {
         log.debug("Replicating DHT data...");
         
         replicationRunning = true;
-        // refresh peers close to the local destination
-        ClosestNodesLookupTask lookupTask = new ClosestNodesLookupTask(localDestination.calculateHash(), sendQueue, i2pReceiver, bucketManager);
-        List<Destination> closestNodes = lookupTask.call();
-        closestNodes.remove(localDestination);
-
-        int numReplicated = 0;
-        int numSkipped = 0;
-
-        // Replicate all packets except keysToSkip, onto the known peers closest to the packet.
-        // If a peer responds with a delete request, replicate the delete request instead.
-        for (DhtStorageHandler dhtStore: dhtStores)
-            for (Iterator<? extends DhtStorablePacket> packetIterator=dhtStore.individualPackets(); packetIterator.hasNext(); ) {
-                DhtStorablePacket packet = packetIterator.next();
-                Hash dhtKey = packet.getDhtKey();
-                if (!keysToSkip.contains(dhtKey)) {
-                    StoreRequest request = new StoreRequest(packet);
-                    List<Destination> closestPeers = bucketManager.getClosestPeers(dhtKey, KademliaConstants.K);
-                    for (Destination peer: closestPeers) {
-                        // Send the store request and give the peer time to respond with a delete request
-                        sendQueue.send(request, peer).await(SEND_TIMEOUT_MINUTES, TimeUnit.MINUTES);
-                        TimeUnit.SECONDS.sleep(WAIT_TIME_SECONDS);
+        try {
+            // refresh peers close to the local destination
+            ClosestNodesLookupTask lookupTask = new ClosestNodesLookupTask(localDestination.calculateHash(), sendQueue, i2pReceiver, bucketManager);
+            lookupTask.call();
+    
+            int numReplicated = 0;
+            int numSkipped = 0;
+            Queue<CountDownLatch> packetsInFlight = new LinkedList<CountDownLatch>();
+            
+            // Replicate all packets except keysToSkip, onto the known peers closest to the packet.
+            // If a peer responds with a delete request, replicate the delete request instead.
+            for (DhtStorageHandler dhtStore: dhtStores) {
+                Iterator<? extends DhtStorablePacket> packetIterator = dhtStore.individualPackets();
+                while (packetIterator.hasNext()) {
+                    Map<Destination, List<StoreRequest>> requestsByPeer = new LinkedHashMap<Destination, List<StoreRequest>>();
+                    for (int i=0; i<CHUNK_SIZE && packetIterator.hasNext(); i++) {
+                        DhtStorablePacket packet = packetIterator.next();
+                        Hash dhtKey = packet.getDhtKey();
+                        if (keysToSkip.contains(dhtKey)) {
+                            numSkipped++;
+                            continue;
+                        }
                         
-                        // If we received a delete request for the DHT item, notify the other close peers
-                        DeleteRequest delRequest = receivedDeleteRequests.get(dhtKey);
-                        if (delRequest != null) {
-                            // KademliaDHT handles the delete request for local data, but we forward the
-                            // request to the other nodes close to the DHT key.
-                            // Note that the delete request contains only one entry, see packetReceived()
-                            sendDeleteRequest(delRequest, closestPeers, peer);
-                            break;
+                        List<Destination> closestPeers = bucketManager.getClosestPeers(dhtKey, KademliaConstants.K);
+                        closestPeers.remove(localDestination);
+                        replicationTargets.put(dhtKey, closestPeers);
+                        StoreRequest request = new StoreRequest(packet);
+                        for (Destination peer: closestPeers) {
+                            List<StoreRequest> requests = requestsByPeer.get(peer);
+                            if (requests == null) {
+                                requests = new ArrayList<StoreRequest>();
+                                requestsByPeer.put(peer, requests);
+                            }
+                            requests.add(request);
                         }
+                        numReplicated++;
                     }
-                    numReplicated++;
+                    
+                    sendStoreRequests(requestsByPeer, packetsInFlight);
                 }
-                else
-                    numSkipped++;
             }
-        
-        keysToSkip.clear();
-        replicationRunning = false;
-        receivedDeleteRequests.clear();
-        
-        log.debug("Replication finished. Replicated " + numReplicated + " packets, skipped: " + numSkipped);
+            
+            // wait for the remaining store requests to go out, then give peers time to respond with delete requests
+            while (!packetsInFlight.isEmpty())
+                packetsInFlight.remove().await(SEND_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+            TimeUnit.MILLISECONDS.sleep(deleteRequestWaitTime);
+            
+            log.debug("Replication finished. Replicated " + numReplicated + " packets, skipped: " + numSkipped);
+        } finally {
+            replicationRunning = false;
+            keysToSkip.clear();
+            replicationTargets.clear();
+            receivedDeleteRequests.clear();
+        }
+    }
+    
+    /**
+     * Queues store requests for sending, one peer after the other. Requests for DHT keys
+     * a delete request has been received for are not sent.<br/>
+     * If there are <code>MAX_PACKETS_IN_FLIGHT</code> unsent requests in the queue, this
+     * method waits for the oldest one to be sent before adding another one.
+     * @param requestsByPeer
+     * @param packetsInFlight The "sent" latches of the requests that have been queued
+     * @throws InterruptedException
+     */
+    private void sendStoreRequests(Map<Destination, List<StoreRequest>> requestsByPeer, Queue<CountDownLatch> packetsInFlight) throws InterruptedException {
+        for (Map.Entry<Destination, List<StoreRequest>> entry: requestsByPeer.entrySet()) {
+            Destination peer = entry.getKey();
+            for (StoreRequest request: entry.getValue()) {
+                if (receivedDeleteRequests.containsKey(request.getKey()))
+                    continue;
+                
+                while (packetsInFlight.size() >= MAX_PACKETS_IN_FLIGHT)
+                    packetsInFlight.remove().await(SEND_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+                packetsInFlight.add(sendQueue.send(request, peer));
+            }
+        }
     }
     
     /**
@@ -164,7 +226,7 @@ class ReplicateThread extends I2PAppThread implements PacketListener {
      */
     private void sendDeleteRequest(DeleteRequest delRequest, Collection<Destination> peers, Destination except) {
         for (Destination peer: peers)
-            if (peer != except)
+            if (!peer.equals(except))
                 sendQueue.send(delRequest, peer);
     }
     
@@ -179,6 +241,7 @@ class ReplicateThread extends I2PAppThread implements PacketListener {
     
     @Override
     public void run() {
+        i2pReceiver.addPacketListener(this);
         nextReplicationTime = System.currentTimeMillis();
         
         while (!Thread.interrupted()) {
@@ -187,7 +250,7 @@ class ReplicateThread extends I2PAppThread implements PacketListener {
                 long waitTime = randomTime(REPLICATE_INTERVAL-REPLICATE_VARIANCE, REPLICATE_INTERVAL+REPLICATE_VARIANCE);
                 nextReplicationTime += waitTime;
                 log.debug("Next replication at " + new Date(nextReplicationTime));
-                TimeUnit.SECONDS.sleep(waitTime);
+                TimeUnit.MILLISECONDS.sleep(waitTime);
             } catch (InterruptedException e) {
                 break;
             } catch (RuntimeException e) {   // catch unexpected exceptions to keep the thread running
@@ -195,13 +258,15 @@ class ReplicateThread extends I2PAppThread implements PacketListener {
             }
         }
         
+        i2pReceiver.removePacketListener(this);
         log.debug("ReplicateThread interrupted, exiting.");
     }
 
     /**
      * PacketListener implementation.<br/>
-     * Listens for delete requests and adds them to <code>receivedDeleteRequests</code> if a replication
-     * is running. If not, this method does nothing.
+     * Listens for delete requests for DHT items that are being replicated, and forwards them
+     * to the other peers the items are replicated to. If no replication is running, this
+     * method does nothing.
      */
     @Override
     public void packetReceived(CommunicationPacket packet, Destination sender, long receiveTime) {
@@ -210,9 +275,15 @@ class ReplicateThread extends I2PAppThread implements PacketListener {
             Collection<Hash> dhtKeys = delRequest.getDhtKeys();
             // create a DHT key - delete request mapping for each DHT key in the delete request
             for (Hash dhtKey: dhtKeys) {
+                List<Destination> closestPeers = replicationTargets.get(dhtKey);
+                if (closestPeers == null)
+                    continue;
                 DeleteRequest indivRequest = delRequest.getIndividualRequest(dhtKey);
-                receivedDeleteRequests.put(dhtKey, indivRequest);
+                // KademliaDHT handles the delete request for local data, but we forward the
+                // request to the other nodes close to the DHT key (only once per DHT key).
+                if (receivedDeleteRequests.putIfAbsent(dhtKey, indivRequest) == null)
+                    sendDeleteRequest(indivRequest, closestPeers, sender);
             }
         }
     }
-}
\ No newline at end of file
+}
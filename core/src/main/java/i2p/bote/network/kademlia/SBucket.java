@@ -21,7 +21,6 @@
 
 package i2p.bote.network.kademlia;
 
-import java.math.BigInteger;
 import java.util.Collections;
 
 import net.i2p.data.Hash;
@@ -47,7 +46,7 @@ class SBucket extends AbstractBucket {
             numSections = 1;
         sections = new BucketSection[numSections];
         for (int i=0; i<numSections; i++)
-            sections[i] = new BucketSection(BigInteger.ZERO, BigInteger.ZERO, 0);
+            sections[i] = new BucketSection(KademliaId.MIN_VALUE, KademliaId.MIN_VALUE, 0);
     }
 
     /**
@@ -92,33 +91,38 @@ class SBucket extends AbstractBucket {
     }
 
     BucketSection[] getSections() {
-        BigInteger minSiblingId;
-        BigInteger maxSiblingId;
+        KademliaId minSiblingId;
+        KademliaId maxSiblingId;
         if (peers.size() < 2) {
             // If there are less than two siblings, use the whole ID space. This avoids zero-length bucket sections.
-            minSiblingId = MIN_HASH_VALUE;
-            maxSiblingId = MAX_HASH_VALUE;
+            minSiblingId = KademliaId.MIN_VALUE;
+            maxSiblingId = KademliaId.MAX_VALUE;
         }
         else {
             // find the minimum and the maximum Kademlia id of all siblings
-            minSiblingId = MAX_HASH_VALUE;
-            maxSiblingId = MIN_HASH_VALUE;
+            minSiblingId = KademliaId.MAX_VALUE;
+            maxSiblingId = KademliaId.MIN_VALUE;
             for (KademliaPeer sibling: peers) {
-                BigInteger id = new BigInteger(1, sibling.getDestinationHash().getData());
-                minSiblingId = minSiblingId.min(id);
-                maxSiblingId = maxSiblingId.max(id);
+                KademliaId id = new KademliaId(sibling.getDestinationHash());
+                if (id.compareTo(minSiblingId) < 0)
+                    minSiblingId = id;
+                if (id.compareTo(maxSiblingId) > 0)
+                    maxSiblingId = id;
             }
         }
         
         // divide the interval [minSiblingId, maxSiblingId] in sections.length equal size parts
-        BigInteger interval = maxSiblingId.subtract(minSiblingId);
-        BigInteger numSections = BigInteger.valueOf(sections.length);
+        KademliaId interval = maxSiblingId.subtract(minSiblingId);
+        int numSections = sections.length;
+        // interval*(i+1) can exceed 256 bits, so calculate interval*(i+1)/numSections as quotient*(i+1) + remainder*(i+1)/numSections
+        KademliaId quotient = interval.divide(numSections);
+        long remainder = interval.remainder(numSections);
         sections[0].start = minSiblingId;
         for (int i=0; i<sections.length; i++) {
             if (i > 0)
                 sections[i].start = sections[i-1].end;
-            BigInteger iPlusOne = BigInteger.valueOf(i+1);
-            sections[i].end = minSiblingId.add(interval.multiply(iPlusOne).divide(numSections));   // sections[i].end = minSiblingId + interval*(i+1)/numSections
+            KademliaId offset = quotient.multiply(i+1).add(KademliaId.valueOf(remainder*(i+1)/numSections));
+            sections[i].end = minSiblingId.add(offset);   // sections[i].end = minSiblingId + interval*(i+1)/numSections
         }
         
         return sections;
@@ -144,11 +148,11 @@ class SBucket extends AbstractBucket {
      * A hash h is considered within a section if <code>section.start <= h < section.end</code>.
      */
     class BucketSection {
-        private BigInteger start;
-        private BigInteger end;
+        private KademliaId start;
+        private KademliaId end;
         private long lastLookupTime;
         
-        private BucketSection(BigInteger start, BigInteger end, long lastLookupTime) {
+        private BucketSection(KademliaId start, KademliaId end, long lastLookupTime) {
             this.start = start;
             this.end = end;
             this.lastLookupTime = lastLookupTime;
@@ -158,17 +162,16 @@ class SBucket extends AbstractBucket {
             return lastLookupTime;
         }
 
-        public BigInteger getStart() {
+        public KademliaId getStart() {
             return start;
         }
         
-        public BigInteger getEnd() {
+        public KademliaId getEnd() {
             return end;
         }
         
         private boolean contains(Hash key) {
-            BigInteger keyValue = new BigInteger(1, key.getData());
-            return (start.compareTo(keyValue)<=0 && keyValue.compareTo(end)<0);
+            return KademliaId.isInRange(key, start, end);
         }
     }
 }
\ No newline at end of file
@@ -34,6 +34,7 @@ import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
 
 import net.i2p.crypto.SHA256Generator;
 import net.i2p.data.Hash;
@@ -158,10 +159,22 @@ public class EncryptedEmailPacket extends DhtStorablePacket {
      * @throws InvalidCipherTextException 
      */
     public UnencryptedEmailPacket decrypt(EmailIdentity identity) throws GeneralSecurityException {
+        return decrypt(identity, identity.getPrivateEncryptionKey());
+    }
+
+    /**
+     * Decrypts the encrypted part of the packet with the private key of an <code>EmailIdentity</code>,
+     * using a key obtained from {@link CryptoImplementation#prepareDecryptionKey(PrivateKey)} in place
+     * of the identity's private encryption key.
+     * @param identity
+     * @param decryptionKey The prepared private encryption key of <code>identity</code>
+     * @throws GeneralSecurityException 
+     */
+    public UnencryptedEmailPacket decrypt(EmailIdentity identity, PrivateKey decryptionKey) throws GeneralSecurityException {
         if (cryptoImpl != identity.getCryptoImpl())
             throw new IllegalArgumentException("CryptoImplementations don't match. Email Packet: <" + cryptoImpl.getName() + ">, Email Identity: <" + identity.getCryptoImpl().getName() + ">.");
         
-        byte[] decryptedData = cryptoImpl.decrypt(encryptedData, identity.getPublicEncryptionKey(), identity.getPrivateEncryptionKey());
+        byte[] decryptedData = cryptoImpl.decrypt(encryptedData, identity.getPublicEncryptionKey(), decryptionKey);
         return new UnencryptedEmailPacket(decryptedData);
     }
 
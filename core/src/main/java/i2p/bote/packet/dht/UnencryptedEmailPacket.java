@@ -72,6 +72,19 @@ public class UnencryptedEmailPacket extends DataPacket {
         if (bytesRead < maxPacketSize)
             content = Arrays.copyOf(content, bytesRead);
      }
+    
+    /**
+     * Creates an <code>UnencryptedEmailPacket</code> with a given content.
+     * @param content Must not be longer than {@link #getMaxContentLength(int)}
+     * @param messageId
+     * @param fragmentIndex
+     */
+    public UnencryptedEmailPacket(byte[] content, UniqueId messageId, int fragmentIndex) {
+        this.messageId = messageId;
+        delAuthorization = new UniqueId();
+        this.fragmentIndex = fragmentIndex;
+        this.content = content;
+    }
      
     /**
      * Creates an <code>UnencryptedEmailPacket</code> from a <code>byte</code> array that contains MIME data.
@@ -94,6 +107,29 @@ public class UnencryptedEmailPacket extends DataPacket {
         verify();
     }
     
+    /**
+     * Creates a copy of an <code>UnencryptedEmailPacket</code> that has the same
+     * content but a new delete authorization key, so the same email data can be
+     * sent to more than one recipient.
+     * @param original
+     */
+    public UnencryptedEmailPacket(UnencryptedEmailPacket original) {
+        messageId = original.messageId;
+        delAuthorization = new UniqueId();
+        fragmentIndex = original.fragmentIndex;
+        numFragments = original.numFragments;
+        content = original.content;
+    }
+    
+    /**
+     * Returns the maximum number of content bytes a packet can hold without its byte
+     * array representation exceeding <code>maxPacketSize</code>.
+     * @param maxPacketSize
+     */
+    public static int getMaxContentLength(int maxPacketSize) {
+        return maxPacketSize - OVERHEAD;
+    }
+    
     public UniqueId getMessageId() {
         return messageId;
      }
@@ -32,18 +32,27 @@ import i2p.bote.folder.FolderIterator;
 import i2p.bote.network.DHT;
 import i2p.bote.network.NetworkStatusSource;
 
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
+import net.i2p.data.Hash;
 import net.i2p.util.I2PAppThread;
 import net.i2p.util.Log;
 
 /**
  * Periodically sends <code>DeletionQueries</code> for sent email packets and
- * updates the email's delivery status.
+ * updates the email's delivery status.<br/>
+ * Undelivered packets from several emails are checked together, and the DHT is
+ * queried for up to {@link Configuration#getDeliveryCheckParallelism()} packets
+ * at a time.
  * @see EmailMetadata 
  */
 public class DeliveryChecker extends I2PAppThread {
+    private static final int BATCH_SIZE = 100;   // the approximate number of packets to check at once
+    
     private Log log = new Log(DeliveryChecker.class);
     private DHT dht;
     private EmailFolder sentFolder;
@@ -74,11 +83,22 @@ public class DeliveryChecker extends I2PAppThread {
                     if (configuration.isDeliveryCheckEnabled()) {
                         log.debug("Processing sent emails in directory '" + sentFolder.getStorageDirectory() + "'.");
                         FolderIterator<Email> iterator = sentFolder.iterate();
+                        List<Email> emails = new ArrayList<Email>();
+                        int numPackets = 0;
                         while (iterator.hasNext()) {
                             Email email = iterator.next();
-                            if (!email.getMetadata().isDelivered())
-                                checkDelivery(email);
+                            if (!email.getMetadata().isDelivered()) {
+                                emails.add(email);
+                                numPackets += email.getMetadata().getUndeliveredPacketKeys().size();
+                            }
+                            if (numPackets >= BATCH_SIZE) {
+                                checkDelivery(emails);
+                                emails.clear();
+                                numPackets = 0;
+                            }
                         }
+                        if (!emails.isEmpty())
+                            checkDelivery(emails);
                     }
                 } finally {
                     TimeUnit.MINUTES.sleep(configuration.getDeliveryCheckInterval());
@@ -93,30 +113,39 @@ public class DeliveryChecker extends I2PAppThread {
     }
     
     /**
-     * Checks the DHT for all undelivered packets belonging to a given email.
-     * @param email
+     * Checks the DHT for all undelivered packets belonging to a number of emails,
+     * and updates the metadata of emails for which a delivery was confirmed.<br/>
+     * Because the lookups can take a long time, the metadata is re-read before
+     * it is updated, and emails that no longer exist are skipped.
+     * @param emails
      * @throws InterruptedException
      */
-    private void checkDelivery(Email email) throws InterruptedException {
-        EmailMetadata metadata = email.getMetadata();
-        Collection<PacketInfo> packets = metadata.getUndeliveredPacketKeys();
-        synchronized(sentFolder) {
-            boolean updateMetadata = false;
-            
-            for (PacketInfo packet: packets) {
-                UniqueId delAuth = dht.findDeleteAuthorizationKey(packet.dhtKey, packet.delVerificationHash);
-                if (delAuth != null) {
-                    metadata.setPacketDelivered(packet.dhtKey, true);
-                    updateMetadata = true;
+    void checkDelivery(List<Email> emails) throws InterruptedException {
+        Map<Hash, Hash> verificationHashes = new HashMap<Hash, Hash>();
+        for (Email email: emails)
+            for (PacketInfo packet: email.getMetadata().getUndeliveredPacketKeys())
+                verificationHashes.put(packet.dhtKey, packet.delVerificationHash);
+        
+        Map<Hash, UniqueId> delAuthorizations = dht.findDeleteAuthorizationKeys(verificationHashes, configuration.getDeliveryCheckParallelism());
+        if (delAuthorizations.isEmpty())
+            return;
+        
+        for (Email email: emails) {
+            List<Hash> deliveredPackets = new ArrayList<Hash>();
+            for (PacketInfo packet: email.getMetadata().getUndeliveredPacketKeys())
+                if (delAuthorizations.containsKey(packet.dhtKey)) {
+                    deliveredPackets.add(packet.dhtKey);
                     log.debug("Delivery of email packet with DHT key " + packet.dhtKey + " confirmed.");
                 }
-            }
             
-            if (updateMetadata)
-                try {
-                    sentFolder.saveMetadata(email);
-                } catch (Exception e) {
-                    log.error("Can't save email metadata.", e);
+            if (!deliveredPackets.isEmpty())
+                synchronized(sentFolder) {
+                    try {
+                        if (!sentFolder.setPacketsDelivered(email.getMessageID(), deliveredPackets))
+                            log.debug("Not updating metadata because the email no longer exists: <" + email.getMessageID() + ">");
+                    } catch (Exception e) {
+                        log.error("Can't save email metadata.", e);
+                    }
                 }
         }
     }
@@ -31,6 +31,7 @@ import i2p.bote.folder.IncompleteEmailFolder;
 import i2p.bote.folder.IndexPacketFolder;
 import i2p.bote.network.CheckEmailTask;
 import i2p.bote.network.DHT;
+import i2p.bote.network.EmailPacketFetchExecutor;
 import i2p.bote.network.I2PSendQueue;
 import i2p.bote.network.NetworkStatusSource;
 
@@ -65,6 +66,7 @@ public class EmailChecker extends I2PAppThread {
     private RelayPeerManager peerManager;
     private ThreadFactory mailCheckThreadFactory;
     private ExecutorService mailCheckExecutor;
+    private EmailPacketFetchExecutor emailPacketFetchExecutor;   // shared by all CheckEmailTasks
     private Map<EmailIdentity, Future<Boolean>> pendingMailCheckTasks;
     private volatile long lastMailCheckTime;   // the time when the last mail check started (completed or not)
     private volatile long previousMailCheckTime;   // the time when the last completed mail check started
@@ -103,6 +105,9 @@ public class EmailChecker extends I2PAppThread {
                 TimeUnit.SECONDS,
                 new LinkedBlockingQueue<Runnable>(),
                 mailCheckThreadFactory);
+        emailPacketFetchExecutor = new EmailPacketFetchExecutor(configuration.getMaxConcurEmailPacketFetches());
+        if (emailPacketFetchExecutor.isUsingVirtualThreads())
+            log.debug("Using virtual threads for retrieving email packets.");
         pendingMailCheckTasks = Collections.synchronizedMap(new HashMap<EmailIdentity, Future<Boolean>>());
         interval = configuration.getMailCheckInterval();
         interval = TimeUnit.MINUTES.toMillis(interval);
@@ -139,7 +144,7 @@ public class EmailChecker extends I2PAppThread {
 
     public synchronized void checkForMail(EmailIdentity identity) {
         if (!pendingMailCheckTasks.containsKey(identity)) {
-            Callable<Boolean> checkMailTask = new CheckEmailTask(identity, dht, peerManager, sendQueue, incompleteEmailFolder, emailDhtStorageFolder, indexPacketDhtStorageFolder);
+            Callable<Boolean> checkMailTask = new CheckEmailTask(identity, identities, dht, emailPacketFetchExecutor, peerManager, sendQueue, incompleteEmailFolder, emailDhtStorageFolder, indexPacketDhtStorageFolder);
             Future<Boolean> task = mailCheckExecutor.submit(checkMailTask);
             pendingMailCheckTasks.put(identity, task);
         }
@@ -192,6 +197,20 @@ public class EmailChecker extends I2PAppThread {
         return false;
     }
 
+    /**
+     * Returns the number of email packet retrievals that are waiting for a free thread.
+     */
+    public int getNumQueuedEmailPacketFetches() {
+        return emailPacketFetchExecutor.getQueuedTaskCount();
+    }
+    
+    /**
+     * Returns the number of email packets currently being retrieved from the DHT.
+     */
+    public int getNumActiveEmailPacketFetches() {
+        return emailPacketFetchExecutor.getActiveTaskCount();
+    }
+    
     private synchronized void updatePendingTasks() {
         try {
             synchronized (pendingMailCheckTasks) {
@@ -245,6 +264,7 @@ public class EmailChecker extends I2PAppThread {
         }
 
         mailCheckExecutor.shutdownNow();
+        emailPacketFetchExecutor.shutdownNow();
         log.debug("EmailChecker interrupted, thread exiting.");
     }
 }
\ No newline at end of file
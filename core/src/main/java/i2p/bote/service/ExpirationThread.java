@@ -31,7 +31,14 @@ import java.util.concurrent.TimeUnit;
 import net.i2p.util.I2PAppThread;
 import net.i2p.util.Log;
 
+/**
+ * Periodically calls {@link ExpirationListener#deleteExpired()} on all registered
+ * listeners. Listeners delete expired content in small portions, so the interval
+ * is kept short.
+ */
 public class ExpirationThread extends I2PAppThread {
+    private static final int INTERVAL_MINUTES = 5;
+    
     private Log log = new Log(ExpirationThread.class);
     private List<ExpirationListener> expirationListeners;
 
@@ -51,7 +58,7 @@ public class ExpirationThread extends I2PAppThread {
             try {
                 for (ExpirationListener listener: expirationListeners)
                     listener.deleteExpired();
-                TimeUnit.DAYS.sleep(1);
+                TimeUnit.MINUTES.sleep(INTERVAL_MINUTES);
             } catch (InterruptedException e) {
                 break;
             } catch (RuntimeException e) {   // catch unexpected exceptions to keep the thread running
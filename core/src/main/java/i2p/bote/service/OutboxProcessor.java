@@ -22,6 +22,7 @@
 package i2p.bote.service;
 
 import i2p.bote.Configuration;
+import i2p.bote.Util;
 import i2p.bote.email.Email;
 import i2p.bote.email.EmailDestination;
 import i2p.bote.email.EmailIdentity;
@@ -50,7 +51,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import javax.mail.Address;
@@ -65,6 +72,8 @@ import net.i2p.util.Log;
  * A background thread that periodically checks the outbox for emails and sends them.
  */
 public class OutboxProcessor extends I2PAppThread {
+    private static final int MAX_CONCURRENT_RECIPIENTS = 10;   // the maximum number of recipients to encrypt and store email packets for at a time
+    
     private Log log = new Log(OutboxProcessor.class);
     private DHT dht;
     private Outbox outbox;
@@ -75,6 +84,7 @@ public class OutboxProcessor extends I2PAppThread {
     private NetworkStatusSource networkStatusSource;
     private CountDownLatch wakeupSignal;   // tells the thread to interrupt the current wait and resume the loop
     private List<OutboxListener> outboxListeners;
+    private ThreadPoolExecutor recipientExecutor;
     
     public OutboxProcessor(DHT dht, Outbox outbox, RelayPeerManager peerManager, RelayPacketFolder relayPacketFolder, Identities identities, Configuration configuration, NetworkStatusSource networkStatusSource) {
         super("OutboxProcsr");
@@ -87,6 +97,14 @@ public class OutboxProcessor extends I2PAppThread {
         this.networkStatusSource = networkStatusSource;
         wakeupSignal = new CountDownLatch(1);
         outboxListeners = Collections.synchronizedList(new ArrayList<OutboxListener>());
+        recipientExecutor = new ThreadPoolExecutor(
+                MAX_CONCURRENT_RECIPIENTS,
+                MAX_CONCURRENT_RECIPIENTS,
+                30,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                Util.createThreadFactory("OutboxSendTask", 256 * 1024));
+        recipientExecutor.allowCoreThreadTimeOut(true);
     }
     
     @Override
@@ -130,6 +148,7 @@ public class OutboxProcessor extends I2PAppThread {
             }
         }
         
+        recipientExecutor.shutdownNow();
         log.debug("OutboxProcessor thread exiting.");
     }
     
@@ -141,7 +160,11 @@ public class OutboxProcessor extends I2PAppThread {
     }
 
     /**
-     * Sends an {@link Email} to all recipients specified in the header.
+     * Sends an {@link Email} to all recipients specified in the header.<br/>
+     * The email is converted to email packets only once for all recipients who are not
+     * BCC recipients, and once for each BCC recipient. Because creating packets modifies
+     * the email's headers, all packets are created before any of them are sent.
+     * Encrypting and storing the packets is done for several recipients in parallel.
      * @param email
      * @throws MessagingException 
      * @throws DhtException 
@@ -162,25 +185,60 @@ public class OutboxProcessor extends I2PAppThread {
             }
         }
         
+        EmailIdentity.IdentityConfig identityConfig;
+        if (email.isAnonymous())
+            identityConfig = configuration;
+        else
+            identityConfig = senderIdentity.getWrappedConfig(configuration);
+        int maxPacketSize = getMaxEmailPacketSize(identityConfig.getNumStoreHops());
+        
         // send to I2P-Bote recipients
         outbox.setStatus(email, new EmailStatus(Status.SENDING));
         Address[] recipients = email.getAllRecipients();
-        boolean containsExternalRecipients = false;
-        for (int i=0; i<recipients.length; i++) {
-            Address recipient = recipients[i];
+        int numExternalRecipients = 0;
+        for (Address recipient: recipients)
+            if (isExternalAddress(recipient))
+                numExternalRecipients++;
+        String messageId = email.getMessageID();
+        EmailMetadata metadata = email.getMetadata();
+        SendProgress progress = new SendProgress(messageId, numExternalRecipients, recipients.length);
+        
+        // create all packets before sending because createEmailPackets() modifies the email's headers
+        Collection<UnencryptedEmailPacket> nonBccPackets = null;   // packets for all recipients who are not BCC recipients
+        List<SendTask> tasks = new ArrayList<SendTask>();
+        for (Address recipient: recipients) {
             if (isExternalAddress(recipient))
-                containsExternalRecipients = true;
-            else
-                sendToOne(senderIdentity, recipient.toString(), email);
-            outbox.setStatus(email, new EmailStatus(Status.SENT_TO,
-                    i+1, recipients.length));
+                continue;
+            String recipientStr = recipient.toString();
+            Collection<UnencryptedEmailPacket> emailPackets;
+            if (email.isBCC(recipientStr))
+                emailPackets = createEmailPackets(email, senderIdentity, recipientStr, maxPacketSize);
+            else {
+                if (nonBccPackets == null)
+                    nonBccPackets = createEmailPackets(email, senderIdentity, null, maxPacketSize);
+                emailPackets = nonBccPackets;
+            }
+            tasks.add(new SendTask(identityConfig, recipientStr, messageId, metadata, emailPackets, progress));
+        }
+        boolean sendToGateway = numExternalRecipients>0 && configuration.isGatewayEnabled();
+        if (sendToGateway && nonBccPackets==null)
+            nonBccPackets = createEmailPackets(email, senderIdentity, null, maxPacketSize);
+        
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        try {
+            for (SendTask task: tasks)
+                results.add(recipientExecutor.submit(task));
+            waitForResults(results);
+        } finally {
+            for (Future<Void> result: results)
+                result.cancel(true);   // only has an effect if an exception occurred
         }
         
         // send to external recipients if there are any
-        if (containsExternalRecipients) {
-            if (configuration.isGatewayEnabled()) {
-                sendToOne(senderIdentity, configuration.getGatewayDestination(), email);
-                outbox.setStatus(email, new EmailStatus(Status.EMAIL_SENT));
+        if (numExternalRecipients > 0) {
+            if (sendToGateway) {
+                sendToOne(identityConfig, configuration.getGatewayDestination(), messageId, metadata, nonBccPackets);
+                outbox.setStatus(messageId, new EmailStatus(Status.EMAIL_SENT));
             }
             else {
                 outbox.setStatus(email, new EmailStatus(Status.GATEWAY_DISABLED));
@@ -188,70 +246,181 @@ public class OutboxProcessor extends I2PAppThread {
             }
         }
     }
-
+    
     /**
-     * Sends an {@link Email} to one recipient.
+     * Creates email packets and sets the outbox status if an error occurs.
+     * @param email
      * @param senderIdentity The sender's Email Identity, or <code>null</code> for anonymous emails
+     * @param bccToKeep The BCC address to include in the email, or <code>null</code> to remove all BCC addresses
+     * @param maxPacketSize
+     * @throws MessagingException 
+     * @throws GeneralSecurityException 
+     * @throws PasswordException 
+     * @see Email#createEmailPackets(EmailIdentity, i2p.bote.crypto.KeyUpdateHandler, String, int)
+     */
+    private Collection<UnencryptedEmailPacket> createEmailPackets(Email email, EmailIdentity senderIdentity, String bccToKeep, int maxPacketSize) throws MessagingException, GeneralSecurityException, PasswordException {
+        try {
+            return email.createEmailPackets(senderIdentity, identities, bccToKeep, maxPacketSize);
+        } catch (MessagingException e) {
+            log.error("Can't create email packets. Message ID = '" + email.getMessageID() + "'", e);
+            outbox.setStatus(email, new EmailStatus(Status.ERROR_CREATING_PACKETS,
+                    e.getLocalizedMessage()));
+            throw e;
+        } catch (GeneralSecurityException e) {
+            log.error("Can't create email packets. Message ID = '" + email.getMessageID() + "'", e);
+            outbox.setStatus(email, new EmailStatus(Status.ERROR_CREATING_PACKETS,
+                    e.getLocalizedMessage()));
+            throw e;
+        }
+    }
+    
+    /**
+     * Waits for all {@link SendTask}s to finish. If one or more tasks failed,
+     * the exception thrown by the first one is rethrown.
+     * @param results
+     * @throws MessagingException 
+     * @throws DhtException 
+     * @throws GeneralSecurityException 
+     * @throws PasswordException 
+     * @throws InterruptedException 
+     */
+    private void waitForResults(List<Future<Void>> results) throws MessagingException, DhtException, GeneralSecurityException, PasswordException, InterruptedException {
+        Throwable firstException = null;
+        for (Future<Void> result: results)
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                if (firstException == null)
+                    firstException = e.getCause();
+            }
+        
+        if (firstException == null)
+            return;
+        if (firstException instanceof MessagingException)
+            throw (MessagingException)firstException;
+        if (firstException instanceof DhtException)
+            throw (DhtException)firstException;
+        if (firstException instanceof GeneralSecurityException)
+            throw (GeneralSecurityException)firstException;
+        if (firstException instanceof PasswordException)
+            throw (PasswordException)firstException;
+        if (firstException instanceof InterruptedException)
+            throw (InterruptedException)firstException;
+        if (firstException instanceof RuntimeException)
+            throw (RuntimeException)firstException;
+        if (firstException instanceof Error)
+            throw (Error)firstException;
+        throw new MessagingException("Can't send email.", (Exception)firstException);
+    }
+
+    /**
+     * Sends an {@link Email} to one recipient.<br/>
+     * This method doesn't touch the <code>Email</code> object, so it is safe to call while
+     * other threads send the same email.
+     * @param identityConfig The sender identity's configuration, or the global configuration for anonymous emails
      * @param recipient
-     * @param email
+     * @param messageId The email's message ID
+     * @param metadata The email's metadata, which packet information is added to
+     * @param emailPackets The email in packet form; copies with new delete authorization keys are sent
      * @throws MessagingException 
      * @throws DhtException 
      * @throws GeneralSecurityException 
      * @throws PasswordException 
      * @throws InterruptedException 
      */
-    private void sendToOne(EmailIdentity senderIdentity, String recipient, Email email) throws MessagingException, DhtException, GeneralSecurityException, PasswordException, InterruptedException {
+    private void sendToOne(EmailIdentity.IdentityConfig identityConfig, String recipient, String messageId, EmailMetadata metadata, Collection<UnencryptedEmailPacket> emailPackets) throws MessagingException, DhtException, GeneralSecurityException, PasswordException, InterruptedException {
         String logSuffix = null;   // only used for logging
         try {
-            logSuffix = "Recipient = '" + recipient + "' Message ID = '" + email.getMessageID() + "'";
+            logSuffix = "Recipient = '" + recipient + "' Message ID = '" + messageId + "'";
             log.info("Sending email: " + logSuffix);
             EmailDestination recipientDest = new EmailDestination(recipient);
 
-            EmailIdentity.IdentityConfig identityConfig;
-            if (email.isAnonymous())
-                identityConfig = configuration;
-            else
-                identityConfig = senderIdentity.getWrappedConfig(configuration);
             int hops = identityConfig.getNumStoreHops();
             long minDelay = identityConfig.getRelayMinDelay() * 60 * 1000;
             long maxDelay = identityConfig.getRelayMaxDelay() * 60 * 1000;
             int relayRedundancy = identityConfig.getRelayRedundancy();
 
-            int maxPacketSize = getMaxEmailPacketSize(hops);
-            Collection<UnencryptedEmailPacket> emailPackets = email.createEmailPackets(senderIdentity, identities, recipient, maxPacketSize);
-            
             IndexPacket indexPacket = new IndexPacket(recipientDest);
-            EmailMetadata metadata = email.getMetadata();
-            for (UnencryptedEmailPacket unencryptedPacket: emailPackets) {
+            for (UnencryptedEmailPacket sharedPacket: emailPackets) {
+                // each recipient gets a different delete authorization, so recipients can't delete each other's packets
+                UnencryptedEmailPacket unencryptedPacket = new UnencryptedEmailPacket(sharedPacket);
                 EncryptedEmailPacket emailPacket = new EncryptedEmailPacket(unencryptedPacket, recipientDest);
                 send(emailPacket, hops, minDelay, maxDelay, relayRedundancy);
                 indexPacket.put(emailPacket);
-                metadata.addPacketInfo(recipientDest, emailPacket.getDhtKey(), emailPacket.getDeleteVerificationHash());
+                synchronized(metadata) {
+                    metadata.addPacketInfo(recipientDest, emailPacket.getDhtKey(), emailPacket.getDeleteVerificationHash());
+                }
             }
             send(indexPacket, hops, minDelay, maxDelay, relayRedundancy);
-            outbox.saveMetadata(email);
+            synchronized(metadata) {
+                outbox.saveMetadata(messageId, metadata);
+            }
         } catch (GeneralSecurityException e) {
             log.error("Invalid recipient address. " + logSuffix, e);
-            outbox.setStatus(email, new EmailStatus(Status.INVALID_RECIPIENT,
+            outbox.setStatus(messageId, new EmailStatus(Status.INVALID_RECIPIENT,
                     recipient));
             throw e;
-        } catch (MessagingException e) {
-            log.error("Can't create email packets. " + logSuffix, e);
-            outbox.setStatus(email, new EmailStatus(Status.ERROR_CREATING_PACKETS,
-                    e.getLocalizedMessage()));
-            throw e;
         } catch (DhtException e) {
             log.error("Can't store email packet on the DHT. " + logSuffix, e);
-            outbox.setStatus(email, new EmailStatus(Status.ERROR_SENDING,
+            outbox.setStatus(messageId, new EmailStatus(Status.ERROR_SENDING,
                     e.getLocalizedMessage()));
             throw e;
         } catch (IOException e) {
             log.error("Can't save metadata. " + logSuffix, e);
-            outbox.setStatus(email, new EmailStatus(Status.ERROR_SAVING_METADATA,
+            outbox.setStatus(messageId, new EmailStatus(Status.ERROR_SAVING_METADATA,
                     e.getLocalizedMessage()));
         }
     }
     
+    /** Sends an email to one recipient and updates the send progress. */
+    private class SendTask implements Callable<Void> {
+        private EmailIdentity.IdentityConfig identityConfig;
+        private String recipient;
+        private String messageId;
+        private EmailMetadata metadata;
+        private Collection<UnencryptedEmailPacket> emailPackets;
+        private SendProgress progress;
+        
+        SendTask(EmailIdentity.IdentityConfig identityConfig, String recipient, String messageId, EmailMetadata metadata, Collection<UnencryptedEmailPacket> emailPackets, SendProgress progress) {
+            this.identityConfig = identityConfig;
+            this.recipient = recipient;
+            this.messageId = messageId;
+            this.metadata = metadata;
+            this.emailPackets = emailPackets;
+            this.progress = progress;
+        }
+        
+        @Override
+        public Void call() throws MessagingException, DhtException, GeneralSecurityException, PasswordException, InterruptedException {
+            sendToOne(identityConfig, recipient, messageId, metadata, emailPackets);
+            progress.recipientDone();
+            return null;
+        }
+    }
+    
+    /**
+     * Counts the recipients an email has been sent to, and updates the outbox status.
+     * External recipients are counted as done from the start because they are all
+     * handled by a single send to the gateway.
+     */
+    private class SendProgress {
+        private String messageId;
+        private int numDone;
+        private int numRecipients;
+        
+        SendProgress(String messageId, int numDone, int numRecipients) {
+            this.messageId = messageId;
+            this.numDone = numDone;
+            this.numRecipients = numRecipients;
+        }
+        
+        synchronized void recipientDone() {
+            numDone++;
+            outbox.setStatus(messageId, new EmailStatus(Status.SENT_TO,
+                    numDone, numRecipients));
+        }
+    }
+    
     /**
      * Stores a packet in the DHT directly or via relay peers.
      * @param hops The number of hops, or zero to store it directly in the DHT
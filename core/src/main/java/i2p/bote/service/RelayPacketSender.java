@@ -22,9 +22,11 @@
 package i2p.bote.service;
 
 import i2p.bote.Configuration;
+import i2p.bote.UniqueId;
 import i2p.bote.Util;
 import i2p.bote.folder.ExpirationListener;
-import i2p.bote.folder.PacketFolder;
+import i2p.bote.folder.RelayPacketFolder;
+import i2p.bote.folder.RelayPacketListener;
 import i2p.bote.network.I2PSendQueue;
 import i2p.bote.network.PacketListener;
 import i2p.bote.packet.CommunicationPacket;
@@ -32,63 +34,77 @@ import i2p.bote.packet.ResponsePacket;
 import i2p.bote.packet.StatusCode;
 import i2p.bote.packet.relay.RelayRequest;
 
+import java.io.File;
 import java.util.Iterator;
-import java.util.concurrent.CountDownLatch;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
 
 import net.i2p.data.Destination;
+import net.i2p.util.ConcurrentHashSet;
 import net.i2p.util.I2PAppThread;
 import net.i2p.util.Log;
 
 /**
  * A background thread that sends packets in the relay outbox to the I2P network.
+ * <p/>
+ * The relay folder is only read on startup; packets added after that are reported
+ * through {@link RelayPacketListener}. Packet files are kept in a queue ordered by
+ * send time, and a packet is only read from disk when it is due.<br/>
+ * Any number of packets can be awaiting confirmation at the same time. A packet
+ * is deleted when the next relay peer confirms it, and sent again after
+ * <code>pause</code> minutes if no confirmation has been received.
  */
-public class RelayPacketSender extends I2PAppThread implements ExpirationListener, PacketListener {
+public class RelayPacketSender extends I2PAppThread implements ExpirationListener, PacketListener, RelayPacketListener {
     private final Log log = new Log(RelayPacketSender.class);
 
     private I2PSendQueue sendQueue;
-    private PacketFolder<RelayRequest> packetFolder;
-    private int pause;   // the wait time, in minutes, before processing the folder again
-    private RelayRequest lastSentPacket;   // last relay packet sent, or null
-    private CountDownLatch confirmationReceived;   // zero if a "OK" response has been received for lastSentPacket
+    private RelayPacketFolder packetFolder;
+    private int pause;   // the wait time, in minutes, before an unconfirmed packet is sent again
+    private DelayQueue<ScheduledPacket> scheduledPackets;   // packet files ordered by the time they are to be sent
+    private Set<File> packetFiles;   // all packet files that have not been confirmed or deleted
+    private ConcurrentMap<UniqueId, File> unconfirmedPackets;   // packet IDs of sent packets, and the files they were read from
     
-    public RelayPacketSender(I2PSendQueue sendQueue, PacketFolder<RelayRequest> packetFolder, Configuration configuration) {
+    public RelayPacketSender(I2PSendQueue sendQueue, RelayPacketFolder packetFolder, Configuration configuration) {
         super("RelayPktSndr");
         setPriority(MIN_PRIORITY);
         this.sendQueue = sendQueue;
         this.packetFolder = packetFolder;
         pause = configuration.getRelaySendPause();
+        scheduledPackets = new DelayQueue<ScheduledPacket>();
+        packetFiles = new ConcurrentHashSet<File>();
+        unconfirmedPackets = new ConcurrentHashMap<UniqueId, File>();
     }
     
     @Override
     public void run() {
+        // register before reading the folder so no packet is missed; packets that are seen twice are only scheduled once
+        packetFolder.addRelayPacketListener(this);
+        for (File file: packetFolder.getPacketFiles())
+            schedule(file);
+        
         while (!Thread.interrupted()) {
             try {
-                Iterator<RelayRequest> iterator = packetFolder.iterator();
-                while (iterator.hasNext()) {
-                    RelayRequest packet = iterator.next();
-                    if (System.currentTimeMillis() >= packet.getSendTime()) {
-                        log.debug("Sending relay packet to destination " + Util.toBase32(packet.getNextDestination()));
-                        CountDownLatch sentSignal;
-                        Destination nextDestination = packet.getNextDestination();
-                        // synchronize access to lastSentPacket (which can be null, so synchronize on "this")
-                        synchronized(this) {
-                            lastSentPacket = packet;
-                            confirmationReceived = new CountDownLatch(1);
-                            sentSignal = sendQueue.send(lastSentPacket, nextDestination);
-                        }
-                        sentSignal.await();
-                        
-                        TimeUnit.MINUTES.sleep(2);
-                        // if confirmation has been received, delete the packet
-                        if (confirmationReceived.await(0, TimeUnit.SECONDS)) {
-                            log.debug("Confirmation received from relay peer " + Util.toShortenedBase32(nextDestination) + ", deleting packet: " + packet);
-                            iterator.remove();
-                        }
-                    }
+                File file = scheduledPackets.take().file;
+                if (!packetFiles.contains(file))   // skip packets that have been confirmed or deleted
+                    continue;
+                
+                RelayRequest packet = packetFolder.getPacket(file);
+                if (packet == null) {
+                    packetFiles.remove(file);
+                    continue;
                 }
+                Destination nextDestination = packet.getNextDestination();
+                log.debug("Sending relay packet to destination " + Util.toBase32(nextDestination));
+                unconfirmedPackets.put(packet.getPacketId(), file);
+                sendQueue.send(packet, nextDestination);
                 
-                TimeUnit.MINUTES.sleep(pause);
+                // send the packet again if it hasn't been confirmed by then
+                long retryTime = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(pause);
+                scheduledPackets.add(new ScheduledPacket(file, retryTime));
             } catch (InterruptedException e) {
                 break;
             } catch (RuntimeException e) {   // catch unexpected exceptions to keep the thread running
@@ -96,30 +112,76 @@ public class RelayPacketSender extends I2PAppThread implements ExpirationListene
             }
         }
         
+        packetFolder.removeRelayPacketListener(this);
         log.debug("RelayPacketSender thread interrupted, exiting.");
     }
     
+    /**
+     * Adds a packet file to the queue, unless it has been added before.
+     * @param file
+     */
+    private void schedule(File file) {
+        if (packetFiles.add(file))
+            scheduledPackets.add(new ScheduledPacket(file, packetFolder.getSendTime(file)));
+    }
+    
+    @Override
+    public void relayPacketAdded(File file) {
+        schedule(file);
+    }
+    
     /** Deletes relay packets that are still in the folder 100 days after the scheduled send time */
     @Override
     public void deleteExpired() {
-        for (Iterator<RelayRequest> iterator=packetFolder.iterator(); iterator.hasNext();) {
-            RelayRequest packet = iterator.next();
-            if (System.currentTimeMillis() > packet.getSendTime() + EXPIRATION_TIME_MILLISECONDS)
-                iterator.remove();
+        for (File file: packetFolder.getPacketFilesBefore(System.currentTimeMillis() - EXPIRATION_TIME_MILLISECONDS)) {
+            packetFiles.remove(file);
+            packetFolder.remove(file);
         }
+        
+        // forget about sent packets that have expired
+        for (Iterator<File> iterator=unconfirmedPackets.values().iterator(); iterator.hasNext();)
+            if (!packetFiles.contains(iterator.next()))
+                iterator.remove();
     }
     
     @Override
     public void packetReceived(CommunicationPacket packet, Destination sender, long receiveTime) {
-        // synchronize access to lastSentPacket (which can be null, so synchronize on "this")
-        synchronized(this) {
-            if (lastSentPacket!=null && packet instanceof ResponsePacket) {
-                ResponsePacket responsePacket = (ResponsePacket)packet;
-                boolean packetIdMatches = lastSentPacket.getPacketId().equals(responsePacket.getPacketId());
-                boolean statusOk = StatusCode.OK == responsePacket.getStatusCode();
-                if (packetIdMatches && statusOk)
-                    confirmationReceived.countDown();
+        if (packet instanceof ResponsePacket) {
+            ResponsePacket responsePacket = (ResponsePacket)packet;
+            if (StatusCode.OK == responsePacket.getStatusCode()) {
+                File file = unconfirmedPackets.remove(responsePacket.getPacketId());
+                if (file != null && packetFiles.remove(file)) {
+                    log.debug("Confirmation received from relay peer " + Util.toShortenedBase32(sender) + ", deleting packet file: <" + file.getAbsolutePath() + ">");
+                    packetFolder.remove(file);
+                }
             }
         }
     }
-}
\ No newline at end of file
+    
+    /** A packet file that is due for sending at a certain time */
+    private static class ScheduledPacket implements Delayed {
+        private File file;
+        private long sendTime;
+        
+        public ScheduledPacket(File file, long sendTime) {
+            this.file = file;
+            this.sendTime = sendTime;
+        }
+        
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(sendTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+        
+        @Override
+        public int compareTo(Delayed other) {
+            long otherSendTime = ((ScheduledPacket)other).sendTime;
+            if (sendTime < otherSendTime)
+                return -1;
+            else if (sendTime > otherSendTime)
+                return 1;
+            else
+                return 0;
+        }
+    }
+}
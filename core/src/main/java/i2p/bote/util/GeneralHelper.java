@@ -28,6 +28,7 @@ import i2p.bote.Util;
 import i2p.bote.addressbook.AddressBook;
 import i2p.bote.crypto.CryptoFactory;
 import i2p.bote.crypto.CryptoImplementation;
+import i2p.bote.debug.EncryptedFileCheck;
 import i2p.bote.email.AddressDisplayFilter;
 import i2p.bote.email.Email;
 import i2p.bote.email.EmailAttribute;
@@ -38,6 +39,7 @@ import i2p.bote.email.Identities;
 import i2p.bote.email.IllegalDestinationParametersException;
 import i2p.bote.fileencryption.PasswordException;
 import i2p.bote.folder.EmailFolder;
+import i2p.bote.folder.EmailFolderIndex;
 import i2p.bote.folder.Outbox.EmailStatus;
 import i2p.bote.network.DhtException;
 import i2p.bote.network.NetworkStatus;
@@ -385,6 +387,18 @@ public class GeneralHelper {
         return folder.getElements(getAddressDisplayFilter(), sortColumn, descending);
     }
 
+    /**
+     * Like {@link #getEmails(EmailFolder, EmailAttribute, boolean)} but returns folder index
+     * entries, so no email files are read.
+     * @param folder
+     * @param sortColumn
+     * @param descending
+     * @throws PasswordException
+     */
+    public static List<EmailFolderIndex.Entry> getEmailEntries(EmailFolder folder, EmailAttribute sortColumn, boolean descending) throws PasswordException {
+        return folder.getEntries(getAddressDisplayFilter(), sortColumn, descending);
+    }
+
     public static String getShortSenderName(String sender, int maxLength) {
         if (sender == null)
             return null;
@@ -443,6 +457,34 @@ public class GeneralHelper {
             return null;
     }
 
+    /**
+     * Same as {@link #getOneLocalRecipient(Email)} but for a folder index entry.
+     * @param entry
+     * @throws PasswordException 
+     * @throws GeneralSecurityException 
+     * @throws IOException 
+     */
+    public static String getOneLocalRecipient(EmailFolderIndex.Entry entry) throws PasswordException, IOException, GeneralSecurityException {
+        String[] recipients = entry.getAllRecipients();
+
+        Identities identities = I2PBote.getInstance().getIdentities();
+        Iterator<EmailIdentity> iterator = identities.iterator();
+        if (iterator == null)
+            return null;
+        while (iterator.hasNext()) {
+            EmailDestination localDestination = iterator.next();
+            String base64Dest = localDestination.toBase64();
+            for (String recipient: recipients)
+                if (recipient.contains(base64Dest))
+                    return recipient;
+        }
+
+        if (recipients.length > 0)
+            return recipients[0];
+        else
+            return null;
+    }
+
     public static String getReplyAddress(Email email, Identities identities) throws PasswordException {
         try {
             return email.getReplyAddress(identities);
@@ -460,6 +502,10 @@ public class GeneralHelper {
         return I2PBote.getInstance().getOutbox().getStatus(email);
     }
 
+    public static EmailStatus getEmailStatus(EmailFolderIndex.Entry entry) {
+        return I2PBote.getInstance().getOutbox().getStatus(entry);
+    }
+
     /**
      * Moves an email from the folder denoted by <code>folderName</code> to
      * the trash folder. If <code>folderName</code> is the name of the trash
@@ -605,6 +651,25 @@ public class GeneralHelper {
         return I2PBote.getInstance().getUndecryptableFiles();
     }
 
+    /**
+     * Starts a new check of all encrypted files unless one is running, and returns it.
+     * @see I2PBote#startFileCheck()
+     */
+    public EncryptedFileCheck getNewFileCheck() throws PasswordException, IOException, GeneralSecurityException {
+        return I2PBote.getInstance().startFileCheck();
+    }
+
+    /**
+     * Returns the most recent check of all encrypted files, starting one if none
+     * has been started yet.
+     */
+    public EncryptedFileCheck getFileCheck() throws PasswordException, IOException, GeneralSecurityException {
+        EncryptedFileCheck fileCheck = I2PBote.getInstance().getFileCheck();
+        if (fileCheck == null)
+            fileCheck = I2PBote.getInstance().startFileCheck();
+        return fileCheck;
+    }
+
     public boolean getRequiredCryptoStrengthSatisfied() {
         return _isUnlimited;
     }
@@ -32,12 +32,16 @@ import i2p.bote.fileencryption.PasswordCacheTest;
 import i2p.bote.folder.DirectoryEntryFolderTest;
 import i2p.bote.folder.EmailFolderTest;
 import i2p.bote.folder.EmailPacketFolderTest;
+import i2p.bote.folder.ExpirationQueueTest;
 import i2p.bote.folder.FolderTest;
 import i2p.bote.folder.IncompleteEmailFolderTest;
 import i2p.bote.folder.IndexPacketFolderTest;
+import i2p.bote.folder.MessageIdCacheTest;
 import i2p.bote.folder.RelayPacketFolderTest;
+import i2p.bote.network.EmailPacketFetchExecutorTest;
 import i2p.bote.network.kademlia.BucketManagerTest;
 import i2p.bote.network.kademlia.KBucketTest;
+import i2p.bote.network.kademlia.KademliaIdTest;
 import i2p.bote.packet.I2PBotePacketTest;
 import i2p.bote.packet.PeerListTest;
 import i2p.bote.packet.ResponsePacketTest;
@@ -82,8 +86,10 @@ import org.junit.runners.Suite;
     FolderTest.class,
     EmailFolderTest.class,
     EmailPacketFolderTest.class,
+    ExpirationQueueTest.class,
     IncompleteEmailFolderTest.class,
     IndexPacketFolderTest.class,
+    MessageIdCacheTest.class,
     RelayPacketFolderTest.class,
 
     // Services
@@ -95,6 +101,8 @@ import org.junit.runners.Suite;
     EmailIdentityTest.class,
     IdentitiesTest.class,
     KBucketTest.class,
+    KademliaIdTest.class,
+    EmailPacketFetchExecutorTest.class,
     BucketManagerTest.class,
     CryptoImplementationTest.class,
     EncryptedStreamTest.class,
@@ -8,13 +8,19 @@ import org.junit.Test;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.List;
 import java.util.SortedSet;
 
 import i2p.bote.TestUtil;
+import i2p.bote.email.EmailIdentity;
 import i2p.bote.fileencryption.PasswordHolder;
 import i2p.bote.packet.dht.Contact;
 
 import static org.hamcrest.Matchers.isIn;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
@@ -46,6 +52,51 @@ public class AddressBookTest {
         assertTrue("Can't delete directory: " + testDir.getAbsolutePath(), testDir.delete());
     }
 
+    @Test
+    public void testGetAndRemove() throws Exception {
+        List<TestUtil.TestIdentity> identities = TestUtil.createTestIdentities();
+        for (TestUtil.TestIdentity identity: identities) {
+            String base64Dest = identity.identity.toBase64();
+            assertTrue(addressBook.contains(base64Dest));
+            Contact contact = addressBook.get(base64Dest);
+            assertEquals(base64Dest, contact.getBase64Dest());
+        }
+        
+        String base64Dest = identities.get(0).identity.toBase64();
+        addressBook.remove(base64Dest);
+        assertFalse(addressBook.contains(base64Dest));
+        assertNull(addressBook.get(base64Dest));
+        assertEquals(identities.size()-1, addressBook.size());
+        assertNull(addressBook.get(""));
+        assertFalse(addressBook.contains(null));
+    }
+
+    @Test
+    public void testSameDestination() throws Exception {
+        EmailIdentity identity = TestUtil.createTestIdentities().get(0).identity;
+        String base64Dest = identity.toBase64();
+        Contact contact = addressBook.get(base64Dest);
+        int size = addressBook.size();
+        
+        // adding an existing contact again must not change the index
+        addressBook.add(new Contact(contact.getName(), identity));
+        assertEquals(size, addressBook.size());
+        assertSame(contact, addressBook.get(base64Dest));
+        
+        // a second contact with the same destination must be found after the first one is removed
+        Contact otherContact = new Contact(contact.getName() + "X", identity);
+        addressBook.add(otherContact);
+        assertEquals(size+1, addressBook.size());
+        assertSame(contact, addressBook.get(base64Dest));
+        addressBook.remove(base64Dest);
+        assertEquals(size, addressBook.size());
+        assertTrue(addressBook.contains(base64Dest));
+        assertSame(otherContact, addressBook.get(base64Dest));
+        addressBook.remove(base64Dest);
+        assertFalse(addressBook.contains(base64Dest));
+        assertEquals(size-1, addressBook.size());
+    }
+
     @Test
     public void testExportImport() throws Exception {
         File exportFile = new File(testDir, "ExportImportTest-" + System.currentTimeMillis() + ".txt");
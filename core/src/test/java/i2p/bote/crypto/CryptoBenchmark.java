@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package i2p.bote.crypto;
+
+import i2p.bote.TestUtil;
+import i2p.bote.TestUtil.TestIdentity;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures how many encrypt/decrypt and sign/verify operations per second each
+ * {@link CryptoImplementation} can do when it is shared by 1 to 16 threads.
+ * <p/>
+ * This is not a unit test and is not part of {@link i2p.bote.AllTests}.
+ * Run it with the test classpath: <code>java i2p.bote.crypto.CryptoBenchmark</code>
+ */
+public class CryptoBenchmark {
+    private static final int[] NUM_THREADS = new int[] {1, 2, 4, 8, 16};
+    private static final int MESSAGE_LENGTH = 30 * 1024;
+    private static final long MEASURE_MILLIS = 5000;
+    private static final long WARMUP_MILLIS = 2000;
+    
+    private enum Operation {ENCRYPT, DECRYPT, SIGN, VERIFY}
+    
+    public static void main(String[] args) throws Exception {
+        byte[] message = new byte[MESSAGE_LENGTH];
+        new Random(0).nextBytes(message);
+        
+        for (TestIdentity testIdentity: TestUtil.createTestIdentities()) {
+            System.out.println(testIdentity.cryptoImpl.getName() + ":");
+            for (Operation operation: Operation.values())
+                for (int numThreads: NUM_THREADS) {
+                    run(testIdentity, operation, message, numThreads, WARMUP_MILLIS);
+                    long numOps = run(testIdentity, operation, message, numThreads, MEASURE_MILLIS);
+                    System.out.println("  " + operation + ", " + numThreads + " thread(s): " + (numOps*1000/MEASURE_MILLIS) + " ops/s");
+                }
+        }
+    }
+    
+    /** Runs an operation in <code>numThreads</code> threads for a given time and returns the number of operations completed */
+    private static long run(final TestIdentity testIdentity, final Operation operation, final byte[] message, int numThreads, long millis) throws Exception {
+        final CryptoImplementation cryptoImpl = testIdentity.cryptoImpl;
+        final KeyPair encryptionKeys = testIdentity.encryptionKeys;
+        final KeyPair signingKeys = testIdentity.signingKeys;
+        final KeyUpdateHandler keyUpdateHandler = TestUtil.createDummyKeyUpdateHandler();
+        final byte[] encrypted = cryptoImpl.encrypt(message, encryptionKeys.getPublic());
+        final byte[] signature = cryptoImpl.sign(message, signingKeys.getPrivate(), keyUpdateHandler);
+        final long endTime = System.currentTimeMillis() + millis;
+        
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<Long>> results = new ArrayList<Future<Long>>();
+            for (int i=0; i<numThreads; i++)
+                results.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        long numOps = 0;
+                        while (System.currentTimeMillis() < endTime) {
+                            switch (operation) {
+                            case ENCRYPT:
+                                cryptoImpl.encrypt(message, encryptionKeys.getPublic());
+                                break;
+                            case DECRYPT:
+                                cryptoImpl.decrypt(encrypted, encryptionKeys.getPublic(), encryptionKeys.getPrivate());
+                                break;
+                            case SIGN:
+                                cryptoImpl.sign(message, signingKeys.getPrivate(), keyUpdateHandler);
+                                break;
+                            case VERIFY:
+                                if (!cryptoImpl.verify(message, signature, signingKeys.getPublic()))
+                                    throw new IllegalStateException("Invalid signature for " + cryptoImpl.getName());
+                                break;
+                            }
+                            numOps++;
+                        }
+                        return numOps;
+                    }
+                }));
+            
+            long numOps = 0;
+            for (Future<Long> result: results)
+                numOps += result.get();
+            return numOps;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
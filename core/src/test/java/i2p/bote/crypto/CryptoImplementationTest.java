@@ -31,9 +31,15 @@ import i2p.bote.fileencryption.PasswordException;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.security.KeyPair;
+import java.security.PrivateKey;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.bouncycastle.crypto.InvalidCipherTextException;
 import org.junit.Before;
@@ -112,6 +118,21 @@ public class CryptoImplementationTest {
             }
     }
 
+    @Test
+    public void decryptWithPreparedKey() throws GeneralSecurityException {
+        for (TestIdentity testData: testIdentities) {
+            CryptoImplementation cryptoImpl = testData.cryptoImpl;
+            KeyPair encryptionKeys = testData.encryptionKeys;
+            PrivateKey preparedKey = cryptoImpl.prepareDecryptionKey(encryptionKeys.getPrivate());
+            // decrypt more than once to make sure the prepared key can be reused
+            for (byte[] original: testMessages) {
+                byte[] encrypted = cryptoImpl.encrypt(original, encryptionKeys.getPublic());
+                byte[] decrypted = cryptoImpl.decrypt(encrypted, encryptionKeys.getPublic(), preparedKey);
+                assertArrayEquals("encrypted data != decrypted data for crypto implementation <" + cryptoImpl.getName() + ">", original, decrypted);
+            }
+        }
+    }
+
     @Test
     public void signAndVerify() throws GeneralSecurityException, IOException, PasswordException {
         for (TestIdentity testIdentity: testIdentities) {
@@ -129,4 +150,32 @@ public class CryptoImplementationTest {
             }
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void encryptSignAndVerifyConcurrently() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i=0; i<4; i++)
+                for (final TestIdentity testIdentity: testIdentities)
+                    for (final byte[] original: testMessages)
+                        results.add(executor.submit(new Callable<Boolean>() {
+                            @Override
+                            public Boolean call() throws Exception {
+                                CryptoImplementation cryptoImpl = testIdentity.cryptoImpl;
+                                KeyPair encryptionKeys = testIdentity.encryptionKeys;
+                                byte[] encrypted = cryptoImpl.encrypt(original, encryptionKeys.getPublic());
+                                byte[] decrypted = cryptoImpl.decrypt(encrypted, encryptionKeys.getPublic(), encryptionKeys.getPrivate());
+                                
+                                KeyPair signingKeys = testIdentity.signingKeys;
+                                byte[] signature = cryptoImpl.sign(original, signingKeys.getPrivate(), TestUtil.createDummyKeyUpdateHandler());
+                                return Arrays.equals(original, decrypted) && cryptoImpl.verify(original, signature, signingKeys.getPublic());
+                            }
+                        }));
+            for (Future<Boolean> result: results)
+                assertTrue(result.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
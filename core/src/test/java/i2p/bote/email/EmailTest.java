@@ -23,6 +23,7 @@
 package i2p.bote.email;
 
 import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
@@ -30,6 +31,7 @@ import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import i2p.bote.TestUtil;
 import i2p.bote.TestUtil.TestIdentity;
+import i2p.bote.Util;
 import i2p.bote.crypto.KeyUpdateHandler;
 import i2p.bote.fileencryption.PasswordException;
 import i2p.bote.packet.I2PBotePacket;
@@ -41,6 +43,7 @@ import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.HashMap;
@@ -48,10 +51,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
+import javax.activation.DataHandler;
 import javax.mail.MessagingException;
+import javax.mail.Multipart;
 import javax.mail.Message.RecipientType;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MailDateFormat;
+import javax.mail.util.ByteArrayDataSource;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -204,6 +210,74 @@ public class EmailTest {
         Collection<UnencryptedEmailPacket> packets = newEmail.createEmailPackets(bccIdentity, keyUpdateHandler, null, I2PBotePacket.MAX_DATAGRAM_SIZE);
         assertEquals("The email was not compressed into one email packet.", 1, packets.size());
     }
+    
+    @Test
+    public void testLargeCompressibleEmail() throws MessagingException, IOException, GeneralSecurityException, PasswordException {
+        // random digits compress well, but not well enough to fit into one packet
+        Random rng = new Random(0);
+        StringBuilder stringBuilder = new StringBuilder();
+        for (int i=0; i<500000; i++)
+            stringBuilder.append((char)('0' + rng.nextInt(10)));
+        String text = stringBuilder.toString();
+        
+        Email email = new Email(true);
+        email.setText(text);
+        KeyUpdateHandler keyUpdateHandler = TestUtil.createDummyKeyUpdateHandler();
+        Collection<UnencryptedEmailPacket> packets = email.createEmailPackets(bccIdentity, keyUpdateHandler, null, I2PBotePacket.MAX_DATAGRAM_SIZE);
+        assertTrue("Expected more than one email packet.", packets.size() > 1);
+        
+        byte[] content = getContent(packets);
+        assertTrue("The email was not compressed.", content.length < text.length());
+        Email newEmail = new Email(new ByteArrayInputStream(content), true);
+        assertEquals(text, newEmail.getContent());
+    }
+    
+    @Test
+    public void testLargeIncompressibleEmail() throws MessagingException, IOException, GeneralSecurityException, PasswordException {
+        // binary attachments are not Base64-encoded, so random bytes don't compress at all
+        Random rng = new Random(0);
+        final byte[] attachmentData = new byte[200000];
+        rng.nextBytes(attachmentData);
+        Attachment attachment = new Attachment() {
+            @Override
+            public String getFileName() {
+                return "random.bin";
+            }
+            
+            @Override
+            public DataHandler getDataHandler() {
+                return new DataHandler(new ByteArrayDataSource(attachmentData, "application/octet-stream"));
+            }
+            
+            @Override
+            public boolean clean() {
+                return true;
+            }
+        };
+        
+        Email email = new Email(true);
+        email.setContent("Test email.", Arrays.asList(attachment));
+        KeyUpdateHandler keyUpdateHandler = TestUtil.createDummyKeyUpdateHandler();
+        Collection<UnencryptedEmailPacket> packets = email.createEmailPackets(bccIdentity, keyUpdateHandler, null, I2PBotePacket.MAX_DATAGRAM_SIZE);
+        assertTrue("Expected more than one email packet.", packets.size() > 1);
+        
+        byte[] content = getContent(packets);
+        assertTrue("Incompressible data should be stored uncompressed.", content.length > attachmentData.length);
+        Email newEmail = new Email(new ByteArrayInputStream(content), true);
+        assertTrue(newEmail.isContainingAttachments());
+        Multipart multiPart = (Multipart)newEmail.getContent();
+        assertEquals(2, multiPart.getCount());
+        assertEquals("Test email.", multiPart.getBodyPart(0).getContent());
+        assertArrayEquals(attachmentData, Util.readBytes(multiPart.getBodyPart(1).getInputStream()));
+    }
+    
+    /** Concatenates the contents of a set of email packets */
+    private byte[] getContent(Collection<UnencryptedEmailPacket> packets) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        for (UnencryptedEmailPacket packet: packets)
+            outputStream.write(packet.getContent());
+        return outputStream.toByteArray();
+    }
 
     @Test
     public void testDefaultDateIsUTC() throws Exception {
@@ -21,12 +21,18 @@
 
 package i2p.bote.fileencryption;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 import i2p.bote.Util;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -85,4 +91,110 @@ public class EncryptedStreamTest {
         decryptedText = new String(Util.readBytes(encryptedInputStream));
         assertEquals(plainText, decryptedText);
    }
-}
\ No newline at end of file
+    
+    /** Tests data that spans several chunks, written in pieces of varying size. */
+    @Test
+    public void testMultipleChunks() throws Exception {
+        byte[] plainText = new byte[3*FileEncryptionConstants.CHUNK_SIZE + 123];
+        new Random(0).nextBytes(plainText);
+        
+        byte[] password = "p@ssw0rd".getBytes();
+        byte[] encryptedData = encrypt(plainText, FileEncryptionTestUtil.deriveKey(password));
+        
+        EncryptedInputStream encryptedInputStream = new EncryptedInputStream(new ByteArrayInputStream(encryptedData), password);
+        byte[] decryptedData = Util.readBytes(encryptedInputStream);
+        assertArrayEquals(plainText, decryptedData);
+        
+        // empty data
+        encryptedData = encrypt(new byte[0], FileEncryptionTestUtil.deriveKey(password));
+        encryptedInputStream = new EncryptedInputStream(new ByteArrayInputStream(encryptedData), password);
+        assertEquals(-1, encryptedInputStream.read());
+    }
+    
+    /** Files that are missing chunks at the end must be rejected. */
+    @Test
+    public void testTruncatedData() throws Exception {
+        byte[] plainText = new byte[2*FileEncryptionConstants.CHUNK_SIZE + 10];
+        new Random(1).nextBytes(plainText);
+        
+        byte[] password = "p@ssw0rd".getBytes();
+        byte[] encryptedData = encrypt(plainText, FileEncryptionTestUtil.deriveKey(password));
+        // remove the last chunk
+        byte[] truncatedData = Arrays.copyOf(encryptedData, encryptedData.length - 100);
+        
+        EncryptedInputStream encryptedInputStream = new EncryptedInputStream(new ByteArrayInputStream(truncatedData), password);
+        try {
+            Util.readBytes(encryptedInputStream);
+            fail("Truncated data was not detected!");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+    
+    /** Files in format version 1 must remain readable. */
+    @Test
+    public void testSingleBlockFormat() throws Exception {
+        byte[] plainText = "Alte Dateien müssen lesbar bleiben.".getBytes();
+        byte[] password = "oldpassword".getBytes();
+        byte[] encryptedData = FileEncryptionTestUtil.encryptSingleBlock(plainText, FileEncryptionTestUtil.deriveKey(password));
+        
+        EncryptedInputStream encryptedInputStream = new EncryptedInputStream(new ByteArrayInputStream(encryptedData), password);
+        assertArrayEquals(plainText, Util.readBytes(encryptedInputStream));
+    }
+    
+    /** Tests <code>verify()</code> with intact, corrupted, and truncated data in both formats. */
+    @Test
+    public void testVerify() throws Exception {
+        byte[] plainText = new byte[2*FileEncryptionConstants.CHUNK_SIZE + 10];
+        new Random(2).nextBytes(plainText);
+        byte[] password = "p@ssw0rd".getBytes();
+        DerivedKey derivedKey = FileEncryptionTestUtil.deriveKey(password);
+        DerivedKeyCache keyCache = new DerivedKeyCache(password);
+        
+        byte[] encryptedData = encrypt(plainText, derivedKey);
+        EncryptedInputStream.verify(new ByteArrayInputStream(encryptedData), keyCache);
+        
+        byte[] corruptedData = encryptedData.clone();
+        corruptedData[corruptedData.length - 50] ^= 1;
+        try {
+            EncryptedInputStream.verify(new ByteArrayInputStream(corruptedData), keyCache);
+            fail("Corrupted data was not detected!");
+        } catch (GeneralSecurityException e) {
+            // expected
+        }
+        
+        byte[] truncatedData = Arrays.copyOf(encryptedData, encryptedData.length - 100);
+        try {
+            EncryptedInputStream.verify(new ByteArrayInputStream(truncatedData), keyCache);
+            fail("Truncated data was not detected!");
+        } catch (IOException e) {
+            // expected
+        }
+        
+        try {
+            EncryptedInputStream.verify(new ByteArrayInputStream(encryptedData), new DerivedKeyCache("wrong password".getBytes()));
+            fail("Wrong password was not detected!");
+        } catch (GeneralSecurityException e) {
+            // expected
+        }
+        
+        byte[] singleBlockData = FileEncryptionTestUtil.encryptSingleBlock("Alte Dateien".getBytes(), derivedKey);
+        EncryptedInputStream.verify(new ByteArrayInputStream(singleBlockData), keyCache);
+    }
+    
+    private byte[] encrypt(byte[] plainText, DerivedKey derivedKey) throws IOException {
+        ByteArrayOutputStream byteOutputStream = new ByteArrayOutputStream();
+        OutputStream encryptedOutputStream = new EncryptedOutputStream(byteOutputStream, derivedKey);
+        // write in uneven pieces to exercise chunk boundaries
+        int offset = 0;
+        int pieceLength = 1;
+        while (offset < plainText.length) {
+            int length = Math.min(pieceLength, plainText.length - offset);
+            encryptedOutputStream.write(plainText, offset, length);
+            offset += length;
+            pieceLength = pieceLength*3 + 1;
+        }
+        encryptedOutputStream.close();
+        return byteOutputStream.toByteArray();
+    }
+}
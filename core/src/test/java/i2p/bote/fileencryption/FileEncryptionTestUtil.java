@@ -21,9 +21,14 @@
 
 package i2p.bote.fileencryption;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 
+import net.i2p.I2PAppContext;
+import net.i2p.data.SessionKey;
+
 public class FileEncryptionTestUtil {
     
     public static DerivedKey deriveKey(byte[] password) throws GeneralSecurityException {
@@ -32,4 +37,20 @@ public class FileEncryptionTestUtil {
         byte[] keyBytes = FileEncryptionUtil.getEncryptionKey(password, salt, FileEncryptionConstants.KDF_PARAMETERS);
         return new DerivedKey(salt, FileEncryptionConstants.KDF_PARAMETERS, keyBytes);
     }
-}
\ No newline at end of file
+    
+    /** Encrypts data in the old file format that encrypts everything in one piece (format version 1). */
+    @SuppressWarnings("deprecation") // for net.i2p.crypto.AESEngine
+    public static byte[] encryptSingleBlock(byte[] plainText, DerivedKey derivedKey) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outputStream.write(FileEncryptionConstants.START_OF_FILE);
+        outputStream.write(FileEncryptionConstants.FORMAT_VERSION_SINGLE_BLOCK);
+        derivedKey.scryptParams.writeTo(outputStream);
+        outputStream.write(derivedKey.salt);
+        byte[] iv = new byte[FileEncryptionConstants.BLOCK_SIZE];
+        new SecureRandom().nextBytes(iv);
+        outputStream.write(iv);
+        I2PAppContext appContext = I2PAppContext.getGlobalContext();
+        outputStream.write(appContext.aes().safeEncrypt(plainText, new SessionKey(derivedKey.key), iv, 0));
+        return outputStream.toByteArray();
+    }
+}
@@ -24,6 +24,7 @@ package i2p.bote.fileencryption;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import i2p.bote.Util;
 
 import java.io.File;
@@ -92,4 +93,40 @@ public class FileEncryptionUtilTest {
         
         encryptedFile.delete();
    }
-}
\ No newline at end of file
+    
+    @Test
+    public void testChangePasswordWithKeyCache() throws IOException, GeneralSecurityException, PasswordException {
+        // encrypt two files with the same key, i.e. the same salt
+        DerivedKey oldKey = FileEncryptionTestUtil.deriveKey(password);
+        File[] encryptedFiles = new File[] {new File(testDir, "encrypted1"), new File(testDir, "encrypted2")};
+        for (File encryptedFile: encryptedFiles) {
+            OutputStream outputStream = new EncryptedOutputStream(new FileOutputStream(encryptedFile), oldKey);
+            outputStream.write(plainText);
+            outputStream.close();
+        }
+        
+        // a wrong password must leave the file untouched
+        try {
+            FileEncryptionUtil.changePassword(encryptedFiles[0], new DerivedKeyCache("wrong password".getBytes()), FileEncryptionTestUtil.deriveKey("new password".getBytes()));
+            fail("PasswordException expected");
+        } catch (PasswordException e) {
+        }
+        InputStream inputStream = new EncryptedInputStream(new FileInputStream(encryptedFiles[0]), password);
+        assertArrayEquals(plainText, Util.readBytes(inputStream));
+        inputStream.close();
+        
+        byte[] newPassword = "new password".getBytes();
+        DerivedKey newKey = FileEncryptionTestUtil.deriveKey(newPassword);
+        DerivedKeyCache oldKeys = new DerivedKeyCache(password);
+        for (File encryptedFile: encryptedFiles)
+            FileEncryptionUtil.changePassword(encryptedFile, oldKeys, newKey);
+        
+        for (File encryptedFile: encryptedFiles) {
+            inputStream = new EncryptedInputStream(new FileInputStream(encryptedFile), newPassword);
+            assertArrayEquals(plainText, Util.readBytes(inputStream));
+            inputStream.close();
+            assertFalse(new File(testDir, encryptedFile.getName() + ".tmp").exists());
+            encryptedFile.delete();
+        }
+    }
+}
@@ -25,14 +25,20 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import i2p.bote.TestUtil;
 import i2p.bote.email.Email;
+import i2p.bote.email.EmailAttribute;
 import i2p.bote.fileencryption.PasswordCache;
 import i2p.bote.fileencryption.PasswordException;
 
 import java.io.File;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 
+import javax.mail.Message.RecipientType;
 import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
 
 import org.junit.After;
 import org.junit.Before;
@@ -46,6 +52,7 @@ public class EmailFolderTest {
     private Email email2;
     private EmailFolder folder1;
     private EmailFolder folder2;
+    private PasswordCache passwordCache;
     
     @Before
     public void setUp() throws Exception {
@@ -90,7 +97,7 @@ public class EmailFolderTest {
             "\"No,\" said the man with a puzzled frown. \"I mean that I made an excuse and left early.\"\n" +
             "He collapsed into a coma from which he recovered only once and briefly.");
         
-        PasswordCache passwordCache = TestUtil.createPasswordCache(testDir);
+        passwordCache = TestUtil.createPasswordCache(testDir);
         
         folder1 = new EmailFolder(folderDir1, passwordCache);
         folder2 = new EmailFolder(folderDir2, passwordCache);
@@ -152,4 +159,95 @@ public class EmailFolderTest {
         assertEquals("\"unread\" flag is false after adding email to folder!", emailFromFolder.isUnread(), true);
         folder1.setNew(email1.getMessageID(), false);
     }
+    
+    @Test
+    public void testIndex() throws IOException, MessagingException, PasswordException, GeneralSecurityException {
+        email1.setSubject("B");
+        email2.setSubject("A");
+        folder1.add(email1);
+        folder1.add(email2);
+        assertEquals(2, folder1.getNumNewEmails());
+        assertTrue("Index file not found!", new File(folderDir1, EmailFolderIndex.INDEX_FILE_NAME).exists());
+        
+        List<Email> emails = folder1.getElements(null, EmailAttribute.SUBJECT, false);
+        assertEquals(2, emails.size());
+        assertEquals(email2.getMessageID(), emails.get(0).getMessageID());
+        assertEquals(email1.getMessageID(), emails.get(1).getMessageID());
+        
+        // a change to the metadata should be reflected by the index
+        folder1.setNew(email1.getMessageID(), false);
+        assertEquals(1, folder1.getNumNewEmails());
+        
+        // a new EmailFolder instance should read the index from disk
+        EmailFolder folder1Copy = new EmailFolder(folderDir1, passwordCache);
+        assertEquals(1, folder1Copy.getNumNewEmails());
+        
+        // the index should be updated when files change without the folder's knowledge
+        folder1Copy.setNew(email2.getMessageID(), false);
+        assertEquals(0, folder1.getNumNewEmails());
+        new File(folderDir1, email2.getMessageID() + ".mail").delete();
+        assertEquals(1, folder1.getElements(null, EmailAttribute.SUBJECT, false).size());
+        
+        // moved emails should be removed from the index
+        folder1.move(email1, folder2);
+        assertEquals(0, folder1.getElements(null, EmailAttribute.DATE, false).size());
+        assertEquals(1, folder2.getElements(null, EmailAttribute.DATE, false).size());
+    }
+    
+    @Test
+    public void testGetEntries() throws IOException, MessagingException, PasswordException, GeneralSecurityException {
+        email1.setSubject("Subject 1");
+        email1.setFrom(new InternetAddress("sender@example.com"));
+        email1.addRecipient(RecipientType.TO, new InternetAddress("recipient1@example.com"));
+        email1.addRecipient(RecipientType.CC, new InternetAddress("recipient2@example.com"));
+        folder1.add(email1);
+        
+        // read the entry from the index file
+        EmailFolder folder1Copy = new EmailFolder(folderDir1, passwordCache);
+        List<EmailFolderIndex.Entry> entries = folder1Copy.getEntries(null, EmailAttribute.DATE, false);
+        assertEquals(1, entries.size());
+        EmailFolderIndex.Entry entry = entries.get(0);
+        assertEquals(email1.getMessageID(), entry.getMessageID());
+        assertEquals("Subject 1", entry.getSubject());
+        assertEquals("sender@example.com", entry.getOneFromAddress());
+        assertEquals(2, entry.getAllRecipients().length);
+        assertEquals("recipient1@example.com", entry.getOneRecipient());
+        assertEquals("recipient2@example.com", entry.getAllRecipients()[1]);
+        assertTrue(entry.isUnread());
+        assertTrue(!entry.isContainingAttachments());
+        
+        folder1Copy.setNew(email1.getMessageID(), false);
+        assertTrue(!folder1.getEntries(null, EmailAttribute.DATE, false).get(0).isUnread());
+    }
+    
+    @Test
+    public void testSortEntries() throws IOException, MessagingException, PasswordException, GeneralSecurityException {
+        email1.setSubject("b");
+        email1.setSentDate(new Date(2000));
+        email2.setSubject("A");
+        email2.setSentDate(new Date(1000));
+        Email email3 = new Email(false);   // no subject and no date
+        
+        List<EmailFolderIndex.Entry> entries = new ArrayList<EmailFolderIndex.Entry>();
+        for (Email email: new Email[] {email1, email2, email3}) {
+            File emailFile = new File(folderDir1, email.getMessageID() + ".mail");
+            File metadataFile = new File(folderDir1, email.getMessageID() + ".meta");
+            entries.add(new EmailFolderIndex.Entry(email, emailFile, metadataFile));
+        }
+        
+        List<EmailFolderIndex.Entry> sorted = EmailFolder.sortEntries(entries, null, EmailAttribute.SUBJECT, false);
+        assertEquals(email3.getMessageID(), sorted.get(0).messageId);
+        assertEquals(email2.getMessageID(), sorted.get(1).messageId);
+        assertEquals(email1.getMessageID(), sorted.get(2).messageId);
+        
+        sorted = EmailFolder.sortEntries(entries, null, EmailAttribute.DATE, true);
+        assertEquals(email1.getMessageID(), sorted.get(0).messageId);
+        assertEquals(email2.getMessageID(), sorted.get(1).messageId);
+        assertEquals(email3.getMessageID(), sorted.get(2).messageId);
+        
+        // the date is the default
+        sorted = EmailFolder.sortEntries(entries, null, null, false);
+        assertEquals(email3.getMessageID(), sorted.get(0).messageId);
+        assertEquals(email1.getMessageID(), sorted.get(2).messageId);
+    }
 }
@@ -23,6 +23,8 @@ package i2p.bote.folder;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import i2p.bote.UniqueId;
 import i2p.bote.email.EmailDestination;
@@ -116,6 +118,21 @@ public class EmailPacketFolderTest {
         assertEquals(0, packetFolder.getElements().size());
     }
     
+    @Test
+    public void testRetrieve() throws GeneralSecurityException {
+        assertNull(packetFolder.retrieve(emailPacket.getDhtKey()));
+        
+        packetFolder.store(emailPacket);
+        EncryptedEmailPacket emailPacket2 = new EncryptedEmailPacket(unencryptedPacket2, recipient);
+        packetFolder.store(emailPacket2);
+        assertEquals(emailPacket.getDhtKey(), packetFolder.retrieve(emailPacket.getDhtKey()).getDhtKey());
+        assertEquals(emailPacket2.getDhtKey(), packetFolder.retrieve(emailPacket2.getDhtKey()).getDhtKey());
+        
+        packetFolder.delete(emailPacket.getDhtKey());
+        assertNull(packetFolder.retrieve(emailPacket.getDhtKey()));
+        assertNotNull(packetFolder.retrieve(emailPacket2.getDhtKey()));
+    }
+    
     /**
      * Tests creation of delete records when processing {@link EmailPacketDeleteRequest}s,
      * and matching them against email packets.
@@ -201,6 +218,38 @@ public class EmailPacketFolderTest {
         assertEquals(0, packetFolder.getElements().size());
     }
     
+    /**
+     * Tests that {@link EmailPacketFolder#deleteExpired()} deletes all expired packets in one
+     * call even if there are more than <code>EXPIRATION_SLICE_SIZE</code>, both for packets
+     * stored through the folder and for packets found on disk when the folder is created.
+     */
+    @Test
+    public void testDeleteExpiredBacklog() throws GeneralSecurityException {
+        long storeTime = System.currentTimeMillis() - ExpirationListener.EXPIRATION_TIME_MILLISECONDS - 10*1000;
+        int numExpired = 2*EmailPacketFolder.EXPIRATION_SLICE_SIZE + 1;
+        
+        storeExpiredPackets(numExpired, storeTime);
+        packetFolder.store(emailPacket);   // not expired
+        assertEquals(numExpired+1, packetFolder.getElements().size());
+        packetFolder.deleteExpired();
+        assertEquals(1, packetFolder.getElements().size());
+        
+        storeExpiredPackets(numExpired, storeTime);
+        EmailPacketFolder newPacketFolder = new EmailPacketFolder(folderDir);
+        newPacketFolder.deleteExpired();
+        assertEquals(1, newPacketFolder.getElements().size());
+        assertEquals(emailPacket.getDhtKey(), newPacketFolder.getElements().get(0).getDhtKey());
+    }
+    
+    private void storeExpiredPackets(int numPackets, long storeTime) throws GeneralSecurityException {
+        for (int i=0; i<numPackets; i++) {
+            byte[] content = ("expired packet " + i).getBytes();
+            UnencryptedEmailPacket packet = new UnencryptedEmailPacket(new ByteArrayInputStream(content), new UniqueId(), 0, I2PBotePacket.MAX_DATAGRAM_SIZE);
+            packet.setNumFragments(1);
+            packetFolder.store(new SettableStoreTimeEncryptedEmailPacket(packet, recipient, storeTime));
+        }
+    }
+    
     /**
      * A modified version of {@link EncryptedEmailPacket} that allows for the store time
      * to be set externally (the store time would otherwise be set to the current time).
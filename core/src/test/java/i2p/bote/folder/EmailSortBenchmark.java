@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package i2p.bote.folder;
+
+import i2p.bote.TestUtil;
+import i2p.bote.TestUtil.TestIdentity;
+import i2p.bote.addressbook.AddressBook;
+import i2p.bote.email.AddressDisplayFilter;
+import i2p.bote.email.Email;
+import i2p.bote.email.EmailAttribute;
+import i2p.bote.email.Identities;
+import i2p.bote.packet.dht.Contact;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Measures how long {@link EmailFolder#sortEntries(java.util.Collection, AddressDisplayFilter, EmailAttribute, boolean)}
+ * takes for folders of 10,000 to 100,000 synthetic emails.
+ * <p/>
+ * This is not a unit test and is not part of {@link i2p.bote.AllTests}.
+ * Run it with the test classpath: <code>java i2p.bote.folder.EmailSortBenchmark</code>
+ */
+public class EmailSortBenchmark {
+    private static final int[] NUM_EMAILS = new int[] {10000, 30000, 100000};
+    private static final int NUM_SENDERS = 1000;
+    private static final int NUM_RUNS = 10;
+    private static final int NUM_WARMUP_RUNS = 3;
+    private static final EmailAttribute[] SORT_COLUMNS = new EmailAttribute[] {EmailAttribute.DATE, EmailAttribute.FROM, EmailAttribute.SUBJECT};
+    
+    public static void main(String[] args) throws Exception {
+        File tmpDir = new File(System.getProperty("java.io.tmpdir"));
+        File testDir = new File(tmpDir, "EmailSortBenchmark-" + System.currentTimeMillis());
+        
+        // the files are never created because the address book and identities aren't saved
+        AddressBook addressBook = new AddressBook(new File(testDir, "addressBook"), null);
+        Identities identities = new Identities(new File(testDir, "identities"), null);
+        List<String> senders = new ArrayList<String>();
+        for (TestIdentity testIdentity: TestUtil.createTestIdentities()) {
+            addressBook.add(new Contact(testIdentity.identity.getPublicName(), testIdentity.identity));
+            senders.add(testIdentity.identity.toBase64());
+        }
+        for (int i=senders.size(); i<NUM_SENDERS; i++)
+            senders.add("Sender " + i + " <sender" + i + "@example.com>");
+        AddressDisplayFilter displayFilter = new AddressDisplayFilter(identities, addressBook);
+        
+        for (int numEmails: NUM_EMAILS) {
+            List<EmailFolderIndex.Entry> entries = createEntries(numEmails, senders, testDir);
+            System.out.println(numEmails + " emails:");
+            for (EmailAttribute attribute: SORT_COLUMNS) {
+                for (int i=0; i<NUM_WARMUP_RUNS; i++)
+                    EmailFolder.sortEntries(entries, displayFilter, attribute, false);
+                long startTime = System.nanoTime();
+                for (int i=0; i<NUM_RUNS; i++)
+                    EmailFolder.sortEntries(entries, displayFilter, attribute, i%2 == 0);
+                long micros = (System.nanoTime()-startTime) / 1000 / NUM_RUNS;
+                System.out.println("  " + attribute + ": " + micros/1000.0 + " ms");
+            }
+        }
+    }
+    
+    /** Creates index entries for emails with random senders, subjects and dates */
+    private static List<EmailFolderIndex.Entry> createEntries(int numEmails, List<String> senders, File dir) throws Exception {
+        Random random = new Random(0);
+        List<EmailFolderIndex.Entry> entries = new ArrayList<EmailFolderIndex.Entry>(numEmails);
+        for (int i=0; i<numEmails; i++) {
+            Email email = new Email(true);
+            email.setFrom(new InternetAddress(senders.get(random.nextInt(senders.size()))));
+            email.setSubject("Subject " + random.nextInt(numEmails));
+            if (random.nextInt(10) > 0)   // leave some dates empty
+                email.setSentDate(new Date(random.nextInt(Integer.MAX_VALUE) * 1000L));
+            File emailFile = new File(dir, email.getMessageID() + ".mail");
+            File metadataFile = new File(dir, email.getMessageID() + ".meta");
+            entries.add(new EmailFolderIndex.Entry(email, emailFile, metadataFile));
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package i2p.bote.folder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExpirationQueueTest {
+    private ExpirationQueue<String> queue;
+
+    @Before
+    public void setUp() throws Exception {
+        queue = new ExpirationQueue<String>();
+        queue.add("a", 300);
+        queue.add("b", 100);
+        queue.add("c", 200);
+        queue.add("d", 200);
+        queue.add("e", 400);
+    }
+
+    @Test
+    public void testPollExpired() {
+        assertTrue(queue.pollExpired(99, 10).isEmpty());
+        assertEquals(5, queue.size());
+        
+        List<String> expired = queue.pollExpired(200, 10);
+        assertEquals(3, expired.size());
+        assertEquals("b", expired.get(0));
+        assertTrue(expired.containsAll(Arrays.asList("c", "d")));
+        assertEquals(2, queue.size());
+        
+        // polled keys are gone from the queue
+        assertTrue(queue.pollExpired(200, 10).isEmpty());
+        
+        assertEquals(Arrays.asList("a", "e"), queue.pollExpired(Long.MAX_VALUE, 10));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testMaxKeys() {
+        List<String> expired = queue.pollExpired(Long.MAX_VALUE, 2);
+        assertEquals(2, expired.size());
+        assertEquals("b", expired.get(0));
+        assertEquals(3, queue.size());
+        
+        assertEquals(2, queue.pollExpired(Long.MAX_VALUE, 2).size());
+        assertEquals(Arrays.asList("e"), queue.pollExpired(Long.MAX_VALUE, 2));
+    }
+
+    @Test
+    public void testReAdd() {
+        queue.add("b", 500);   // same key, later time
+        assertEquals(6, queue.size());
+        assertEquals(Arrays.asList("b"), queue.pollExpired(100, 10));
+        assertEquals(2, queue.pollExpired(200, 10).size());
+        assertEquals(Arrays.asList("a", "e", "b"), queue.pollExpired(500, 10));
+        assertEquals(0, queue.size());
+    }
+}
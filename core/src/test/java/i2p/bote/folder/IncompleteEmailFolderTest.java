@@ -21,6 +21,8 @@
 
 package i2p.bote.folder;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import i2p.bote.TestUtil;
 import i2p.bote.crypto.KeyUpdateHandler;
@@ -31,7 +33,9 @@ import i2p.bote.packet.I2PBotePacket;
 import i2p.bote.packet.dht.UnencryptedEmailPacket;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Random;
 
 import javax.mail.Message.RecipientType;
@@ -43,9 +47,12 @@ import org.junit.Test;
 
 public class IncompleteEmailFolderTest {
     private static final String MSG_ID_CACHE_DIR = "msgidcache.txt";
+    private static final String RECIPIENT = "test@bote.i2p";
     
     private File inboxDir;
     private EmailFolder inbox;
+    private File incompleteDir;
+    private MessageIdCache messageIdCache;
     private IncompleteEmailFolder incompleteFolder;
     private File testDir;
 
@@ -59,8 +66,8 @@ public class IncompleteEmailFolderTest {
         inboxDir = new File(testDir, "inbox");
         inbox = new EmailFolder(inboxDir, passwordCache);
         
-        File incompleteDir = new File(testDir, "incomplete");
-        MessageIdCache messageIdCache = new MessageIdCache(new File(testDir, MSG_ID_CACHE_DIR), 1000);
+        incompleteDir = new File(testDir, "incomplete");
+        messageIdCache = new MessageIdCache(new File(testDir, MSG_ID_CACHE_DIR), 1000);
         incompleteFolder = new IncompleteEmailFolder(incompleteDir, messageIdCache, inbox);
     }
     
@@ -83,26 +90,56 @@ public class IncompleteEmailFolderTest {
     
     @Test
     public void testAddThreePacketEmail() throws Exception {
-        // Create a 29,000-char string. Use random data (more or less, because it has to be
-        // US ASCII chars) so it doesn't get compressed into less than 3 packets.
+        testAddEmail(createRandomText(29000), 3);
+    }
+    
+    /**
+     * Adds packets out of order, and creates a new <code>IncompleteEmailFolder</code>
+     * before the last packet is added.
+     */
+    @Test
+    public void testAddPacketsAfterRestart() throws Exception {
+        Email email = createEmail(createRandomText(29000));
+        List<UnencryptedEmailPacket> packets = createEmailPackets(email);
+        assertEquals(3, packets.size());
+        
+        assertFalse(incompleteFolder.addEmailPacket(packets.get(2)));
+        assertFalse(incompleteFolder.addEmailPacket(packets.get(0)));
+        assertEquals(1, incompleteFolder.getNumIncompleteEmails());
+        assertEquals(2, incompleteFolder.getElements().size());
+        
+        incompleteFolder = new IncompleteEmailFolder(incompleteDir, messageIdCache, inbox);
+        assertEquals(1, incompleteFolder.getNumIncompleteEmails());
+        assertTrue(incompleteFolder.addEmailPacket(packets.get(1)));
+        assertEquals(0, incompleteFolder.getNumIncompleteEmails());
+        assertEquals(0, incompleteFolder.getElements().size());
+        assertEquals(1, inbox.getElements().size());
+        
+        Email storedEmail = inbox.getElements().iterator().next();
+        storedEmail.removeHeader("X-I2PBote-Sig-Valid");
+        TestUtil.assertEquals("Stored email differs from original email!", email, storedEmail);
+        
+        // the message ID is cached now, so a duplicate packet is ignored
+        assertFalse(incompleteFolder.addEmailPacket(packets.get(0)));
+        assertEquals(0, incompleteFolder.getNumIncompleteEmails());
+    }
+    
+    /**
+     * Creates a string of random US ASCII chars, so it doesn't compress well.
+     * @param length
+     */
+    private String createRandomText(int length) {
         Random rng = new Random();
         rng.setSeed(0);
-        byte[] message = new byte[29000];
+        byte[] message = new byte[length];
         for (int i=0; i<message.length; i++)
             message[i] = (byte)(32 + rng.nextInt(127-32));
-        
-        testAddEmail(new String(message), 3);
+        return new String(message);
     }
 
     private void testAddEmail(String mailContent, int expectedNumPackets) throws Exception {
-        Email email = new Email(true);
-        String recipient = "test@bote.i2p";
-        email.addRecipient(RecipientType.TO, new InternetAddress(recipient));
-        email.setText(mailContent);
-        
-        EmailIdentity identity = new EmailIdentity("DVkhqF6R9SHB5svViGtqRYZO7oI-0-omnIFtae29fNnNtTTH2j37Fr5fWp4t6rseTjiJ8gwg08DnbA4qP72aSQcDQPSErOELOMSU5BUTtsT8hnv1-DKdhIn~1qoIjxzIFHbxT3xnR3nFI7lKd6couscilzPBCjoFDUKb5ds2u23RO29K7~EKxU1O7Ltu6sT5etXkJkhAziOcuyfZyxJXqH1caYX5e2aWIhY3D2ESfy4nMK66r5KcDVQOPTzCkJq6d1FFOmnDGrlJjN~HgHmfUCtLbO~TLugWx9FCiDGfPkBb-3ODYTDaUR1zobOj1tiffV3Nm73PsYddRt84emLKzIRsC77JJpflw~h8UIRYJ29vJDf4VQ54BhZcelmN192sIrWr2nKN8n6PpSP4LI4RAuG2UvLytnDYzFM7O9WcnFP2-Qs3t1lD9aF72JVTYTpH5PZupnB1cglSsdRg8RmtRa41Fseyx8D3EdH~DCdpMGmfupaWp9~dKpFMleqk9scRAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAABTjDxn3wEOjCjJ4APg~2IGpqWwy2Hw728aZ3eCC5l0MP913BLdIfSUiXPbs6sN9A2");
-        KeyUpdateHandler keyUpdateHandler = TestUtil.createDummyKeyUpdateHandler();
-        Collection<UnencryptedEmailPacket> packets = email.createEmailPackets(identity, keyUpdateHandler, recipient, I2PBotePacket.MAX_DATAGRAM_SIZE);
+        Email email = createEmail(mailContent);
+        Collection<UnencryptedEmailPacket> packets = createEmailPackets(email);
         assertTrue("Expected " + expectedNumPackets + " email packets, got " + packets.size(), packets.size() == expectedNumPackets);
         
         assertTrue("The inbox should be empty at this point!", inbox.getElements().size() == 0);
@@ -116,4 +153,17 @@ public class IncompleteEmailFolderTest {
         storedEmail.removeHeader("X-I2PBote-Sig-Valid");
         TestUtil.assertEquals("Stored email differs from original email!", email, storedEmail);
     }
+    
+    private Email createEmail(String mailContent) throws Exception {
+        Email email = new Email(true);
+        email.addRecipient(RecipientType.TO, new InternetAddress(RECIPIENT));
+        email.setText(mailContent);
+        return email;
+    }
+    
+    private List<UnencryptedEmailPacket> createEmailPackets(Email email) throws Exception {
+        EmailIdentity identity = new EmailIdentity("DVkhqF6R9SHB5svViGtqRYZO7oI-0-omnIFtae29fNnNtTTH2j37Fr5fWp4t6rseTjiJ8gwg08DnbA4qP72aSQcDQPSErOELOMSU5BUTtsT8hnv1-DKdhIn~1qoIjxzIFHbxT3xnR3nFI7lKd6couscilzPBCjoFDUKb5ds2u23RO29K7~EKxU1O7Ltu6sT5etXkJkhAziOcuyfZyxJXqH1caYX5e2aWIhY3D2ESfy4nMK66r5KcDVQOPTzCkJq6d1FFOmnDGrlJjN~HgHmfUCtLbO~TLugWx9FCiDGfPkBb-3ODYTDaUR1zobOj1tiffV3Nm73PsYddRt84emLKzIRsC77JJpflw~h8UIRYJ29vJDf4VQ54BhZcelmN192sIrWr2nKN8n6PpSP4LI4RAuG2UvLytnDYzFM7O9WcnFP2-Qs3t1lD9aF72JVTYTpH5PZupnB1cglSsdRg8RmtRa41Fseyx8D3EdH~DCdpMGmfupaWp9~dKpFMleqk9scRAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAABTjDxn3wEOjCjJ4APg~2IGpqWwy2Hw728aZ3eCC5l0MP913BLdIfSUiXPbs6sN9A2");
+        KeyUpdateHandler keyUpdateHandler = TestUtil.createDummyKeyUpdateHandler();
+        return new ArrayList<UnencryptedEmailPacket>(email.createEmailPackets(identity, keyUpdateHandler, RECIPIENT, I2PBotePacket.MAX_DATAGRAM_SIZE));
+    }
 }
\ No newline at end of file
@@ -48,6 +48,7 @@ import java.security.GeneralSecurityException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
 import net.i2p.data.Hash;
@@ -126,6 +127,30 @@ public class IndexPacketFolderTest {
         assertEquals(0, folder.iterator().next().getNumEntries());
     }
     
+    /**
+     * Tests that {@link IndexPacketFolder#deleteExpired()} processes all index packets with
+     * expired entries in one call even if there are more than <code>EXPIRATION_SLICE_SIZE</code>.
+     */
+    @Test
+    public void testDeleteExpiredBacklog() {
+        long expiredTime = System.currentTimeMillis() - ExpirationListener.EXPIRATION_TIME_MILLISECONDS - 10*1000;
+        int numPackets = 2*IndexPacketFolder.EXPIRATION_SLICE_SIZE + 1;
+        Random random = new Random(0);
+        for (int i=0; i<numPackets; i++) {
+            byte[] destinationHash = new byte[Hash.HASH_LENGTH];
+            random.nextBytes(destinationHash);
+            IndexPacket indexPacket = new IndexPacket(new Hash(destinationHash));
+            indexPacket.put(emailPacket1);
+            setStoreTime(indexPacket, emailPacket1.getDhtKey(), expiredTime);
+            folder.store(indexPacket);
+        }
+        assertEquals(numPackets, folder.getElements().size());
+        
+        folder.deleteExpired();
+        for (IndexPacket indexPacket: folder.getElements())
+            assertEquals(0, indexPacket.getNumEntries());
+    }
+    
     private void setStoreTime(IndexPacket indexPacket, Hash emailPacketKey, long storeTime) {
         for (IndexPacketEntry entry: indexPacket)
             if (entry.emailPacketKey.equals(emailPacketKey)) {
@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package i2p.bote.folder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import i2p.bote.UniqueId;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MessageIdCacheTest {
+    private static final int CACHE_SIZE = 10;
+    
+    private File testDir;
+    private File cacheFile;
+    private List<UniqueId> ids;
+
+    @Before
+    public void setUp() throws Exception {
+        File tempDir = new File(System.getProperty("java.io.tmpdir"));
+        testDir = new File(tempDir, "MessageIdCacheTest-" + System.currentTimeMillis());
+        assertTrue("Can't create directory: " + testDir.getAbsolutePath(), testDir.mkdir());
+        cacheFile = new File(testDir, "msgidcache.txt");
+        
+        ids = new ArrayList<UniqueId>();
+        for (int i=0; i<3*CACHE_SIZE; i++)
+            ids.add(new UniqueId());
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        cacheFile.delete();
+        new File(testDir, cacheFile.getName() + ".tmp").delete();
+        assertTrue("Can't delete directory: " + testDir.getAbsolutePath(), testDir.delete());
+    }
+
+    @Test
+    public void testAddAndEvict() {
+        MessageIdCache cache = new MessageIdCache(cacheFile, CACHE_SIZE);
+        for (int i=0; i<CACHE_SIZE; i++)
+            cache.add(ids.get(i));
+        for (int i=0; i<CACHE_SIZE; i++)
+            assertTrue(cache.contains(ids.get(i)));
+        
+        // the oldest ID is evicted first
+        cache.add(ids.get(CACHE_SIZE));
+        assertFalse(cache.contains(ids.get(0)));
+        assertTrue(cache.contains(ids.get(1)));
+        assertTrue(cache.contains(ids.get(CACHE_SIZE)));
+    }
+
+    @Test
+    public void testPersistence() throws IOException {
+        MessageIdCache cache = new MessageIdCache(cacheFile, CACHE_SIZE);
+        for (UniqueId id: ids)
+            cache.add(id);
+        // the file is compacted when it gets too long
+        assertTrue(countLines(cacheFile) <= 2*CACHE_SIZE);
+        
+        // a new instance must contain the newest CACHE_SIZE IDs
+        cache = new MessageIdCache(cacheFile, CACHE_SIZE);
+        for (int i=0; i<ids.size(); i++)
+            assertEquals(i >= ids.size()-CACHE_SIZE, cache.contains(ids.get(i)));
+    }
+    
+    @Test
+    public void testIncompleteLastLine() throws IOException {
+        // simulate a write that was interrupted in the middle of the last line
+        String newLine = System.getProperty("line.separator");
+        Writer writer = new FileWriter(cacheFile);
+        try {
+            writer.write(ids.get(0).toBase64() + newLine);
+            writer.write(ids.get(1).toBase64() + newLine);
+            writer.write(ids.get(2).toBase64().substring(0, 10));
+        } finally {
+            writer.close();
+        }
+        
+        MessageIdCache cache = new MessageIdCache(cacheFile, CACHE_SIZE);
+        assertEquals(2, countLines(cacheFile));
+        cache.add(ids.get(3));
+        
+        // the new ID must not be appended to the incomplete line
+        cache = new MessageIdCache(cacheFile, CACHE_SIZE);
+        assertTrue(cache.contains(ids.get(0)));
+        assertTrue(cache.contains(ids.get(1)));
+        assertFalse(cache.contains(ids.get(2)));
+        assertTrue(cache.contains(ids.get(3)));
+        assertEquals(3, countLines(cacheFile));
+    }
+    
+    private int countLines(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            int numLines = 0;
+            while (reader.readLine() != null)
+                numLines++;
+            return numLines;
+        } finally {
+            reader.close();
+        }
+    }
+}
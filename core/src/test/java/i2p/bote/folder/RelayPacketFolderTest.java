@@ -22,6 +22,7 @@
 package i2p.bote.folder;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import i2p.bote.UniqueId;
@@ -35,7 +36,9 @@ import i2p.bote.packet.relay.RelayRequest;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import net.i2p.data.Destination;
@@ -111,4 +114,50 @@ public class RelayPacketFolderTest {
         iterator.remove();
         assertFalse("Packet was not deleted!", folder.iterator().hasNext());
     }
+    
+    /**
+     * Tests that {@link RelayPacketListener}s are notified of new packets, and that
+     * packets can be read and deleted by file.
+     */
+    @Test
+    public void testPacketFiles() {
+        final List<File> addedFiles = new ArrayList<File>();
+        folder.addRelayPacketListener(new RelayPacketListener() {
+            @Override
+            public void relayPacketAdded(File file) {
+                addedFiles.add(file);
+            }
+        });
+        
+        long minSendTime = System.currentTimeMillis() + relayRequest.getDelay();
+        folder.add(relayRequest);
+        folder.add(relayRequest);   // should not be stored or reported again
+        long maxSendTime = System.currentTimeMillis() + relayRequest.getDelay();
+        assertEquals(1, addedFiles.size());
+        assertEquals(1, folder.getPacketFiles().size());
+        File file = addedFiles.get(0);
+        assertEquals(file, folder.getPacketFiles().get(0));
+        
+        long sendTime = folder.getSendTime(file);
+        assertTrue(sendTime >= minSendTime && sendTime <= maxSendTime);
+        RelayRequest storedPacket = folder.getPacket(file);
+        assertArrayEquals(relayRequest.toByteArray(), storedPacket.toByteArray());
+        assertEquals(sendTime, storedPacket.getSendTime());
+        
+        assertEquals(0, folder.getPacketFilesBefore(sendTime).size());
+        assertEquals(1, folder.getPacketFilesBefore(sendTime+1).size());
+        
+        // a new folder object should find the packet on disk
+        RelayPacketFolder folder2 = new RelayPacketFolder(folderDir);
+        assertEquals(file, folder2.getPacketFiles().get(0));
+        assertEquals(sendTime, folder2.getSendTime(file));
+        
+        folder.remove(file);
+        assertEquals(0, folder.getPacketFiles().size());
+        assertFalse(folder.contains(file));
+        
+        // the packet can be added again after it has been removed
+        folder.add(relayRequest);
+        assertEquals(2, addedFiles.size());
+    }
 }
\ No newline at end of file
@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package i2p.bote.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class EmailPacketFetchExecutorTest {
+
+    @Test
+    public void testMaxThreads() throws Exception {
+        EmailPacketFetchExecutor executor = new EmailPacketFetchExecutor(2);
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i=0; i<6; i++)
+            futures.add(executor.submit("identity" + i%3, new BlockingTask(started, release)));
+        
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertEquals(2, executor.getActiveTaskCount());
+        assertEquals(4, executor.getQueuedTaskCount());
+        
+        release.countDown();
+        for (Future<?> future: futures)
+            future.get(10, TimeUnit.SECONDS);
+        assertEquals(0, executor.getQueuedTaskCount());
+        
+        // workers decrement the active count after the last future completes, so allow some time
+        for (int i=0; i<100 && executor.getActiveTaskCount()>0; i++)
+            TimeUnit.MILLISECONDS.sleep(50);
+        assertEquals(0, executor.getActiveTaskCount());
+    }
+
+    @Test
+    public void testRoundRobin() throws Exception {
+        EmailPacketFetchExecutor executor = new EmailPacketFetchExecutor(1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.submit("A", new BlockingTask(started, release));   // occupy the only thread
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i=0; i<3; i++)
+            futures.add(executor.submit("A", new RecordingTask(order, "A")));
+        for (int i=0; i<3; i++)
+            futures.add(executor.submit("B", new RecordingTask(order, "B")));
+        
+        release.countDown();
+        for (Future<?> future: futures)
+            future.get(10, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("A", "B", "A", "B", "A", "B"), order);
+    }
+
+    @Test
+    public void testShutdownNow() throws Exception {
+        EmailPacketFetchExecutor executor = new EmailPacketFetchExecutor(1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<?> running = executor.submit("A", new BlockingTask(started, release));
+        Future<?> queued = executor.submit("A", new BlockingTask(started, release));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        
+        executor.shutdownNow();
+        assertTrue(queued.isCancelled());
+        assertEquals(0, executor.getQueuedTaskCount());
+        try {
+            running.get(10, TimeUnit.SECONDS);   // the running task is interrupted and returns
+        } finally {
+            release.countDown();
+        }
+    }
+    
+    private static class BlockingTask implements Runnable {
+        private CountDownLatch started;
+        private CountDownLatch release;
+        
+        BlockingTask(CountDownLatch started, CountDownLatch release) {
+            this.started = started;
+            this.release = release;
+        }
+        
+        @Override
+        public void run() {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    private static class RecordingTask implements Runnable {
+        private List<String> order;
+        private String name;
+        
+        RecordingTask(List<String> order, String name) {
+            this.order = order;
+            this.name = name;
+        }
+        
+        @Override
+        public void run() {
+            order.add(name);
+        }
+    }
+}
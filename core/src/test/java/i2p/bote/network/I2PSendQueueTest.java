@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import i2p.bote.network.I2PSendQueue.PacketQueue;
+import i2p.bote.network.I2PSendQueue.ScheduledPacket;
+import i2p.bote.network.I2PSendQueue.TokenBucket;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class I2PSendQueueTest {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testTokenBucketBurst() {
+        TokenBucket tokenBucket = new TokenBucket();
+        // a full second's worth of bits can be sent right away, anything beyond that has to wait
+        assertEquals(0, tokenBucket.reserve(1000, 1000, 0));
+        assertEquals(500, tokenBucket.reserve(500, 1000, 0));
+        
+        // after a long pause, the bucket is full again but holds no more than one second's worth
+        long now = 60 * NANOS_PER_SECOND;
+        assertEquals(0, tokenBucket.reserve(1000, 1000, now));
+        assertEquals(1, tokenBucket.reserve(1, 1000, now));
+    }
+
+    @Test
+    public void testTokenBucketDebtCarriesOver() {
+        TokenBucket tokenBucket = new TokenBucket();
+        assertEquals(0, tokenBucket.reserve(1000, 1000, 0));
+        assertEquals(2000, tokenBucket.reserve(2000, 1000, 0));
+        
+        // 1.1 seconds later, 1100 bits have been refilled, which doesn't pay off the debt
+        assertEquals(1000, tokenBucket.reserve(100, 1000, 1100 * NANOS_PER_SECOND / 1000));
+        
+        // once the debt has been paid off, packets can be sent right away again
+        assertEquals(0, tokenBucket.reserve(500, 1000, 5 * NANOS_PER_SECOND));
+    }
+
+    @Test
+    public void testTokenBucketRate() {
+        TokenBucket tokenBucket = new TokenBucket();
+        long bitsPerSecond = 8 * 1024;
+        long packetSize = 1000;
+        
+        // send 100 packets back to back; the last one must be scheduled no earlier than the rate allows
+        long totalBits = 0;
+        long waitTime = 0;
+        long now = 0;
+        for (int i=0; i<100; i++) {
+            waitTime = tokenBucket.reserve(packetSize, bitsPerSecond, now);
+            totalBits += packetSize;
+            now += NANOS_PER_SECOND / 100;
+        }
+        long sendTime = TimeUnit.NANOSECONDS.toMillis(now - NANOS_PER_SECOND/100) + waitTime;
+        long minSendTime = (totalBits - bitsPerSecond) * 1000 / bitsPerSecond;   // the first second's worth goes out as a burst
+        assertTrue("Last packet sent after " + sendTime + " ms, expected at least " + minSendTime, sendTime >= minSendTime);
+        assertTrue("Last packet sent after " + sendTime + " ms, expected about " + minSendTime, sendTime <= minSendTime + 10);
+    }
+
+    @Test
+    public void testTokenBucketBandwidthChange() {
+        TokenBucket tokenBucket = new TokenBucket();
+        assertEquals(0, tokenBucket.reserve(1000, 1000, 0));
+        assertTrue(tokenBucket.reserve(1000, 1000, 0) > 0);
+        // a new limit starts with a full bucket
+        assertEquals(0, tokenBucket.reserve(2000, 2000, 0));
+    }
+
+    @Test
+    public void testQueueOrder() throws Exception {
+        PacketQueue queue = new PacketQueue();
+        long now = System.currentTimeMillis();
+        ScheduledPacket delayed1 = new ScheduledPacket(null, null, now - 1000);
+        ScheduledPacket undelayed1 = new ScheduledPacket(null, null, 0);
+        ScheduledPacket delayed2 = new ScheduledPacket(null, null, now - 2000);
+        ScheduledPacket undelayed2 = new ScheduledPacket(null, null, 0);
+        queue.add(delayed1);
+        queue.add(undelayed1);
+        queue.add(delayed2);
+        queue.add(undelayed2);
+        
+        // sorted by earliestSendTime, FIFO for equal times
+        assertSame(undelayed1, queue.take());
+        assertSame(undelayed2, queue.take());
+        assertSame(delayed2, queue.take());
+        assertSame(delayed1, queue.take());
+    }
+
+    @Test
+    public void testQueueWaitsForEarliestSendTime() throws Exception {
+        PacketQueue queue = new PacketQueue();
+        long earliestSendTime = System.currentTimeMillis() + 200;
+        ScheduledPacket packet = new ScheduledPacket(null, null, earliestSendTime);
+        queue.add(packet);
+        
+        assertSame(packet, queue.take());
+        assertTrue(System.currentTimeMillis() >= earliestSendTime);
+    }
+
+    @Test
+    public void testQueueWakesUpForDuePacket() throws Exception {
+        final PacketQueue queue = new PacketQueue();
+        ScheduledPacket laterPacket = new ScheduledPacket(null, null, System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(10));
+        queue.add(laterPacket);
+        
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<ScheduledPacket> result = executor.submit(new Callable<ScheduledPacket>() {
+                @Override
+                public ScheduledPacket call() throws InterruptedException {
+                    return queue.take();
+                }
+            });
+            TimeUnit.MILLISECONDS.sleep(100);
+            assertFalse(result.isDone());
+            
+            // the waiting thread must not sleep until the later packet is due
+            ScheduledPacket duePacket = new ScheduledPacket(null, null, 0);
+            queue.add(duePacket);
+            assertSame(duePacket, result.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.network.kademlia;
+
+import static i2p.bote.network.kademlia.KademliaConstants.K;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import net.i2p.data.Certificate;
+import net.i2p.data.Destination;
+import net.i2p.data.Hash;
+import net.i2p.data.PublicKey;
+import net.i2p.data.SigningPublicKey;
+
+/**
+ * Compares {@link BucketManager#getClosestPeers(Hash, int)} with the previous
+ * implementation, which sorted all peers by distance to the key.
+ * <p/>
+ * This is not a unit test and is not part of {@link i2p.bote.AllTests}.
+ * Run it with the test classpath: <code>java i2p.bote.network.kademlia.BucketManagerBenchmark</code>
+ */
+public class BucketManagerBenchmark {
+    private static final int[] NUM_PEERS = new int[] {1000, 2000, 5000, 10000};
+    private static final int NUM_LOOKUPS = 1000;
+    private static final int NUM_WARMUP_LOOKUPS = 200;
+    
+    public static void main(String[] args) {
+        Random rng = new Random(0);
+        for (int numPeers: NUM_PEERS) {
+            BucketManager bucketManager = new BucketManager(createRandomDestination(rng).calculateHash());
+            for (int i=0; i<numPeers; i++)
+                bucketManager.addOrUpdate(new KademliaPeer(createRandomDestination(rng)));
+            
+            List<Hash> keys = new ArrayList<Hash>();
+            for (int i=0; i<NUM_LOOKUPS; i++)
+                keys.add(KademliaId.random(rng, KademliaId.MAX_VALUE).toHash());
+            
+            // make sure both implementations agree before timing them
+            for (Hash key: keys)
+                if (!getClosestPeersBySorting(bucketManager, key, K).equals(bucketManager.getClosestPeers(key, K)))
+                    throw new IllegalStateException("Results differ for key " + key.toBase64());
+            
+            for (int i=0; i<NUM_WARMUP_LOOKUPS; i++) {
+                getClosestPeersBySorting(bucketManager, keys.get(i), K);
+                bucketManager.getClosestPeers(keys.get(i), K);
+            }
+            
+            long startTime = System.nanoTime();
+            for (Hash key: keys)
+                getClosestPeersBySorting(bucketManager, key, K);
+            long sortingTime = System.nanoTime() - startTime;
+            
+            startTime = System.nanoTime();
+            for (Hash key: keys)
+                bucketManager.getClosestPeers(key, K);
+            long topKTime = System.nanoTime() - startTime;
+            
+            System.out.println(bucketManager.getPeerCount() + " peers in the routing table, " + NUM_LOOKUPS + " lookups of the " + K + " closest peers:");
+            System.out.println("  sort all peers: " + sortingTime/NUM_LOOKUPS/1000 + " µs per lookup");
+            System.out.println("  bounded top-k:  " + topKTime/NUM_LOOKUPS/1000 + " µs per lookup");
+        }
+    }
+    
+    /** The old implementation of {@link BucketManager#getClosestPeers(Hash, int)} */
+    private static List<Destination> getClosestPeersBySorting(BucketManager bucketManager, Hash key, int count) {
+        List<Destination> peers = bucketManager.getAllUnlockedPeers();
+        Collections.sort(peers, new PeerDistanceComparator(key));
+        if (peers.size() < count)
+            return peers;
+        else
+            return peers.subList(0, count);
+    }
+    
+    private static Destination createRandomDestination(Random rng) {
+        byte[] publicKey = new byte[PublicKey.KEYSIZE_BYTES];
+        rng.nextBytes(publicKey);
+        byte[] signingKey = new byte[SigningPublicKey.KEYSIZE_BYTES];
+        rng.nextBytes(signingKey);
+        
+        Destination destination = new Destination();
+        destination.setPublicKey(new PublicKey(publicKey));
+        destination.setSigningPublicKey(new SigningPublicKey(signingKey));
+        destination.setCertificate(Certificate.NULL_CERT);
+        return destination;
+    }
+}
@@ -32,8 +32,10 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 
 import net.i2p.data.Destination;
 import net.i2p.data.Hash;
@@ -328,8 +330,8 @@ public class BucketManagerTest {
                     KBucket bucket = kBuckets.get(i);
                     if (bucket.size() == bucketSizes.get(i)-1) {
                         bucketSizes.set(i, bucketSizes.get(i)-1);
-                        BigInteger startId = bucket.getStartId();
-                        BigInteger endId = bucket.getEndId();
+                        BigInteger startId = bucket.getStartId().toBigInteger();
+                        BigInteger endId = bucket.getEndId().toBigInteger();
                         assertTrue("Peer is in the wrong bucket: peer id=" + peerId + ", bucket start=" + startId + " bucket end=" + endId,
                                 startId.compareTo(peerId)<=0 && endId.compareTo(peerId)>=0);
                     }
@@ -340,6 +342,31 @@ public class BucketManagerTest {
         }
     }
 
+    @Test
+    public void testGetClosestPeers() {
+        for (Destination peer: peers)
+            bucketManager.addOrUpdate(new KademliaPeer(peer));
+        assertTrue(getNumKBuckets() > 1);
+        
+        List<Hash> keys = new ArrayList<Hash>();
+        keys.add(localDestination.calculateHash());
+        for (int i=0; i<peers.length; i+=10)
+            keys.add(peers[i].calculateHash());
+        Random rng = new Random(0);
+        for (int i=0; i<20; i++)
+            keys.add(KademliaId.random(rng, KademliaId.MAX_VALUE).toHash());
+        
+        // compare with the result of sorting all peers
+        for (Hash key: keys) {
+            List<Destination> allPeers = bucketManager.getAllUnlockedPeers();
+            Collections.sort(allPeers, new PeerDistanceComparator(key));
+            for (int count: new int[] {1, 5, K, S, peers.length+1}) {
+                List<Destination> expected = allPeers.subList(0, Math.min(count, allPeers.size()));
+                assertEquals(expected, bucketManager.getClosestPeers(key, count));
+            }
+        }
+    }
+
     private void checkBucketConsistency() throws Exception {
         Iterator<KBucket> iter = bucketManager.iterator();
         KBucket bucket1 = iter.next();
@@ -365,8 +392,8 @@ public class BucketManagerTest {
         for (KBucket bucket: bucketManager)
             for (KademliaPeer peer: bucket) {
                 BigInteger peerId = new BigInteger(1, peer.calculateHash().getData());
-                assertTrue(bucket.getStartId().compareTo(peerId) <= 0);
-                assertTrue(bucket.getEndId().compareTo(peerId) >= 0);
+                assertTrue(bucket.getStartId().toBigInteger().compareTo(peerId) <= 0);
+                assertTrue(bucket.getEndId().toBigInteger().compareTo(peerId) >= 0);
             }
         
         // all peers in a bucket at depth d should have the same value at the d-th highest bit
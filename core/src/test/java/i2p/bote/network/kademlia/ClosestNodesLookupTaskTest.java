@@ -0,0 +1,248 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.network.kademlia;
+
+import static i2p.bote.network.kademlia.KademliaConstants.ALPHA;
+import static i2p.bote.network.kademlia.KademliaConstants.K;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import i2p.bote.network.I2PPacketDispatcher;
+import i2p.bote.network.I2PSendQueue;
+import i2p.bote.network.PacketListener;
+import i2p.bote.packet.CommunicationPacket;
+import i2p.bote.packet.PeerList;
+import i2p.bote.packet.ResponsePacket;
+import i2p.bote.packet.StatusCode;
+import i2p.bote.packet.dht.FindClosePeersPacket;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.client.I2PClient;
+import net.i2p.client.I2PClientFactory;
+import net.i2p.data.Destination;
+import net.i2p.data.Hash;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class ClosestNodesLookupTaskTest {
+    private static List<Destination> destinations;   // enough for a lookup that doesn't query every peer
+    
+    private Hash key;
+    private Destination localDestination;
+    private I2PSendQueue sendQueue;
+    private I2PPacketDispatcher i2pReceiver;
+    private BucketManager bucketManager;
+    private BlockingQueue<Request> requests;   // requests sent by the lookup
+    
+    @BeforeClass
+    public static void createDestinations() throws Exception {
+        I2PClient i2pClient = I2PClientFactory.createClient();
+        destinations = new ArrayList<Destination>();
+        for (int i=0; i<K+ALPHA+6; i++)
+            destinations.add(i2pClient.createDestination(new ByteArrayOutputStream()));
+    }
+    
+    @Before
+    public void setUp() throws Exception {
+        key = destinations.get(0).calculateHash();
+        localDestination = destinations.get(0);
+        sendQueue = mock(I2PSendQueue.class);
+        i2pReceiver = mock(I2PPacketDispatcher.class);
+        bucketManager = mock(BucketManager.class);
+        requests = new LinkedBlockingQueue<Request>();
+        
+        when(sendQueue.getLocalDestination()).thenReturn(localDestination);
+        // record requests instead of sending them
+        doAnswer(new Answer<CountDownLatch>() {
+            @Override
+            public CountDownLatch answer(InvocationOnMock invocation) {
+                CommunicationPacket packet = (CommunicationPacket)invocation.getArguments()[0];
+                Destination peer = (Destination)invocation.getArguments()[1];
+                packet.setSentTime(System.currentTimeMillis());
+                requests.add(new Request((FindClosePeersPacket)packet, peer));
+                return new CountDownLatch(0);
+            }
+        }).when(sendQueue).send(any(CommunicationPacket.class), any(Destination.class));
+    }
+    
+    @Test
+    public void testKClosestResponded() throws Exception {
+        List<Destination> peers = destinations.subList(1, destinations.size());
+        when(bucketManager.getAllUnlockedPeers()).thenReturn(new ArrayList<Destination>(peers));
+        
+        ClosestNodesLookupTask task = new ClosestNodesLookupTask(key, sendQueue, i2pReceiver, bucketManager);
+        task.start();
+        PacketListener packetListener = getPacketListener();
+        assertEquals(ALPHA, requests.size());
+        
+        // answer requests in the order they were sent, which is closest peer first
+        int numRequests = 0;
+        while (!task.isDone()) {
+            Request request = requests.poll();
+            assertNotNull("Lookup is waiting for a response but no request is pending", request);
+            respond(packetListener, request);
+            numRequests++;
+        }
+        numRequests += requests.size();
+        
+        List<Destination> expectedResults = sortByDistance(peers).subList(0, K);
+        assertEquals(expectedResults, task.get(0, TimeUnit.SECONDS));
+        assertFalse(task.isCancelled());
+        // the lookup stops when the k closest peers have responded, with at most alpha requests pending
+        assertEquals(K + ALPHA, numRequests);
+        assertTrue(numRequests < peers.size());
+        verify(i2pReceiver).removePacketListener(packetListener);
+    }
+    
+    @Test
+    public void testRequestTimeout() throws Exception {
+        List<Destination> peers = sortByDistance(destinations.subList(1, ALPHA+2));
+        when(bucketManager.getAllUnlockedPeers()).thenReturn(new ArrayList<Destination>(peers));
+        
+        ClosestNodesLookupTask task = new ClosestNodesLookupTask(key, sendQueue, i2pReceiver, bucketManager, 500);
+        task.start();
+        PacketListener packetListener = getPacketListener();
+        for (int i=0; i<ALPHA; i++)
+            assertSame(peers.get(i), requests.take().peer);
+        
+        // once the first requests have timed out, the remaining peer is queried
+        Request request = requests.poll(10, TimeUnit.SECONDS);
+        assertNotNull("The next peer wasn't queried after a timeout", request);
+        assertSame(peers.get(ALPHA), request.peer);
+        verify(bucketManager, timeout(5000).atLeastOnce()).noResponse(any(Destination.class));
+        
+        respond(packetListener, request);
+        assertEquals(Collections.singletonList(peers.get(ALPHA)), task.get(10, TimeUnit.SECONDS));
+    }
+    
+    @Test
+    public void testCancel() throws Exception {
+        List<Destination> peers = destinations.subList(1, destinations.size());
+        when(bucketManager.getAllUnlockedPeers()).thenReturn(new ArrayList<Destination>(peers));
+        ResultListener listener = new ResultListener();
+        
+        ClosestNodesLookupTask task = new ClosestNodesLookupTask(key, sendQueue, i2pReceiver, bucketManager);
+        task.start(listener);
+        PacketListener packetListener = getPacketListener();
+        Request firstRequest = requests.take();
+        Request secondRequest = requests.take();
+        respond(packetListener, firstRequest);
+        assertFalse(task.isDone());
+        
+        // cancelling returns the partial results and notifies the listener
+        assertTrue(task.cancel(false));
+        assertTrue(task.isDone());
+        assertTrue(task.isCancelled());
+        List<Destination> expectedResults = Collections.singletonList(firstRequest.peer);
+        assertEquals(expectedResults, task.get());
+        assertEquals(1, listener.numCalls.get());
+        assertEquals(expectedResults, listener.results);
+        
+        // nothing changes after the lookup has been cancelled
+        assertFalse(task.cancel(false));
+        respond(packetListener, secondRequest);
+        assertEquals(expectedResults, task.get());
+        assertEquals(1, listener.numCalls.get());
+        verify(i2pReceiver).removePacketListener(packetListener);
+    }
+    
+    @Test
+    public void testNoPeers() throws Exception {
+        when(bucketManager.getAllUnlockedPeers()).thenReturn(new ArrayList<Destination>());
+        ResultListener listener = new ResultListener();
+        
+        ClosestNodesLookupTask task = new ClosestNodesLookupTask(key, sendQueue, i2pReceiver, bucketManager);
+        task.start(listener);
+        
+        // the lookup must be finished when start() returns
+        assertTrue(task.isDone());
+        assertTrue(task.get(0, TimeUnit.SECONDS).isEmpty());
+        assertEquals(1, listener.numCalls.get());
+        assertTrue(listener.results.isEmpty());
+        verify(sendQueue, never()).send(any(CommunicationPacket.class), any(Destination.class));
+        assertNull(requests.poll());
+    }
+    
+    private PacketListener getPacketListener() {
+        ArgumentCaptor<PacketListener> arg = ArgumentCaptor.forClass(PacketListener.class);
+        verify(i2pReceiver).addPacketListener(arg.capture());
+        return arg.getValue();
+    }
+    
+    /** Delivers an empty peer list as the response to a request */
+    private void respond(PacketListener packetListener, Request request) {
+        PeerList peerList = new PeerList(new ArrayList<Destination>());
+        for (ResponsePacket response: ResponsePacket.create(peerList, StatusCode.OK, request.packet.getPacketId()))
+            packetListener.packetReceived(response, request.peer, System.currentTimeMillis());
+    }
+    
+    private List<Destination> sortByDistance(List<Destination> peers) {
+        List<Destination> sortedPeers = new ArrayList<Destination>(peers);
+        Collections.sort(sortedPeers, new PeerDistanceComparator(key));
+        return sortedPeers;
+    }
+    
+    private static class Request {
+        FindClosePeersPacket packet;
+        Destination peer;
+        
+        Request(FindClosePeersPacket packet, Destination peer) {
+            this.packet = packet;
+            this.peer = peer;
+        }
+    }
+    
+    private static class ResultListener implements ClosestNodesLookupTask.Listener {
+        AtomicInteger numCalls = new AtomicInteger();
+        volatile List<Destination> results;
+        
+        @Override
+        public void lookupFinished(Hash key, List<Destination> results) {
+            numCalls.incrementAndGet();
+            this.results = results;
+        }
+    }
+}
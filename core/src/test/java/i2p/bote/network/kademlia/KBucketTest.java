@@ -77,7 +77,7 @@ public class KBucketTest {
             peers1[20] = new KademliaPeer(new Destination("hwtMFQ~WC7-bZ3vINz90q6qTQJHqsbA~c13TAAbxfKTGAnR9xUOZbk5bX9D6wd6owKtnVDUfjizOjES8Pc~E78wmyckoMwpEQe8adZzd4obJwJ7HN~cZ2artJC90RAcRWhWRSpDYGF~U3EB3By~wRzsHAQj-8~gySnUXvjonXyYn6chcnsvSKcQvjGnovblLK7ksy3TUlN8~8jGtgO2ZXeQjtRWSH33ZBSCXO1qEXVAFoRWYFe5lq8QDirjXPdjuAUTjD6tmWsNXnju4JWqpIPcT4Yq3mrY56FASjOHaeREbv0hIRPvuBO2IcIYl~isG5LtRkfvph6oR~iWvTx3YVDQVItPOryOOafF-x~sshUdVMVc8pb5vW2ajrNLiUozkfofYgApP9gtV52dUySb0YyaNesJ7huF3d1baTUOa6LVUze9zbXxnR4lRv11IP~QtekdQDqxAg~c2oyclIJhR7qxZreeIw7z4yMxRsQmWS94TXCNUf3JgMS1PmyPTJQ-sAAAA"));
             startId = new BigInteger("20165322902067810213412302882682490742329252029515918366652609455164745599540");
             endId = new BigInteger("33702408623411834034558105528091829985375371188155381652341683994745035632399");
-            bucket = new KBucket(startId, endId, depth);
+            bucket = new KBucket(new KademliaId(startId), new KademliaId(endId), depth);
             buckets.add(bucket);
             destinationMap.put(bucket, peers1);
             
@@ -105,7 +105,7 @@ public class KBucketTest {
             peers2[20] = new KademliaPeer(new Destination("wu3A7oY7WU2Re660BWbIw8eZDx5F155kwftEpb-KP4Dp6OnJxaFGUVRJBZwKPEEr5C62Tsb8cY30df8-yx-MbhKv0SVG5dG14Z~L2dviekRTzT1czQ1V-VzdnAZHbuy1uHHY2AiZVtM4NW~2yn8C3T~6T8Qj8HYKLH-RZ~vPGVnfy9CvpXG3YrANK9O2HcoQJZIqDR4jBsUY8aWf6MvY-tEao1IQWr2oWri0UMLxklHlznNoCZiayS9ZHTUNtqjY890vGYdVZIt9vHMRJpd7yLevWCekS3x6jEE6k4w5erOnYqo~jz9HERLSX0IPlpsRFEbXqAhdG0xt4HmDweTo4FT~sF6yIuPHGgKFBbtx0H6QK5pgNI3ldvDdvIH5w9UgU93zAlLIbOttXkBs-CdHXJpOiJoap5iZQD5w4u3X6G29mJXzY1s6oK2pxId-VdcFfyDOm7veCqnhyabH01LuxyKtEXEfj36xQV8MmCtVbKuxPbTgc-2KXOepiUY~MLQAAAAA"));
             startId = new BigInteger("54322108851495321962026285688661141713340520926301416800794348337691246625057");
             endId = new BigInteger("66306385230365087118809986298744845651941672849188218336247011280980080257051");
-            bucket = new KBucket(startId, endId, depth);
+            bucket = new KBucket(new KademliaId(startId), new KademliaId(endId), depth);
             buckets.add(bucket);
             destinationMap.put(bucket, peers2);
             
@@ -133,7 +133,7 @@ public class KBucketTest {
             peers3[20] = new KademliaPeer(new Destination("TNq9lZWyU0mTvMvbtB6nvOT-QBgTYwvM0NoosHfx0sHQbCEQzId-ojhgT9RM9NpqxaKvAulHppKaDsZS5DAQs6~pJwbt12cFWc6C5pJIGMMYl0DmeTnLVmk1-CxgdGrt1TDv84qbwghcJ4FYINqw5l7efaURX1dJw5q4MCC9DE7hmI77fGXGq0WWXrgDhYThT9F061nDrGrj7YU490Q4o5q~XDLfZuMbM6bxLEECrY-yLIucq6SUrWn3GULlacGGUJ3EEHkvVedVgpUOYnPY~bEXaUCAU-R8Co5lBlrnOC7E3X4Bc~iiFKyzsCgP4WMNwuBwQXk~qZ2jgfNpSEesBIp3Wu9g1rf3s9iFIh~NqxtIXu6XhDVGylRntoAne4MIDpDqtqm38MRKsqJXEes1di53NPdiVKDJ3Y6kKMI1m8bI6ppWKa9jPrZNkjxKT0b~pUZl808aHjigdIrEdfzvLVp625LDNGbAOJ-CnJzP2rzTD8hFA97CY-lEPi-N9QlZAAAA"));
             startId = new BigInteger("93473727204000033254175814578319686612288952448482536549858183451728938339338");
             endId = new BigInteger("102977979631408937131925934912429413039310769350307229631811585815019336318945");
-            bucket = new KBucket(startId, endId, depth);
+            bucket = new KBucket(new KademliaId(startId), new KademliaId(endId), depth);
             buckets.add(bucket);
             destinationMap.put(bucket, peers3);
         }
@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.network.kademlia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import net.i2p.data.Hash;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the results of <code>KademliaId</code> operations against <code>BigInteger</code>.
+ */
+public class KademliaIdTest {
+    private static final BigInteger MODULUS = BigInteger.ONE.shiftLeft(KademliaId.NUM_BITS);
+    private static final int NUM_VALUES = 200;
+    
+    private Random rng;
+    private BigInteger[] values;
+
+    @Before
+    public void setUp() throws Exception {
+        rng = new Random(42);
+        values = new BigInteger[NUM_VALUES];
+        values[0] = BigInteger.ZERO;
+        values[1] = BigInteger.ONE;
+        values[2] = MODULUS.subtract(BigInteger.ONE);
+        values[3] = BigInteger.ONE.shiftLeft(64);
+        values[4] = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+        for (int i=5; i<NUM_VALUES; i++)
+            values[i] = new BigInteger(rng.nextInt(KademliaId.NUM_BITS) + 1, rng);   // random values of varying bit length
+    }
+    
+    @Test
+    public void testConversion() {
+        for (BigInteger value: values) {
+            KademliaId id = new KademliaId(value);
+            assertEquals(value, id.toBigInteger());
+            assertEquals(id, new KademliaId(id.toHash()));
+            assertEquals(value.bitLength(), id.bitLength());
+            assertEquals(KademliaId.NUM_BITS-value.bitLength(), id.numberOfLeadingZeros());
+        }
+        assertEquals(BigInteger.ZERO, KademliaId.MIN_VALUE.toBigInteger());
+        assertEquals(MODULUS.subtract(BigInteger.ONE), KademliaId.MAX_VALUE.toBigInteger());
+    }
+    
+    @Test
+    public void testCompareAndXor() {
+        for (BigInteger value1: values)
+            for (BigInteger value2: values) {
+                KademliaId id1 = new KademliaId(value1);
+                KademliaId id2 = new KademliaId(value2);
+                assertEquals(Integer.signum(value1.compareTo(value2)), Integer.signum(id1.compareTo(id2)));
+                assertEquals(Integer.signum(value1.compareTo(value2)), Integer.signum(id1.compareToHash(id2.toHash())));
+                assertEquals(value1.xor(value2), id1.xor(id2).toBigInteger());
+                assertEquals(value1.xor(value2), KademliaId.getDistance(id1.toHash(), id2.toHash()).toBigInteger());
+            }
+    }
+    
+    @Test
+    public void testCompareDistances() {
+        KademliaId reference = new KademliaId(values[rng.nextInt(NUM_VALUES)]);
+        BigInteger referenceValue = reference.toBigInteger();
+        for (BigInteger value1: values)
+            for (BigInteger value2: values) {
+                Hash key1 = new KademliaId(value1).toHash();
+                Hash key2 = new KademliaId(value2).toHash();
+                int expected = value1.xor(referenceValue).compareTo(value2.xor(referenceValue));
+                assertEquals(Integer.signum(expected), Integer.signum(reference.compareDistances(key1, key2)));
+            }
+    }
+    
+    @Test
+    public void testArithmetic() {
+        for (BigInteger value1: values) {
+            KademliaId id1 = new KademliaId(value1);
+            for (BigInteger value2: values) {
+                KademliaId id2 = new KademliaId(value2);
+                assertEquals(value1.add(value2).mod(MODULUS), id1.add(id2).toBigInteger());
+                assertEquals(value1.subtract(value2).mod(MODULUS), id1.subtract(id2).toBigInteger());
+            }
+            
+            for (int shift: new int[] {0, 1, 7, 63, 64, 65, 128, 200, 255, 256}) {
+                assertEquals(value1.shiftRight(shift), id1.shiftRight(shift).toBigInteger());
+                assertEquals(value1.shiftRight(shift).shiftLeft(shift), id1.clearLowestBits(shift).toBigInteger());
+            }
+            
+            for (int factor: new int[] {0, 1, 2, 3, 1000, Integer.MAX_VALUE}) {
+                BigInteger bigFactor = BigInteger.valueOf(factor);
+                assertEquals(value1.multiply(bigFactor).mod(MODULUS), id1.multiply(factor).toBigInteger());
+                if (factor > 0) {
+                    assertEquals(value1.divide(bigFactor), id1.divide(factor).toBigInteger());
+                    assertEquals(value1.mod(bigFactor).intValue(), id1.remainder(factor));
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void testTestBit() {
+        for (BigInteger value: values) {
+            KademliaId id = new KademliaId(value);
+            String binary = id.toBinaryString();
+            assertEquals(KademliaId.NUM_BITS, binary.length());
+            for (int i=0; i<KademliaId.NUM_BITS; i++) {
+                assertEquals(value.testBit(i), id.testBit(i));
+                assertEquals(value.testBit(i), binary.charAt(KademliaId.NUM_BITS-1-i)=='1');
+            }
+        }
+    }
+    
+    @Test
+    public void testRandom() {
+        for (BigInteger value: values)
+            if (value.signum() > 0) {
+                KademliaId bound = new KademliaId(value);
+                for (int i=0; i<10; i++) {
+                    KademliaId random = KademliaId.random(rng, bound);
+                    assertTrue(random.compareTo(bound) < 0);
+                    assertTrue(random.compareTo(KademliaId.MIN_VALUE) >= 0);
+                }
+            }
+    }
+    
+    @Test
+    public void testIsInRange() {
+        KademliaId start = new KademliaId(BigInteger.valueOf(1000));
+        KademliaId end = new KademliaId(BigInteger.ONE.shiftLeft(130));
+        assertTrue(KademliaId.isInRange(start.toHash(), start, end));
+        assertTrue(KademliaId.isInRange(end.subtract(KademliaId.valueOf(1)).toHash(), start, end));
+        assertTrue(!KademliaId.isInRange(end.toHash(), start, end));
+        assertTrue(!KademliaId.isInRange(KademliaId.valueOf(999).toHash(), start, end));
+    }
+}
@@ -0,0 +1,302 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package i2p.bote.network.kademlia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import i2p.bote.UniqueId;
+import i2p.bote.network.DhtStorageHandler;
+import i2p.bote.network.I2PPacketDispatcher;
+import i2p.bote.network.I2PSendQueue;
+import i2p.bote.packet.CommunicationPacket;
+import i2p.bote.packet.dht.DeleteRequest;
+import i2p.bote.packet.dht.DhtStorablePacket;
+import i2p.bote.packet.dht.EmailPacketDeleteRequest;
+import i2p.bote.packet.dht.StoreRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.client.I2PClient;
+import net.i2p.client.I2PClientFactory;
+import net.i2p.data.Destination;
+import net.i2p.data.Hash;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class ReplicateThreadTest {
+    private static List<Destination> destinations;
+    private static Random rng = new Random();
+    
+    private Destination localDestination;
+    private I2PSendQueue sendQueue;
+    private I2PPacketDispatcher i2pReceiver;
+    private BucketManager bucketManager;
+    private DhtStorageHandler dhtStore;
+    private ReplicateThread replicateThread;
+    private List<Request> requests;   // packets handed to the send queue
+    
+    @BeforeClass
+    public static void createDestinations() throws Exception {
+        I2PClient i2pClient = I2PClientFactory.createClient();
+        destinations = new ArrayList<Destination>();
+        for (int i=0; i<4; i++)
+            destinations.add(i2pClient.createDestination(new ByteArrayOutputStream()));
+    }
+    
+    @Before
+    public void setUp() throws Exception {
+        localDestination = destinations.get(0);
+        sendQueue = mock(I2PSendQueue.class);
+        i2pReceiver = mock(I2PPacketDispatcher.class);
+        bucketManager = mock(BucketManager.class);
+        dhtStore = mock(DhtStorageHandler.class);
+        requests = Collections.synchronizedList(new ArrayList<Request>());
+        
+        when(sendQueue.getLocalDestination()).thenReturn(localDestination);
+        // no peers for the lookup of the local destination
+        when(bucketManager.getAllUnlockedPeers()).thenReturn(new ArrayList<Destination>());
+        
+        replicateThread = new ReplicateThread(localDestination, sendQueue, i2pReceiver, bucketManager, 0);
+        replicateThread.addDhtStoreToReplicate(dhtStore);
+    }
+    
+    @Test
+    public void testGroupedByPeer() throws Exception {
+        Hash key1 = createRandomHash();
+        Hash key2 = createRandomHash();
+        setPackets(key1, key2);
+        setClosestPeers(destinations.subList(1, 3));
+        doAnswer(new RecordingAnswer()).when(sendQueue).send(any(CommunicationPacket.class), any(Destination.class));
+        
+        replicateThread.replicate();
+        
+        assertEquals(4, requests.size());
+        assertStoreRequest(requests.get(0), key1, destinations.get(1));
+        assertStoreRequest(requests.get(1), key2, destinations.get(1));
+        assertStoreRequest(requests.get(2), key1, destinations.get(2));
+        assertStoreRequest(requests.get(3), key2, destinations.get(2));
+    }
+    
+    /**
+     * Tests that a delete request received in reply to a store request is forwarded to the
+     * other peers exactly once, and that the remaining store requests for the DHT key are
+     * not sent.
+     */
+    @Test
+    public void testDeleteRequestReceived() throws Exception {
+        final Hash key1 = createRandomHash();
+        Hash key2 = createRandomHash();
+        setPackets(key1, key2);
+        setClosestPeers(destinations.subList(1, 4));
+        final Destination peerA = destinations.get(1);
+        final Destination peerB = destinations.get(2);
+        final Destination peerC = destinations.get(3);
+        
+        // peer A replies to the first store request for key1 with a delete request,
+        // and peer B sends one for key1 in reply to the store request for key2
+        doAnswer(new RecordingAnswer() {
+            @Override
+            CountDownLatch sent(CommunicationPacket packet, Destination peer) {
+                if (packet instanceof StoreRequest) {
+                    Hash key = ((StoreRequest)packet).getKey();
+                    if (key1.equals(key) && peerA.equals(peer))
+                        replicateThread.packetReceived(new EmailPacketDeleteRequest(key1, new UniqueId()), peerA, System.currentTimeMillis());
+                    else if (!key1.equals(key) && peerB.equals(peer))
+                        replicateThread.packetReceived(new EmailPacketDeleteRequest(key1, new UniqueId()), peerB, System.currentTimeMillis());
+                }
+                return super.sent(packet, peer);
+            }
+        }).when(sendQueue).send(any(CommunicationPacket.class), any(Destination.class));
+        
+        replicateThread.replicate();
+        
+        List<Destination> key1StoreRequests = new ArrayList<Destination>();
+        List<Destination> key2StoreRequests = new ArrayList<Destination>();
+        List<Destination> deleteRequests = new ArrayList<Destination>();
+        for (Request request: requests)
+            if (request.packet instanceof StoreRequest) {
+                Hash key = ((StoreRequest)request.packet).getKey();
+                if (key1.equals(key))
+                    key1StoreRequests.add(request.peer);
+                else
+                    key2StoreRequests.add(request.peer);
+            }
+            else if (request.packet instanceof DeleteRequest) {
+                assertEquals(Collections.singletonList(key1), new ArrayList<Hash>(((DeleteRequest)request.packet).getDhtKeys()));
+                deleteRequests.add(request.peer);
+            }
+        
+        assertEquals(Collections.singletonList(peerA), key1StoreRequests);
+        assertEquals(3, key2StoreRequests.size());
+        assertEquals(2, deleteRequests.size());
+        assertFalse(deleteRequests.contains(peerA));
+        assertEquals(1, Collections.frequency(deleteRequests, peerB));
+        assertEquals(1, Collections.frequency(deleteRequests, peerC));
+    }
+    
+    /**
+     * Tests that no more than <code>MAX_PACKETS_IN_FLIGHT</code> (50) store requests
+     * are queued but not sent at any time.
+     */
+    @Test
+    public void testPacketsInFlight() throws Exception {
+        int numPackets = 60;
+        Hash[] keys = new Hash[numPackets];
+        for (int i=0; i<numPackets; i++)
+            keys[i] = createRandomHash();
+        setPackets(keys);
+        setClosestPeers(destinations.subList(1, 2));
+        
+        // the send queue doesn't send anything until the test counts down the latches
+        final BlockingQueue<CountDownLatch> sentLatches = new LinkedBlockingQueue<CountDownLatch>();
+        doAnswer(new RecordingAnswer() {
+            @Override
+            CountDownLatch sent(CommunicationPacket packet, Destination peer) {
+                CountDownLatch sentLatch = new CountDownLatch(1);
+                sentLatches.add(sentLatch);
+                return sentLatch;
+            }
+        }).when(sendQueue).send(any(CommunicationPacket.class), any(Destination.class));
+        
+        Thread replicationThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    replicateThread.replicate();
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        replicationThread.start();
+        
+        List<CountDownLatch> inFlight = new ArrayList<CountDownLatch>();
+        for (int i=0; i<50; i++) {
+            CountDownLatch sentLatch = sentLatches.poll(5, TimeUnit.SECONDS);
+            assertNotNull(sentLatch);
+            inFlight.add(sentLatch);
+        }
+        assertNull(sentLatches.poll(500, TimeUnit.MILLISECONDS));
+        
+        // one packet is sent, so one more can be queued
+        inFlight.get(0).countDown();
+        CountDownLatch sentLatch = sentLatches.poll(5, TimeUnit.SECONDS);
+        assertNotNull(sentLatch);
+        inFlight.add(sentLatch);
+        assertNull(sentLatches.poll(500, TimeUnit.MILLISECONDS));
+        
+        // send everything else
+        for (CountDownLatch latch: inFlight)
+            latch.countDown();
+        for (int i=inFlight.size(); i<numPackets; i++) {
+            sentLatch = sentLatches.poll(5, TimeUnit.SECONDS);
+            assertNotNull(sentLatch);
+            sentLatch.countDown();
+        }
+        replicationThread.join(5000);
+        assertFalse(replicationThread.isAlive());
+        assertEquals(numPackets, requests.size());
+    }
+    
+    private void setPackets(Hash... dhtKeys) {
+        final List<DhtStorablePacket> packets = new ArrayList<DhtStorablePacket>();
+        for (Hash dhtKey: dhtKeys) {
+            DhtStorablePacket packet = mock(DhtStorablePacket.class);
+            when(packet.getDhtKey()).thenReturn(dhtKey);
+            packets.add(packet);
+        }
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                return packets.iterator();
+            }
+        }).when(dhtStore).individualPackets();
+    }
+    
+    /** Makes the bucket manager return a copy of <code>peers</code> for any DHT key */
+    private void setClosestPeers(final List<Destination> peers) {
+        doAnswer(new Answer<List<Destination>>() {
+            @Override
+            public List<Destination> answer(InvocationOnMock invocation) {
+                return new ArrayList<Destination>(peers);
+            }
+        }).when(bucketManager).getClosestPeers(any(Hash.class), anyInt());
+    }
+    
+    private void assertStoreRequest(Request request, Hash dhtKey, Destination peer) {
+        StoreRequest storeRequest = (StoreRequest)request.packet;
+        assertEquals(dhtKey, storeRequest.getKey());
+        assertSame(peer, request.peer);
+    }
+    
+    private Hash createRandomHash() {
+        byte[] bytes = new byte[Hash.HASH_LENGTH];
+        rng.nextBytes(bytes);
+        return new Hash(bytes);
+    }
+    
+    /** Records packets instead of sending them */
+    private class RecordingAnswer implements Answer<CountDownLatch> {
+        @Override
+        public CountDownLatch answer(InvocationOnMock invocation) {
+            CommunicationPacket packet = (CommunicationPacket)invocation.getArguments()[0];
+            Destination peer = (Destination)invocation.getArguments()[1];
+            requests.add(new Request(packet, peer));
+            return sent(packet, peer);
+        }
+        
+        /** Called after a packet has been recorded; returns the packet's "sent" latch */
+        CountDownLatch sent(CommunicationPacket packet, Destination peer) {
+            return new CountDownLatch(0);
+        }
+    }
+    
+    private static class Request {
+        CommunicationPacket packet;
+        Destination peer;
+        
+        Request(CommunicationPacket packet, Destination peer) {
+            this.packet = packet;
+            this.peer = peer;
+        }
+    }
+}
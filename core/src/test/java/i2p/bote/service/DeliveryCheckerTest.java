@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+import i2p.bote.Configuration;
+import i2p.bote.TestUtil;
+import i2p.bote.UniqueId;
+import i2p.bote.email.Email;
+import i2p.bote.email.EmailDestination;
+import i2p.bote.email.EmailMetadata;
+import i2p.bote.fileencryption.PasswordCache;
+import i2p.bote.folder.EmailFolder;
+import i2p.bote.network.DHT;
+import i2p.bote.network.NetworkStatusSource;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import net.i2p.data.Hash;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+import org.mockito.stubbing.Answer;
+
+public class DeliveryCheckerTest {
+    @Rule public MockitoRule rule = MockitoJUnit.rule();
+
+    @Mock DHT dht;
+    @Mock Configuration configuration;
+    @Mock NetworkStatusSource networkStatusSource;
+
+    private File testDir;
+    private File folderDir;
+    private EmailFolder sentFolder;
+    private DeliveryChecker deliveryChecker;
+    private Random rng;
+
+    @Before
+    public void setUp() throws Exception {
+        File tempDir = new File(System.getProperty("java.io.tmpdir"));
+        testDir = new File(tempDir, "DeliveryCheckerTest-" + System.currentTimeMillis());
+        folderDir = new File(testDir, "sent");
+        PasswordCache passwordCache = TestUtil.createPasswordCache(testDir);
+        sentFolder = new EmailFolder(folderDir, passwordCache);
+        when(configuration.getDeliveryCheckParallelism()).thenReturn(5);
+        deliveryChecker = new DeliveryChecker(dht, sentFolder, configuration, networkStatusSource);
+        rng = new Random(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (File file: folderDir.listFiles())
+            file.delete();
+        folderDir.delete();
+        TestUtil.deleteGeneratedFiles(testDir);
+        testDir.delete();
+        assertFalse(testDir.exists());
+    }
+
+    @Test
+    public void testCheckDelivery() throws Exception {
+        EmailDestination recipient = TestUtil.createTestIdentities().get(0).identity;
+        final Hash deliveredKey1 = createRandomHash();
+        Hash undeliveredKey1 = createRandomHash();
+        final Hash deliveredKey2 = createRandomHash();
+        
+        Email email1 = new Email(true);
+        email1.setText("Email 1");
+        email1.getMetadata().addPacketInfo(recipient, deliveredKey1, createRandomHash());
+        email1.getMetadata().addPacketInfo(recipient, undeliveredKey1, createRandomHash());
+        sentFolder.add(email1);
+        Email email2 = new Email(true);
+        email2.setText("Email 2");
+        email2.getMetadata().addPacketInfo(recipient, deliveredKey2, createRandomHash());
+        sentFolder.add(email2);
+        final String messageId1 = email1.getMessageID();
+        final String messageId2 = email2.getMessageID();
+        
+        // while the DHT is being queried, one email's metadata changes and the other email is deleted
+        when(dht.findDeleteAuthorizationKeys(anyMapOf(Hash.class, Hash.class), anyInt())).thenAnswer(new Answer<Map<Hash, UniqueId>>() {
+            @Override
+            public Map<Hash, UniqueId> answer(InvocationOnMock invocation) throws Throwable {
+                sentFolder.setReplied(messageId1, true);
+                sentFolder.delete(messageId2);
+                Map<Hash, UniqueId> delAuthorizations = new HashMap<Hash, UniqueId>();
+                delAuthorizations.put(deliveredKey1, new UniqueId());
+                delAuthorizations.put(deliveredKey2, new UniqueId());
+                return delAuthorizations;
+            }
+        });
+        
+        deliveryChecker.checkDelivery(Arrays.asList(sentFolder.getEmail(messageId1), sentFolder.getEmail(messageId2)));
+        
+        // both the delivery status and the concurrent change must have been saved
+        EmailMetadata metadata1 = sentFolder.getEmail(messageId1).getMetadata();
+        assertTrue(metadata1.isReplied());
+        assertFalse(metadata1.isDelivered());
+        assertEquals(1, metadata1.getUndeliveredPacketKeys().size());
+        assertEquals(undeliveredKey1, metadata1.getUndeliveredPacketKeys().iterator().next().dhtKey);
+        
+        // no orphaned metadata file for the deleted email
+        assertNull(sentFolder.getEmail(messageId2));
+        for (String fileName: folderDir.list())
+            assertFalse("Metadata file was recreated: " + fileName, fileName.startsWith(messageId2));
+    }
+
+    private Hash createRandomHash() {
+        byte[] bytes = new byte[Hash.HASH_LENGTH];
+        rng.nextBytes(bytes);
+        return new Hash(bytes);
+    }
+}
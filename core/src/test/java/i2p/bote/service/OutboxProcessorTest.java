@@ -3,23 +3,34 @@ package i2p.bote.service;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
+import javax.mail.MessagingException;
 import javax.mail.Message.RecipientType;
 import javax.mail.internet.InternetAddress;
 
 import i2p.bote.Configuration;
 import i2p.bote.TestUtil;
+import i2p.bote.TestUtil.TestIdentity;
 import i2p.bote.email.Email;
 import i2p.bote.email.EmailIdentity;
 import i2p.bote.email.Identities;
 import i2p.bote.folder.Outbox;
+import i2p.bote.folder.Outbox.EmailStatus;
+import i2p.bote.folder.Outbox.EmailStatus.Status;
 import i2p.bote.folder.RelayPacketFolder;
 import i2p.bote.network.DHT;
 import i2p.bote.network.NetworkStatusSource;
 import i2p.bote.packet.dht.DhtStorablePacket;
 import i2p.bote.packet.dht.EncryptedEmailPacket;
 import i2p.bote.packet.dht.IndexPacket;
+import i2p.bote.packet.dht.UnencryptedEmailPacket;
+
+import net.i2p.data.Hash;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -94,4 +105,98 @@ public class OutboxProcessorTest {
         assertTrue(values.get(1) instanceof IndexPacket);
         assertTrue(((IndexPacket)values.get(1)).contains(((EncryptedEmailPacket)values.get(0)).getDhtKey()));
     }
+
+    @Test
+    public void testDeleteAuthorizationPerRecipient() throws Exception {
+        List<TestIdentity> recipients = TestUtil.createTestIdentities().subList(0, 3);
+        testEmail = createAnonymousEmail();
+        for (TestIdentity recipient: recipients)
+            testEmail.addRecipient(RecipientType.TO, new InternetAddress(recipient.identity.getKey()));
+
+        op.sendEmail(testEmail);
+
+        // every recipient must get a different delete authorization
+        List<EncryptedEmailPacket> emailPackets = getStoredEmailPackets(recipients.size() * 2);
+        assertEquals(recipients.size(), emailPackets.size());
+        Set<Hash> deleteVerificationHashes = new HashSet<Hash>();
+        for (EncryptedEmailPacket emailPacket: emailPackets)
+            deleteVerificationHashes.add(emailPacket.getDeleteVerificationHash());
+        assertEquals(recipients.size(), deleteVerificationHashes.size());
+    }
+
+    @Test
+    public void testBccPackets() throws Exception {
+        List<TestIdentity> testIdentities = TestUtil.createTestIdentities();
+        TestIdentity toRecipient = testIdentities.get(1);
+        TestIdentity bccRecipient1 = testIdentities.get(2);
+        TestIdentity bccRecipient2 = testIdentities.get(0);
+        testEmail = createAnonymousEmail();
+        testEmail.addRecipient(RecipientType.TO, new InternetAddress(toRecipient.identity.getKey()));
+        testEmail.addRecipient(RecipientType.BCC, new InternetAddress(bccRecipient1.identity.getKey()));
+        testEmail.addRecipient(RecipientType.BCC, new InternetAddress(bccRecipient2.identity.getKey()));
+
+        op.sendEmail(testEmail);
+
+        // the TO recipient sees no BCC addresses, each BCC recipient only sees their own
+        List<EncryptedEmailPacket> emailPackets = getStoredEmailPackets(6);
+        assertEquals(3, emailPackets.size());
+        for (EncryptedEmailPacket emailPacket: emailPackets) {
+            TestIdentity recipient = null;
+            for (TestIdentity testIdentity: Arrays.asList(toRecipient, bccRecipient1, bccRecipient2))
+                if (testIdentity.cryptoImpl.getId() == emailPacket.getCryptoImpl().getId())
+                    recipient = testIdentity;
+            assertNotNull(recipient);
+
+            UnencryptedEmailPacket unencryptedPacket = emailPacket.decrypt(recipient.identity);
+            Email receivedEmail = new Email(unencryptedPacket.getContent());
+            String[] bccHeaders = receivedEmail.getHeader("BCC");
+            if (recipient == toRecipient)
+                assertNull(bccHeaders);
+            else {
+                assertNotNull(bccHeaders);
+                assertEquals(1, bccHeaders.length);
+                assertEquals(recipient.identity.getKey(), bccHeaders[0]);
+            }
+        }
+    }
+
+    @Test
+    public void testSendProgress() throws Exception {
+        List<TestIdentity> recipients = TestUtil.createTestIdentities().subList(0, 3);
+        testEmail = createAnonymousEmail();
+        for (TestIdentity recipient: recipients)
+            testEmail.addRecipient(RecipientType.TO, new InternetAddress(recipient.identity.getKey()));
+
+        op.sendEmail(testEmail);
+
+        // there must be one SENT_TO status per recipient, counting up to the number of recipients
+        ArgumentCaptor<EmailStatus> arg = ArgumentCaptor.forClass(EmailStatus.class);
+        verify(outbox, atLeastOnce()).setStatus(eq(testEmail.getMessageID()), arg.capture());
+        Set<Object> numsDone = new HashSet<Object>();
+        for (EmailStatus status: arg.getAllValues())
+            if (status.getStatus() == Status.SENT_TO) {
+                numsDone.add(status.getParam1());
+                assertEquals(recipients.size(), status.getParam2());
+            }
+        assertEquals(new HashSet<Object>(Arrays.asList(1, 2, 3)), numsDone);
+    }
+
+    private Email createAnonymousEmail() throws MessagingException {
+        Email email = new Email(true);
+        email.setFrom(new InternetAddress("anonymous"));
+        email.setSubject("Test", "UTF-8");
+        email.setText("foobar");
+        return email;
+    }
+
+    /** Returns all {@link EncryptedEmailPacket}s among the packets stored in the DHT */
+    private List<EncryptedEmailPacket> getStoredEmailPackets(int numStored) throws Exception {
+        ArgumentCaptor<DhtStorablePacket> arg = ArgumentCaptor.forClass(DhtStorablePacket.class);
+        verify(dht, times(numStored)).store(arg.capture());
+        List<EncryptedEmailPacket> emailPackets = new ArrayList<EncryptedEmailPacket>();
+        for (DhtStorablePacket packet: arg.getAllValues())
+            if (packet instanceof EncryptedEmailPacket)
+                emailPackets.add((EncryptedEmailPacket)packet);
+        return emailPackets;
+    }
 }
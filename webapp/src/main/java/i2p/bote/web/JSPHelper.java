@@ -25,6 +25,7 @@ import i2p.bote.I2PBote;
 import i2p.bote.Util;
 import i2p.bote.email.Email;
 import i2p.bote.fileencryption.PasswordException;
+import i2p.bote.folder.EmailFolderIndex;
 import i2p.bote.folder.Outbox.EmailStatus;
 import i2p.bote.util.GeneralHelper;
 
@@ -307,7 +308,15 @@ public class JSPHelper extends GeneralHelper {
     }
 
     public static String getEmailStatusText(Email email) {
-        EmailStatus emailStatus = getEmailStatus(email);
+        return getStatusText(getEmailStatus(email));
+    }
+
+    /** Same as {@link #getEmailStatusText(Email)} but for a folder index entry. */
+    public static String getEntryStatusText(EmailFolderIndex.Entry entry) {
+        return getStatusText(getEmailStatus(entry));
+    }
+
+    private static String getStatusText(EmailStatus emailStatus) {
         switch (emailStatus.getStatus()) {
         case QUEUED:
             return _t("Queued");
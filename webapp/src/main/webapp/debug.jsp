@@ -32,23 +32,38 @@
 </c:if>
 
 <ib:message key="Debug" var="title" scope="request"/>
-<jsp:include page="header.jsp"/>
+<jsp:useBean id="jspHelperBean" class="i2p.bote.web.JSPHelper"/>
 
-    <h1><ib:message key="Debug Page"/></h1>
-    
-    <c:if test="${empty action}">
-        <csrf:form action="debug.jsp" method="POST">
-            <input type="hidden" name="action" value="checkFiles"/>
-            <ib:message key="Test encrypted files" var="submitButtonText"/>
-            <input type="submit" value="${submitButtonText}"/>
-        </csrf:form>
-    </c:if>
-    
-    <c:if test="${action eq 'checkFiles'}">
-        <jsp:useBean id="jspHelperBean" class="i2p.bote.web.JSPHelper"/>
-        <ib:requirePassword>
-            <c:set var="undecryptableFiles" value="${jspHelperBean.undecryptableFiles}"/>
-            <c:if test="${empty undecryptableFiles}">
+<c:choose>
+    <%-- A file check is started with a POST; its progress is shown by reloading the page with showFileCheck=true --%>
+    <c:when test="${action eq 'checkFiles' or param.showFileCheck eq 'true'}">
+        <c:set var="refreshUrl" value="debug.jsp?showFileCheck=true" scope="request"/>
+        <ib:requirePassword forwardUrl="${refreshUrl}">
+            <c:choose>
+                <c:when test="${action eq 'checkFiles'}">
+                    <c:set var="fileCheck" value="${jspHelperBean.newFileCheck}"/>
+                </c:when>
+                <c:otherwise>
+                    <c:set var="fileCheck" value="${jspHelperBean.fileCheck}"/>
+                </c:otherwise>
+            </c:choose>
+            <%-- Refresh page until all files have been checked --%>
+            <c:if test="${not fileCheck.done}">
+                <c:set var="refreshInterval" value="2" scope="request"/>
+            </c:if>
+            <jsp:include page="header.jsp"/>
+            
+            <h1><ib:message key="Debug Page"/></h1>
+            
+            <c:set var="undecryptableFiles" value="${fileCheck.undecryptableFiles}"/>
+            <c:if test="${not fileCheck.done}">
+                <ib:message key="Checked {0} of {1} files...">
+                    <ib:param value="${fileCheck.numChecked}"/>
+                    <ib:param value="${fileCheck.numFiles}"/>
+                </ib:message>
+                <br/>
+            </c:if>
+            <c:if test="${fileCheck.done and empty undecryptableFiles}">
                 <b><ib:message key="No file encryption problems found."/></b>
             </c:if>
             <c:if test="${not empty undecryptableFiles}">
@@ -60,6 +75,18 @@
                 </ul>
             </c:if>
         </ib:requirePassword>
-    </c:if>
+    </c:when>
+    <c:otherwise>
+        <jsp:include page="header.jsp"/>
+        
+        <h1><ib:message key="Debug Page"/></h1>
+        
+        <csrf:form action="debug.jsp" method="POST">
+            <input type="hidden" name="action" value="checkFiles"/>
+            <ib:message key="Test encrypted files" var="submitButtonText"/>
+            <input type="submit" value="${submitButtonText}"/>
+        </csrf:form>
+    </c:otherwise>
+</c:choose>
 
 <jsp:include page="footer.jsp"/>
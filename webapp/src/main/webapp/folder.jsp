@@ -158,7 +158,7 @@
             <th class="header-column-trash"></th>
         </tr>
         
-        <c:forEach items="${ib:getEmails(folder, sortcolumn, descending)}" var="email" varStatus="status">
+        <c:forEach items="${ib:getEmailEntries(folder, sortcolumn, descending)}" var="email" varStatus="status">
             <c:set var="sender" value="${ib:getNameAndShortDestination(email.oneFromAddress)}"/>
             <c:if test="${empty sender}">
                 <ib:message key="Anonymous" var="sender"/>
@@ -177,7 +177,7 @@
                 </c:if>
             </c:if>
             
-            <c:set var="recipient" value="${ib:getNameAndShortDestination(ib:getOneLocalRecipient(email))}"/>
+            <c:set var="recipient" value="${ib:getNameAndShortDestination(ib:getOneLocalRecipientOfEntry(email))}"/>
             
             <c:set var="subject" value="${email.subject}"/>
             <c:if test="${empty subject}">
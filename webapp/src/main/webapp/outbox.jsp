@@ -125,7 +125,7 @@
             <th class="header-column-trash"></th>
         </tr>
         
-        <c:forEach items="${ib:getEmails(folder, sortcolumn, descending)}" var="email" varStatus="status">
+        <c:forEach items="${ib:getEmailEntries(folder, sortcolumn, descending)}" var="email" varStatus="status">
             <c:set var="sender" value="${ib:getNameAndShortDestination(email.oneFromAddress)}"/>
             <c:if test="${empty sender}">
                 <ib:message key="Anonymous" var="sender"/>
@@ -159,7 +159,7 @@
             <td>
                 <a href="${mailUrl}"><ib:printDate date="${email.sentDate}" timeStyle="short" printUnknown="true"/></a>
             </td>
-            <td><div><a href="${mailUrl}">${ib:getEmailStatusText(email)}</a></div></td>
+            <td><div><a href="${mailUrl}">${ib:getEntryStatusText(email)}</a></div></td>
             <td>
                 <a href="deleteEmail.jsp?folder=Outbox&amp;messageID=${email.messageID}">
                 <img src="${themeDir}/images/delete.png" alt="<ib:message key='Delete'/>" title="<ib:message key='Delete this email'/>"/></a>